@@ -0,0 +1,98 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2018 Angel Castillo.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.thunderbolt.commands;
+
+/* IMPORTS *******************************************************************/
+
+import com.thunderbolt.contracts.ICommand;
+import com.thunderbolt.persistence.structures.UnspentTransactionOutput;
+import com.thunderbolt.rpc.RpcClient;
+import com.thunderbolt.rpc.UnspentOutputsPage;
+
+/* IMPLEMENTATION ************************************************************/
+
+/**
+ * Lists a page of the unspent outputs.
+ */
+public class ListUnspentCommand implements ICommand
+{
+    private RpcClient s_client = null;
+
+    /**
+     * Initializes an instance of the ListUnspentCommand class.
+     */
+    public ListUnspentCommand(RpcClient client)
+    {
+        s_client = client;
+    }
+
+    /**
+     * Executes the given command.
+     *
+     * @return true if the command could be executed; otherwise; false.
+     */
+    @Override
+    public boolean execute(String[] args)
+    {
+        if (args.length < 2 || args.length > 4)
+            return false;
+
+        String continuationToken = args.length > 2 && !args[2].equals("-") ? args[2] : null;
+        String transactionPrefix = args.length > 3 ? args[3] : null;
+
+        UnspentOutputsPage page = s_client.listUnspent(Integer.parseInt(args[1]), continuationToken, transactionPrefix);
+
+        for (UnspentTransactionOutput output : page.getOutputs())
+            System.out.printf("%s%n", output);
+
+        if (page.getContinuationToken() != null)
+            System.out.printf("Continuation token: %s%n", page.getContinuationToken());
+
+        return true;
+    }
+
+    /**
+     * Gets the name of the command.
+     *
+     * @return the name of the command.
+     */
+    @Override
+    public String getName()
+    {
+        return "listUnspent";
+    }
+
+    /**
+     * Gets the description of the command.
+     *
+     * @return the description of the command.
+     */
+    @Override
+    public String getDescription()
+    {
+        return "  Lists the unspent outputs, a page at a time. Use the continuation token to get the next page, or - to\n" +
+               "  get the first page.\n" +
+               "  ARGUMENTS: <COUNT> <CONTINUATION_TOKEN optional> <TRANSACTION_PREFIX optional>";
+    }
+}
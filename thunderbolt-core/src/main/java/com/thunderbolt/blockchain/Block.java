@@ -411,7 +411,7 @@ public class Block implements ISerializable
      *
      * @return true if the Markle root is valid; otherwise; false.
      */
-    private boolean isMerkleRootValid()
+    public boolean isMerkleRootValid()
     {
         Sha256Hash expectedRoot = calculateMerkleRoot();
 
@@ -28,7 +28,6 @@ package com.thunderbolt.blockchain;
 import com.thunderbolt.blockchain.contracts.IBlockchainCommitter;
 import com.thunderbolt.blockchain.contracts.IBlockchainUpdateListener;
 import com.thunderbolt.blockchain.contracts.IOutputsUpdateListener;
-import com.thunderbolt.common.Stopwatch;
 import com.thunderbolt.network.NetworkParameters;
 import com.thunderbolt.network.ProtocolException;
 import com.thunderbolt.persistence.contracts.IPersistenceService;
@@ -78,10 +77,25 @@ public class Blockchain
         // If there is no chain head yet, that means the blockchain is not initialized.
         if (m_persistence.getChainHead() == null)
         {
-            BlockMetadata metadata = m_persistence.persist(params.getGenesisBlock(), 0, params.getGenesisBlock().getWork());
+            BlockMetadata metadata;
 
-            m_persistence.setChainHead(metadata);
-            m_committer.commit(m_persistence.getChainHead());
+            m_persistence.beginBatch();
+
+            try
+            {
+                metadata = m_persistence.persist(params.getGenesisBlock(), 0, params.getGenesisBlock().getWork());
+
+                m_persistence.setChainHead(metadata);
+                m_persistence.setMainChainHash(metadata.getHeight(), metadata.getHash());
+                m_committer.commit(m_persistence.getChainHead());
+
+                m_persistence.commitBatch();
+            }
+            finally
+            {
+                // Does nothing if the batch was committed.
+                m_persistence.discardBatch();
+            }
 
             for (IBlockchainUpdateListener listener : m_listeners)
                 listener.onBlockAdded(m_persistence.getBlock(metadata.getHash()));
@@ -169,9 +183,27 @@ public class Blockchain
             return false;
         }
 
-        BlockMetadata newMetadata = m_persistence.persist(block, newHeight, workSoFar);
+        // All the metadata changes of this block (including a possible reorganization) are written atomically.
+        m_persistence.beginBatch();
 
-        connect(newMetadata, parent);
+        try
+        {
+            BlockMetadata newMetadata = m_persistence.persist(block, newHeight, workSoFar);
+
+            connect(newMetadata, parent);
+
+            m_persistence.commitBatch();
+            m_committer.onBatchCommitted();
+        }
+        finally
+        {
+            // Does nothing if the batch was committed.
+            m_persistence.discardBatch();
+            m_committer.onBatchDiscarded();
+        }
+
+        // Once the block is committed, the segments that fell below the prune depth can be deleted.
+        m_persistence.prune();
 
         return true;
     }
@@ -220,17 +252,12 @@ public class Blockchain
         if ((currentHead.getHeight() + 1) % m_params.getDifficulAdjustmentInterval() != 0)
             return current.getBits();
 
-        // Find the block at the beginning of the interval and verify that we are using the correct difficulty.
-        BlockMetadata cursor = m_persistence.getBlockMetadata(current.getHash());
-        for (int i = 0; i < m_params.getDifficulAdjustmentInterval() - 1; i++)
-        {
-            if (cursor == null)
-            {
-                s_logger.error("There is no way back to the genesis block from this point.");
-                //throw Invalid
-            }
+        BlockMetadata cursor = getIntervalStart(currentHead);
 
-            cursor = m_persistence.getBlockMetadata(cursor.getHash());
+        if (cursor == null)
+        {
+            s_logger.error("There is no way back to the genesis block from this point.");
+            return current.getBits();
         }
 
         BlockHeader blockIntervalAgo = cursor.getHeader();
@@ -271,6 +298,7 @@ public class Blockchain
         if (parent.getHeader().equals(m_persistence.getChainHead().getHeader()))
         {
             m_persistence.setChainHead(newBlock);
+            m_persistence.setMainChainHash(newBlock.getHeight(), newBlock.getHash());
 
             s_logger.trace("Chain is now {} blocks high", m_persistence.getChainHead().getHeight());
 
@@ -327,26 +355,15 @@ public class Blockchain
             return true;
         }
 
-        Stopwatch watch = new Stopwatch();
-
-        watch.start();
-
         // Find the block at the beginning of the interval and verify that we are using the correct difficulty.
-        BlockMetadata cursor = m_persistence.getBlockMetadata(current.getHash());
-        for (int i = 0; i < m_params.getDifficulAdjustmentInterval() - 1; i++)
-        {
-            if (cursor == null)
-            {
-                s_logger.error("There is no way back to the genesis block from this point.");
-                return false;
-            }
+        BlockMetadata cursor = getIntervalStart(parent);
 
-            cursor = m_persistence.getBlockMetadata(cursor.getHash());
+        if (cursor == null)
+        {
+            s_logger.error("There is no way back to the genesis block from this point.");
+            return false;
         }
 
-        watch.stop();
-        s_logger.info("Difficulty transition traversal took {} msec", watch.getElapsedTime().getTotalMilliseconds());
-
         BlockHeader blockIntervalAgo = cursor.getHeader();
 
         int timeSpan = (int) (current.getTimeStamp() - blockIntervalAgo.getTimeStamp());
@@ -382,6 +399,25 @@ public class Blockchain
         return true;
     }
 
+    /**
+     * Gets the block the retarget timespan is measured from.
+     *
+     * Before the retarget window activation height, the original consensus rule is kept and the timespan is measured
+     * from the last block of the interval itself. From the activation height on, it is measured from the first block
+     * of the interval.
+     *
+     * @param last The last block of the interval.
+     *
+     * @return The block at the beginning of the interval; or null if it can not be found.
+     */
+    private BlockMetadata getIntervalStart(BlockMetadata last)
+    {
+        if (last.getHeight() + 1 < m_params.getRetargetWindowActivationHeight())
+            return last;
+
+        return m_persistence.getAncestor(last, last.getHeight() - (m_params.getDifficulAdjustmentInterval() - 1));
+    }
+
     /**
      * Finds a common point in the blockchain for both branches (fork).
      *
@@ -393,24 +429,21 @@ public class Blockchain
      */
     private BlockMetadata findFork(BlockMetadata sideChainHead) throws StorageException
     {
-        BlockMetadata mainChainCursor = m_persistence.getChainHead();
+        BlockMetadata chainHead       = m_persistence.getChainHead();
         BlockMetadata sideChainCursor = sideChainHead;
 
-        while (!mainChainCursor.equals(sideChainCursor))
+        // Blocks above the chain head can not be part of the main chain.
+        if (sideChainCursor.getHeight() > chainHead.getHeight())
+            sideChainCursor = m_persistence.getAncestor(sideChainCursor, chainHead.getHeight());
+
+        // Walk the side chain back until we reach a block in the main chain; the main chain itself is never walked.
+        while (!sideChainCursor.getHash().equals(m_persistence.getMainChainHash(sideChainCursor.getHeight())))
         {
-            if (mainChainCursor.getHeight() > sideChainCursor.getHeight())
-            {
-                mainChainCursor = m_persistence.getBlockMetadata(
-                        mainChainCursor.getHeader().getParentBlockHash());
-            }
-            else
-            {
-                sideChainCursor = m_persistence.getBlockMetadata(
-                        sideChainCursor.getHeader().getParentBlockHash());
-            }
+            sideChainCursor = m_persistence.getBlockMetadata(
+                    sideChainCursor.getHeader().getParentBlockHash());
         }
 
-        return mainChainCursor;
+        return sideChainCursor;
     }
 
     /**
@@ -437,18 +470,23 @@ public class Blockchain
         for (BlockMetadata metadata : oldBlocks)
         {
             m_committer.rollback(metadata);
+            m_persistence.removeMainChainHash(metadata.getHeight());
 
             for (IBlockchainUpdateListener listener : m_listeners)
-                listener.onBlockRemoved(m_persistence.getBlock(newChainHead.getHash()));
+                listener.onBlockRemoved(m_persistence.getBlock(metadata.getHash()));
         }
 
-        // Commit all new blocks to the state.
+        // Commit all new blocks to the state. The segment goes from the new head down to the fork, so it is walked
+        // backwards; every block must be connected after its parent.
+        Collections.reverse(newBlocks);
+
         for (BlockMetadata metadata : newBlocks)
         {
             m_committer.commit(metadata);
+            m_persistence.setMainChainHash(metadata.getHeight(), metadata.getHash());
 
             for (IBlockchainUpdateListener listener : m_listeners)
-                listener.onBlockAdded(m_persistence.getBlock(newChainHead.getHash()));
+                listener.onBlockAdded(m_persistence.getBlock(metadata.getHash()));
         }
 
         // Update the pointer to the best known block.
@@ -499,13 +537,7 @@ public class Blockchain
             return false;
         }
 
-        for (Transaction transaction: transactions)
-        {
-            if (!m_transactionValidator.validate(transaction, height, totalFees))
-                return false;
-        }
-
-        return true;
+        return m_transactionValidator.validateAll(transactions, height, totalFees);
     }
 
     /**
@@ -39,7 +39,9 @@ import com.thunderbolt.transaction.contracts.ITransactionsPool;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Deque;
 import java.util.List;
 
 /* IMPLEMENTATION ************************************************************/
@@ -57,6 +59,9 @@ public class StandardBlockchainCommitter implements IBlockchainCommitter
     private ITransactionsPool            m_memPool;
     private List<IOutputsUpdateListener> m_listeners = new ArrayList<IOutputsUpdateListener>();
 
+    // Transactions of the blocks rolled back in the current batch; the last block rolled back is the lowest one.
+    private final Deque<List<Transaction>> m_disconnected = new ArrayDeque<>();
+
     /**
      * Initializes a new instance of the StandardBlockchainCommitter class.
      *
@@ -91,6 +96,8 @@ public class StandardBlockchainCommitter implements IBlockchainCommitter
         List<UnspentTransactionOutput> newOutputs     = new ArrayList<>();
         List<Sha256Hash>                     removedOutputs = new ArrayList<>();
 
+        m_persistence.addAddressHistory(block, metadata.getHeight());
+
         for (Transaction transaction: block.getTransactions())
         {
             boolean removed = false;
@@ -152,7 +159,7 @@ public class StandardBlockchainCommitter implements IBlockchainCommitter
     /**
      * Rolls back all the changes previously made by this block to the current blockchain state.
      *
-     * 1.- Re-insert all the transactions to the valid transactions pool. This transactions must now wait to be mined again by another block.
+     * 1.- Queue all the transactions to be re-inserted in the valid transactions pool once the batch is written. This transactions must now wait to be mined again by another block.
      * 2.- Remove all newly created unspent transaction outputs created by this block from the wallet and database (coins).
      * 3.- Re-insert spent transaction outputs to the wallet and database.
      *
@@ -168,19 +175,24 @@ public class StandardBlockchainCommitter implements IBlockchainCommitter
         Block                          block        = m_persistence.getBlock(metadata.getHash());
         List<UnspentTransactionOutput> spentOutputs = m_persistence.getSpentOutputs(metadata.getHash());
 
-        // Re-add all transactions referenced in this block to the mem pool.
-        List<Sha256Hash> removedOutputs = new ArrayList<>();
+        // Re-add all the outputs spent by this block. This is done first, so outputs created and spent inside this
+        // same block end up removed.
+        for (UnspentTransactionOutput output : spentOutputs)
+            m_persistence.addUnspentOutput(output);
+
+        m_persistence.removeAddressHistory(block, metadata.getHeight());
+
+        // The transactions are only re-added to the mem pool once the batch is written; validating them here would
+        // check their signatures while the whole reorganization is held in memory, and against a state that is
+        // still being rolled back.
+        List<Sha256Hash>  removedOutputs = new ArrayList<>();
+        List<Transaction> disconnected   = new ArrayList<>();
 
         for (Transaction transaction: block.getTransactions())
         {
             // Only add to the mempool non-coinbase transactions.
             if (!transaction.isCoinbase())
-            {
-                boolean added = m_memPool.addTransaction(transaction);
-
-                if (!added)
-                    s_logger.warn("The transaction {} could not be added to our valid transaction pool.", transaction.getTransactionId());
-            }
+                disconnected.add(transaction);
 
             // Remove all the Unspent outputs added by this block.
             int index = 0;
@@ -198,12 +210,10 @@ public class StandardBlockchainCommitter implements IBlockchainCommitter
 
                 ++index;
             }
-
-            // Add all previously removed unspent outputs from the mem pool and the wallet.
-            for (UnspentTransactionOutput output : spentOutputs)
-                m_persistence.addUnspentOutput(output);
         }
 
+        m_disconnected.push(disconnected);
+
         // Update the wallets.
         for (IOutputsUpdateListener listener : m_listeners)
             listener.onOutputsUpdate(spentOutputs, removedOutputs);
@@ -211,6 +221,37 @@ public class StandardBlockchainCommitter implements IBlockchainCommitter
         return true;
     }
 
+    /**
+     * Re-inserts the transactions of the blocks rolled back in the batch that was just written in the valid
+     * transactions pool. They are validated against the new chain state, so the ones that conflict with it or were
+     * mined again are dropped.
+     */
+    @Override
+    public void onBatchCommitted()
+    {
+        // The lowest block goes first, so transactions are added after the ones they spend from.
+        while (!m_disconnected.isEmpty())
+        {
+            for (Transaction transaction : m_disconnected.pop())
+            {
+                boolean added = m_memPool.addTransaction(transaction);
+
+                if (!added)
+                    s_logger.debug("The transaction {} could not be added back to our valid transaction pool.", transaction.getTransactionId());
+            }
+        }
+    }
+
+    /**
+     * Drops the transactions queued by the rollbacks of a batch that was discarded. Does nothing if the batch was
+     * committed.
+     */
+    @Override
+    public void onBatchDiscarded()
+    {
+        m_disconnected.clear();
+    }
+
     /**
      * Adds a new listener to the list of outputs update listeners. This listener will be notified when a change
      * regarding the unspent outputs occurs.
@@ -51,7 +51,7 @@ public interface IBlockchainCommitter
     /**
      * Rolls back all the changes previously made by this block to the current blockchain state.
      *
-     * 1.- Re-insert all the transactions to the valid transactions pool. This transactions must now wait to be mined again by another block.
+     * 1.- Queue all the transactions to be re-inserted in the valid transactions pool once the batch is written. This transactions must now wait to be mined again by another block.
      * 2.- Remove all newly created unspent transaction outputs created by this block from the wallet and database (coins).
      * 3.- Re-insert spent transaction outputs to the wallet and database.
      *
@@ -61,6 +61,19 @@ public interface IBlockchainCommitter
      */
     boolean rollback(BlockMetadata metadata) throws StorageException;
 
+    /**
+     * Re-inserts the transactions of the blocks rolled back in the batch that was just written in the valid
+     * transactions pool. They are validated against the new chain state, so the ones that conflict with it or were
+     * mined again are dropped.
+     */
+    void onBatchCommitted();
+
+    /**
+     * Drops the transactions queued by the rollbacks of a batch that was discarded. Does nothing if the batch was
+     * committed.
+     */
+    void onBatchDiscarded();
+
     /**
      * Adds a new listener to the list of outputs update listeners. This listener wuill be notified when a change
      * regarding the unspent outputs occurs.
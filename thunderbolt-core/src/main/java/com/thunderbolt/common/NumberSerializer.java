@@ -37,6 +37,9 @@ import java.nio.ByteBuffer;
  */
 public class NumberSerializer
 {
+    // Constants
+    private static final int MAX_VARINT_SIZE = 10;
+
     /**
      * Serializes a long into a byte array.
      *
@@ -118,4 +121,55 @@ public class NumberSerializer
 
         return data.toByteArray();
     }
+
+    /**
+     * Serializes a non negative long into a variable length byte array. The number is written in groups of seven
+     * bits, least significant group first; the highest bit of each byte tells whether more bytes follow. Small
+     * numbers take a single byte.
+     *
+     * @param number The number to be serialized.
+     *
+     * @return The serialized number.
+     */
+    static public byte[] serializeVarInt(long number)
+    {
+        if (number < 0)
+            throw new IllegalArgumentException("Only non negative numbers can be serialized as variable length integers.");
+
+        ByteArrayOutputStream data = new ByteArrayOutputStream(MAX_VARINT_SIZE);
+
+        while ((number & ~0x7FL) != 0)
+        {
+            data.write((int)((number & 0x7F) | 0x80));
+            number >>>= 7;
+        }
+
+        data.write((int)number);
+
+        return data.toByteArray();
+    }
+
+    /**
+     * Reads a variable length integer from the given buffer.
+     *
+     * @param buffer The buffer, positioned at the start of the number.
+     *
+     * @return The number.
+     */
+    static public long deserializeVarInt(ByteBuffer buffer)
+    {
+        long result = 0;
+
+        for (int shift = 0; shift < Long.SIZE; shift += 7)
+        {
+            byte current = buffer.get();
+
+            result |= (long)(current & 0x7F) << shift;
+
+            if ((current & 0x80) == 0)
+                return result;
+        }
+
+        throw new IllegalArgumentException("Variable length integer is too long.");
+    }
 }
@@ -27,6 +27,7 @@ package com.thunderbolt.configuration;
 /* IMPORTS *******************************************************************/
 
 import com.thunderbolt.common.Convert;
+import com.thunderbolt.persistence.storage.SegmentSyncPolicy;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -53,6 +54,25 @@ public class Configuration
     private static String m_walletPath        = "";
     private static double m_payTransactionFee = 0.0001;
 
+    private static SegmentSyncPolicy m_storageSyncPolicy     = SegmentSyncPolicy.Batch;
+    private static int               m_storageSyncInterval   = 1000;
+    private static int               m_metadataCacheSize     = 128;
+    private static int               m_metadataFlushInterval = 100;
+    private static int               m_metadataFlushSize     = 64;
+    private static boolean           m_addressIndex          = false;
+    private static boolean           m_compressBlocks        = false;
+    private static boolean           m_compressRevertData    = true;
+    private static int               m_pruneDepth            = 0;
+    private static String            m_blocksPath            = "";
+    private static String            m_revertsPath           = "";
+    private static String            m_metadataPath          = "";
+    private static String            m_peersPath             = "";
+    private static int               m_levelDbCacheSize      = 8;
+    private static int               m_levelDbWriteBuffer    = 4;
+    private static int               m_levelDbBloomBits      = 10;
+    private static boolean           m_levelDbCompression    = true;
+    private static int               m_signatureCacheSize    = 32;
+
     /**
      * Initializes the configuration file.
      *
@@ -97,6 +117,60 @@ public class Configuration
 
             if (prop.containsKey("pay-tx-fee"))
                 m_payTransactionFee = Double.parseDouble(prop.getProperty("pay-tx-fee"));
+
+            if (prop.containsKey("storage-sync-policy"))
+                m_storageSyncPolicy = SegmentSyncPolicy.valueOf(prop.getProperty("storage-sync-policy"));
+
+            if (prop.containsKey("storage-sync-interval"))
+                m_storageSyncInterval = Integer.parseInt(prop.getProperty("storage-sync-interval"));
+
+            if (prop.containsKey("metadata-cache-size"))
+                m_metadataCacheSize = Integer.parseInt(prop.getProperty("metadata-cache-size"));
+
+            if (prop.containsKey("metadata-flush-interval"))
+                m_metadataFlushInterval = Integer.parseInt(prop.getProperty("metadata-flush-interval"));
+
+            if (prop.containsKey("metadata-flush-size"))
+                m_metadataFlushSize = Integer.parseInt(prop.getProperty("metadata-flush-size"));
+
+            if (prop.containsKey("address-index"))
+                m_addressIndex = Boolean.parseBoolean(prop.getProperty("address-index"));
+
+            if (prop.containsKey("compress-blocks"))
+                m_compressBlocks = Boolean.parseBoolean(prop.getProperty("compress-blocks"));
+
+            if (prop.containsKey("compress-revert-data"))
+                m_compressRevertData = Boolean.parseBoolean(prop.getProperty("compress-revert-data"));
+
+            if (prop.containsKey("prune-depth"))
+                m_pruneDepth = Integer.parseInt(prop.getProperty("prune-depth"));
+
+            if (prop.containsKey("blocks-path"))
+                m_blocksPath = prop.getProperty("blocks-path");
+
+            if (prop.containsKey("reverts-path"))
+                m_revertsPath = prop.getProperty("reverts-path");
+
+            if (prop.containsKey("metadata-path"))
+                m_metadataPath = prop.getProperty("metadata-path");
+
+            if (prop.containsKey("peers-path"))
+                m_peersPath = prop.getProperty("peers-path");
+
+            if (prop.containsKey("leveldb-cache-size"))
+                m_levelDbCacheSize = Integer.parseInt(prop.getProperty("leveldb-cache-size"));
+
+            if (prop.containsKey("leveldb-write-buffer-size"))
+                m_levelDbWriteBuffer = Integer.parseInt(prop.getProperty("leveldb-write-buffer-size"));
+
+            if (prop.containsKey("leveldb-bloom-bits"))
+                m_levelDbBloomBits = Integer.parseInt(prop.getProperty("leveldb-bloom-bits"));
+
+            if (prop.containsKey("leveldb-compression"))
+                m_levelDbCompression = Boolean.parseBoolean(prop.getProperty("leveldb-compression"));
+
+            if (prop.containsKey("signature-cache-size"))
+                m_signatureCacheSize = Integer.parseInt(prop.getProperty("signature-cache-size"));
         }
         catch (FileNotFoundException e)
         {
@@ -114,6 +188,24 @@ public class Configuration
             props.put("rpc-port", Short.toString(m_rpcPort));
             props.put("wallet", m_walletPath);
             props.put("pay-tx-fee", Convert.stripTrailingZeros(m_payTransactionFee));
+            props.put("storage-sync-policy", m_storageSyncPolicy.toString());
+            props.put("storage-sync-interval", Integer.toString(m_storageSyncInterval));
+            props.put("metadata-cache-size", Integer.toString(m_metadataCacheSize));
+            props.put("metadata-flush-interval", Integer.toString(m_metadataFlushInterval));
+            props.put("metadata-flush-size", Integer.toString(m_metadataFlushSize));
+            props.put("address-index", Boolean.toString(m_addressIndex));
+            props.put("compress-blocks", Boolean.toString(m_compressBlocks));
+            props.put("compress-revert-data", Boolean.toString(m_compressRevertData));
+            props.put("prune-depth", Integer.toString(m_pruneDepth));
+            props.put("blocks-path", m_blocksPath);
+            props.put("reverts-path", m_revertsPath);
+            props.put("metadata-path", m_metadataPath);
+            props.put("peers-path", m_peersPath);
+            props.put("leveldb-cache-size", Integer.toString(m_levelDbCacheSize));
+            props.put("leveldb-write-buffer-size", Integer.toString(m_levelDbWriteBuffer));
+            props.put("leveldb-bloom-bits", Integer.toString(m_levelDbBloomBits));
+            props.put("leveldb-compression", Boolean.toString(m_levelDbCompression));
+            props.put("signature-cache-size", Integer.toString(m_signatureCacheSize));
 
             File file = new File(path).getParentFile();
             file.mkdirs();
@@ -226,6 +318,189 @@ public class Configuration
     {
         return m_payTransactionFee;
     }
+
+    /**
+     * Gets the policy that defines when the block and revert segments are forced to disk. The metadata writer thread
+     * always forces the segments before writing the metadata that points into them; so the policy only bounds how
+     * much unreferenced data a crash can lose, and Batch keeps the syncs off the thread that adds the blocks.
+     *
+     * @return The segment sync policy.
+     */
+    public static SegmentSyncPolicy getStorageSyncPolicy()
+    {
+        return m_storageSyncPolicy;
+    }
+
+    /**
+     * Gets the amount of records (Batch policy) or milliseconds (Periodic policy) between segment syncs.
+     *
+     * @return The sync interval.
+     */
+    public static int getStorageSyncInterval()
+    {
+        return m_storageSyncInterval;
+    }
+
+    /**
+     * Gets the size in megabytes of the cache that sits in front of the metadata databases.
+     *
+     * @return The metadata cache size in MB.
+     */
+    public static int getMetadataCacheSize()
+    {
+        return m_metadataCacheSize;
+    }
+
+    /**
+     * Gets the maximum amount of blocks whose metadata changes are kept in memory before being written to disk.
+     *
+     * @return The metadata flush interval in blocks.
+     */
+    public static int getMetadataFlushInterval()
+    {
+        return m_metadataFlushInterval;
+    }
+
+    /**
+     * Gets the maximum size in megabytes of the metadata changes kept in memory before being written to disk.
+     *
+     * @return The metadata flush size in MB.
+     */
+    public static int getMetadataFlushSize()
+    {
+        return m_metadataFlushSize;
+    }
+
+    /**
+     * Gets whether the node maintains an index of the unspent outputs and the transactions of each address.
+     *
+     * @return true if the address index is enabled; otherwise; false.
+     */
+    public static boolean isAddressIndexEnabled()
+    {
+        return m_addressIndex;
+    }
+
+    /**
+     * Gets whether the blocks are compressed when they are written to disk.
+     *
+     * @return true if the blocks are compressed; otherwise; false.
+     */
+    public static boolean isBlockCompressionEnabled()
+    {
+        return m_compressBlocks;
+    }
+
+    /**
+     * Gets whether the revert data of the blocks is compressed when it is written to disk.
+     *
+     * @return true if the revert data is compressed; otherwise; false.
+     */
+    public static boolean isRevertDataCompressionEnabled()
+    {
+        return m_compressRevertData;
+    }
+
+    /**
+     * Gets the amount of blocks below the chain head which data is kept on disk. Older blocks are pruned.
+     *
+     * @return The prune depth; or 0 if pruning is disabled.
+     */
+    public static int getPruneDepth()
+    {
+        return m_pruneDepth;
+    }
+
+    /**
+     * Gets the path to the folder where the block segments are stored.
+     *
+     * @return The path to the blocks folder; or an empty string to use the default location in the data folder.
+     */
+    public static String getBlocksPath()
+    {
+        return m_blocksPath;
+    }
+
+    /**
+     * Gets the path to the folder where the revert data segments are stored.
+     *
+     * @return The path to the reverts folder; or an empty string to use the default location in the data folder.
+     */
+    public static String getRevertsPath()
+    {
+        return m_revertsPath;
+    }
+
+    /**
+     * Gets the path to the folder of the metadata database. This database holds the unspent outputs, so placing it
+     * on a fast device speeds up the validation; while the block segments can stay on a larger and slower one.
+     *
+     * @return The path to the metadata folder; or an empty string to use the default location in the data folder.
+     */
+    public static String getMetadataPath()
+    {
+        return m_metadataPath;
+    }
+
+    /**
+     * Gets the path to the folder of the peers database.
+     *
+     * @return The path to the peers folder; or an empty string to use the default location in the data folder.
+     */
+    public static String getPeersPath()
+    {
+        return m_peersPath;
+    }
+
+    /**
+     * Gets the size in megabytes of the block cache of each LevelDB database.
+     *
+     * @return The LevelDB block cache size in MB.
+     */
+    public static int getLevelDbCacheSize()
+    {
+        return m_levelDbCacheSize;
+    }
+
+    /**
+     * Gets the size in megabytes of the write buffer of each LevelDB database.
+     *
+     * @return The LevelDB write buffer size in MB.
+     */
+    public static int getLevelDbWriteBufferSize()
+    {
+        return m_levelDbWriteBuffer;
+    }
+
+    /**
+     * Gets the amount of bits per key of the bloom filters of the LevelDB tables.
+     *
+     * @return The bits per key; or 0 if the tables have no bloom filters.
+     */
+    public static int getLevelDbBloomBits()
+    {
+        return m_levelDbBloomBits;
+    }
+
+    /**
+     * Gets whether the LevelDB tables are compressed.
+     *
+     * @return true if the tables are compressed; otherwise; false.
+     */
+    public static boolean isLevelDbCompressionEnabled()
+    {
+        return m_levelDbCompression;
+    }
+
+    /**
+     * Gets the size in megabytes of the cache of verified signatures.
+     *
+     * @return The signature cache size in MB.
+     */
+    public static int getSignatureCacheSize()
+    {
+        return m_signatureCacheSize;
+    }
 }
 
 
@@ -0,0 +1,516 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2020 Angel Castillo.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.thunderbolt.network;
+
+/* IMPORTS *******************************************************************/
+
+import com.thunderbolt.blockchain.Block;
+import com.thunderbolt.blockchain.BlockHeader;
+import com.thunderbolt.blockchain.Blockchain;
+import com.thunderbolt.common.Stopwatch;
+import com.thunderbolt.network.messages.NodeServices;
+import com.thunderbolt.network.messages.ProtocolMessageFactory;
+import com.thunderbolt.network.peers.Peer;
+import com.thunderbolt.persistence.contracts.IPersistenceService;
+import com.thunderbolt.persistence.storage.StorageException;
+import com.thunderbolt.persistence.structures.BlockMetadata;
+import com.thunderbolt.security.Sha256Hash;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.math.BigInteger;
+import java.util.*;
+
+/* IMPLEMENTATION ************************************************************/
+
+/**
+ * Drives the headers first initial block download. Only peers that advertise a protocol version with the headers
+ * first messages take part in it.
+ *
+ * The header chain is downloaded first from a single peer. Headers are cheap to validate (linkage and proof of work),
+ * so we know which blocks make up the chain before downloading any of them. The block bodies are then requested from
+ * all the full node peers at the same time, over a window of blocks right after the last connected block. Blocks
+ * can arrive in any order; they are kept in memory until all the blocks before them have been connected.
+ *
+ * A peer that does not deliver a requested block in time is disconnected, and its requests are assigned to the
+ * other peers.
+ */
+public class BlockDownloader
+{
+    // Constants
+    private static final int MAX_HEADERS_IN_BULK    = 2000;
+    private static final int MAX_BLOCKS_PER_REQUEST = 16;
+    private static final int MAX_BLOCKS_IN_FLIGHT   = 32;   // Per peer.
+    private static final int DOWNLOAD_WINDOW        = 1024; // Blocks past the last connected block.
+    private static final int BLOCK_STALL_TIMEOUT    = 60;   // seconds
+    private static final int HEADERS_STALL_TIMEOUT  = 2;    // minutes
+    private static final int TRIM_THRESHOLD         = 10000;
+
+    private static final Logger s_logger = LoggerFactory.getLogger(BlockDownloader.class);
+
+    // Instance fields
+    private final NetworkParameters         m_params;
+    private final Blockchain                m_blockchain;
+    private final IPersistenceService       m_persistenceService;
+    private final List<BlockHeader>         m_headers           = new ArrayList<>();
+    private final Map<Sha256Hash, Request>  m_inFlight          = new HashMap<>();
+    private final Map<Sha256Hash, Download> m_downloaded        = new HashMap<>();
+    private final Stopwatch                 m_headersWatch      = new Stopwatch();
+    private long                            m_headersBaseHeight = 0;
+    private int                             m_nextIndex         = 0;
+    private boolean                         m_headersSynced     = false;
+    private Peer                            m_headersPeer       = null;
+
+    /**
+     * A block request that is waiting for a reply; it is shared by all the blocks asked for in the same message.
+     */
+    private static class Request
+    {
+        Peer peer;
+        long timestamp;
+
+        /**
+         * Initializes a new instance of the Request class.
+         *
+         * @param peer The peer the block was requested from.
+         */
+        Request(Peer peer)
+        {
+            this.peer = peer;
+            this.timestamp = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * A block that was downloaded but can not be connected yet.
+     */
+    private static class Download
+    {
+        Block block;
+        Peer  peer;
+
+        /**
+         * Initializes a new instance of the Download class.
+         *
+         * @param block The block.
+         * @param peer The peer that sent the block.
+         */
+        Download(Block block, Peer peer)
+        {
+            this.block = block;
+            this.peer = peer;
+        }
+    }
+
+    /**
+     * Initializes a new instance of the BlockDownloader class.
+     *
+     * @param params The network parameters.
+     * @param blockchain The blockchain instance.
+     * @param persistenceService The persistence service.
+     */
+    public BlockDownloader(NetworkParameters params, Blockchain blockchain, IPersistenceService persistenceService)
+    {
+        m_params = params;
+        m_blockchain = blockchain;
+        m_persistenceService = persistenceService;
+    }
+
+    /**
+     * Gets whether we have all the headers of the best chain of our peers, and all their blocks were connected.
+     *
+     * @return true if the download is over; otherwise; false.
+     */
+    public boolean isFinished()
+    {
+        return m_headersSynced && m_nextIndex >= m_headers.size();
+    }
+
+    /**
+     * Gets the peer we are downloading the headers from.
+     *
+     * @return The headers peer; or null if we are not downloading headers from any peer.
+     */
+    public Peer getHeadersPeer()
+    {
+        return m_headersPeer;
+    }
+
+    /**
+     * Discards all the headers and blocks that were not connected yet, and starts the headers download again.
+     */
+    public void reset()
+    {
+        m_headers.clear();
+        m_inFlight.clear();
+        m_downloaded.clear();
+        m_headersBaseHeight = 0;
+        m_nextIndex = 0;
+        m_headersSynced = false;
+
+        if (m_headersPeer != null)
+            m_headersPeer.setIsSyncing(false);
+
+        m_headersPeer = null;
+        m_headersWatch.stop();
+    }
+
+    /**
+     * Gets whether we can download headers and blocks from the given peer. Pruned peers can not serve the whole
+     * chain, and peers before the headers first protocol version do not know the messages.
+     *
+     * @param peer The peer.
+     *
+     * @return true if the peer can take part in the download; otherwise; false.
+     */
+    public static boolean isCandidate(Peer peer)
+    {
+        return peer.isConnected() && !peer.isBanned() && peer.hasClearedHandshake() &&
+                peer.getServices() == NodeServices.Network &&
+                peer.getProtocolVersion() >= NetworkParameters.HEADERS_FIRST_VERSION;
+    }
+
+    /**
+     * Sends the pending header and block requests to the peers, and reassigns the requests of stalling peers.
+     *
+     * @param peers The connected peers.
+     */
+    public void update(Iterator<Peer> peers)
+    {
+        List<Peer> candidates = new ArrayList<>();
+
+        while (peers.hasNext())
+        {
+            Peer peer = peers.next();
+
+            if (isCandidate(peer))
+                candidates.add(peer);
+        }
+
+        releaseStalledRequests();
+        requestHeaders(candidates);
+        requestBlocks(candidates);
+    }
+
+    /**
+     * Process the headers sent by a peer.
+     *
+     * @param peer The peer that sent the headers.
+     * @param headers The headers.
+     */
+    public void onHeaders(Peer peer, List<BlockHeader> headers)
+    {
+        if (peer != m_headersPeer)
+        {
+            s_logger.debug("Ignoring unrequested headers from peer {}.", peer);
+            return;
+        }
+
+        m_headersWatch.restart();
+
+        if (!addHeaders(headers))
+        {
+            s_logger.debug("Invalid headers send by peer {}, disconnecting peer.", peer);
+            peer.addBanScore(50);
+            peer.disconnect();
+            m_headersPeer = null;
+            return;
+        }
+
+        BlockHeader lastHeader = m_headers.isEmpty() ? null : m_headers.get(m_headers.size() - 1);
+
+        if (headers.size() == MAX_HEADERS_IN_BULK)
+        {
+            peer.sendMessage(ProtocolMessageFactory.createGetHeadersMessage(lastHeader));
+            return;
+        }
+
+        m_headersSynced = true;
+        m_headersWatch.stop();
+        peer.setIsSyncing(false);
+
+        s_logger.debug("Headers synced up to height {}, {} blocks to download.",
+                m_headersBaseHeight + m_headers.size() - 1,
+                m_headers.size() - m_nextIndex);
+    }
+
+    /**
+     * Process the blocks sent by a peer. Only the blocks we requested are accepted; the blocks that connect to our
+     * chain are added to the blockchain.
+     *
+     * @param peer The peer that sent the blocks.
+     * @param blocks The blocks.
+     */
+    public void onBlocks(Peer peer, List<Block> blocks) throws StorageException
+    {
+        Set<Request> answered = new HashSet<>();
+
+        for (Block block: blocks)
+        {
+            Sha256Hash hash    = block.getHeaderHash();
+            Request    request = m_inFlight.remove(hash);
+
+            peer.addToKnownBlocks(hash);
+
+            // A stalling peer can still send us blocks after they were requested from someone else.
+            if (request == null)
+                continue;
+
+            if (request.peer == peer)
+                answered.add(request);
+
+            m_downloaded.put(hash, new Download(block, peer));
+        }
+
+        // The peer leaves out the blocks that do not fit in its reply; they are requested again.
+        if (!answered.isEmpty())
+            m_inFlight.values().removeIf(answered::contains);
+
+        connectBlocks();
+    }
+
+    /**
+     * Validates the given headers and appends them to our header chain.
+     *
+     * The first header must either connect to the last header we have, or to a block we already know about. Only the
+     * header linkage and the proof of work are checked here; retargeting heights are fully validated once the blocks
+     * are added to the blockchain.
+     *
+     * @param headers The headers.
+     *
+     * @return true if the headers are valid; otherwise; false.
+     */
+    private boolean addHeaders(List<BlockHeader> headers)
+    {
+        if (headers.isEmpty())
+            return true;
+
+        BlockHeader parent;
+        long        height;
+
+        if (!m_headers.isEmpty())
+        {
+            parent = m_headers.get(m_headers.size() - 1);
+            height = m_headersBaseHeight + m_headers.size();
+        }
+        else
+        {
+            BlockMetadata metadata = m_persistenceService.getBlockMetadata(headers.get(0).getParentBlockHash());
+
+            if (metadata == null)
+                return false;
+
+            parent = metadata.getHeader();
+            height = metadata.getHeight() + 1;
+            m_headersBaseHeight = height;
+        }
+
+        for (BlockHeader header: headers)
+        {
+            if (!header.getParentBlockHash().equals(parent.getHash()))
+            {
+                s_logger.warn("Header {} does not connect to the previous header.", header.getHash());
+                return false;
+            }
+
+            if (height % m_params.getDifficulAdjustmentInterval() != 0 && header.getBits() != parent.getBits())
+            {
+                s_logger.warn("The difficulty of header {} should not change yet.", header.getHash());
+                return false;
+            }
+
+            BigInteger target = Block.unpackDifficulty(header.getBits());
+
+            if (target.signum() <= 0 || target.compareTo(m_params.getProofOfWorkLimit()) > 0 ||
+                    header.getHash().toBigInteger().compareTo(target) > 0)
+            {
+                s_logger.warn("Invalid proof of work for header {}.", header.getHash());
+                return false;
+            }
+
+            m_headers.add(header);
+
+            parent = header;
+            ++height;
+        }
+
+        return true;
+    }
+
+    /**
+     * Adds to the blockchain all the downloaded blocks that follow our last connected block.
+     */
+    private void connectBlocks() throws StorageException
+    {
+        while (m_nextIndex < m_headers.size())
+        {
+            Sha256Hash hash = m_headers.get(m_nextIndex).getHash();
+
+            if (!m_persistenceService.hasBlockMetadata(hash))
+            {
+                Download download = m_downloaded.remove(hash);
+
+                if (download == null)
+                    break;
+
+                if (!m_blockchain.add(download.block))
+                {
+                    // The headers after this block are not part of a valid chain, so we start over.
+                    s_logger.debug("Invalid block send by peer {}, disconnecting peer.", download.peer);
+                    download.peer.disconnect();
+                    reset();
+                    return;
+                }
+            }
+
+            m_downloaded.remove(hash);
+            ++m_nextIndex;
+        }
+
+        // We don't need to keep the headers of the blocks that were already connected.
+        if (m_nextIndex >= TRIM_THRESHOLD)
+        {
+            m_headers.subList(0, m_nextIndex).clear();
+            m_headersBaseHeight += m_nextIndex;
+            m_nextIndex = 0;
+        }
+    }
+
+    /**
+     * Releases the requests of the peers that either disconnected or did not reply in time, so they can be sent to
+     * other peers. Peers that stall the download are disconnected.
+     */
+    private void releaseStalledRequests()
+    {
+        long      now     = System.currentTimeMillis();
+        Set<Peer> stalled = new HashSet<>();
+
+        for (Request request: m_inFlight.values())
+        {
+            if (!request.peer.isConnected() || request.peer.isBanned())
+            {
+                stalled.add(request.peer);
+            }
+            else if (now - request.timestamp > BLOCK_STALL_TIMEOUT * 1000L)
+            {
+                s_logger.debug("Peer {} is stalling the block download, disconnecting peer.", request.peer);
+                request.peer.disconnect();
+                stalled.add(request.peer);
+            }
+        }
+
+        if (!stalled.isEmpty())
+            m_inFlight.values().removeIf(request -> stalled.contains(request.peer));
+    }
+
+    /**
+     * Requests the next batch of headers if we are not waiting for any.
+     *
+     * @param candidates The peers we can download from.
+     */
+    private void requestHeaders(List<Peer> candidates)
+    {
+        if (m_headersSynced)
+            return;
+
+        if (m_headersPeer != null &&
+                (!m_headersPeer.isConnected() || m_headersWatch.getElapsedTime().getTotalMinutes() > HEADERS_STALL_TIMEOUT))
+        {
+            // Disconnect peer if stalling for more than two minutes.
+            m_headersPeer.disconnect();
+            m_headersPeer = null;
+            m_headersWatch.stop();
+        }
+
+        if (m_headersPeer != null)
+            return;
+
+        // We download the headers from the first outbound connection we find.
+        for (Peer peer: candidates)
+        {
+            if (peer.isClient())
+                continue;
+
+            m_headersPeer = peer;
+            peer.setIsSyncing(true);
+
+            BlockHeader lastHeader = m_headers.isEmpty() ? null : m_headers.get(m_headers.size() - 1);
+            peer.sendMessage(ProtocolMessageFactory.createGetHeadersMessage(lastHeader));
+
+            m_headersWatch.restart();
+            break;
+        }
+    }
+
+    /**
+     * Requests the blocks in the download window that are neither downloaded nor already requested, spreading
+     * the requests among all the candidate peers.
+     *
+     * @param candidates The peers we can download from.
+     */
+    private void requestBlocks(List<Peer> candidates)
+    {
+        if (candidates.isEmpty())
+            return;
+
+        Map<Peer, Integer> inFlightCount = new HashMap<>();
+
+        for (Request request: m_inFlight.values())
+            inFlightCount.merge(request.peer, 1, Integer::sum);
+
+        int windowEnd = Math.min(m_headers.size(), m_nextIndex + DOWNLOAD_WINDOW);
+        int cursor    = m_nextIndex;
+
+        for (Peer peer: candidates)
+        {
+            int available = MAX_BLOCKS_IN_FLIGHT - inFlightCount.getOrDefault(peer, 0);
+
+            while (available > 0 && cursor < windowEnd)
+            {
+                List<Sha256Hash> hashes  = new ArrayList<>();
+                Request          request = new Request(peer);
+
+                while (hashes.size() < Math.min(available, MAX_BLOCKS_PER_REQUEST) && cursor < windowEnd)
+                {
+                    Sha256Hash hash = m_headers.get(cursor++).getHash();
+
+                    if (m_inFlight.containsKey(hash) || m_downloaded.containsKey(hash) ||
+                            m_persistenceService.hasBlockMetadata(hash))
+                    {
+                        continue;
+                    }
+
+                    m_inFlight.put(hash, request);
+                    hashes.add(hash);
+                }
+
+                if (hashes.isEmpty())
+                    break;
+
+                peer.sendMessage(ProtocolMessageFactory.createGetBlockDataMessage(hashes));
+                available -= hashes.size();
+            }
+        }
+    }
+}
@@ -27,12 +27,15 @@ package com.thunderbolt.network;
 /* IMPORTS *******************************************************************/
 
 import com.thunderbolt.blockchain.Block;
+import com.thunderbolt.security.Sha256Hash;
 import com.thunderbolt.transaction.*;
 import org.bouncycastle.util.encoders.Hex;
 
 import java.io.IOException;
 import java.io.Serializable;
 import java.math.BigInteger;
+import java.util.HashMap;
+import java.util.Map;
 
 /* IMPLEMENTATION ************************************************************/
 
@@ -42,7 +45,9 @@ import java.math.BigInteger;
 public class NetworkParameters implements Serializable
 {
     // Constants
-    static private final int        PROTOCOL_VERSION                      = 1;
+    static private final int        PROTOCOL_VERSION                      = 2;
+    static private final int        MIN_PROTOCOL_VERSION                  = 1;
+    static private final int        GENESIS_BLOCK_VERSION                 = 1;
     static private final byte       MAIN_NET_SINGLE_SIGNATURE_PREFIX      = 0x10;
     static private final byte       MAIN_NET_MULTI_SIGNATURE_PREFIX       = 0x20;
     static private final int        MAIN_NET_TARGET_TIMESPAN              = 7 * 24 * 60 * 60;  // 1 week per difficulty cycle, on average.
@@ -54,6 +59,9 @@ public class NetworkParameters implements Serializable
     public static final long        MAIN_NET_COINBASE_MATURITY            = 0; // TODO: Add back the normal maturity. 100
     public static final long        MAIN_NET_MAX_BLOCK_SIZE               = 5242880; //5 mb
     public static final long        MAIN_NET_MAX_DIFFICULTY               = 0x1D00FFFFL;
+    public static final long        MAIN_NET_RETARGET_WINDOW_ACTIVATION   = Long.MAX_VALUE; // Not scheduled yet.
+    public static final int         NETWORK_LIMITED_VERSION               = 2; // First version that knows limited peers.
+    public static final int         HEADERS_FIRST_VERSION                 = 2; // First version with the headers messages.
 
     // Instance fields
     private Block      m_genesisBlock;
@@ -65,8 +73,12 @@ public class NetworkParameters implements Serializable
     private int        m_interval;
     private int        m_targetTimespan;
     private int        m_protocol;
+    private int        m_minProtocol;
     private long       m_blockSize;
     private long       m_coinbaseMaturity;
+    private long       m_retargetWindowActivation;
+
+    private Map<Long, Sha256Hash> m_outputSetCommitments = new HashMap<>();
 
     /**
      * Creates the Genesis block.
@@ -97,7 +109,7 @@ public class NetworkParameters implements Serializable
 
         genesisBlock.addTransaction(transaction);
 
-        genesisBlock.getHeader().setVersion(PROTOCOL_VERSION);
+        genesisBlock.getHeader().setVersion(GENESIS_BLOCK_VERSION);
         genesisBlock.getHeader().setTimeStamp(1525003294);
         genesisBlock.getHeader().setTargetDifficulty(0x1D00FFFFL);
         genesisBlock.getHeader().setNonce(0x91EA9178L);
@@ -127,6 +139,10 @@ public class NetworkParameters implements Serializable
         parameters.m_coinbaseMaturity             = MAIN_NET_COINBASE_MATURITY;
         parameters.m_blockSize                    = MAIN_NET_MAX_BLOCK_SIZE;
         parameters.m_protocol                     = PROTOCOL_VERSION;
+        parameters.m_minProtocol                  = MIN_PROTOCOL_VERSION;
+        parameters.m_retargetWindowActivation     = MAIN_NET_RETARGET_WINDOW_ACTIVATION;
+
+        // Commitments to the unspent outputs set at known heights of the main chain; none are published yet.
 
         String genesisHash = parameters.getGenesisBlock().getHeaderHash().toString();
 
@@ -155,6 +171,33 @@ public class NetworkParameters implements Serializable
         return m_targetTimespan;
     }
 
+    /**
+     * Gets the height from which the difficulty retarget measures the timespan from the first block of the interval.
+     *
+     * Below this height the timespan is measured from the last block of the interval itself, so it is always clamped
+     * to the minimum adjustment. Changing this height is a consensus change; all the nodes of the network must agree
+     * on it.
+     *
+     * @return The activation height of the retarget window.
+     */
+    public long getRetargetWindowActivationHeight()
+    {
+        return m_retargetWindowActivation;
+    }
+
+    /**
+     * Gets the commitment to the unspent outputs set at the given height of the main chain. A snapshot of the
+     * unspent outputs taken at this height can be loaded without giving its commitment explicitly.
+     *
+     * @param height The height of the snapshot.
+     *
+     * @return The commitment; or null if no commitment is known for this height.
+     */
+    public Sha256Hash getOutputSetCommitment(long height)
+    {
+        return m_outputSetCommitments.get(height);
+    }
+
     /**
      * Gets the genesis block for this network.
      *
@@ -266,6 +309,16 @@ public class NetworkParameters implements Serializable
         return m_protocol;
     }
 
+    /**
+     * Gets the oldest protocol version this node can still talk to.
+     *
+     * @return The minimum protocol version.
+     */
+    public int getMinProtocol()
+    {
+        return m_minProtocol;
+    }
+
     /**
      * Calculates the block subsidy for the given height.
      *
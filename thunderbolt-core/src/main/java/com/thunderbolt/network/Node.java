@@ -32,6 +32,7 @@ import com.thunderbolt.blockchain.Blockchain;
 import com.thunderbolt.common.Stopwatch;
 import com.thunderbolt.common.TimeSpan;
 import com.thunderbolt.network.contracts.IBlockchainSyncFinishListener;
+import com.thunderbolt.network.messages.NodeServices;
 import com.thunderbolt.network.messages.payloads.*;
 import com.thunderbolt.network.messages.ProtocolMessage;
 import com.thunderbolt.network.messages.ProtocolMessageFactory;
@@ -53,6 +54,8 @@ import org.slf4j.LoggerFactory;
 
 import java.time.LocalDateTime;
 import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 /* IMPLEMENTATION ************************************************************/
 
@@ -75,6 +78,8 @@ public class Node implements IChainHeadUpdateListener, ITransactionsChangeListen
     private final NetworkParameters                   m_params;
     private final Blockchain                          m_blockchain;
     private volatile boolean                          m_isRunning;
+    private volatile boolean                          m_hasStarted;
+    private final CountDownLatch                      m_stopped             = new CountDownLatch(1);
     private final ITransactionsPool                   m_memPool;
     private final IPersistenceService                 m_persistenceService;
     private final PeerManager                         m_peerManager;
@@ -85,10 +90,11 @@ public class Node implements IChainHeadUpdateListener, ITransactionsChangeListen
     private final Stopwatch                           m_uptimeWatch         = new Stopwatch();
 
     // Use during initial sync.
-    private boolean         m_isInitialXtDownload    = false;
-    private boolean         m_isInitialBlockDownload = false;
-    private Peer            m_initialSyncingPeer     = null;
-    private final Stopwatch m_elapsedSinceRequest    = new Stopwatch();
+    private boolean               m_isInitialXtDownload    = false;
+    private boolean               m_isInitialBlockDownload = false;
+    private final BlockDownloader m_blockDownloader;
+    private Peer                  m_initialSyncingPeer     = null; // Only for peers without headers first support.
+    private final Stopwatch       m_elapsedSinceRequest    = new Stopwatch();
 
     /**
      * Initializes a new instance of the Node class.
@@ -109,6 +115,7 @@ public class Node implements IChainHeadUpdateListener, ITransactionsChangeListen
         m_blockchain = blockchain;
         m_memPool = transactionsPoolService;
         m_peerManager = peerManager;
+        m_blockDownloader = new BlockDownloader(params, blockchain, persistenceService);
         m_persistenceService.addChainHeadUpdateListener(this);
         m_memPool.addTransactionsChangedListener(this);
     }
@@ -208,6 +215,24 @@ public class Node implements IChainHeadUpdateListener, ITransactionsChangeListen
         m_peerManager.stop();
     }
 
+    /**
+     * Shuts down the node and waits until the main loop returns; after this no message is being processed, so no
+     * block is being added to the blockchain.
+     *
+     * @param timeout The maximum time to wait in milliseconds.
+     *
+     * @return true if the main loop stopped (or never started); false if the timeout elapsed first.
+     */
+    public boolean shutdownAndWait(long timeout) throws InterruptedException
+    {
+        shutdown();
+
+        if (!m_hasStarted)
+            return true;
+
+        return m_stopped.await(timeout, TimeUnit.MILLISECONDS);
+    }
+
     /**
      * Tries to connect to seed peers.
      */
@@ -228,33 +253,42 @@ public class Node implements IChainHeadUpdateListener, ITransactionsChangeListen
                 listener.onBlockchainSyncFinishFinish(m_blockchain, m_persistenceService);
         }
 
-        m_isRunning = true;
-        while (m_isRunning)
+        m_isRunning  = true;
+        m_hasStarted = true;
+
+        try
         {
-            Iterator<Peer> it = m_peerManager.getPeers();
-            while (it.hasNext())
+            while (m_isRunning)
             {
-                Peer peer = it.next();
-
-                while (peer.hasMessage())
+                Iterator<Peer> it = m_peerManager.getPeers();
+                while (it.hasNext())
                 {
-                    ProtocolMessage message = peer.getMessage();
-                    process(message, peer);
+                    Peer peer = it.next();
+
+                    while (peer.hasMessage())
+                    {
+                        ProtocolMessage message = peer.getMessage();
+                        process(message, peer);
+                    }
                 }
-            }
 
-            sendMessages();
+                sendMessages();
 
-            try
-            {
-                Thread.sleep(MAIN_LOOP_DELAY);
-            }
-            catch (InterruptedException e)
-            {
-                s_logger.error("Main Node thread as stopped.", e);
-                m_isRunning = false;
+                try
+                {
+                    Thread.sleep(MAIN_LOOP_DELAY);
+                }
+                catch (InterruptedException e)
+                {
+                    s_logger.error("Main Node thread as stopped.", e);
+                    m_isRunning = false;
+                }
             }
         }
+        finally
+        {
+            m_stopped.countDown();
+        }
     }
 
     /**
@@ -334,10 +368,12 @@ public class Node implements IChainHeadUpdateListener, ITransactionsChangeListen
 
                 s_logger.debug("Reached by peer from {}", payload.getReceiveAddress());
 
-                if (payload.getVersion() == m_params.getProtocol())
+                if (payload.getVersion() >= m_params.getMinProtocol() && payload.getVersion() <= m_params.getProtocol())
                 {
-                    peer.setProtocolVersion(payload.getVersion());
+                    // We talk to the peer in the highest version both of us support.
+                    peer.setProtocolVersion(Math.min(payload.getExtendedVersion(), m_params.getProtocol()));
                     peer.setKnownBlockHeight(payload.getBlockHeight());
+                    peer.setServices(payload.getExtendedServices());
 
                     if (weAreServer)
                     {
@@ -348,6 +384,7 @@ public class Node implements IChainHeadUpdateListener, ITransactionsChangeListen
                         {
                             m_publicAddress = payload.getReceiveAddress();
                             m_publicAddress.setPort(m_params.getPort());
+                            m_publicAddress.setServices(ProtocolMessageFactory.getLocalServices());
                         }
                     }
                     else
@@ -355,6 +392,7 @@ public class Node implements IChainHeadUpdateListener, ITransactionsChangeListen
                         // if we are client, we are going to take the public address from the server message.
                         m_publicAddress = payload.getReceiveAddress();
                         m_publicAddress.setPort(m_params.getPort());
+                        m_publicAddress.setServices(ProtocolMessageFactory.getLocalServices());
                     }
 
                     peer.sendMessage(ProtocolMessageFactory.createVerackMessage());
@@ -385,7 +423,7 @@ public class Node implements IChainHeadUpdateListener, ITransactionsChangeListen
                 {
                     // We don't want to advertise ourselves until we sync with the network.
                     if (!m_isInitialBlockDownload)
-                        peer.sendMessage(ProtocolMessageFactory.createAddressMessage(m_publicAddress));
+                        peer.sendMessage(ProtocolMessageFactory.createAddressMessage(peer, m_publicAddress));
 
                     peer.sendMessage(ProtocolMessageFactory.createGetAddressMessage());
                 }
@@ -486,7 +524,7 @@ public class Node implements IChainHeadUpdateListener, ITransactionsChangeListen
                     break;
                 }
 
-                ProtocolMessage addressMessage = ProtocolMessageFactory.createAddressMessage(timestampedAddress);
+                ProtocolMessage addressMessage = ProtocolMessageFactory.createAddressMessage(peer, timestampedAddress);
 
                 peer.sendMessage(addressMessage);
                 break;
@@ -532,9 +570,18 @@ public class Node implements IChainHeadUpdateListener, ITransactionsChangeListen
                     // Reply the peer with the blocks he is missing.
                     GetBlocksPayload getBlocksPayload = new GetBlocksPayload(message.getPayload());
 
-                    peer.sendMessage(ProtocolMessageFactory
+                    ProtocolMessage blocksMessage = ProtocolMessageFactory
                             .createBlocksMessage(getBlocksPayload.getBlockLocatorHashes(),
-                                    getBlocksPayload.getHashToStop()));
+                                    getBlocksPayload.getHashToStop());
+
+                    // We can not serve blocks we already pruned; the peer needs to sync from a full node.
+                    if (blocksMessage == null)
+                    {
+                        s_logger.debug("Peer {} asked for pruned blocks.", peer);
+                        break;
+                    }
+
+                    peer.sendMessage(blocksMessage);
                 }
                 catch (StorageException e)
                 {
@@ -549,10 +596,6 @@ public class Node implements IChainHeadUpdateListener, ITransactionsChangeListen
                     return;
                 }
 
-                if (m_isInitialBlockDownload && !peer.isSyncing())
-                    return;
-
-                m_elapsedSinceRequest.restart();
                 try
                 {
                     // Reply the peer with the blocks he is missing.
@@ -565,6 +608,17 @@ public class Node implements IChainHeadUpdateListener, ITransactionsChangeListen
                         break;
                     }
 
+                    // During initial block download, the blocks arrive out of order from several peers; unless we
+                    // are syncing with a peer that only knows how to send them in order.
+                    if (m_isInitialBlockDownload && peer != m_initialSyncingPeer)
+                    {
+                        m_blockDownloader.onBlocks(peer, bulkBlocksPayload.getBlocks());
+                        break;
+                    }
+
+                    if (m_isInitialBlockDownload)
+                        m_elapsedSinceRequest.restart();
+
                     for (Block block: bulkBlocksPayload.getBlocks())
                     {
                         peer.addToKnownBlocks(block.getHeaderHash());
@@ -591,44 +645,25 @@ public class Node implements IChainHeadUpdateListener, ITransactionsChangeListen
                         }
                         else
                         {
-                            m_isInitialBlockDownload = false;
                             m_initialSyncingPeer = null;
                             peer.setIsSyncing(false);
                             m_elapsedSinceRequest.stop();
-                            s_logger.debug("Initial block download is over. Current tip {}", m_blockchain.getChainHead());
-
-                            // Advertise our address to all connected peers.
-                            broadcastPublicAddress();
-
-                            // Exchange headers with all peers.
-                            exchangeHeaders();
-
-                            s_logger.debug("Requesting mem pool from peer...");
-                            peer.sendMessage(ProtocolMessageFactory.createGetUnconfirmedTransactions());
-
-                            // We will request transactions to peers every 30 minutes if our mempool is empty.
-                            m_requestTransactions.restart();
-
-                            for (IBlockchainSyncFinishListener listener: m_ibdListeners)
-                                listener.onBlockchainSyncFinishFinish(m_blockchain, m_persistenceService);
+                            finishInitialBlockDownload(peer);
                         }
                     }
-                    else
+                    else if (!m_persistenceService.hasBlockMetadata(peer.getBestKnownBlock()))
                     {
-                        if (!m_persistenceService.hasBlockMetadata(peer.getBestKnownBlock()))
+                        if (peer.getLastCommonBlock().equals(new Sha256Hash()))
                         {
-                            if (peer.getLastCommonBlock().equals(new Sha256Hash()))
-                            {
-                                peer.sendMessage(ProtocolMessageFactory.createGetBlocksMessage(
-                                        m_blockchain.getChainHead(),
-                                        peer.getBestKnownBlock()));
-                            }
-                            else
-                            {
-                                peer.sendMessage(ProtocolMessageFactory.createGetBlocksMessage(
-                                        m_persistenceService.getBlockMetadata(peer.getLastCommonBlock()),
-                                        peer.getBestKnownBlock()));
-                            }
+                            peer.sendMessage(ProtocolMessageFactory.createGetBlocksMessage(
+                                    m_blockchain.getChainHead(),
+                                    peer.getBestKnownBlock()));
+                        }
+                        else
+                        {
+                            peer.sendMessage(ProtocolMessageFactory.createGetBlocksMessage(
+                                    m_persistenceService.getBlockMetadata(peer.getLastCommonBlock()),
+                                    peer.getBestKnownBlock()));
                         }
                     }
                 }
@@ -637,6 +672,65 @@ public class Node implements IChainHeadUpdateListener, ITransactionsChangeListen
                     s_logger.error("There was an error while retrieving the item: ", e);
                 }
                 break;
+            case GetHeaders:
+                if (!peer.hasClearedHandshake())
+                {
+                    peer.addBanScore(1);
+                    return;
+                }
+
+                // Reply the peer with the headers he is missing.
+                GetBlocksPayload getHeadersPayload = new GetBlocksPayload(message.getPayload());
+
+                peer.sendMessage(ProtocolMessageFactory.createHeadersMessage(
+                        getHeadersPayload.getBlockLocatorHashes(),
+                        getHeadersPayload.getHashToStop()));
+                break;
+            case Headers:
+                if (!peer.hasClearedHandshake())
+                {
+                    peer.addBanScore(1);
+                    return;
+                }
+
+                if (!m_isInitialBlockDownload)
+                    return;
+
+                try
+                {
+                    HeadersPayload headersPayload = new HeadersPayload(message.getPayload());
+
+                    m_blockDownloader.onHeaders(peer, headersPayload.getHeaders());
+                }
+                catch (ProtocolException e)
+                {
+                    s_logger.error("Invalid headers message from peer {}", peer, e);
+                    peer.addBanScore(10);
+                }
+                break;
+            case GetBlockData:
+                if (!peer.hasClearedHandshake())
+                {
+                    peer.addBanScore(1);
+                    return;
+                }
+
+                try
+                {
+                    GetBlockDataPayload getBlockDataPayload = new GetBlockDataPayload(message.getPayload());
+
+                    peer.sendMessage(ProtocolMessageFactory.createBlockDataMessage(getBlockDataPayload.getHashes()));
+                }
+                catch (ProtocolException e)
+                {
+                    s_logger.error("Invalid get block data message from peer {}", peer, e);
+                    peer.addBanScore(10);
+                }
+                catch (StorageException e)
+                {
+                    s_logger.error("There was an error while retrieving the item: ", e);
+                }
+                break;
             case getUnconfirmedTransactions:
                 if (!peer.hasClearedHandshake())
                 {
@@ -801,16 +895,10 @@ public class Node implements IChainHeadUpdateListener, ITransactionsChangeListen
      */
     private void sendMessages()
     {
-        Iterator<Peer> it = m_peerManager.getPeers();
+        if (m_isInitialBlockDownload)
+            updateInitialBlockDownload();
 
-        if (m_initialSyncingPeer != null &&
-                (!m_initialSyncingPeer.isConnected() || m_elapsedSinceRequest.getElapsedTime().getTotalMinutes() > 2))
-        {
-            // Disconnect peer if stalling for more than two minutes.
-            m_initialSyncingPeer.disconnect();
-            m_initialSyncingPeer = null;
-            m_elapsedSinceRequest.stop();
-        }
+        Iterator<Peer> it = m_peerManager.getPeers();
 
         while (it.hasNext())
         {
@@ -820,25 +908,10 @@ public class Node implements IChainHeadUpdateListener, ITransactionsChangeListen
             if (!peer.isConnected() || peer.isBanned())
                 continue;
 
-            // If we are during initial download and we haven't sync our headers to the tip, we are going
-            // to chose the first outbound connection to a peer that has already cleared the handshake.
-            if (m_isInitialBlockDownload && m_initialSyncingPeer == null && !peer.isClient() && peer.hasClearedHandshake())
-            {
-                // If we are during initial download and are not syncing, start syncing with the first peer
-                // we find.
-                m_initialSyncingPeer = peer;
-                peer.setIsSyncing(true);
-                peer.sendMessage(ProtocolMessageFactory.createGetBlocksMessage(
-                        m_blockchain.getChainHead(),
-                        new Sha256Hash()));
-
-                m_elapsedSinceRequest.restart();
-            }
-
             // Send queue addresses.
             if (peer.getQueuedAddresses().size() > 0)
             {
-                ProtocolMessage addressMessage = ProtocolMessageFactory.createAddressMessage(peer.getQueuedAddresses());
+                ProtocolMessage addressMessage = ProtocolMessageFactory.createAddressMessage(peer, peer.getQueuedAddresses());
                 peer.sendMessage(addressMessage);
                 peer.getQueuedAddresses().clear();
             }
@@ -874,6 +947,114 @@ public class Node implements IChainHeadUpdateListener, ITransactionsChangeListen
         }
     }
 
+    /**
+     * Advances the initial block download. The headers first download is used when any of our outbound full node
+     * peers supports it; otherwise we fall back to downloading the blocks in order from a single peer.
+     */
+    private void updateInitialBlockDownload()
+    {
+        if (m_initialSyncingPeer != null &&
+                (!m_initialSyncingPeer.isConnected() || m_elapsedSinceRequest.getElapsedTime().getTotalMinutes() > 2))
+        {
+            // Disconnect peer if stalling for more than two minutes.
+            m_initialSyncingPeer.disconnect();
+            m_initialSyncingPeer = null;
+            m_elapsedSinceRequest.stop();
+        }
+
+        if (m_initialSyncingPeer == null)
+        {
+            Peer peer = findLegacySyncingPeer();
+
+            if (peer != null)
+            {
+                // The downloader starts over from our chain head if we ever go back to it.
+                m_blockDownloader.reset();
+
+                m_initialSyncingPeer = peer;
+                peer.setIsSyncing(true);
+                peer.sendMessage(ProtocolMessageFactory.createGetBlocksMessage(
+                        m_blockchain.getChainHead(),
+                        new Sha256Hash()));
+
+                m_elapsedSinceRequest.restart();
+            }
+        }
+
+        if (m_initialSyncingPeer != null)
+            return;
+
+        m_blockDownloader.update(m_peerManager.getPeers());
+
+        if (m_blockDownloader.isFinished())
+            finishInitialBlockDownload(m_blockDownloader.getHeadersPeer());
+    }
+
+    /**
+     * Finds the peer to download the blocks from when none of our peers supports the headers first download. Pruned
+     * peers can not serve the whole chain, so we skip them.
+     *
+     * @return The first outbound full node peer that cleared the handshake; or null if there is none, or if a peer
+     * supports the headers first download.
+     */
+    private Peer findLegacySyncingPeer()
+    {
+        Peer           legacyPeer = null;
+        Iterator<Peer> it         = m_peerManager.getPeers();
+
+        while (it.hasNext())
+        {
+            Peer peer = it.next();
+
+            if (peer.isClient() || !peer.isConnected() || peer.isBanned() || !peer.hasClearedHandshake() ||
+                    peer.getServices() != NodeServices.Network)
+            {
+                continue;
+            }
+
+            if (BlockDownloader.isCandidate(peer))
+                return null;
+
+            if (legacyPeer == null)
+                legacyPeer = peer;
+        }
+
+        return legacyPeer;
+    }
+
+    /**
+     * Ends the initial block download, and starts relaying blocks, transactions and addresses.
+     *
+     * @param peer The peer we downloaded the chain from; the memory pool is requested from it.
+     */
+    private void finishInitialBlockDownload(Peer peer)
+    {
+        m_isInitialBlockDownload = false;
+        s_logger.debug("Initial block download is over. Current tip {}", m_blockchain.getChainHead());
+
+        // Advertise our address to all connected peers.
+        broadcastPublicAddress();
+
+        // Exchange headers with all peers.
+        exchangeHeaders();
+
+        if (peer != null && peer.isConnected())
+        {
+            s_logger.debug("Requesting mem pool from peer...");
+            peer.sendMessage(ProtocolMessageFactory.createGetUnconfirmedTransactions());
+        }
+        else
+        {
+            m_isInitialXtDownload = false;
+        }
+
+        // We will request transactions to peers every 30 minutes if our mempool is empty.
+        m_requestTransactions.restart();
+
+        for (IBlockchainSyncFinishListener listener: m_ibdListeners)
+            listener.onBlockchainSyncFinishFinish(m_blockchain, m_persistenceService);
+    }
+
     /**
      * Exchange headers between this node and the peers.
      */
@@ -905,7 +1086,7 @@ public class Node implements IChainHeadUpdateListener, ITransactionsChangeListen
             if (!peer.isConnected() || peer.isBanned())
                 continue;
 
-            peer.sendMessage(ProtocolMessageFactory.createAddressMessage(m_publicAddress));
+            peer.sendMessage(ProtocolMessageFactory.createAddressMessage(peer, m_publicAddress));
             peer.clearKnownAddresses();
         }
     }
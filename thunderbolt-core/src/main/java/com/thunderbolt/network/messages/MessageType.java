@@ -24,6 +24,10 @@
 
 package com.thunderbolt.network.messages;
 
+/* IMPORTS *******************************************************************/
+
+import com.thunderbolt.network.ProtocolException;
+
 /* IMPLEMENTATION ************************************************************/
 
 /**
@@ -114,7 +118,25 @@ public enum MessageType
     /**
      * Describes a set of transactions, in reply to GetTransactions.
      */
-    Transactions((short)0x0D);
+    Transactions((short)0x0D),
+
+    /**
+     * Return a headers packet containing the headers of the blocks starting right after the last known hash in the
+     * block locator object, up to hash_stop or 2000 headers, whichever comes first.
+     */
+    GetHeaders((short)0x0E),
+
+    /**
+     * The headers message is sent in response to a get headers message. All the headers in this message are
+     * guaranteed to connect from the first to the last header.
+     */
+    Headers((short)0x0F),
+
+    /**
+     * Request the peer to send the specified blocks. The response to this message is a blocks message containing
+     * the requested blocks the peer has; the blocks in the response are not guaranteed to connect.
+     */
+    GetBlockData((short)0x10);
 
     // Instance fields.
     private final short m_value;
@@ -140,14 +162,21 @@ public enum MessageType
     }
 
     /**
-     * Gets an enum value from a byte.
+     * Gets an enum value from a byte. Peers running a newer version of the protocol may send us message types we
+     * don't know about.
      *
      * @param value The short to be casted.
      *
      * @return The enum value.
      */
-    static public MessageType from(short value)
+    static public MessageType from(short value) throws ProtocolException
     {
-        return MessageType.values()[value];
+        for (MessageType type: MessageType.values())
+        {
+            if (type.m_value == value)
+                return type;
+        }
+
+        throw new ProtocolException("Unknown message type: " + value);
     }
 }
@@ -34,7 +34,12 @@ public enum NodeServices
     /**
      * 	This node can be asked for full blocks and transactions.
      */
-    Network(0x00);
+    Network(0x00),
+
+    /**
+     * This node only keeps the most recent blocks; older blocks were pruned and can not be asked for.
+     */
+    NetworkLimited(0x01);
 
     // Instance fields.
     private final int m_value;
@@ -62,12 +67,18 @@ public enum NodeServices
     /**
      * Gets an enum value from a byte.
      *
+     * Newer nodes may advertise services we don't know about. We can not rely on those, so they are treated as
+     * limited services.
+     *
      * @param value The int to be casted.
      *
      * @return The enum value.
      */
     static public NodeServices from(int value)
     {
+        if (value < 0 || value >= NodeServices.values().length)
+            return NodeServices.NetworkLimited;
+
         return NodeServices.values()[value];
     }
 }
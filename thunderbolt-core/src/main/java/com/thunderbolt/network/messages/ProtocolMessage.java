@@ -55,9 +55,9 @@ public class ProtocolMessage implements ISerializable
     private static final int CHECKSUM_SIZE      = 4;
     public static final int  MAX_SIZE           = 33554432; // 32 MiB
 
-    private short  m_messageType;
-    private byte[] m_payload;
-    private int    m_packetMagic;
+    private MessageType m_messageType = MessageType.Ping;
+    private byte[]      m_payload;
+    private int         m_packetMagic;
 
     /**
      * Creates a new instance of the Message class.
@@ -94,7 +94,7 @@ public class ProtocolMessage implements ISerializable
         }
 
         ByteBuffer headerBuffer = ByteBuffer.wrap(messageHeader);
-        m_messageType = headerBuffer.getShort();
+        short messageType = headerBuffer.getShort();
         int payloadSize = headerBuffer.getInt();
 
         byte[] checksum = new byte[CHECKSUM_SIZE];
@@ -103,8 +103,12 @@ public class ProtocolMessage implements ISerializable
         if (payloadSize > ProtocolMessage.MAX_SIZE)
             throw new ProtocolException("Message size too large: " + payloadSize);
 
+        // The message type is only checked once the whole message was read, so the next message can still be read.
         if (payloadSize == 0)
+        {
+            m_messageType = MessageType.from(messageType);
             return;
+        }
 
         m_payload = new byte[payloadSize];
 
@@ -127,6 +131,8 @@ public class ProtocolMessage implements ISerializable
             throw new ProtocolException("Checksum failed to verify, actual " +
                     Convert.toHexString(hash) + " vs " + Convert.toHexString(checksum));
         }
+
+        m_messageType = MessageType.from(messageType);
     }
 
     /**
@@ -143,7 +149,7 @@ public class ProtocolMessage implements ISerializable
         if (magic != packetMagic)
             throw new ProtocolException("Invalid magic");
 
-        m_messageType = buffer.getShort();
+        m_messageType = MessageType.from(buffer.getShort());
 
         int payloadSize = buffer.getInt();
 
@@ -185,7 +191,7 @@ public class ProtocolMessage implements ISerializable
      */
     public MessageType getMessageType()
     {
-        return MessageType.from(m_messageType);
+        return m_messageType;
     }
 
     /**
@@ -195,7 +201,7 @@ public class ProtocolMessage implements ISerializable
      */
     public void setMessageType(MessageType message)
     {
-        m_messageType = message.getValue();
+        m_messageType = message;
     }
 
     /**
@@ -229,7 +235,7 @@ public class ProtocolMessage implements ISerializable
         ByteArrayOutputStream data = new ByteArrayOutputStream();
 
         data.writeBytes(NumberSerializer.serialize(m_packetMagic));
-        data.writeBytes(NumberSerializer.serialize(m_messageType));
+        data.writeBytes(NumberSerializer.serialize(m_messageType.getValue()));
 
         if (m_payload == null)
         {
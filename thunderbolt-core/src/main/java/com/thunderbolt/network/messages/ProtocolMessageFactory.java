@@ -26,9 +26,8 @@ package com.thunderbolt.network.messages;
 
 /* IMPORTS *******************************************************************/
 
-import com.google.common.collect.EvictingQueue;
-import com.thunderbolt.blockchain.Block;
 import com.thunderbolt.blockchain.BlockHeader;
+import com.thunderbolt.common.NumberSerializer;
 import com.thunderbolt.network.NetworkParameters;
 import com.thunderbolt.network.messages.payloads.*;
 import com.thunderbolt.network.messages.structures.NetworkAddress;
@@ -42,6 +41,7 @@ import com.thunderbolt.transaction.Transaction;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.ByteArrayOutputStream;
 import java.security.SecureRandom;
 import java.time.LocalDateTime;
 import java.time.ZoneOffset;
@@ -55,7 +55,9 @@ import java.util.*;
 public class ProtocolMessageFactory
 {
     // Constants
-    private static final int INVENTORY_LIMIT = 500;
+    private static final int INVENTORY_LIMIT   = 500;
+    private static final int HEADERS_LIMIT     = 2000;
+    private static final int BLOCKS_SIZE_LIMIT = ProtocolMessage.MAX_SIZE - Integer.BYTES; // Payload minus the count.
 
     // Static Fields
     private static final SecureRandom s_secureRandom = new SecureRandom();
@@ -79,6 +81,28 @@ public class ProtocolMessageFactory
         s_initialized = true;
     }
 
+    /**
+     * Gets the services this node offers to its peers.
+     *
+     * @return The local services.
+     */
+    public static NodeServices getLocalServices()
+    {
+        if (!s_initialized)
+            throw new IllegalStateException("Persistence service was no initialized.");
+
+        if (s_persistenceService.isPruningEnabled())
+            return NodeServices.NetworkLimited;
+
+        // Nodes bootstrapped from an unspent outputs snapshot never had the blocks below the snapshot.
+        Sha256Hash genesis = s_persistenceService.getMainChainHash(0);
+
+        if (genesis != null && s_persistenceService.getBlockMetadata(genesis).isPruned())
+            return NodeServices.NetworkLimited;
+
+        return NodeServices.Network;
+    }
+
     /**
      * Creates a version message.
      *
@@ -97,14 +121,19 @@ public class ProtocolMessageFactory
         long nonce = s_secureRandom.nextLong();
         peer.setVersionNonce(nonce);
 
+        // The version 1 fields must be understood by version 1 nodes, which only accept their exact version and only
+        // know the network service. Our real version and services go in the extended fields.
         VersionPayload payload = new VersionPayload(
-                m_params.getProtocol(),
+                m_params.getMinProtocol(),
                 NodeServices.Network,
                 LocalDateTime.now().toEpochSecond(ZoneOffset.UTC),
                 s_persistenceService.getChainHead().getHeight(),
                 nonce,
                 peer.getNetworkAddress());
 
+        payload.setExtendedVersion(m_params.getProtocol());
+        payload.setExtendedServices(getLocalServices());
+
         message.setPayload(payload);
 
         return message;
@@ -166,13 +195,28 @@ public class ProtocolMessageFactory
     /**
      * Creates an protocol address message.
      *
+     * Peers older than the network limited version can not decode that service, so those addresses are not sent
+     * to them.
+     *
+     * @param peer The peer this message is directed too.
      * @param list The list of address to send.
      *
      * @return The address protocol message.
      */
-    public static ProtocolMessage createAddressMessage(List<TimestampedNetworkAddress> list)
+    public static ProtocolMessage createAddressMessage(Peer peer, List<TimestampedNetworkAddress> list)
     {
-        AddressPayload payload = new AddressPayload(list);
+        List<TimestampedNetworkAddress> addresses = new ArrayList<>();
+
+        for (TimestampedNetworkAddress address : list)
+        {
+            if (peer.getProtocolVersion() >= NetworkParameters.NETWORK_LIMITED_VERSION ||
+                    address.getNetworkAddress().getServices() == NodeServices.Network)
+            {
+                addresses.add(address);
+            }
+        }
+
+        AddressPayload payload = new AddressPayload(addresses);
 
         ProtocolMessage message = new ProtocolMessage(m_params.getPacketMagic());
         message.setMessageType(MessageType.Address);
@@ -184,22 +228,17 @@ public class ProtocolMessageFactory
     /**
      * Creates an protocol address message.
      *
+     * @param peer The peer this message is directed too.
      * @param address The address to send to the peers.
      *
      * @return The address protocol message.
      */
-    public static ProtocolMessage createAddressMessage(NetworkAddress address)
+    public static ProtocolMessage createAddressMessage(Peer peer, NetworkAddress address)
     {
         List<TimestampedNetworkAddress> addresses = new ArrayList<>();
         addresses.add(new TimestampedNetworkAddress(LocalDateTime.now(), address));
 
-        AddressPayload payload = new AddressPayload(addresses);
-
-        ProtocolMessage message = new ProtocolMessage(m_params.getPacketMagic());
-        message.setMessageType(MessageType.Address);
-        message.setPayload(payload);
-
-        return message;
+        return createAddressMessage(peer, addresses);
     }
 
     /**
@@ -247,7 +286,7 @@ public class ProtocolMessageFactory
      *
      * @param locator The block locator.
      *
-     * @return The newly created inventory message.
+     * @return The newly created inventory message; or null if the blocks the peer is missing were pruned.
      */
     public static ProtocolMessage createBlocksMessage(List<Sha256Hash> locator, Sha256Hash stopHash) throws StorageException
     {
@@ -259,14 +298,154 @@ public class ProtocolMessageFactory
                 s_persistenceService.getChainHead() :
                 s_persistenceService.getBlockMetadata(stopHash);
 
-        BlocksPayload payload =
-                new BlocksPayload(getBlocksToSend(metadata, locator));
+        // The blocks are sent as they are stored on disk; the layout is the same as the one of the blocks payload.
+        List<byte[]>          blocks  = getBlocksToSend(metadata, locator);
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+
+        if (blocks == null)
+            return null;
+
+        payload.writeBytes(NumberSerializer.serialize(blocks.size()));
+
+        for (byte[] block : blocks)
+            payload.writeBytes(block);
+
+        message.setPayload(payload.toByteArray());
+
+        return message;
+    }
+
+    /**
+     * Creates the get headers message.
+     *
+     * The locator is built from our current chain head; if we already have headers past our chain head, the hash
+     * of the last of them is placed first so the peer continues right after it.
+     *
+     * @param lastHeader The last header we know of; or null to start from our chain head.
+     *
+     * @return The get headers message.
+     */
+    public static ProtocolMessage createGetHeadersMessage(BlockHeader lastHeader)
+    {
+        List<Sha256Hash> hashes = getBlockLocator(s_persistenceService.getChainHead().getHeader());
+
+        if (lastHeader != null && !hashes.get(0).equals(lastHeader.getHash()))
+            hashes.add(0, lastHeader.getHash());
+
+        ProtocolMessage message = new ProtocolMessage(m_params.getPacketMagic());
+        message.setMessageType(MessageType.GetHeaders);
+
+        GetBlocksPayload payload = new GetBlocksPayload();
+
+        payload.setBlockLocatorHashes(hashes);
+        payload.setVersion(m_params.getProtocol());
+        payload.setHashToStop(new Sha256Hash());
+        message.setPayload(payload);
+
+        return message;
+    }
+
+    /**
+     * Creates a reply for the get headers message.
+     *
+     * Only the block metadata is read, so headers can be served even if the blocks were pruned.
+     *
+     * @param locator The block locator.
+     * @param stopHash The hash where to stop, or zero to send as many headers as possible.
+     *
+     * @return The newly created headers message.
+     */
+    public static ProtocolMessage createHeadersMessage(List<Sha256Hash> locator, Sha256Hash stopHash)
+    {
+        ProtocolMessage message = new ProtocolMessage(m_params.getPacketMagic());
+        message.setMessageType(MessageType.Headers);
+
+        BlockMetadata upper = stopHash
+                .equals(new Sha256Hash() /* All 0*/) ?
+                s_persistenceService.getChainHead() :
+                s_persistenceService.getBlockMetadata(stopHash);
+
+        List<BlockHeader> headers = new ArrayList<>();
+
+        if (upper != null)
+        {
+            long forkHeight = getForkHeight(upper, locator);
+            long lastHeight = Math.min(upper.getHeight(), forkHeight + HEADERS_LIMIT);
+
+            for (long height = forkHeight + 1; height <= lastHeight; ++height)
+                headers.add(s_persistenceService.getAncestor(upper, height).getHeader());
+        }
+
+        message.setPayload(new HeadersPayload(headers));
+
+        return message;
+    }
+
+    /**
+     * Creates the get block data message.
+     *
+     * @param hashes The hashes of the blocks to request.
+     *
+     * @return The get block data message.
+     */
+    public static ProtocolMessage createGetBlockDataMessage(List<Sha256Hash> hashes)
+    {
+        ProtocolMessage message = new ProtocolMessage(m_params.getPacketMagic());
+        message.setMessageType(MessageType.GetBlockData);
 
+        GetBlockDataPayload payload = new GetBlockDataPayload();
+        payload.getHashes().addAll(hashes);
         message.setPayload(payload);
 
         return message;
     }
 
+    /**
+     * Creates a reply for the get block data message.
+     *
+     * The blocks we don't know about or already pruned are left out of the reply, and so are the blocks that do not
+     * fit in a single message; the peer requests those again.
+     *
+     * @param hashes The hashes of the requested blocks.
+     *
+     * @return The newly created blocks message.
+     */
+    public static ProtocolMessage createBlockDataMessage(List<Sha256Hash> hashes) throws StorageException
+    {
+        ProtocolMessage message = new ProtocolMessage(m_params.getPacketMagic());
+        message.setMessageType(MessageType.Blocks);
+
+        List<byte[]> blocks = new ArrayList<>();
+        long         size   = 0;
+
+        for (Sha256Hash hash: hashes)
+        {
+            BlockMetadata metadata = s_persistenceService.getBlockMetadata(hash);
+
+            if (metadata == null || metadata.isPruned())
+                continue;
+
+            byte[] block = s_persistenceService.getSerializedBlock(hash);
+
+            if (size + block.length > BLOCKS_SIZE_LIMIT)
+                break;
+
+            blocks.add(block);
+            size += block.length;
+        }
+
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+
+        payload.writeBytes(NumberSerializer.serialize(blocks.size()));
+
+        for (byte[] block : blocks)
+            payload.writeBytes(block);
+
+        message.setPayload(payload.toByteArray());
+
+        return message;
+    }
+
 
     /**
      * Creates a get unconfirmed transactions message.
@@ -372,52 +551,77 @@ public class ProtocolMessageFactory
     }
 
     /**
-     * Gets a segment of the blockchain that is encompassed by the two given blocks.
+     * Gets the serialized blocks that follow the locator on the branch of the given block.
      *
-     * If none of the locator hashes are on our main branch, we will reach down to genesis block.
+     * The fork point is resolved with the block metadata alone; only the blocks that are actually sent (up to
+     * 500, and no more than fit in a single message) are read from disk, and they are not deserialized. If none of
+     * the locator hashes are on the branch, the blocks that follow the genesis block are sent.
      *
      * @param upper The upper bound block.
      * @param locator Locator containing the lower bound blocks of our search.
      *
-     * @return The list of blocks between head and the locator blocks.
+     * @return The list of serialized blocks between the locator blocks and the upper bound, in ascending order; or
+     * null if the first block to send was pruned. The list stops before the first pruned block.
      */
-    private static LinkedList<Block> getBlocksToSend(BlockMetadata upper, List<Sha256Hash> locator) throws StorageException
+    private static List<byte[]> getBlocksToSend(BlockMetadata upper, List<Sha256Hash> locator) throws StorageException
     {
-        LinkedList<Block> results = new LinkedList<>();
-        BlockMetadata     cursor  = upper;
-        EvictingQueue<Block> evictingQueue = EvictingQueue.create(INVENTORY_LIMIT);
+        List<byte[]> results = new ArrayList<>();
+
+        if (upper == null)
+            return results;
 
-        boolean stop = false;
-        do
+        long forkHeight = getForkHeight(upper, locator);
+        long lastHeight = Math.min(upper.getHeight(), forkHeight + INVENTORY_LIMIT);
+        long size       = 0;
+
+        for (long height = forkHeight + 1; height <= lastHeight; ++height)
         {
-            // Check if we found a locator.
-            for (Sha256Hash locatorHash : locator)
-            {
-                // We found one match.
-                if (locatorHash.equals(cursor.getHash()))
-                {
-                    stop = true;
-                }
-            }
+            BlockMetadata metadata = s_persistenceService.getAncestor(upper, height);
 
-            // Check if we reach genesis block.
-            if (cursor.getHash().equals(m_params.getGenesisBlock().getHeaderHash()))
-                stop = true;
+            if (metadata.isPruned())
+                return results.isEmpty() ? null : results;
 
-            if (!stop)
-            {
-                evictingQueue.add(s_persistenceService.getBlock(cursor.getHash()));
-                cursor = s_persistenceService.getBlockMetadata(cursor.getHeader().getParentBlockHash());
-            }
+            byte[] block = s_persistenceService.getSerializedBlock(metadata.getHash());
 
-        } while (!stop);
+            // The peer asks again for the blocks that follow the last one we send.
+            if (size + block.length > BLOCKS_SIZE_LIMIT)
+                break;
 
-        results.addAll(evictingQueue);
-        Collections.reverse(results);
+            results.add(block);
+            size += block.length;
+        }
 
         return results;
     }
 
+    /**
+     * Gets the height of the highest locator block that is on the branch of the given block.
+     *
+     * @param upper The upper bound block.
+     * @param locator The block locator.
+     *
+     * @return The height of the fork point; or zero if none of the locator hashes are on the branch.
+     */
+    private static long getForkHeight(BlockMetadata upper, List<Sha256Hash> locator)
+    {
+        long forkHeight = 0;
+
+        for (Sha256Hash locatorHash : locator)
+        {
+            BlockMetadata metadata = s_persistenceService.getBlockMetadata(locatorHash);
+
+            if (metadata == null || metadata.getHeight() <= forkHeight || metadata.getHeight() > upper.getHeight())
+                continue;
+
+            BlockMetadata ancestor = s_persistenceService.getAncestor(upper, metadata.getHeight());
+
+            if (ancestor != null && ancestor.getHash().equals(locatorHash))
+                forkHeight = metadata.getHeight();
+        }
+
+        return forkHeight;
+    }
+
     /**
      * Gets a block locator object for the given head and genesis.
      *
@@ -432,35 +636,21 @@ public class ProtocolMessageFactory
         // Modify the step in the iteration.
         long step = 1;
 
-        headers.add(head.getHash());
-
-        // If we only have the genesis block. Send only that one.
-        if (head.getHash().equals(m_params.getGenesisBlock().getHeaderHash()))
-            return headers;
+        BlockMetadata headMetadata = s_persistenceService.getBlockMetadata(head.getHash());
+        long          height       = headMetadata.getHeight();
 
-        BlockHeader nextBlock = head;
+        headers.add(head.getHash());
 
-        boolean arriveAtGenesis = false;
-        while (!arriveAtGenesis)
+        // Walk back to the genesis block. If we only have the genesis block, we send only that one.
+        while (height > 0)
         {
             // Push top 10 indexes first, then back off exponentially.
             if (headers.size() >= 10)
                 step *= 2;
 
-            BlockMetadata metadata = null;
-            for (int i = 0; i < step; ++i)
-            {
-                metadata = s_persistenceService.getBlockMetadata(nextBlock.getParentBlockHash());
-                nextBlock = metadata.getHeader();
-
-                if (nextBlock.getHash().equals(m_params.getGenesisBlock().getHeaderHash()))
-                {
-                    arriveAtGenesis = true;
-                    break;
-                }
-            }
+            height = Math.max(0, height - step);
 
-            headers.add(nextBlock.getHash());
+            headers.add(s_persistenceService.getAncestor(headMetadata, height).getHash());
         }
 
         return headers;
@@ -0,0 +1,112 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2020 Angel Castillo.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.thunderbolt.network.messages.payloads;
+
+/* IMPORTS *******************************************************************/
+
+import com.thunderbolt.common.NumberSerializer;
+import com.thunderbolt.common.contracts.ISerializable;
+import com.thunderbolt.network.ProtocolException;
+import com.thunderbolt.security.Sha256Hash;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/* IMPLEMENTATION ************************************************************/
+
+/**
+ * Request the peer to send the specified blocks.
+ */
+public class GetBlockDataPayload implements ISerializable
+{
+    // Constants
+    private static final int MAX_BLOCKS_COUNT = 16; // The most blocks the block downloader asks for at once.
+
+    // Instance fields
+    private final List<Sha256Hash> m_blocks = new ArrayList<>();
+
+    /**
+     * Initializes a new instance of the GetBlockDataPayload class.
+     */
+    public GetBlockDataPayload()
+    {
+    }
+
+    /**
+     * Initializes a new instance of the GetBlockDataPayload class.
+     *
+     * @param buffer The buffer containing the payload.
+     */
+    public GetBlockDataPayload(ByteBuffer buffer) throws ProtocolException
+    {
+        int entryCount = buffer.getInt();
+
+        if (entryCount > MAX_BLOCKS_COUNT)
+            throw new ProtocolException(String.format("The number of blocks in this message (%s) is bigger than the limit %s",
+                    entryCount, MAX_BLOCKS_COUNT));
+
+        for (int i = 0; i < entryCount; ++i)
+            m_blocks.add(new Sha256Hash(buffer));
+    }
+
+    /**
+     * Initializes a new instance of the GetBlockDataPayload class.
+     *
+     * @param buffer The buffer containing the payload.
+     */
+    public GetBlockDataPayload(byte[] buffer) throws ProtocolException
+    {
+        this(ByteBuffer.wrap(buffer));
+    }
+
+    /**
+     * Serializes an object in raw byte format.
+     *
+     * @return The serialized object.
+     */
+    @Override
+    public byte[] serialize()
+    {
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+
+        data.writeBytes(NumberSerializer.serialize(m_blocks.size()));
+
+        for (Sha256Hash hash: m_blocks)
+            data.writeBytes(hash.serialize());
+
+        return data.toByteArray();
+    }
+
+    /**
+     * Gets the list of block hashes to request to the peer.
+     *
+     * @return The list of block hashes.
+     */
+    public List<Sha256Hash> getHashes()
+    {
+        return m_blocks;
+    }
+}
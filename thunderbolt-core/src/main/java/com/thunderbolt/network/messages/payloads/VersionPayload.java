@@ -49,6 +49,10 @@ public class VersionPayload implements ISerializable
     private long           m_nonce       = 0;
     private NetworkAddress m_addrRecv    = null;
 
+    // Appended after the version 1 fields; version 1 nodes ignore them.
+    private int            m_extendedVersion  = 0;
+    private NodeServices   m_extendedServices = NodeServices.Network;
+
     /**
      * Initializes a new instance of the VersionPayload class.
      *
@@ -88,6 +92,18 @@ public class VersionPayload implements ISerializable
         setBlockHeight(buffer.getInt() & 0xFFFFFFFFL);
         setNonce(buffer.getLong());
         setReceiveAddress(new NetworkAddress(buffer));
+
+        // Version 1 nodes don't send the extended fields.
+        if (buffer.remaining() >= Integer.BYTES * 2)
+        {
+            setExtendedVersion(buffer.getInt());
+            setExtendedServices(NodeServices.from(buffer.getInt()));
+        }
+        else
+        {
+            setExtendedVersion(getVersion());
+            setExtendedServices(getServices());
+        }
     }
 
     /**
@@ -106,6 +122,8 @@ public class VersionPayload implements ISerializable
         data.writeBytes(NumberSerializer.serialize((int)getBlockHeight()));
         data.writeBytes(NumberSerializer.serialize(getNonce()));
         data.writeBytes(m_addrRecv.serialize());
+        data.writeBytes(NumberSerializer.serialize(getExtendedVersion()));
+        data.writeBytes(NumberSerializer.serialize(getExtendedServices().getValue()));
 
         return data.toByteArray();
     }
@@ -130,6 +148,49 @@ public class VersionPayload implements ISerializable
         m_version = version;
     }
 
+    /**
+     * Gets the highest protocol version the node supports.
+     *
+     * Version 1 nodes only accept peers that send their exact version, so the version field carries the oldest
+     * version the node can talk to, and the highest one is sent in this extended field.
+     *
+     * @return The highest protocol version.
+     */
+    public int getExtendedVersion()
+    {
+        return m_extendedVersion;
+    }
+
+    /**
+     * Sets the highest protocol version the node supports.
+     *
+     * @param version The highest protocol version.
+     */
+    public void setExtendedVersion(int version)
+    {
+        m_extendedVersion = version;
+    }
+
+    /**
+     * Gets the services the node offers to peers that speak the extended version.
+     *
+     * @return The node services.
+     */
+    public NodeServices getExtendedServices()
+    {
+        return m_extendedServices;
+    }
+
+    /**
+     * Sets the services the node offers to peers that speak the extended version.
+     *
+     * @param services The node services.
+     */
+    public void setExtendedServices(NodeServices services)
+    {
+        m_extendedServices = services;
+    }
+
     /**
      * Gets the timestamp.
      *
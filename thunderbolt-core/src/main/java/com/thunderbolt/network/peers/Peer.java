@@ -30,6 +30,7 @@ import com.thunderbolt.common.Stopwatch;
 import com.thunderbolt.common.TimeSpan;
 import com.thunderbolt.network.NetworkParameters;
 import com.thunderbolt.network.ProtocolException;
+import com.thunderbolt.network.messages.NodeServices;
 import com.thunderbolt.network.messages.ProtocolMessage;
 import com.thunderbolt.network.messages.structures.NetworkAddress;
 import com.thunderbolt.network.messages.structures.TimestampedNetworkAddress;
@@ -79,6 +80,7 @@ public class Peer
     private long                                  m_knownBlockHeight  = 0;
     private Sha256Hash                            m_bestKnownBlock    = new Sha256Hash();
     private Sha256Hash                            m_lastCommonBlock   = new Sha256Hash();
+    private NodeServices                          m_services          = NodeServices.Network;
 
     /**
      * Creates a connection with a given peer.
@@ -621,6 +623,26 @@ public class Peer
         m_knownBlockHeight = knownBlockHeight;
     }
 
+    /**
+     * Gets the services advertised by this peer.
+     *
+     * @return The services of the peer.
+     */
+    public NodeServices getServices()
+    {
+        return m_services;
+    }
+
+    /**
+     * Sets the services advertised by this peer.
+     *
+     * @param services The services of the peer.
+     */
+    public void setServices(NodeServices services)
+    {
+        m_services = services;
+    }
+
     /**
      * Adds a given hash to the known blocks by this peer. This way we avoid sending duplicate or redundant data.
      *
@@ -0,0 +1,420 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2018 Angel Castillo.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.thunderbolt.persistence;
+
+/* IMPORTS *******************************************************************/
+
+import com.thunderbolt.blockchain.Block;
+import com.thunderbolt.blockchain.BlockHeader;
+import com.thunderbolt.network.NetworkParameters;
+import com.thunderbolt.persistence.contracts.IContiguousStorage;
+import com.thunderbolt.persistence.contracts.IPersistenceService;
+import com.thunderbolt.persistence.storage.StorageException;
+import com.thunderbolt.persistence.storage.StoragePointer;
+import com.thunderbolt.persistence.structures.BlockMetadata;
+import com.thunderbolt.persistence.structures.UnspentTransactionOutput;
+import com.thunderbolt.security.Sha256Hash;
+import com.thunderbolt.transaction.Transaction;
+import com.thunderbolt.transaction.TransactionInput;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.math.BigInteger;
+import java.nio.BufferUnderflowException;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/* IMPLEMENTATION ************************************************************/
+
+/**
+ * Rebuilds the blockchain metadata (block and transaction metadata, the main chain index and the unspent outputs)
+ * from the blocks in the block storage. This is used when the metadata database is lost or corrupted.
+ *
+ * The segments are scanned twice. The first pass only reads the block headers and finds the chain with the most
+ * work; the second pass connects the blocks of that chain from the genesis block upwards. In both passes the entries
+ * are read sequentially from the memory mapped segments, while the deserialization and hashing of the blocks runs in
+ * parallel; the results are consumed in storage (or chain) order, so the blocks are committed one after the other
+ * just like when they were first connected.
+ *
+ * Blocks that are not part of the best chain are not indexed. The revert data is created again, so the revert
+ * storage and the metadata provider must be empty.
+ *
+ * The proof of work of every header and the merkle root of every connected block are verified while they are
+ * decoded; the reindex stops at the first block that fails, since the storage can not be trusted past that point.
+ */
+public class BlockStorageReindexer
+{
+    private static final Logger s_logger = LoggerFactory.getLogger(BlockStorageReindexer.class);
+
+    // Constants
+    private static final int READ_AHEAD      = 256;   // Blocks decoded ahead of the block being committed.
+    private static final int REPORT_INTERVAL = 10000; // Blocks between progress reports.
+
+    // Instance fields
+    private final NetworkParameters   m_params;
+    private final IContiguousStorage  m_blockStorage;
+    private final IPersistenceService m_persistence;
+    private final int                 m_threads;
+
+    /**
+     * Initializes a new instance of the BlockStorageReindexer class.
+     *
+     * @param params       The network parameters.
+     * @param blockStorage The storage with the blocks.
+     * @param persistence  The persistence service where the metadata is rebuilt.
+     * @param threads      The amount of threads used to decode the blocks.
+     */
+    public BlockStorageReindexer(
+            NetworkParameters params, IContiguousStorage blockStorage, IPersistenceService persistence, int threads)
+    {
+        m_params       = params;
+        m_blockStorage = blockStorage;
+        m_persistence  = persistence;
+        m_threads      = Math.max(threads, 1);
+    }
+
+    /**
+     * Rebuilds the metadata of all the blocks of the best chain in the block storage.
+     *
+     * @return The new chain head.
+     */
+    public BlockMetadata reindex() throws StorageException
+    {
+        if (m_persistence.getChainHead() != null)
+            throw new StorageException("The metadata must be empty before reindexing the block storage.");
+
+        if (!m_blockStorage.hasSegment(0))
+            throw new StorageException("The first block segment is missing; a pruned block storage can not be reindexed.");
+
+        ExecutorService executor = Executors.newFixedThreadPool(m_threads, runnable ->
+        {
+            Thread thread = new Thread(runnable, "reindex");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        try
+        {
+            List<ChainEntry> chain = findBestChain(executor);
+
+            if (chain.isEmpty())
+                throw new StorageException("There are no blocks in the block storage.");
+
+            s_logger.info("Reindexing {} blocks...", chain.size());
+
+            connect(chain, executor);
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+
+        BlockMetadata head = m_persistence.getChainHead();
+
+        s_logger.info("Reindex finished. Chain head {} at height {}.", head.getHash(), head.getHeight());
+
+        return head;
+    }
+
+    /**
+     * Reads the headers of all the blocks in the block storage, and finds the chain with the most work.
+     *
+     * @param executor The executor that decodes the headers.
+     *
+     * @return The blocks of the best chain, starting from the genesis block.
+     */
+    private List<ChainEntry> findBestChain(ExecutorService executor) throws StorageException
+    {
+        Map<Sha256Hash, ChainEntry> entries = new HashMap<>();
+        ChainEntry                  best    = null;
+
+        for (int segment = 0; segment <= m_blockStorage.getCurrentSegment(); ++segment)
+        {
+            if (!m_blockStorage.hasSegment(segment))
+                continue;
+
+            List<Future<ChainEntry>> pending = new ArrayList<>();
+
+            for (StoragePointer pointer : m_blockStorage.getEntries(segment))
+                pending.add(executor.submit(() -> readHeader(pointer)));
+
+            for (Future<ChainEntry> future : pending)
+            {
+                ChainEntry entry = await(future);
+
+                // A block may have been stored twice; the first copy is the one we index.
+                if (entry == null || entries.containsKey(entry.hash))
+                    continue;
+
+                if (entry.header.getParentBlockHash().equals(new Sha256Hash()))
+                {
+                    entry.height    = 0;
+                    entry.totalWork = entry.work;
+                }
+                else
+                {
+                    ChainEntry parent = entries.get(entry.header.getParentBlockHash());
+
+                    // Blocks are only stored once their parent is known, so this only happens if data was lost.
+                    if (parent == null)
+                    {
+                        s_logger.warn("Block {} in segment {} has no known parent. Skipped.", entry.hash, segment);
+                        continue;
+                    }
+
+                    entry.parent    = parent;
+                    entry.height    = parent.height + 1;
+                    entry.totalWork = parent.totalWork.add(entry.work);
+                }
+
+                entries.put(entry.hash, entry);
+
+                if (best == null || entry.totalWork.compareTo(best.totalWork) > 0)
+                    best = entry;
+            }
+        }
+
+        List<ChainEntry> chain = new ArrayList<>();
+
+        for (ChainEntry cursor = best; cursor != null; cursor = cursor.parent)
+            chain.add(cursor);
+
+        Collections.reverse(chain);
+
+        return chain;
+    }
+
+    /**
+     * Connects the blocks of the given chain in order. The blocks ahead of the one being connected are decoded in
+     * parallel.
+     *
+     * @param chain    The blocks of the chain, starting from the genesis block.
+     * @param executor The executor that decodes the blocks.
+     */
+    private void connect(List<ChainEntry> chain, ExecutorService executor) throws StorageException
+    {
+        Deque<Future<ChainEntry>> pending = new ArrayDeque<>();
+        int                       next    = 0;
+
+        for (int i = 0; i < chain.size(); ++i)
+        {
+            while (next < chain.size() && next < i + READ_AHEAD)
+            {
+                ChainEntry entry = chain.get(next++);
+                pending.add(executor.submit(() -> readBlock(entry)));
+            }
+
+            ChainEntry entry = await(pending.poll());
+
+            commit(entry);
+
+            // The decoded block is no longer needed.
+            entry.block          = null;
+            entry.transactionIds = null;
+
+            if ((i + 1) % REPORT_INTERVAL == 0)
+                s_logger.info("Reindexed {} of {} blocks.", i + 1, chain.size());
+        }
+    }
+
+    /**
+     * Indexes the given block, and applies its changes to the unspent outputs. The changes are written in a
+     * single batch.
+     *
+     * @param entry The block.
+     */
+    private void commit(ChainEntry entry) throws StorageException
+    {
+        m_persistence.beginBatch();
+
+        try
+        {
+            BlockMetadata metadata = m_persistence.index(
+                    entry.block, entry.transactionIds, entry.pointer, entry.height, entry.totalWork);
+
+            m_persistence.setChainHead(metadata);
+            m_persistence.setMainChainHash(entry.height, entry.hash);
+
+            updateOutputs(entry.block, entry.transactionIds, entry.height);
+
+            m_persistence.commitBatch();
+        }
+        finally
+        {
+            // Does nothing if the batch was committed.
+            m_persistence.discardBatch();
+        }
+    }
+
+    /**
+     * Adds the outputs created by a block to the unspent outputs, and removes the outputs it spends.
+     *
+     * @param block          The block.
+     * @param transactionIds The ids of the transactions of the block.
+     * @param height         The height of the block.
+     */
+    private void updateOutputs(Block block, List<Sha256Hash> transactionIds, long height) throws StorageException
+    {
+        m_persistence.addAddressHistory(block, height);
+
+        for (int i = 0; i < block.getTransactionsCount(); ++i)
+        {
+            Transaction transaction = block.getTransaction(i);
+
+            for (int index = 0; index < transaction.getOutputs().size(); ++index)
+            {
+                UnspentTransactionOutput unspentOutput = new UnspentTransactionOutput();
+
+                unspentOutput.setOutput(transaction.getOutputs().get(index));
+                unspentOutput.setTransactionHash(transactionIds.get(i));
+                unspentOutput.setIsCoinbase(transaction.isCoinbase());
+                unspentOutput.setBlockHeight(height);
+                unspentOutput.setVersion(transaction.getVersion());
+                unspentOutput.setIndex(index);
+
+                m_persistence.addUnspentOutput(unspentOutput);
+            }
+
+            if (transaction.isCoinbase())
+                continue;
+
+            for (TransactionInput input : transaction.getInputs())
+                m_persistence.removeUnspentOutput(input.getReferenceHash(), input.getIndex());
+        }
+    }
+
+    /**
+     * Reads the header of a block from the block storage, and verifies its proof of work. Runs in the executor.
+     *
+     * @param pointer The location of the block.
+     *
+     * @return The chain entry of the block; or null if the entry does not contain a block header.
+     */
+    private ChainEntry readHeader(StoragePointer pointer) throws StorageException
+    {
+        ChainEntry entry = new ChainEntry();
+
+        entry.pointer = pointer;
+
+        try
+        {
+            entry.header = new BlockHeader(m_blockStorage.retrieveBuffer(pointer));
+        }
+        catch (BufferUnderflowException exception)
+        {
+            s_logger.warn("Entry at offset {} in segment {} is not a block. Skipped.", pointer.offset, pointer.segment);
+            return null;
+        }
+
+        entry.hash = entry.header.getHash();
+
+        BigInteger target = Block.unpackDifficulty(entry.header.getBits());
+
+        if (target.signum() <= 0 || target.compareTo(m_params.getProofOfWorkLimit()) > 0 ||
+                entry.hash.toBigInteger().compareTo(target) > 0)
+        {
+            throw new StorageException(String.format("Block %s at offset %s in segment %s has an invalid proof of work.",
+                    entry.hash, pointer.offset, pointer.segment));
+        }
+
+        entry.work = new Block(entry.header, new ArrayList<>()).getWork();
+
+        return entry;
+    }
+
+    /**
+     * Reads and decodes a whole block from the block storage, verifies its merkle root and computes the ids of its
+     * transactions. Runs in the executor.
+     *
+     * @param entry The chain entry of the block.
+     *
+     * @return The same chain entry, with the decoded block.
+     */
+    private ChainEntry readBlock(ChainEntry entry) throws StorageException
+    {
+        Block            block          = new Block(m_blockStorage.retrieveBuffer(entry.pointer));
+        List<Sha256Hash> transactionIds = new ArrayList<>(block.getTransactionsCount());
+
+        if (!block.getHeaderHash().equals(entry.hash) || !block.isMerkleRootValid())
+        {
+            throw new StorageException(String.format("Block %s at offset %s in segment %s does not match its header.",
+                    entry.hash, entry.pointer.offset, entry.pointer.segment));
+        }
+
+        for (Transaction transaction : block.getTransactions())
+            transactionIds.add(transaction.getTransactionId());
+
+        entry.block          = block;
+        entry.transactionIds = transactionIds;
+
+        return entry;
+    }
+
+    /**
+     * Waits for the result of a task.
+     *
+     * @param future The task.
+     *
+     * @return The result.
+     */
+    private static ChainEntry await(Future<ChainEntry> future) throws StorageException
+    {
+        try
+        {
+            return future.get();
+        }
+        catch (InterruptedException exception)
+        {
+            Thread.currentThread().interrupt();
+            throw new StorageException("The reindex was interrupted.", exception);
+        }
+        catch (ExecutionException exception)
+        {
+            // The first block that fails stops the reindex.
+            if (exception.getCause() instanceof StorageException)
+                throw (StorageException)exception.getCause();
+
+            throw new StorageException("Unable to read a block from the block storage.", exception.getCause());
+        }
+    }
+
+    /**
+     * A block found in the block storage.
+     */
+    private static class ChainEntry
+    {
+        StoragePointer   pointer;
+        BlockHeader      header;
+        Sha256Hash       hash;
+        BigInteger       work;
+        BigInteger       totalWork;
+        long             height;
+        ChainEntry       parent;
+        Block            block;
+        List<Sha256Hash> transactionIds;
+    }
+}
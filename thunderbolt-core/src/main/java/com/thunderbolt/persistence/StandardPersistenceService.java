@@ -27,13 +27,16 @@ package com.thunderbolt.persistence;
 
 import com.thunderbolt.blockchain.Block;
 import com.thunderbolt.common.NumberSerializer;
+import com.thunderbolt.network.NetworkParameters;
 import com.thunderbolt.persistence.contracts.IChainHeadUpdateListener;
 import com.thunderbolt.persistence.contracts.IContiguousStorage;
 import com.thunderbolt.persistence.contracts.IMetadataProvider;
 import com.thunderbolt.persistence.contracts.IPersistenceService;
 import com.thunderbolt.persistence.storage.*;
 import com.thunderbolt.persistence.structures.BlockMetadata;
+import com.thunderbolt.persistence.structures.KeyFilterInfo;
 import com.thunderbolt.persistence.structures.TransactionMetadata;
+import com.thunderbolt.persistence.structures.UnspentOutputSetInfo;
 import com.thunderbolt.persistence.structures.UnspentTransactionOutput;
 import com.thunderbolt.security.Ripemd160Digester;
 import com.thunderbolt.security.Sha256Hash;
@@ -48,9 +51,18 @@ import org.slf4j.LoggerFactory;
 import java.io.*;
 import java.math.BigInteger;
 import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
 
 /* IMPLEMENTATION ************************************************************/
 
@@ -64,10 +76,17 @@ public class StandardPersistenceService implements IPersistenceService
 {
     private static final Logger s_logger = LoggerFactory.getLogger(StandardPersistenceService.class);
 
+    // Constants
+    private static final long   MIN_PRUNE_DEPTH           = 288; // Roughly two days of blocks; deep enough for any reorg.
+    private static final String SNAPSHOT_TEMPORARY_SUFFIX = ".tmp";
+
     // Instance fields
-    private IContiguousStorage m_blockStorage     = null;
-    private IContiguousStorage m_revertsStorage   = null;
-    private IMetadataProvider  m_metadataProvider = null;
+    private IContiguousStorage m_blockStorage      = null;
+    private IContiguousStorage m_revertsStorage    = null;
+    private IMetadataProvider  m_metadataProvider  = null;
+    private long               m_pruneDepth        = 0;
+    private int                m_nextBlockSegment  = -1; // The oldest block segment not yet pruned.
+    private int                m_nextRevertSegment = -1; // The oldest revert segment not yet pruned.
 
     // Event listeners.
     private final List<IChainHeadUpdateListener> m_listeners = new ArrayList<>();
@@ -80,10 +99,38 @@ public class StandardPersistenceService implements IPersistenceService
      * @param metadataProvider The blockchain metadata provider.
      */
     public StandardPersistenceService(IContiguousStorage blockStorage, IContiguousStorage revertStorage, IMetadataProvider metadataProvider)
+            throws StorageException
+    {
+        this(blockStorage, revertStorage, metadataProvider, 0);
+    }
+
+    /**
+     * Initializes an instance of the persistence service.
+     *
+     * @param blockStorage     The storage for the blocks.
+     * @param revertStorage    The storage for the revert data.
+     * @param metadataProvider The blockchain metadata provider.
+     * @param pruneDepth       The amount of blocks below the chain head which data is kept on disk; or 0 to keep
+     *                         all the blocks.
+     */
+    public StandardPersistenceService(
+            IContiguousStorage blockStorage,
+            IContiguousStorage revertStorage,
+            IMetadataProvider metadataProvider,
+            long pruneDepth) throws StorageException
     {
         m_blockStorage     = blockStorage;
         m_revertsStorage   = revertStorage;
         m_metadataProvider = metadataProvider;
+        m_pruneDepth       = pruneDepth;
+
+        m_metadataProvider.setReferencedStorages(m_blockStorage, m_revertsStorage);
+
+        if (m_pruneDepth > 0 && m_pruneDepth < MIN_PRUNE_DEPTH)
+        {
+            s_logger.warn("Prune depth {} is too low; using {} instead.", m_pruneDepth, MIN_PRUNE_DEPTH);
+            m_pruneDepth = MIN_PRUNE_DEPTH;
+        }
     }
 
     /**
@@ -96,15 +143,52 @@ public class StandardPersistenceService implements IPersistenceService
      * @return The newly created BlockMetadata.
      */
     public BlockMetadata persist(Block block, long height, BigInteger totalWork) throws StorageException
+    {
+        StoragePointer blockPointer;
+
+        try
+        {
+            blockPointer = m_blockStorage.store(block.serialize());
+        }
+        catch (Exception exception)
+        {
+            throw new StorageException(String.format("Unable to persist block '%s'", block.getHeaderHash()), exception);
+        }
+
+        List<Sha256Hash> transactionIds = new ArrayList<>();
+
+        for (Transaction transaction : block.getTransactions())
+            transactionIds.add(transaction.getTransactionId());
+
+        return index(block, transactionIds, blockPointer, height, totalWork);
+    }
+
+    /**
+     * Indexes a block that is already in the block storage. The revert data, the block metadata and the
+     * transaction metadata of the block are created; the block itself is not written again.
+     *
+     * @param block          The block to index.
+     * @param transactionIds The ids of the transactions of the block, in the same order.
+     * @param blockPointer   The location of the block in the block storage.
+     * @param height         The height of this block.
+     * @param totalWork      The total amount of work on the chain up to this point.
+     *
+     * @return The newly created BlockMetadata.
+     */
+    @Override
+    public BlockMetadata index(
+            Block block,
+            List<Sha256Hash> transactionIds,
+            StoragePointer blockPointer,
+            long height,
+            BigInteger totalWork) throws StorageException
     {
         BlockMetadata metadata = new BlockMetadata();
 
         try
         {
-            byte[] serializedBlock = block.serialize();
-            byte[] revertData      = getRevertData(block, height);
+            byte[] revertData = getRevertData(block, height);
 
-            StoragePointer blockPointer = m_blockStorage.store(serializedBlock);
             StoragePointer revertPointer = m_revertsStorage.store(revertData);
 
             metadata.setHeader(block.getHeader());
@@ -117,18 +201,22 @@ public class StandardPersistenceService implements IPersistenceService
             metadata.setStatus((byte)0);
             metadata.setTotalWork(totalWork);
 
+            BlockMetadata parent = m_metadataProvider.getBlockMetadata(block.getHeader().getParentBlockHash());
+
+            if (parent != null)
+                metadata.setSkipHash(getAncestor(parent, BlockMetadata.getSkipHeight(height)).getHash());
+
             m_metadataProvider.addBlockMetadata(metadata);
+            m_metadataProvider.updateSegmentHeights(metadata);
 
             // Create and store the transaction metadata for this block.
             for (int i = 0; i < block.getTransactionsCount(); ++i)
             {
-                Transaction transaction = block.getTransaction(i);
-
                 TransactionMetadata transactionMetadata = new TransactionMetadata();
                 transactionMetadata.setBlockFile(blockPointer.segment);
                 transactionMetadata.setBlockPosition(blockPointer.offset);
                 transactionMetadata.setTransactionPosition(i);
-                transactionMetadata.setHash(transaction.getTransactionId());
+                transactionMetadata.setHash(transactionIds.get(i));
                 transactionMetadata.setBlockHash(block.getHeaderHash());
                 transactionMetadata.setBlockHeight(height);
                 transactionMetadata.setTimestamp(block.getHeader().getTimeStamp());
@@ -151,13 +239,36 @@ public class StandardPersistenceService implements IPersistenceService
     {
         BlockMetadata metadata = m_metadataProvider.getBlockMetadata(sha256Hash);
 
+        if (metadata.isPruned())
+            throw new StorageException(String.format("Block '%s' was pruned.", sha256Hash));
+
         StoragePointer pointer = new StoragePointer();
         pointer.segment = metadata.getBlockSegment();
         pointer.offset = metadata.getBlockOffset();
 
-        byte[] rawBlock = m_blockStorage.retrieve(pointer);
+        return new Block(m_blockStorage.retrieveBuffer(pointer));
+    }
 
-        return new Block(ByteBuffer.wrap(rawBlock));
+    /**
+     * Gets the serialized Block with the given hash, exactly as it is stored on disk.
+     *
+     * @param sha256Hash The block hash.
+     *
+     * @return The serialized block.
+     */
+    @Override
+    public byte[] getSerializedBlock(Sha256Hash sha256Hash) throws StorageException
+    {
+        BlockMetadata metadata = m_metadataProvider.getBlockMetadata(sha256Hash);
+
+        if (metadata.isPruned())
+            throw new StorageException(String.format("Block '%s' was pruned.", sha256Hash));
+
+        StoragePointer pointer = new StoragePointer();
+        pointer.segment = metadata.getBlockSegment();
+        pointer.offset = metadata.getBlockOffset();
+
+        return m_blockStorage.retrieve(pointer);
     }
 
     /**
@@ -195,13 +306,14 @@ public class StandardPersistenceService implements IPersistenceService
     {
         BlockMetadata metadata = m_metadataProvider.getBlockMetadata(sha256Hash);
 
+        if (metadata.isPruned())
+            throw new StorageException(String.format("The revert data of block '%s' was pruned.", sha256Hash));
+
         StoragePointer pointer = new StoragePointer();
         pointer.segment = metadata.getRevertSegment();
         pointer.offset  = metadata.getRevertOffset();
 
-        byte[] revertData = m_revertsStorage.retrieve(pointer);
-
-        ByteBuffer buffer = ByteBuffer.wrap(revertData);
+        ByteBuffer buffer = m_revertsStorage.retrieveBuffer(pointer);
 
         int transactionCount = buffer.getInt();
 
@@ -248,13 +360,14 @@ public class StandardPersistenceService implements IPersistenceService
     {
         TransactionMetadata metadata = m_metadataProvider.getTransactionMetadata(sha256Hash);
 
+        if (m_metadataProvider.getBlockMetadata(metadata.getBlockHash()).isPruned())
+            throw new StorageException(String.format("Block '%s' with transaction '%s' was pruned.", metadata.getBlockHash(), sha256Hash));
+
         StoragePointer pointer = new StoragePointer();
         pointer.segment = metadata.getBlockFile();
         pointer.offset = metadata.getBlockPosition();
 
-        byte[] rawBlock = m_blockStorage.retrieve(pointer);
-
-        Block block = new Block(ByteBuffer.wrap(rawBlock));
+        Block block = new Block(m_blockStorage.retrieveBuffer(pointer));
 
         return block.getTransaction(metadata.getTransactionPosition());
     }
@@ -282,6 +395,17 @@ public class StandardPersistenceService implements IPersistenceService
     {
         List<Transaction> result = new ArrayList<>();
 
+        if (m_metadataProvider.hasAddressIndex())
+        {
+            List<Sha256Hash> history = m_metadataProvider.getAddressHistory(address);
+
+            // The history is sorted by height; the newest transactions go first.
+            for (int i = history.size() - 1; i >= 0; --i)
+                result.add(getTransaction(history.get(i)));
+
+            return result;
+        }
+
         BlockMetadata cursor = getChainHead();
 
         while (!cursor.getHeader().getParentBlockHash().equals(new Sha256Hash()))
@@ -372,6 +496,22 @@ public class StandardPersistenceService implements IPersistenceService
         return m_metadataProvider.getUnspentOutputs();
     }
 
+    /**
+     * Opens a cursor over the committed unspent outputs, in the order of their outpoints. The cursor reads the set as
+     * it was when it was opened.
+     *
+     * @param transactionPrefix The first bytes of the ids of the transactions of the outputs; or null to read all
+     *                          the outputs.
+     * @param after             The outpoint the cursor starts after; or null to start from the first output.
+     *
+     * @return The cursor. It must be closed.
+     */
+    @Override
+    public UnspentOutputsCursor openUnspentOutputs(byte[] transactionPrefix, OutpointKey after) throws StorageException
+    {
+        return m_metadataProvider.openUnspentOutputs(transactionPrefix, after);
+    }
+
     /**
      * Removes the unspent output transaction from the metadata provider.
      *
@@ -430,10 +570,30 @@ public class StandardPersistenceService implements IPersistenceService
                     Sha256Hash transactionSha256Hash = input.getReferenceHash();
                     int  outputIndex     = input.getIndex();
 
-                    Transaction referencedTransaction = getTransaction(transactionSha256Hash);
+                    // The spent output is usually still in the unspent outputs set, that way we do not need to read
+                    // the block of the referenced transaction, which may have been pruned.
+                    UnspentTransactionOutput spentOutput = getUnspentOutput(transactionSha256Hash, outputIndex);
+
+                    if (spentOutput != null)
+                    {
+                        UnspentTransactionOutput unspentOutput = new UnspentTransactionOutput();
+                        unspentOutput.setBlockHeight(spentOutput.getBlockHeight());
+                        unspentOutput.setVersion(spentOutput.getVersion());
+                        unspentOutput.setIsCoinbase(spentOutput.isIsCoinbase());
+                        unspentOutput.setTransactionHash(transactionSha256Hash);
+                        unspentOutput.setIndex(outputIndex);
+                        unspentOutput.setOutput(spentOutput.getOutput());
+
+                        unspentTransactionOutputs.add(unspentOutput);
+                        continue;
+                    }
+
+                    // The restored output keeps the height of the block that created it; coinbase maturity depends on it.
+                    TransactionMetadata referencedMetadata    = getTransactionMetadata(transactionSha256Hash);
+                    Transaction         referencedTransaction = getTransaction(transactionSha256Hash);
 
                     UnspentTransactionOutput unspentOutput = new UnspentTransactionOutput();
-                    unspentOutput.setBlockHeight(height);
+                    unspentOutput.setBlockHeight(referencedMetadata.getBlockHeight());
                     unspentOutput.setVersion(referencedTransaction.getVersion());
                     unspentOutput.setIsCoinbase(referencedTransaction.isCoinbase());
                     unspentOutput.setTransactionHash(referencedTransaction.getTransactionId());
@@ -468,4 +628,497 @@ public class StandardPersistenceService implements IPersistenceService
     {
         m_listeners.add(listener);
     }
+
+    /**
+     * Starts a batch. All the metadata changes made until the batch is committed (block and transaction metadata,
+     * unspent outputs and the chain head) are written in a single atomic write.
+     */
+    @Override
+    public void beginBatch()
+    {
+        m_metadataProvider.beginBatch();
+    }
+
+    /**
+     * Writes all the metadata changes of the current batch.
+     */
+    @Override
+    public void commitBatch() throws StorageException
+    {
+        m_metadataProvider.commitBatch();
+    }
+
+    /**
+     * Discards all the metadata changes of the current batch. If there is no batch in progress, this method does
+     * nothing.
+     */
+    @Override
+    public void discardBatch()
+    {
+        m_metadataProvider.discardBatch();
+    }
+
+    /**
+     * Adds the transactions of a block to the history of all the addresses they involve. Does nothing if the address
+     * index is not available.
+     *
+     * The addresses the transactions spend from are taken from the revert data of the block, so the block must
+     * already be persisted.
+     *
+     * @param block  The block.
+     * @param height The height of the block.
+     */
+    @Override
+    public void addAddressHistory(Block block, long height) throws StorageException
+    {
+        if (!m_metadataProvider.hasAddressIndex())
+            return;
+
+        Iterator<UnspentTransactionOutput> spentOutputs = getSpentOutputs(block.getHeaderHash()).iterator();
+
+        for (Transaction transaction : block.getTransactions())
+        {
+            for (ByteBuffer publicKeyHash : getAddresses(transaction, spentOutputs))
+                m_metadataProvider.addAddressHistory(publicKeyHash.array(), height, transaction.getTransactionId());
+        }
+    }
+
+    /**
+     * Removes the transactions of a block from the history of all the addresses they involve. Does nothing if the
+     * address index is not available.
+     *
+     * @param block  The block.
+     * @param height The height of the block.
+     */
+    @Override
+    public void removeAddressHistory(Block block, long height) throws StorageException
+    {
+        if (!m_metadataProvider.hasAddressIndex())
+            return;
+
+        Iterator<UnspentTransactionOutput> spentOutputs = getSpentOutputs(block.getHeaderHash()).iterator();
+
+        for (Transaction transaction : block.getTransactions())
+        {
+            for (ByteBuffer publicKeyHash : getAddresses(transaction, spentOutputs))
+                m_metadataProvider.removeAddressHistory(publicKeyHash.array(), height, transaction.getTransactionId());
+        }
+    }
+
+    /**
+     * Gets the hash of the main chain block at the given height.
+     *
+     * @param height The height of the block.
+     *
+     * @return The hash of the block; or null if the main chain is not that high.
+     */
+    @Override
+    public Sha256Hash getMainChainHash(long height)
+    {
+        return m_metadataProvider.getMainChainHash(height);
+    }
+
+    /**
+     * Gets the hashes of a range of main chain blocks.
+     *
+     * @param height The height of the first block.
+     * @param count  The maximum amount of hashes to return.
+     *
+     * @return The hashes of the blocks, in ascending order of height. The list is shorter than requested if the
+     * main chain ends before the end of the range.
+     */
+    @Override
+    public List<Sha256Hash> getMainChainHashes(long height, int count)
+    {
+        return m_metadataProvider.getMainChainHashes(height, count);
+    }
+
+    /**
+     * Sets the hash of the main chain block at the given height.
+     *
+     * @param height The height of the block.
+     * @param hash   The hash of the block.
+     */
+    @Override
+    public void setMainChainHash(long height, Sha256Hash hash) throws StorageException
+    {
+        m_metadataProvider.setMainChainHash(height, hash);
+    }
+
+    /**
+     * Removes the main chain block at the given height. This happens when a block is disconnected from the main chain.
+     *
+     * @param height The height of the block.
+     */
+    @Override
+    public void removeMainChainHash(long height) throws StorageException
+    {
+        m_metadataProvider.removeMainChainHash(height);
+    }
+
+    /**
+     * Gets the ancestor of a block at the given height.
+     *
+     * Once the walk reaches the main chain, the ancestor is taken from the height index; until then, the skip
+     * pointers of the blocks are followed, so the ancestor is found in O(log n) steps.
+     *
+     * @param block  The block.
+     * @param height The height of the ancestor.
+     *
+     * @return The ancestor; or null if the height is not in the range of the chain of the block.
+     */
+    @Override
+    public BlockMetadata getAncestor(BlockMetadata block, long height)
+    {
+        if (height < 0 || height > block.getHeight())
+            return null;
+
+        BlockMetadata cursor = block;
+
+        while (cursor != null && cursor.getHeight() > height)
+        {
+            if (cursor.getHash().equals(m_metadataProvider.getMainChainHash(cursor.getHeight())))
+                return m_metadataProvider.getBlockMetadata(m_metadataProvider.getMainChainHash(height));
+
+            long skipHeight         = BlockMetadata.getSkipHeight(cursor.getHeight());
+            long previousSkipHeight = BlockMetadata.getSkipHeight(cursor.getHeight() - 1);
+
+            // Only take the skip pointer if it does not overshoot, or if the parent's skip pointer would not get us
+            // closer to the target.
+            boolean takeSkip = cursor.getSkipHash() != null &&
+                    (skipHeight == height ||
+                    (skipHeight > height && !(previousSkipHeight < skipHeight - 2 && previousSkipHeight >= height)));
+
+            cursor = m_metadataProvider.getBlockMetadata(
+                    takeSkip ? cursor.getSkipHash() : cursor.getHeader().getParentBlockHash());
+        }
+
+        return cursor;
+    }
+
+    /**
+     * Gets whether this service deletes the data of old blocks.
+     *
+     * @return true if pruning is enabled; otherwise; false.
+     */
+    @Override
+    public boolean isPruningEnabled()
+    {
+        return m_pruneDepth > 0;
+    }
+
+    /**
+     * Deletes the block and revert segments which only contain blocks deeper than the prune depth. The metadata of
+     * the blocks is kept, but the blocks stored in the deleted segments, on the main chain or not, are marked as
+     * pruned so we do not try to read them. This method does nothing if pruning is not enabled.
+     *
+     * This method must not be called while a batch is in progress.
+     */
+    @Override
+    public void prune() throws StorageException
+    {
+        BlockMetadata head = getChainHead();
+
+        if (!isPruningEnabled() || head == null || head.getHeight() <= m_pruneDepth)
+            return;
+
+        long pruneHeight = head.getHeight() - m_pruneDepth;
+
+        if (m_nextBlockSegment < 0)
+        {
+            m_nextBlockSegment  = getFirstSegment(m_blockStorage);
+            m_nextRevertSegment = getFirstSegment(m_revertsStorage);
+
+            // Databases created before the segment heights were tracked need them computed once.
+            if (m_nextBlockSegment < m_blockStorage.getCurrentSegment() &&
+                    m_metadataProvider.getBlockSegmentHeight(m_nextBlockSegment) < 0)
+                computeSegmentHeights(head);
+        }
+
+        List<Integer> blockSegments = new ArrayList<>();
+        long          prunedHeight  = -1;
+
+        for (int segment = m_nextBlockSegment; segment < m_blockStorage.getCurrentSegment(); ++segment)
+        {
+            long height = m_metadataProvider.getBlockSegmentHeight(segment);
+
+            if (height < 0 || height > pruneHeight)
+                break;
+
+            blockSegments.add(segment);
+            prunedHeight = Math.max(prunedHeight, height);
+        }
+
+        List<Integer> revertSegments = new ArrayList<>();
+
+        for (int segment = m_nextRevertSegment; segment < m_revertsStorage.getCurrentSegment(); ++segment)
+        {
+            long height = m_metadataProvider.getRevertSegmentHeight(segment);
+
+            if (height < 0 || height > pruneHeight)
+                break;
+
+            revertSegments.add(segment);
+        }
+
+        if (blockSegments.isEmpty() && revertSegments.isEmpty())
+            return;
+
+        markPruned(new HashSet<>(blockSegments));
+
+        // The blocks must be marked as pruned on disk before we delete their data.
+        m_metadataProvider.flush();
+
+        m_nextBlockSegment  = deleteSegments(m_blockStorage, blockSegments, m_nextBlockSegment);
+        m_nextRevertSegment = deleteSegments(m_revertsStorage, revertSegments, m_nextRevertSegment);
+
+        s_logger.info("Pruned {} block segments and {} revert segments below height {}.",
+                blockSegments.size(), revertSegments.size(), prunedHeight + 1);
+    }
+
+    /**
+     * Gets the summary of the unspent outputs set (amount of outputs, total amount and commitment) at the last
+     * committed chain head.
+     *
+     * @return The summary.
+     */
+    @Override
+    public UnspentOutputSetInfo getUnspentOutputSetInfo()
+    {
+        return m_metadataProvider.getUnspentOutputSetInfo();
+    }
+
+    /**
+     * Gets the statistics of the filter that keeps lookups of missing keys from reaching the database.
+     *
+     * @return The key filter statistics.
+     */
+    @Override
+    public KeyFilterInfo getKeyFilterInfo()
+    {
+        return m_metadataProvider.getKeyFilterInfo();
+    }
+
+    /**
+     * Writes a snapshot of the unspent outputs at the current chain head to the given file.
+     *
+     * The path comes from RPC clients; so existing files are never overwritten. The snapshot is written to a new
+     * temporary file next to it, which is only renamed to the given path once the whole snapshot is on disk.
+     *
+     * @param path The path of the snapshot file. The file must not exist.
+     *
+     * @return The summary of the unspent outputs in the snapshot, taken at its chain head.
+     */
+    @Override
+    public UnspentOutputSetInfo dumpUnspentOutputs(Path path) throws StorageException
+    {
+        if (Files.exists(path))
+            throw new StorageException(String.format("The snapshot file '%s' already exists.", path));
+
+        Path                 temporary = path.resolveSibling(path.getFileName() + SNAPSHOT_TEMPORARY_SUFFIX);
+        UnspentOutputSetInfo info;
+        boolean              isCreated = false;
+        boolean              isMoved   = false;
+
+        try
+        {
+            try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE))
+            {
+                isCreated = true;
+
+                OutputStream stream = new BufferedOutputStream(Channels.newOutputStream(channel));
+
+                info = m_metadataProvider.dumpUnspentOutputs(stream);
+                stream.flush();
+                channel.force(true);
+            }
+
+            // Fails if the file was created in the meantime.
+            Files.move(temporary, path);
+            isMoved = true;
+        }
+        catch (IOException exception)
+        {
+            throw new StorageException(String.format("Unable to write the snapshot file '%s'.", path), exception);
+        }
+        finally
+        {
+            if (isCreated && !isMoved)
+                deleteFile(temporary);
+        }
+
+        return info;
+    }
+
+    /**
+     * Deletes the given segments in order. A segment that can not be deleted yet (on Windows a segment can not be
+     * deleted while it is still memory mapped) stops the deletion; it is tried again the next time we prune.
+     *
+     * @param storage  The storage.
+     * @param segments The segments to delete.
+     * @param next     The first segment that was not deleted yet.
+     *
+     * @return The first segment that is still not deleted.
+     */
+    private static int deleteSegments(IContiguousStorage storage, List<Integer> segments, int next)
+    {
+        for (int segment : segments)
+        {
+            try
+            {
+                storage.deleteSegment(segment);
+            }
+            catch (StorageException exception)
+            {
+                s_logger.warn("Unable to delete segment {}; it will be deleted later.", segment, exception);
+                break;
+            }
+
+            next = segment + 1;
+        }
+
+        return next;
+    }
+
+    /**
+     * Deletes the given file, if it exists. Failures are only logged.
+     *
+     * @param path The path of the file.
+     */
+    private static void deleteFile(Path path)
+    {
+        try
+        {
+            Files.deleteIfExists(path);
+        }
+        catch (IOException exception)
+        {
+            s_logger.warn("Unable to delete the file '{}'.", path, exception);
+        }
+    }
+
+    /**
+     * Loads a snapshot of the unspent outputs from the given file. The blocks up to the snapshot chain head are not
+     * downloaded; so they are marked as pruned.
+     *
+     * @param path       The path of the snapshot file.
+     * @param params     The parameters of the network the snapshot must belong to.
+     * @param commitment The expected commitment to the unspent outputs of the snapshot; or null to use the one the
+     *                   network parameters know for the height of the snapshot.
+     *
+     * @return The new chain head.
+     */
+    @Override
+    public BlockMetadata loadUnspentOutputs(Path path, NetworkParameters params, Sha256Hash commitment)
+            throws StorageException
+    {
+        BlockMetadata head;
+
+        try (InputStream stream = new BufferedInputStream(Files.newInputStream(path)))
+        {
+            head = m_metadataProvider.loadUnspentOutputs(stream, params, commitment);
+        }
+        catch (IOException exception)
+        {
+            throw new StorageException(String.format("Unable to read the snapshot file '%s'.", path), exception);
+        }
+
+        for (IChainHeadUpdateListener listener : m_listeners)
+            listener.onChainHeadChanged(head.getHeader());
+
+        return head;
+    }
+
+    /**
+     * Gets the oldest segment still present in the given storage.
+     *
+     * @param storage The storage.
+     *
+     * @return The segment number.
+     */
+    private static int getFirstSegment(IContiguousStorage storage)
+    {
+        int segment = 0;
+
+        while (segment < storage.getCurrentSegment() && !storage.hasSegment(segment))
+            ++segment;
+
+        return segment;
+    }
+
+    /**
+     * Computes the highest block height of each segment from the blocks in the main chain.
+     *
+     * @param head The current chain head.
+     */
+    private void computeSegmentHeights(BlockMetadata head) throws StorageException
+    {
+        s_logger.info("Computing the block heights of the storage segments...");
+
+        for (long height = 0; height <= head.getHeight(); ++height)
+        {
+            BlockMetadata metadata = getBlockMetadata(getMainChainHash(height));
+
+            // Blocks loaded from an unspent outputs snapshot were never stored.
+            if (!metadata.isPruned())
+                m_metadataProvider.updateSegmentHeights(metadata);
+        }
+    }
+
+    /**
+     * Marks the blocks stored in the given segments as pruned. Side chain blocks are marked too, since their data
+     * is deleted along with the main chain blocks stored next to them.
+     *
+     * @param segments The deleted block segments.
+     */
+    private void markPruned(Set<Integer> segments) throws StorageException
+    {
+        for (BlockMetadata metadata : m_metadataProvider.getBlocksInSegments(segments))
+        {
+            metadata.setStatus((byte)(metadata.getStatus() | BlockMetadata.STATUS_PRUNED));
+            m_metadataProvider.addBlockMetadata(metadata);
+        }
+    }
+
+    /**
+     * Gets the public key hashes of all the addresses a transaction pays to or spends from.
+     *
+     * The addresses a transaction spends from are the locking parameters of the outputs it spends. The revert data
+     * of a block lists those outputs in the same order as the inputs of its transactions, so the outputs are
+     * consumed from the given iterator, one per input.
+     *
+     * @param transaction  The transaction.
+     * @param spentOutputs The outputs spent by the block, positioned at the first output this transaction spends.
+     *
+     * @return The set of public key hashes.
+     */
+    private Set<ByteBuffer> getAddresses(Transaction transaction, Iterator<UnspentTransactionOutput> spentOutputs)
+            throws StorageException
+    {
+        Set<ByteBuffer> addresses = new LinkedHashSet<>();
+
+        for (TransactionOutput output : transaction.getOutputs())
+            addresses.add(ByteBuffer.wrap(output.getLockingParameters()));
+
+        // Coinbase transactions don't spend any outputs, and have no entries in the revert data.
+        if (transaction.isCoinbase())
+            return addresses;
+
+        for (TransactionInput input : transaction.getInputs())
+        {
+            if (!spentOutputs.hasNext())
+                throw new StorageException(String.format(
+                        "The revert data has no entry for input %s:%s.", input.getReferenceHash(), input.getIndex()));
+
+            UnspentTransactionOutput spentOutput = spentOutputs.next();
+
+            if (!spentOutput.getTransactionHash().equals(input.getReferenceHash()) || spentOutput.getIndex() != input.getIndex())
+                throw new StorageException(String.format(
+                        "The revert data does not match input %s:%s.", input.getReferenceHash(), input.getIndex()));
+
+            addresses.add(ByteBuffer.wrap(spentOutput.getOutput().getLockingParameters()));
+        }
+
+        return addresses;
+    }
 }
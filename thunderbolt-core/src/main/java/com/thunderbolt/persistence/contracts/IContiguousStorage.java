@@ -29,6 +29,7 @@ import com.thunderbolt.persistence.storage.StorageException;
 import com.thunderbolt.persistence.storage.StoragePointer;
 
 import java.nio.ByteBuffer;
+import java.util.List;
 
 /* IMPLEMENTATION ************************************************************/
 
@@ -70,4 +71,71 @@ public interface IContiguousStorage
      * @return The data.
      */
     byte[] retrieve(StoragePointer pointer) throws StorageException;
+
+    /**
+     * Retrieves a read only view of the data located at the given storage pointer, without copying it.
+     *
+     * @param pointer The pointer marking the start of the data entry.
+     *
+     * @return A read only buffer positioned at the start of the data.
+     */
+    ByteBuffer retrieveBuffer(StoragePointer pointer) throws StorageException;
+
+    /**
+     * Gets the segment new entries are currently written to.
+     *
+     * @return The segment number.
+     */
+    int getCurrentSegment();
+
+    /**
+     * Gets the position right after the last entry stored. The entries stored from now on are placed after it.
+     *
+     * @return The end of the stored data.
+     */
+    StoragePointer getEnd();
+
+    /**
+     * Discards all the entries stored after the given position; the next entry is stored at that position. Does
+     * nothing if the position is at or after the end of the stored data.
+     *
+     * @param end The new end of the stored data; a position returned by getEnd.
+     */
+    void truncate(StoragePointer end) throws StorageException;
+
+    /**
+     * Gets the pointers to all the entries of a segment, in the order they were written. The scan stops at the first
+     * invalid or corrupted entry.
+     *
+     * @param segment The segment number.
+     *
+     * @return The pointers to the entries.
+     */
+    List<StoragePointer> getEntries(int segment) throws StorageException;
+
+    /**
+     * Gets whether the given segment is present in the storage.
+     *
+     * @param segment The segment number.
+     *
+     * @return true if the segment exists; otherwise; false.
+     */
+    boolean hasSegment(int segment);
+
+    /**
+     * Deletes a segment and all the entries stored in it. The segment new entries are written to can not be deleted.
+     *
+     * @param segment The segment number.
+     */
+    void deleteSegment(int segment) throws StorageException;
+
+    /**
+     * Forces all the pending writes to the storage device.
+     */
+    void flush() throws StorageException;
+
+    /**
+     * Flushes the pending writes and releases all the resources held by this storage.
+     */
+    void close() throws StorageException;
 }
@@ -25,14 +25,22 @@ package com.thunderbolt.persistence.contracts;
 
 /* IMPORTS *******************************************************************/
 
+import com.thunderbolt.network.NetworkParameters;
+import com.thunderbolt.persistence.storage.OutpointKey;
 import com.thunderbolt.persistence.storage.StorageException;
+import com.thunderbolt.persistence.storage.UnspentOutputsCursor;
 import com.thunderbolt.persistence.structures.BlockMetadata;
+import com.thunderbolt.persistence.structures.KeyFilterInfo;
 import com.thunderbolt.persistence.structures.TransactionMetadata;
+import com.thunderbolt.persistence.structures.UnspentOutputSetInfo;
 import com.thunderbolt.persistence.structures.UnspentTransactionOutput;
 import com.thunderbolt.security.Sha256Hash;
 import com.thunderbolt.wallet.Address;
 
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.List;
+import java.util.Set;
 
 /* IMPLEMENTATION ************************************************************/
 
@@ -126,6 +134,18 @@ public interface IMetadataProvider
      */
     List<UnspentTransactionOutput> getUnspentOutputs();
 
+    /**
+     * Opens a cursor over the committed unspent outputs, in the order of their outpoints. The cursor reads the set as
+     * it was when it was opened.
+     *
+     * @param transactionPrefix The first bytes of the ids of the transactions of the outputs; or null to read all
+     *                          the outputs.
+     * @param after             The outpoint the cursor starts after; or null to start from the first output.
+     *
+     * @return The cursor. It must be closed.
+     */
+    UnspentOutputsCursor openUnspentOutputs(byte[] transactionPrefix, OutpointKey after) throws StorageException;
+
     /**
      * Gets all the unspent outputs of a given public key.
      *
@@ -141,4 +161,176 @@ public interface IMetadataProvider
      * @param index The index of the output inside the transaction.
      */
     boolean removeUnspentOutput(Sha256Hash id, int index) throws StorageException;
+
+    /**
+     * Gets whether this provider maintains the address index.
+     *
+     * @return true if the address index is available; otherwise; false.
+     */
+    boolean hasAddressIndex();
+
+    /**
+     * Adds a transaction to the history of an address. Does nothing if the address index is not available.
+     *
+     * @param publicKeyHash The public key hash of the address.
+     * @param height        The height of the block that contains the transaction.
+     * @param id            The id of the transaction.
+     */
+    void addAddressHistory(byte[] publicKeyHash, long height, Sha256Hash id) throws StorageException;
+
+    /**
+     * Removes a transaction from the history of an address. Does nothing if the address index is not available.
+     *
+     * @param publicKeyHash The public key hash of the address.
+     * @param height        The height of the block that contains the transaction.
+     * @param id            The id of the transaction.
+     */
+    void removeAddressHistory(byte[] publicKeyHash, long height, Sha256Hash id) throws StorageException;
+
+    /**
+     * Gets the ids of all the transactions of an address, sorted by the height of their blocks.
+     *
+     * @param address The address.
+     *
+     * @return The transaction ids; or an empty list if the address index is not available.
+     */
+    List<Sha256Hash> getAddressHistory(Address address);
+
+    /**
+     * Gets the hash of the main chain block at the given height.
+     *
+     * @param height The height of the block.
+     *
+     * @return The hash of the block; or null if the main chain is not that high.
+     */
+    Sha256Hash getMainChainHash(long height);
+
+    /**
+     * Gets the hashes of a range of main chain blocks.
+     *
+     * @param height The height of the first block.
+     * @param count  The maximum amount of hashes to return.
+     *
+     * @return The hashes of the blocks, in ascending order of height. The list is shorter than requested if the
+     * main chain ends before the end of the range.
+     */
+    List<Sha256Hash> getMainChainHashes(long height, int count);
+
+    /**
+     * Sets the hash of the main chain block at the given height.
+     *
+     * @param height The height of the block.
+     * @param hash   The hash of the block.
+     */
+    void setMainChainHash(long height, Sha256Hash hash) throws StorageException;
+
+    /**
+     * Removes the main chain block at the given height. This happens when a block is disconnected from the main chain.
+     *
+     * @param height The height of the block.
+     */
+    void removeMainChainHash(long height) throws StorageException;
+
+    /**
+     * Updates the highest block height stored in the block and revert segments of the given block.
+     *
+     * @param metadata The metadata of the block.
+     */
+    void updateSegmentHeights(BlockMetadata metadata) throws StorageException;
+
+    /**
+     * Gets the highest height of the blocks stored in the given block segment.
+     *
+     * @param segment The block segment.
+     *
+     * @return The height; or -1 if it is not known.
+     */
+    long getBlockSegmentHeight(int segment);
+
+    /**
+     * Gets the highest height of the blocks which revert data is stored in the given revert segment.
+     *
+     * @param segment The revert segment.
+     *
+     * @return The height; or -1 if it is not known.
+     */
+    long getRevertSegmentHeight(int segment);
+
+    /**
+     * Gets the metadata of all the blocks, on the main chain or not, which data is stored in the given block segments
+     * and that are not marked as pruned yet.
+     *
+     * @param segments The block segments.
+     *
+     * @return The metadata of the blocks.
+     */
+    List<BlockMetadata> getBlocksInSegments(Set<Integer> segments) throws StorageException;
+
+    /**
+     * Starts a batch. All the changes made until the batch is committed are written to the database in a single
+     * atomic write. The changes of the batch are visible to the readers of this provider.
+     */
+    void beginBatch();
+
+    /**
+     * Writes all the changes of the current batch to the database.
+     */
+    void commitBatch() throws StorageException;
+
+    /**
+     * Discards all the changes of the current batch. If there is no batch in progress, this method does nothing.
+     */
+    void discardBatch();
+
+    /**
+     * Writes all the committed changes that are still kept in memory to the disk.
+     */
+    void flush() throws StorageException;
+
+    /**
+     * Sets the storages the metadata points into. Their pending writes are forced to the storage device before each
+     * write of the metadata, so the database never references entries that could still be lost.
+     *
+     * The entries stored after the last write of the metadata (left by a crash) are discarded from the storages.
+     *
+     * @param storages The storages.
+     */
+    void setReferencedStorages(IContiguousStorage... storages) throws StorageException;
+
+    /**
+     * Gets the summary of the unspent outputs set (amount of outputs, total amount and commitment) at the last
+     * committed chain head. The summary is maintained as outputs are added and removed.
+     *
+     * @return The summary.
+     */
+    UnspentOutputSetInfo getUnspentOutputSetInfo();
+
+    /**
+     * Gets the statistics of the filter that keeps lookups of missing keys from reaching the database.
+     *
+     * @return The key filter statistics.
+     */
+    KeyFilterInfo getKeyFilterInfo();
+
+    /**
+     * Writes a snapshot of the unspent outputs at the current chain head, together with the main chain headers.
+     *
+     * @param stream The stream to write the snapshot to.
+     *
+     * @return The summary of the unspent outputs in the snapshot, taken at its chain head.
+     */
+    UnspentOutputSetInfo dumpUnspentOutputs(OutputStream stream) throws StorageException;
+
+    /**
+     * Loads a snapshot of the unspent outputs into an empty database. The snapshot headers become the main chain.
+     *
+     * @param stream     The stream to read the snapshot from.
+     * @param params     The parameters of the network the snapshot must belong to.
+     * @param commitment The expected commitment to the unspent outputs of the snapshot; or null to use the one the
+     *                   network parameters know for the height of the snapshot.
+     *
+     * @return The new chain head.
+     */
+    BlockMetadata loadUnspentOutputs(InputStream stream, NetworkParameters params, Sha256Hash commitment)
+            throws StorageException;
 }
@@ -26,16 +26,23 @@ package com.thunderbolt.persistence.contracts;
 /* IMPORTS *******************************************************************/
 
 import com.thunderbolt.blockchain.Block;
+import com.thunderbolt.network.NetworkParameters;
+import com.thunderbolt.persistence.storage.OutpointKey;
 import com.thunderbolt.persistence.storage.StorageException;
+import com.thunderbolt.persistence.storage.StoragePointer;
+import com.thunderbolt.persistence.storage.UnspentOutputsCursor;
 import com.thunderbolt.persistence.structures.BlockMetadata;
+import com.thunderbolt.persistence.structures.KeyFilterInfo;
 import com.thunderbolt.persistence.structures.NetworkAddressMetadata;
 import com.thunderbolt.persistence.structures.TransactionMetadata;
+import com.thunderbolt.persistence.structures.UnspentOutputSetInfo;
 import com.thunderbolt.persistence.structures.UnspentTransactionOutput;
 import com.thunderbolt.security.Sha256Hash;
 import com.thunderbolt.transaction.Transaction;
 import com.thunderbolt.wallet.Address;
 
 import java.math.BigInteger;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -55,6 +62,25 @@ public interface IPersistenceService
      */
     BlockMetadata persist(Block block, long height, BigInteger totalWork) throws StorageException;
 
+    /**
+     * Indexes a block that is already in the block storage. The revert data, the block metadata and the
+     * transaction metadata of the block are created; the block itself is not written again.
+     *
+     * @param block          The block to index.
+     * @param transactionIds The ids of the transactions of the block, in the same order.
+     * @param blockPointer   The location of the block in the block storage.
+     * @param height         The height of this block.
+     * @param totalWork      The total amount of work on the chain up to this point.
+     *
+     * @return The newly created BlockMetadata.
+     */
+    BlockMetadata index(
+            Block block,
+            List<Sha256Hash> transactionIds,
+            StoragePointer blockPointer,
+            long height,
+            BigInteger totalWork) throws StorageException;
+
     /**
      * Gets the Block with the given hash.
      *
@@ -64,6 +90,15 @@ public interface IPersistenceService
      */
     Block getBlock(Sha256Hash sha256Hash) throws StorageException;
 
+    /**
+     * Gets the serialized Block with the given hash, exactly as it is stored on disk.
+     *
+     * @param sha256Hash The block hash.
+     *
+     * @return The serialized block.
+     */
+    byte[] getSerializedBlock(Sha256Hash sha256Hash) throws StorageException;
+
     /**
      * Gets the Block metadata with the given hash.
      *
@@ -166,6 +201,18 @@ public interface IPersistenceService
      */
     List<UnspentTransactionOutput> getUnspentOutputs();
 
+    /**
+     * Opens a cursor over the committed unspent outputs, in the order of their outpoints. The cursor reads the set as
+     * it was when it was opened.
+     *
+     * @param transactionPrefix The first bytes of the ids of the transactions of the outputs; or null to read all
+     *                          the outputs.
+     * @param after             The outpoint the cursor starts after; or null to start from the first output.
+     *
+     * @return The cursor. It must be closed.
+     */
+    UnspentOutputsCursor openUnspentOutputs(byte[] transactionPrefix, OutpointKey after) throws StorageException;
+
     /**
      * Adds the given unspent output to the database.
      *
@@ -203,4 +250,138 @@ public interface IPersistenceService
      * @param listener The new listener to be added.
      */
     void addChainHeadUpdateListener(IChainHeadUpdateListener listener);
+
+    /**
+     * Adds the transactions of a block to the history of all the addresses they involve. Does nothing if the address
+     * index is not available.
+     *
+     * The addresses the transactions spend from are taken from the revert data of the block, so the block must
+     * already be persisted.
+     *
+     * @param block  The block.
+     * @param height The height of the block.
+     */
+    void addAddressHistory(Block block, long height) throws StorageException;
+
+    /**
+     * Removes the transactions of a block from the history of all the addresses they involve. Does nothing if the
+     * address index is not available.
+     *
+     * @param block  The block.
+     * @param height The height of the block.
+     */
+    void removeAddressHistory(Block block, long height) throws StorageException;
+
+    /**
+     * Gets the hash of the main chain block at the given height.
+     *
+     * @param height The height of the block.
+     *
+     * @return The hash of the block; or null if the main chain is not that high.
+     */
+    Sha256Hash getMainChainHash(long height);
+
+    /**
+     * Gets the hashes of a range of main chain blocks.
+     *
+     * @param height The height of the first block.
+     * @param count  The maximum amount of hashes to return.
+     *
+     * @return The hashes of the blocks, in ascending order of height. The list is shorter than requested if the
+     * main chain ends before the end of the range.
+     */
+    List<Sha256Hash> getMainChainHashes(long height, int count);
+
+    /**
+     * Sets the hash of the main chain block at the given height.
+     *
+     * @param height The height of the block.
+     * @param hash   The hash of the block.
+     */
+    void setMainChainHash(long height, Sha256Hash hash) throws StorageException;
+
+    /**
+     * Removes the main chain block at the given height. This happens when a block is disconnected from the main chain.
+     *
+     * @param height The height of the block.
+     */
+    void removeMainChainHash(long height) throws StorageException;
+
+    /**
+     * Gets the ancestor of a block at the given height.
+     *
+     * @param block  The block.
+     * @param height The height of the ancestor.
+     *
+     * @return The ancestor; or null if the height is not in the range of the chain of the block.
+     */
+    BlockMetadata getAncestor(BlockMetadata block, long height);
+
+    /**
+     * Starts a batch. All the metadata changes made until the batch is committed (block and transaction metadata,
+     * unspent outputs and the chain head) are written in a single atomic write.
+     */
+    void beginBatch();
+
+    /**
+     * Writes all the metadata changes of the current batch.
+     */
+    void commitBatch() throws StorageException;
+
+    /**
+     * Discards all the metadata changes of the current batch. If there is no batch in progress, this method does
+     * nothing.
+     */
+    void discardBatch();
+
+    /**
+     * Gets whether this service deletes the data of old blocks.
+     *
+     * @return true if pruning is enabled; otherwise; false.
+     */
+    boolean isPruningEnabled();
+
+    /**
+     * Deletes the data of the blocks deeper than the prune depth. This method does nothing if pruning is not enabled.
+     *
+     * This method must not be called while a batch is in progress.
+     */
+    void prune() throws StorageException;
+
+    /**
+     * Gets the summary of the unspent outputs set (amount of outputs, total amount and commitment) at the last
+     * committed chain head.
+     *
+     * @return The summary.
+     */
+    UnspentOutputSetInfo getUnspentOutputSetInfo();
+
+    /**
+     * Gets the statistics of the filter that keeps lookups of missing keys from reaching the database.
+     *
+     * @return The key filter statistics.
+     */
+    KeyFilterInfo getKeyFilterInfo();
+
+    /**
+     * Writes a snapshot of the unspent outputs at the current chain head to the given file.
+     *
+     * @param path The path of the snapshot file.
+     *
+     * @return The summary of the unspent outputs in the snapshot, taken at its chain head.
+     */
+    UnspentOutputSetInfo dumpUnspentOutputs(Path path) throws StorageException;
+
+    /**
+     * Loads a snapshot of the unspent outputs from the given file. This can only be done on an empty database.
+     *
+     * @param path       The path of the snapshot file.
+     * @param params     The parameters of the network the snapshot must belong to.
+     * @param commitment The expected commitment to the unspent outputs of the snapshot; or null to use the one the
+     *                   network parameters know for the height of the snapshot.
+     *
+     * @return The new chain head.
+     */
+    BlockMetadata loadUnspentOutputs(Path path, NetworkParameters params, Sha256Hash commitment)
+            throws StorageException;
 }
@@ -0,0 +1,232 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2018 Angel Castillo.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.thunderbolt.persistence.storage;
+
+/* IMPORTS *******************************************************************/
+
+import com.thunderbolt.persistence.structures.UnspentTransactionOutput;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/* IMPLEMENTATION ************************************************************/
+
+/**
+ * In-memory layer of changes over a view of the unspent outputs (the coins). Each entry is either an unspent output
+ * added in this layer, or a marker of an output spent in this layer.
+ *
+ * An entry is fresh when the view below this layer does not have the output. When a fresh output is spent, the entry
+ * is simply dropped; so outputs created and spent inside the same layer never reach the view below.
+ */
+public class CoinsViewCache
+{
+    // Constants
+    private static final int ENTRY_OVERHEAD = 160; // Approximate size in bytes of the entry and the output objects.
+
+    // Instance fields
+    private final HashMap<OutpointKey, Coin> m_coins = new HashMap<>();
+    private long                             m_size;
+
+    /**
+     * Cache entry. A null output means the output was spent.
+     */
+    private static class Coin
+    {
+        UnspentTransactionOutput output;
+        boolean                  fresh;
+    }
+
+    /**
+     * Gets whether this layer has an entry (unspent or spent) for the given output.
+     *
+     * @param key The outpoint of the output.
+     *
+     * @return true if this layer knows the state of the output; otherwise; false.
+     */
+    public boolean contains(OutpointKey key)
+    {
+        return m_coins.containsKey(key);
+    }
+
+    /**
+     * Gets the unspent output with the given key.
+     *
+     * @param key The outpoint of the output.
+     *
+     * @return The unspent output; or null if the output was spent or this layer has no entry for it.
+     */
+    public UnspentTransactionOutput get(OutpointKey key)
+    {
+        Coin coin = m_coins.get(key);
+
+        return coin == null ? null : coin.output;
+    }
+
+    /**
+     * Adds an unspent output to this layer.
+     *
+     * @param key    The outpoint of the output.
+     * @param output The unspent output.
+     */
+    public void add(OutpointKey key, UnspentTransactionOutput output)
+    {
+        Coin coin = m_coins.get(key);
+
+        if (coin == null)
+        {
+            // An output that is being created can not be unspent in the view below.
+            coin = new Coin();
+            coin.fresh = true;
+
+            m_coins.put(key, coin);
+            m_size += ENTRY_OVERHEAD;
+        }
+        else if (coin.output != null)
+        {
+            m_size -= getWeight(coin.output);
+        }
+
+        coin.output = output;
+        m_size += getWeight(output);
+    }
+
+    /**
+     * Marks an output as spent in this layer.
+     *
+     * @param key The outpoint of the output.
+     */
+    public void remove(OutpointKey key)
+    {
+        Coin coin = m_coins.get(key);
+
+        if (coin == null)
+        {
+            coin = new Coin();
+            coin.fresh = false;
+
+            m_coins.put(key, coin);
+            m_size += ENTRY_OVERHEAD;
+            return;
+        }
+
+        if (coin.output != null)
+            m_size -= getWeight(coin.output);
+
+        coin.output = null;
+
+        // The view below never saw this output; there is nothing to delete there.
+        if (coin.fresh)
+        {
+            m_coins.remove(key);
+            m_size -= ENTRY_OVERHEAD;
+        }
+    }
+
+    /**
+     * Merges all the changes of this layer into the given layer, and clears this layer.
+     *
+     * @param parent The layer below this one.
+     */
+    public void writeTo(CoinsViewCache parent)
+    {
+        for (Map.Entry<OutpointKey, Coin> entry : m_coins.entrySet())
+        {
+            Coin coin       = entry.getValue();
+            Coin parentCoin = parent.m_coins.get(entry.getKey());
+
+            if (parentCoin == null)
+            {
+                // The entry keeps its fresh flag; the view below the parent is the same one this layer saw.
+                parent.m_coins.put(entry.getKey(), coin);
+                parent.m_size += ENTRY_OVERHEAD + (coin.output == null ? 0 : getWeight(coin.output));
+            }
+            else if (coin.output == null)
+            {
+                parent.remove(entry.getKey());
+            }
+            else
+            {
+                parent.add(entry.getKey(), coin.output);
+            }
+        }
+
+        clear();
+    }
+
+    /**
+     * Gets the changes of this layer.
+     *
+     * @return A map with all the changed outputs. A null value means the output must be deleted.
+     */
+    public Map<OutpointKey, UnspentTransactionOutput> getChanges()
+    {
+        HashMap<OutpointKey, UnspentTransactionOutput> changes = new HashMap<>();
+
+        for (Map.Entry<OutpointKey, Coin> entry : m_coins.entrySet())
+            changes.put(entry.getKey(), entry.getValue().output);
+
+        return changes;
+    }
+
+    /**
+     * Removes all the entries of this layer.
+     */
+    public void clear()
+    {
+        m_coins.clear();
+        m_size = 0;
+    }
+
+    /**
+     * Gets the number of entries in this layer.
+     *
+     * @return The number of entries.
+     */
+    public int getCount()
+    {
+        return m_coins.size();
+    }
+
+    /**
+     * Gets the approximate size in bytes of all the entries in this layer.
+     *
+     * @return The size in bytes.
+     */
+    public long getSizeInBytes()
+    {
+        return m_size;
+    }
+
+    /**
+     * Gets the approximate size in bytes of the given output.
+     *
+     * @param output The output.
+     *
+     * @return The size in bytes.
+     */
+    private static int getWeight(UnspentTransactionOutput output)
+    {
+        return output.getOutput().getLockingParameters().length;
+    }
+}
@@ -34,9 +34,27 @@ import org.slf4j.LoggerFactory;
 
 import java.io.*;
 import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
 import static org.iq80.leveldb.impl.Iq80DBFactory.bytes;
 import static org.iq80.leveldb.impl.Iq80DBFactory.factory;
@@ -44,8 +62,29 @@ import static org.iq80.leveldb.impl.Iq80DBFactory.factory;
 /* IMPLEMENTATION ************************************************************/
 
 /**
- * Stores data sequentially in a set of 128 megabyte files. This class is not thread safe, moreover
- * this class assumes that no other process is accessing the data.
+ * Stores data sequentially in a set of 128 megabyte files. This class assumes that no other process is accessing
+ * the data.
+ *
+ * The active segment is kept open and memory mapped for its whole (preallocated) size, the write offset is tracked in
+ * memory and recovered at startup by walking the record headers of the segment. When the active segment can not fit a
+ * new record, a new segment is created. How often the written data is forced to disk is defined by the
+ * SegmentSyncPolicy given at construction.
+ *
+ * Entries can optionally be compressed with Deflate. Compressed entries are marked by the highest bit of the size
+ * in the entry header, so segments written without compression (or before it existed) stay readable. An entry is
+ * only stored compressed if that makes it smaller.
+ *
+ * New entries carry a CRC32C checksum of their data in the header (they are marked with their own magic, so entries
+ * written before the checksum existed stay readable). The checksum is verified when the segments are scanned, which
+ * happens at startup for the active segment; a torn entry at the end of the segment is wiped and the data is
+ * truncated right before it.
+ *
+ * Reads of older segments are served from read only memory mappings, of which the most recently used are cached.
+ * Java has no supported way to unmap a file: a mapping is only released once it, and every buffer sliced from it,
+ * is garbage collected. Dropping a mapping from the cache (or deleting its segment) therefore does not release it
+ * while the buffers returned by retrieveBuffer are still referenced; callers must not hold on to those buffers. On
+ * Windows a file can not be deleted while it is mapped, so deleting a segment that was recently read can fail
+ * until its mappings are collected.
  *
  * The DiskContiguousStorage also makes use of a leveldb database to store relevant metadata about the
  * segment files.
@@ -55,25 +94,94 @@ public class DiskContiguousStorage implements IContiguousStorage
     private static final Logger s_logger = LoggerFactory.getLogger(DiskContiguousStorage.class);
 
     // Constants
-    static private final long   FILE_SIZE          = 1024 * 1000 * 128 ; // 128 MB
-    static private final int    FILE_MAGIC         = 0xAAAAAAAA; // TODO: This magic needs to be the network magic.
-    static private final String METADATA_FILE_NAME = "metadata";
-    static private final String LAST_FILE_PREFIX   = "l";
+    static private final long   FILE_SIZE           = 1024 * 1000 * 128 ; // 128 MB
+    static private final int    FILE_MAGIC          = 0xAAAAAAAA; // TODO: This magic needs to be the network magic.
+    static private final int    CHECKED_MAGIC       = 0xAAAAAAAB; // Entries with a checksum.
+    static private final int    ENTRY_HEADER_SIZE   = Integer.BYTES * 2;
+    static private final int    CHECKED_HEADER_SIZE = Integer.BYTES * 3;
+    static private final int    COMPRESSED_FLAG     = 0x80000000;
+    static private final int    COMPRESSION_CHUNK   = 64 * 1024;
+    static private final int    MAX_INFLATED_SIZE   = (int)FILE_SIZE; // Far above any block or revert entry.
+    static private final int    MAX_READ_SEGMENTS   = 16;
+    static private final String METADATA_FILE_NAME  = "metadata";
+    static private final String LAST_FILE_PREFIX    = "l";
 
     // Instance Fields
-    private String m_storagePath;
-    private String m_segmentNamePattern;
-    private DB     m_database;
+    private String                   m_storagePath;
+    private String                   m_segmentNamePattern;
+    private DB                       m_database;
+    private SegmentSyncPolicy        m_syncPolicy;
+    private int                      m_syncInterval;
+    private int                      m_currentSegment;
+    private FileChannel              m_segmentChannel;
+    private MappedByteBuffer         m_segmentBuffer;
+    private long                     m_writeOffset;
+    private int                      m_unsyncedRecords;
+    private ScheduledExecutorService m_syncScheduler;
+    private Deflater                 m_deflater;
+    private final Inflater           m_inflater = new Inflater();
+
+    // Read only mappings of the most recently read segments. The mappings stay valid after the channels are closed;
+    // an evicted mapping is not unmapped, it is released by the garbage collector once nothing references it.
+    private final Map<Integer, ByteBuffer> m_readSegments = new LinkedHashMap<>(MAX_READ_SEGMENTS, 0.75f, true)
+    {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, ByteBuffer> eldest)
+        {
+            return size() > MAX_READ_SEGMENTS;
+        }
+    };
 
     /**
-     * Initializes a new instance of the DiskContiguousStorage class.
+     * Initializes a new instance of the DiskContiguousStorage class. The segments will be synced after every record.
+     *
      * @param storagePath        The folder where the files will be stored.
      * @param segmentNamePattern The pattern used to create the files.
      */
     public DiskContiguousStorage(Path storagePath, String segmentNamePattern) throws StorageException
     {
+        this(storagePath, segmentNamePattern, SegmentSyncPolicy.Always, 0);
+    }
+
+    /**
+     * Initializes a new instance of the DiskContiguousStorage class.
+     *
+     * @param storagePath        The folder where the files will be stored.
+     * @param segmentNamePattern The pattern used to create the files.
+     * @param syncPolicy         The policy that defines when the segments are forced to disk.
+     * @param syncInterval       The amount of records between syncs for the Batch policy, or the time in milliseconds
+     *                           between syncs for the Periodic policy. Ignored by the Always policy.
+     */
+    public DiskContiguousStorage(Path storagePath, String segmentNamePattern, SegmentSyncPolicy syncPolicy, int syncInterval)
+            throws StorageException
+    {
+        this(storagePath, segmentNamePattern, syncPolicy, syncInterval, false);
+    }
+
+    /**
+     * Initializes a new instance of the DiskContiguousStorage class.
+     *
+     * @param storagePath        The folder where the files will be stored.
+     * @param segmentNamePattern The pattern used to create the files.
+     * @param syncPolicy         The policy that defines when the segments are forced to disk.
+     * @param syncInterval       The amount of records between syncs for the Batch policy, or the time in milliseconds
+     *                           between syncs for the Periodic policy. Ignored by the Always policy.
+     * @param compress           Whether new entries are compressed. Compressed entries are always readable,
+     *                           regardless of this setting.
+     */
+    public DiskContiguousStorage(Path storagePath, String segmentNamePattern, SegmentSyncPolicy syncPolicy, int syncInterval,
+                                 boolean compress) throws StorageException
+    {
+        if (compress)
+            m_deflater = new Deflater(Deflater.BEST_SPEED);
+
         m_storagePath        = storagePath.toString();
         m_segmentNamePattern = segmentNamePattern;
+        m_syncPolicy         = syncPolicy;
+        m_syncInterval       = syncInterval;
+
+        if (syncPolicy != SegmentSyncPolicy.Always && syncInterval <= 0)
+            throw new StorageException(String.format("Invalid sync interval %s for the %s policy.", syncInterval, syncPolicy));
 
         if (!storagePath.toFile().exists())
         {
@@ -95,6 +203,59 @@ public class DiskContiguousStorage implements IContiguousStorage
         {
             throw new StorageException("Unable to open the metadata database.", exception);
         }
+
+        openSegment(getCurrentUsedFile(), FILE_SIZE);
+
+        if (m_syncPolicy == SegmentSyncPolicy.Periodic)
+        {
+            m_syncScheduler = Executors.newSingleThreadScheduledExecutor(runnable ->
+            {
+                Thread thread = new Thread(runnable, String.format("%s-sync", segmentNamePattern));
+                thread.setDaemon(true);
+                return thread;
+            });
+
+            m_syncScheduler.scheduleWithFixedDelay(this::syncIfDirty, m_syncInterval, m_syncInterval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Gets the files a storage with the given pattern owns in a folder; the segments and the database that keeps
+     * track of them. Any other file in the folder does not belong to the storage.
+     *
+     * @param storagePath        The folder where the files are stored.
+     * @param segmentNamePattern The pattern used to create the files.
+     *
+     * @return The files of the storage that exist in the folder.
+     */
+    public static List<Path> getStorageFiles(Path storagePath, String segmentNamePattern) throws StorageException
+    {
+        List<Path> files = new ArrayList<>();
+
+        if (!Files.isDirectory(storagePath))
+            return files;
+
+        // Every number in the pattern matches any run of digits; the rest of the pattern must match exactly.
+        String segmentRegex = Arrays.stream(segmentNamePattern.split("%0?\\d*d", -1))
+                .map(Pattern::quote)
+                .collect(Collectors.joining("\\d+"));
+
+        try (Stream<Path> paths = Files.list(storagePath))
+        {
+            paths.filter(path -> Files.isRegularFile(path) && path.getFileName().toString().matches(segmentRegex))
+                    .forEach(files::add);
+        }
+        catch (IOException exception)
+        {
+            throw new StorageException(String.format("Unable to list the files in '%s'.", storagePath), exception);
+        }
+
+        Path database = storagePath.resolve(METADATA_FILE_NAME);
+
+        if (Files.exists(database))
+            files.add(database);
+
+        return files;
     }
 
     /**
@@ -105,58 +266,44 @@ public class DiskContiguousStorage implements IContiguousStorage
      * @return An storage pointer. This pointer will be needed later to retrieve the data.
      */
     @Override
-    public StoragePointer store(byte[] buffer) throws StorageException
+    public synchronized StoragePointer store(byte[] buffer) throws StorageException
     {
         StoragePointer pointer = new StoragePointer();
 
-        pointer.segment = getCurrentUsedFile();
-        String filename = String.format(m_segmentNamePattern, pointer.segment);
-        File file = Paths.get(m_storagePath, filename).toFile();
+        byte[] payload    = buffer;
+        byte[] compressed = m_deflater != null && buffer.length <= MAX_INFLATED_SIZE ? compress(buffer) : null;
+        int    sizeField  = buffer.length;
 
-        try
+        if (compressed != null)
         {
-            if (file.exists())
-            {
-                long size = file.length();
-
-                pointer.offset = size;
-
-                // If the is file bigger than we expect; create a new file.
-                if (size > FILE_SIZE)
-                {
-                    s_logger.debug(String.format("File %s is already full, creating new file...", filename));
-
-                    pointer.segment = getNextBlocksFileName();
-                    pointer.offset = 0;
+            payload   = compressed;
+            sizeField = compressed.length | COMPRESSED_FLAG;
+        }
 
-                    filename = String.format(m_segmentNamePattern, pointer.segment);
-                    file     = Paths.get(m_storagePath, filename).toFile();
-                }
+        long entrySize = CHECKED_HEADER_SIZE + (long)payload.length;
 
-                FileOutputStream fileStream = new FileOutputStream(new File(file.toString()), true);
+        // If the entry does not fit in the current segment; move to a new one.
+        if (m_writeOffset + entrySize > m_segmentBuffer.capacity())
+        {
+            s_logger.debug(String.format("Segment %s is already full, creating new file...", m_currentSegment));
+            rollSegment(entrySize);
+        }
 
-                fileStream.write(NumberSerializer.serialize(FILE_MAGIC));
-                fileStream.write(NumberSerializer.serialize(buffer.length));
-                fileStream.write(buffer);
+        pointer.segment = m_currentSegment;
+        pointer.offset  = m_writeOffset;
 
-                fileStream.close();
-            }
-            else
-            {
-                FileOutputStream fileStream = new FileOutputStream(new File(file.toString()), true);
+        m_segmentBuffer.position((int)m_writeOffset);
+        m_segmentBuffer.putInt(CHECKED_MAGIC);
+        m_segmentBuffer.putInt(sizeField);
+        m_segmentBuffer.putInt(checksum(ByteBuffer.wrap(payload), 0, payload.length));
+        m_segmentBuffer.put(payload);
 
-                fileStream.write(NumberSerializer.serialize(FILE_MAGIC));
-                fileStream.write(NumberSerializer.serialize(buffer.length));
-                fileStream.write(buffer);
+        m_writeOffset += entrySize;
+        ++m_unsyncedRecords;
 
-                fileStream.close();
-            }
-        }
-        catch (Exception exception)
-        {
-            // Rethrow as StorageException to comply with the interface.
-            throw new StorageException("Unable to add the given data to the storage.", exception);
-        }
+        if (m_syncPolicy == SegmentSyncPolicy.Always ||
+           (m_syncPolicy == SegmentSyncPolicy.Batch && m_unsyncedRecords >= m_syncInterval))
+            sync();
 
         return pointer;
     }
@@ -184,36 +331,583 @@ public class DiskContiguousStorage implements IContiguousStorage
     @Override
     public byte[] retrieve(StoragePointer pointer) throws StorageException
     {
-        String filename = String.format(m_segmentNamePattern, pointer.segment);
-        Path filePath = Paths.get(m_storagePath, filename);
+        ByteBuffer entry   = retrieveBuffer(pointer);
+        byte[]     payload = new byte[entry.remaining()];
+
+        entry.get(payload);
+
+        return payload;
+    }
+
+    /**
+     * Retrieves a read only view of the data located at the given storage pointer. The data is not copied; the view
+     * is backed directly by the memory mapped segment. Compressed entries are inflated into a new buffer.
+     *
+     * In the segment being written only the entries before the write offset can be read; the rest of its mapping
+     * holds no entries yet, or stale bytes from a previous run.
+     *
+     * @param pointer The pointer marking the start of the data entry.
+     *
+     * @return A read only buffer positioned at the start of the data.
+     */
+    @Override
+    public synchronized ByteBuffer retrieveBuffer(StoragePointer pointer) throws StorageException
+    {
+        ByteBuffer segment = getReadSegment(pointer.segment);
+        long       end     = pointer.segment == m_currentSegment ? m_writeOffset : segment.capacity();
+
+        if (pointer.offset < 0 || pointer.offset + ENTRY_HEADER_SIZE > end)
+            throw new StorageException(String.format("Invalid offset %s for segment %s.", pointer.offset, pointer.segment));
+
+        int     position   = (int)pointer.offset;
+        int     magic      = segment.getInt(position);
+        int     sizeField  = segment.getInt(position + Integer.BYTES);
+        int     size       = sizeField & ~COMPRESSED_FLAG;
+        boolean compressed = (sizeField & COMPRESSED_FLAG) != 0;
+
+        if (magic != FILE_MAGIC && magic != CHECKED_MAGIC)
+            throw new StorageException("Invalid magic header.");
+
+        int headerSize = magic == CHECKED_MAGIC ? CHECKED_HEADER_SIZE : ENTRY_HEADER_SIZE;
+
+        if (size < 0 || position + headerSize + (long)size > end)
+            throw new StorageException(String.format("Invalid entry size %s in segment %s.", size, pointer.segment));
+
+        ByteBuffer entry = segment.duplicate();
+        entry.position(position + headerSize);
+        entry.limit(position + headerSize + size);
+
+        if (compressed)
+            return decompress(entry.slice(), pointer).asReadOnlyBuffer();
+
+        return entry.slice();
+    }
+
+    /**
+     * Gets the pointers to all the entries of a segment, in the order they were written. The headers and checksums
+     * of the entries are verified; the scan stops at the first invalid entry.
+     *
+     * @param segment The segment number.
+     *
+     * @return The pointers to the entries.
+     */
+    @Override
+    public synchronized List<StoragePointer> getEntries(int segment) throws StorageException
+    {
+        ByteBuffer           mapping  = getReadSegment(segment);
+        long                 end      = segment == m_currentSegment ? m_writeOffset : mapping.capacity();
+        List<StoragePointer> pointers = new ArrayList<>();
+        long                 offset   = 0;
+
+        while (offset < end)
+        {
+            long entrySize = getEntrySize(mapping, offset);
+
+            if (entrySize < 0 || offset + entrySize > end)
+            {
+                if (offset + Integer.BYTES <= mapping.capacity() && mapping.getInt((int)offset) != 0)
+                    s_logger.warn("Invalid entry at offset {} in segment {}. The rest of the segment is skipped.", offset, segment);
+
+                break;
+            }
+
+            StoragePointer pointer = new StoragePointer();
+            pointer.segment = segment;
+            pointer.offset  = offset;
+
+            pointers.add(pointer);
+            offset += entrySize;
+        }
+
+        return pointers;
+    }
+
+    /**
+     * Gets the segment new entries are currently written to.
+     *
+     * @return The segment number.
+     */
+    @Override
+    public synchronized int getCurrentSegment()
+    {
+        return m_currentSegment;
+    }
+
+    /**
+     * Gets the position right after the last entry stored. The entries stored from now on are placed after it.
+     *
+     * @return The end of the stored data.
+     */
+    @Override
+    public synchronized StoragePointer getEnd()
+    {
+        StoragePointer pointer = new StoragePointer();
+
+        pointer.segment = m_currentSegment;
+        pointer.offset  = m_writeOffset;
+
+        return pointer;
+    }
+
+    /**
+     * Discards all the entries stored after the given position; the next entry is stored at that position. The
+     * segments after the one of the position are deleted, and the discarded entries of its segment are zeroed; so
+     * they are not found again when the segment is opened.
+     *
+     * @param end The new end of the stored data; a position returned by getEnd.
+     */
+    @Override
+    public synchronized void truncate(StoragePointer end) throws StorageException
+    {
+        if (end.segment > m_currentSegment || (end.segment == m_currentSegment && end.offset >= m_writeOffset))
+            return;
+
+        if (!hasSegment(end.segment))
+            throw new StorageException(String.format("Can not truncate the storage at missing segment %s.", end.segment));
+
+        sync();
+
+        try
+        {
+            m_segmentChannel.close();
+        }
+        catch (IOException exception)
+        {
+            throw new StorageException(String.format("Unable to close segment %s.", m_currentSegment), exception);
+        }
+
+        for (int segment = m_currentSegment; segment > end.segment; --segment)
+        {
+            String filename = String.format(m_segmentNamePattern, segment);
+
+            m_readSegments.remove(segment);
+
+            try
+            {
+                Files.deleteIfExists(Paths.get(m_storagePath, filename));
+            }
+            catch (IOException exception)
+            {
+                throw new StorageException(String.format("Unable to delete segment '%s'.", filename), exception);
+            }
+        }
+
+        m_readSegments.remove(end.segment);
+        m_database.put(bytes(LAST_FILE_PREFIX), NumberSerializer.serialize(end.segment));
+
+        openSegment(end.segment, FILE_SIZE);
+
+        if (end.offset < m_writeOffset)
+        {
+            ByteBuffer zeroes = ByteBuffer.allocate(COMPRESSION_CHUNK);
+            ByteBuffer tail   = m_segmentBuffer.duplicate();
+
+            tail.position((int)end.offset);
+            tail.limit((int)m_writeOffset);
+
+            while (tail.hasRemaining())
+            {
+                zeroes.clear();
+                zeroes.limit(Math.min(zeroes.capacity(), tail.remaining()));
+                tail.put(zeroes);
+            }
+
+            m_segmentBuffer.force();
+            m_writeOffset = end.offset;
+        }
+
+        s_logger.info("Storage truncated at offset {} of segment {}.", end.offset, end.segment);
+    }
+
+    /**
+     * Gets whether the given segment is present in the storage.
+     *
+     * @param segment The segment number.
+     *
+     * @return true if the segment exists; otherwise; false.
+     */
+    @Override
+    public boolean hasSegment(int segment)
+    {
+        return Paths.get(m_storagePath, String.format(m_segmentNamePattern, segment)).toFile().exists();
+    }
+
+    /**
+     * Deletes a segment and all the entries stored in it. The segment new entries are written to can not be deleted.
+     *
+     * The cached mapping of the segment is dropped, but it is only unmapped once it is garbage collected; on Windows
+     * the delete fails if the segment is still mapped, and the caller may try again later.
+     *
+     * @param segment The segment number.
+     */
+    @Override
+    public synchronized void deleteSegment(int segment) throws StorageException
+    {
+        if (segment == m_currentSegment)
+            throw new StorageException(String.format("Segment %s is in use and can not be deleted.", segment));
+
+        String filename = String.format(m_segmentNamePattern, segment);
+
+        m_readSegments.remove(segment);
+
+        try
+        {
+            Files.deleteIfExists(Paths.get(m_storagePath, filename));
+        }
+        catch (IOException exception)
+        {
+            throw new StorageException(String.format("Unable to delete segment '%s'.", filename), exception);
+        }
+
+        s_logger.debug("Segment {} deleted.", filename);
+    }
+
+    /**
+     * Forces all the pending writes of the active segment to the storage device.
+     */
+    @Override
+    public synchronized void flush()
+    {
+        sync();
+    }
+
+    /**
+     * Flushes the pending writes and releases all the resources held by this storage.
+     */
+    @Override
+    public synchronized void close() throws StorageException
+    {
+        if (m_syncScheduler != null)
+            m_syncScheduler.shutdown();
+
+        sync();
+        m_readSegments.clear();
+        m_inflater.end();
+
+        if (m_deflater != null)
+            m_deflater.end();
+
+        try
+        {
+            m_segmentChannel.close();
+            m_database.close();
+        }
+        catch (IOException exception)
+        {
+            throw new StorageException("Unable to close the storage.", exception);
+        }
+    }
+
+    /**
+     * Opens and maps the given segment. The segment file is preallocated to the given capacity (or its current size
+     * if bigger), and the write offset is placed right after the last complete entry in the segment.
+     *
+     * @param segment  The segment to be opened.
+     * @param capacity The minimum capacity of the segment.
+     */
+    private void openSegment(int segment, long capacity) throws StorageException
+    {
+        String filename = String.format(m_segmentNamePattern, segment);
+        Path   filePath = Paths.get(m_storagePath, filename);
+
+        try
+        {
+            FileChannel channel = FileChannel.open(filePath,
+                    StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+            MappedByteBuffer mapping     = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(capacity, channel.size()));
+            long             writeOffset = findEndOfData(mapping);
+
+            if (truncateTornEntry(mapping, writeOffset))
+                s_logger.warn("Torn entry found at offset {} in segment '{}'. The entry was discarded.", writeOffset, filename);
+
+            m_segmentBuffer  = mapping;
+            m_segmentChannel = channel;
+            m_currentSegment = segment;
+            m_writeOffset    = writeOffset;
+        }
+        catch (IOException exception)
+        {
+            throw new StorageException(String.format("Unable to open segment '%s'.", filename), exception);
+        }
+
+        s_logger.debug("Segment {} opened. Write offset {}.", filename, m_writeOffset);
+    }
+
+    /**
+     * Syncs and closes the active segment and opens the next one. If the active segment is still empty, it is remapped
+     * with a bigger capacity instead.
+     *
+     * @param minCapacity The minimum capacity the new segment must have.
+     */
+    private void rollSegment(long minCapacity) throws StorageException
+    {
+        sync();
+
+        int nextSegment = m_writeOffset == 0 ? m_currentSegment : getNextBlocksFileName();
+
+        try
+        {
+            m_segmentChannel.close();
+        }
+        catch (IOException exception)
+        {
+            throw new StorageException(String.format("Unable to close segment %s.", m_currentSegment), exception);
+        }
+
+        openSegment(nextSegment, Math.max(FILE_SIZE, minCapacity));
+    }
+
+    /**
+     * Compresses an entry. The compressed data is preceded by the size of the uncompressed entry.
+     *
+     * @param data The entry.
+     *
+     * @return The compressed entry; or null if compressing does not make the entry smaller.
+     */
+    private byte[] compress(byte[] data)
+    {
+        ByteArrayOutputStream output = new ByteArrayOutputStream(data.length / 2 + Integer.BYTES);
+        byte[]                chunk  = new byte[COMPRESSION_CHUNK];
+
+        output.writeBytes(NumberSerializer.serialize(data.length));
+
+        m_deflater.reset();
+        m_deflater.setInput(data);
+        m_deflater.finish();
+
+        while (!m_deflater.finished())
+        {
+            output.write(chunk, 0, m_deflater.deflate(chunk));
+
+            if (output.size() >= data.length)
+                return null;
+        }
+
+        return output.toByteArray();
+    }
+
+    /**
+     * Decompresses an entry.
+     *
+     * @param data    The compressed entry.
+     * @param pointer The location of the entry; used for error reporting.
+     *
+     * @return The uncompressed entry.
+     */
+    private ByteBuffer decompress(ByteBuffer data, StoragePointer pointer) throws StorageException
+    {
+        int size = data.getInt();
+
+        // The size comes from disk; a corrupted entry must not make us allocate an arbitrary amount of memory.
+        if (size <= 0 || size > MAX_INFLATED_SIZE)
+            throw new StorageException(String.format("Invalid uncompressed size %s for entry at offset %s in segment %s.",
+                    size, pointer.offset, pointer.segment));
+
+        ByteBuffer result = ByteBuffer.allocate(size);
 
-        byte[] payload;
+        m_inflater.reset();
+        m_inflater.setInput(data);
 
         try
         {
-            InputStream data = Files.newInputStream(filePath);
-            data.skip(pointer.offset);
+            while (result.hasRemaining() && !m_inflater.finished())
+            {
+                if (m_inflater.inflate(result) == 0 && (m_inflater.needsInput() || m_inflater.needsDictionary()))
+                    break;
+            }
+
+            // The stream must end exactly at the recorded size.
+            if (!result.hasRemaining() && !m_inflater.finished() && (m_inflater.inflate(new byte[1]) > 0 || !m_inflater.finished()))
+                throw new StorageException(String.format("Compressed entry at offset %s in segment %s is larger than %s bytes.",
+                        pointer.offset, pointer.segment, size));
+        }
+        catch (DataFormatException exception)
+        {
+            throw new StorageException(String.format("Corrupted compressed entry at offset %s in segment %s.",
+                    pointer.offset, pointer.segment), exception);
+        }
+
+        if (result.hasRemaining())
+            throw new StorageException(String.format("Truncated compressed entry at offset %s in segment %s.",
+                    pointer.offset, pointer.segment));
+
+        result.flip();
 
-            byte[] entryHeader = new byte[Integer.BYTES * 2];
-            data.read(entryHeader, 0, Integer.BYTES * 2);
+        return result;
+    }
 
-            ByteBuffer buffer = ByteBuffer.wrap(entryHeader);
-            int magic = buffer.getInt();
-            int size  = buffer.getInt();
+    /**
+     * Forces the active segment to the storage device.
+     */
+    private void sync()
+    {
+        if (m_unsyncedRecords == 0)
+            return;
 
-            if (magic != FILE_MAGIC)
-                throw new StorageException("Invalid magic header.");
+        m_segmentBuffer.force();
+        m_unsyncedRecords = 0;
+    }
 
-            payload = new byte[size];
-            data.read(payload, 0, size);
+    /**
+     * Syncs the active segment if there are pending writes. Called by the periodic sync timer.
+     */
+    private synchronized void syncIfDirty()
+    {
+        try
+        {
+            sync();
         }
         catch (Exception exception)
         {
-            // Rethrow as StorageException to comply with the interface.
-            throw new StorageException("Unable to add the given data to the storage.", exception);
+            s_logger.error("Unable to sync the active segment.", exception);
         }
+    }
 
-        return payload;
+    /**
+     * Gets a read only memory mapped view of the given segment. The active segment is served straight from the
+     * write mapping; older segments are immutable, so their read only mappings are cached and reused.
+     *
+     * The returned view keeps the whole mapping alive for as long as it, or any buffer sliced from it, is referenced.
+     *
+     * @param segment The segment.
+     *
+     * @return The segment view.
+     */
+    private ByteBuffer getReadSegment(int segment) throws StorageException
+    {
+        if (segment == m_currentSegment)
+            return m_segmentBuffer.asReadOnlyBuffer();
+
+        ByteBuffer mapping = m_readSegments.get(segment);
+
+        if (mapping != null)
+            return mapping;
+
+        String filename = String.format(m_segmentNamePattern, segment);
+        Path   filePath = Paths.get(m_storagePath, filename);
+
+        try (FileChannel channel = FileChannel.open(filePath, StandardOpenOption.READ))
+        {
+            mapping = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()).asReadOnlyBuffer();
+        }
+        catch (IOException exception)
+        {
+            throw new StorageException(String.format("Unable to open segment '%s'.", filename), exception);
+        }
+
+        m_readSegments.put(segment, mapping);
+
+        return mapping;
+    }
+
+    /**
+     * Walks the entries in the given segment and finds where the valid data ends. The walk stops at the first
+     * entry with an invalid header, that is not complete or which checksum does not match (a torn write); which in
+     * a preallocated segment is the zeroed tail.
+     *
+     * @param segment The segment.
+     *
+     * @return The offset right after the last valid entry.
+     */
+    private static long findEndOfData(ByteBuffer segment)
+    {
+        long offset    = 0;
+        long entrySize = getEntrySize(segment, offset);
+
+        while (entrySize >= 0)
+        {
+            offset   += entrySize;
+            entrySize = getEntrySize(segment, offset);
+        }
+
+        return offset;
+    }
+
+    /**
+     * Gets the size of the entry at the given offset, header included. The header and the checksum of the entry are
+     * verified.
+     *
+     * @param segment The segment.
+     * @param offset  The offset of the entry.
+     *
+     * @return The size of the entry; or -1 if there is no valid entry at the given offset.
+     */
+    private static long getEntrySize(ByteBuffer segment, long offset)
+    {
+        if (offset + ENTRY_HEADER_SIZE > segment.capacity())
+            return -1;
+
+        int position = (int)offset;
+        int magic    = segment.getInt(position);
+
+        if (magic != FILE_MAGIC && magic != CHECKED_MAGIC)
+            return -1;
+
+        int headerSize = magic == CHECKED_MAGIC ? CHECKED_HEADER_SIZE : ENTRY_HEADER_SIZE;
+        int size       = segment.getInt(position + Integer.BYTES) & ~COMPRESSED_FLAG;
+
+        if (size < 0 || offset + headerSize + (long)size > segment.capacity())
+            return -1;
+
+        if (magic == CHECKED_MAGIC &&
+                segment.getInt(position + ENTRY_HEADER_SIZE) != checksum(segment, position + headerSize, size))
+            return -1;
+
+        return headerSize + (long)size;
+    }
+
+    /**
+     * Wipes the entry at the given offset if its header is present but the entry is not valid; this is the
+     * remains of a write that did not complete. Otherwise the next entry written at this offset could be followed
+     * by the stale bytes of the torn one.
+     *
+     * @param segment The segment.
+     * @param offset  The offset where the valid data ends.
+     *
+     * @return true if a torn entry was wiped; otherwise; false.
+     */
+    private static boolean truncateTornEntry(MappedByteBuffer segment, long offset)
+    {
+        if (offset + ENTRY_HEADER_SIZE > segment.capacity())
+            return false;
+
+        int magic = segment.getInt((int)offset);
+
+        if (magic != FILE_MAGIC && magic != CHECKED_MAGIC)
+            return false;
+
+        int  headerSize = magic == CHECKED_MAGIC ? CHECKED_HEADER_SIZE : ENTRY_HEADER_SIZE;
+        long size       = segment.getInt((int)offset + Integer.BYTES) & ~COMPRESSED_FLAG;
+        long end        = Math.min(segment.capacity(), offset + headerSize + Math.max(size, 0));
+
+        for (long position = offset; position < end; ++position)
+            segment.put((int)position, (byte)0);
+
+        segment.force();
+
+        return true;
+    }
+
+    /**
+     * Computes the CRC32C checksum of a region of a buffer.
+     *
+     * @param data     The buffer.
+     * @param position The start of the region.
+     * @param size     The size of the region.
+     *
+     * @return The checksum.
+     */
+    private static int checksum(ByteBuffer data, int position, int size)
+    {
+        ByteBuffer region = data.duplicate();
+        region.limit(position + size);
+        region.position(position);
+
+        CRC32C crc = new CRC32C();
+        crc.update(region);
+
+        return (int)crc.getValue();
     }
 
     /**
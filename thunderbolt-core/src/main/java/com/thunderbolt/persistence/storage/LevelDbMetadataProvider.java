@@ -25,54 +25,147 @@ package com.thunderbolt.persistence.storage;
 
 /* IMPORTS *******************************************************************/
 
-import com.thunderbolt.common.Convert;
+import com.thunderbolt.blockchain.Block;
+import com.thunderbolt.blockchain.BlockHeader;
 import com.thunderbolt.common.NumberSerializer;
+import com.thunderbolt.network.NetworkParameters;
+import com.thunderbolt.persistence.contracts.IContiguousStorage;
 import com.thunderbolt.persistence.contracts.IMetadataProvider;
 import com.thunderbolt.persistence.structures.BlockMetadata;
+import com.thunderbolt.persistence.structures.KeyFilterInfo;
 import com.thunderbolt.persistence.structures.TransactionMetadata;
+import com.thunderbolt.persistence.structures.UnspentOutputSetInfo;
 import com.thunderbolt.persistence.structures.UnspentTransactionOutput;
 import com.thunderbolt.security.Sha256Hash;
 import com.thunderbolt.wallet.Address;
 import org.iq80.leveldb.DB;
 import org.iq80.leveldb.DBIterator;
 import org.iq80.leveldb.Options;
+import org.iq80.leveldb.ReadOptions;
+import org.iq80.leveldb.Snapshot;
+import org.iq80.leveldb.WriteBatch;
+import org.iq80.leveldb.WriteOptions;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.ByteArrayOutputStream;
+import java.io.*;
+import java.math.BigInteger;
 import java.nio.ByteBuffer;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.security.DigestInputStream;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
 import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import static org.iq80.leveldb.impl.Iq80DBFactory.factory;
 
 /* IMPLEMENTATION ************************************************************/
 
 /**
- * Stores the metadata in two LevelDB databases. The first database contains metadata about the blocks and the
- * transactions. The second database contains a collection of all the unspent transaction outputs (UXTO).
+ * Stores the metadata in a LevelDB database. The database contains metadata about the blocks and the transactions,
+ * and the collection of all the unspent transaction outputs (UXTO). Keeping everything in the same database allows
+ * the changes of a block to be applied in a single atomic write.
+ *
+ * The database is the source of truth; the most recently used entries are kept in a size bounded cache in front of
+ * it, so the memory used by the provider does not grow with the length of the chain.
+ *
+ * Changes are not written through to the database. Committed changes are kept in a write-back layer, and flushed in a
+ * single atomic write every few blocks or when the layer grows over its memory budget; unspent outputs created and
+ * spent between two flushes never reach the disk. Since the chain head is flushed together with the rest of the
+ * changes, the database always describes a consistent (if slightly older) state of the chain.
  */
 public class LevelDbMetadataProvider implements IMetadataProvider
 {
     private static final Logger s_logger = LoggerFactory.getLogger(LevelDbMetadataProvider.class);
 
     // Constants
-    static private final String METADATA_DB_NAME   = "blockchain";
-    static private final String STATE_DB_NAME      = "state";
-    static private final byte   BLOCK_PREFIX       = 'b';
-    static private final byte   HEAD_PREFIX        = 'h';
-    static private final byte   TRANSACTION_PREFIX = 't';
-    private static final int    HASH_SIZE          = 32;
-    private static final int    PREFIX_SIZE        = 1;
+    static private final String       METADATA_DB_NAME   = "blockchain";
+    static private final String       STATE_DB_NAME      = "state";
+    static private final byte         BLOCK_PREFIX       = 'b';
+    static private final byte         HEAD_PREFIX        = 'h';
+    static private final byte         TRANSACTION_PREFIX = 't';
+    static private final byte         OUTPUT_PREFIX      = 'u';
+    static private final byte         ADDRESS_PREFIX     = 'a'; // Address index; unspent outputs.
+    static private final byte         HISTORY_PREFIX     = 'x'; // Address index; transaction history.
+    static private final byte         ADDRESS_INDEX_FLAG = 'A'; // Present when the address index is complete.
+    static private final byte         HEIGHT_PREFIX      = 'n'; // Main chain; block hash by height.
+    static private final byte         RECORD_PREFIX      = 'r'; // Block hash by block record id.
+    static private final byte         RECORD_COUNTER     = 'R'; // Next block record id.
+    static private final byte         BLOCK_SEGMENT      = 'B'; // Highest block height by block segment.
+    static private final byte         REVERT_SEGMENT     = 'U'; // Highest block height by revert segment.
+    static private final byte         FORMAT_KEY         = 'V'; // Format version of the metadata entries.
+    static private final byte         MIGRATION_KEY      = 'M'; // Last entry migrated to the current format.
+    static private final byte         STATE_PROGRESS_KEY = 'P'; // Last output moved from the old state database.
+    static private final byte         OUTPUT_SET_KEY     = 'O'; // Summary of the unspent outputs set.
+    static private final byte         SNAPSHOT_LOAD_KEY  = 'S'; // Present while a snapshot is being loaded.
+    static private final byte         STORAGE_END_KEY    = 'E'; // End of the referenced storages at the last write.
+    static private final byte         FORMAT_VERSION     = 1;
+    private static final int          MIGRATION_BATCH    = 10000; // Entries per write while migrating.
+    private static final int          SNAPSHOT_MAGIC     = 0x54425553; // "TBUS"
+    private static final byte         SNAPSHOT_VERSION   = 1;
+    private static final int          SNAPSHOT_BATCH     = 10000; // Outputs per write while loading a snapshot.
+    private static final int          BLOCK_HEADER_SIZE  = 80;
+    private static final int          HASH_SIZE          = 32;
+    private static final int          PREFIX_SIZE        = 1;
+    private static final long         DEFAULT_CACHE_SIZE = 128 * 1024 * 1024; // 128 MB
+    private static final int          STATS_INTERVAL     = 1000; // Blocks between cache statistics reports.
+    private static final double       FILTER_FP_RATE     = 0.01; // False positive rate of the key filter.
+    private static final int          FILTER_HEADROOM    = 2;    // Key filter capacity relative to the live keys.
+    private static final int          FLUSH_INTERVAL     = 100;  // Blocks between flushes.
+    private static final long         FLUSH_SIZE         = 64 * 1024 * 1024; // 64 MB
+    private static final int          BLOCK_ENTRY_SIZE   = 256;  // Approximate size in bytes of a block metadata entry.
+    private static final int          TX_ENTRY_SIZE      = 160;  // Approximate size in bytes of a transaction entry.
+    private static final int          INDEX_ENTRY_SIZE   = 128;  // Approximate size in bytes of an address index entry.
+    private static final int          OUTPUT_ENTRY_SIZE  = 64;   // Approximate size in bytes of an output entry, without locking parameters.
+    private static final int          HEIGHT_SIZE        = 8;
+    private static final byte[]       EMPTY_VALUE        = new byte[0];
+    private static final WriteOptions SYNC_WRITE         = new WriteOptions().sync(true);
 
     // Instance Fields
-    private final DB                                    m_stateDatabase;
-    private final DB                                    m_metadataDatabase;
-    private final Map<String, BlockMetadata>            m_blocksCache      = new HashMap<>();
-    private final Map<String, TransactionMetadata>      m_transactionCache = new HashMap<>();
-    private final Map<String, UnspentTransactionOutput> m_utxoCache        = new HashMap<>();
-    private BlockMetadata                               m_headCache        = null;
+    private final DB                                              m_metadataDatabase;
+    private final LruCache<Sha256Hash, BlockMetadata>             m_blocksCache;
+    private final LruCache<Sha256Hash, TransactionMetadata>       m_transactionCache;
+    private final LruCache<OutpointKey, UnspentTransactionOutput> m_utxoCache;
+    private final int                                             m_flushInterval;
+    private final long                                            m_flushSize;
+    private boolean                                               m_hasAddressIndex;
+    private BlockMetadata                                         m_headCache    = null;
+    private final MainChainIndex                                  m_mainChain    = new MainChainIndex();
+    private long                                                  m_nextRecordId = 1;
+    private UnspentOutputSetInfo                                  m_outputSetInfo;
+    private IContiguousStorage[]                                  m_storages     = new IContiguousStorage[0];
+
+    // The key filter is built in the background. Until the first build finishes there is no filter, and the lookups
+    // go to the database; a filter being rebuilt receives the new keys along with the active one.
+    private ScalableBloomFilter                                   m_keyFilter        = null;
+    private ScalableBloomFilter                                   m_nextKeyFilter    = null;
+    private long                                                  m_filterGeneration = 0;
+    private boolean                                               m_isFilterBuilding = false;
+    private long                                                  m_staleKeys        = 0;
+    private final ExecutorService                                 m_filterBuilder;
+
+    // Changes of the current batch. They are visible to the readers of this provider, but are not moved to the
+    // write-back layer until the batch is committed.
+    private boolean                                    m_inBatch             = false;
+    private final Map<Sha256Hash, BlockMetadata>       m_pendingBlocks       = new HashMap<>();
+    private final Map<Sha256Hash, TransactionMetadata> m_pendingTransactions = new HashMap<>();
+    private final CoinsViewCache                       m_pendingCoins        = new CoinsViewCache();
+    private final TreeMap<byte[], byte[]>              m_pendingIndex        = new TreeMap<>(Arrays::compareUnsigned);
+
+    // Committed changes that are not yet written to the database. When enough changes are collected they are moved
+    // to the flushing layer and written by the writer thread; so the committer does not wait for the disk. The
+    // flushing layer stays visible to the readers until the write completes.
+    private BlockMetadata                              m_committedHead       = null;
+    private UnspentOutputSetInfo                       m_committedOutputSet  = null;
+    private boolean                                    m_isHeadDirty         = false;
+    private int                                        m_unflushedBlocks     = 0;
+    private ChangeSet                                  m_dirty               = new ChangeSet();
+    private ChangeSet                                  m_flushing            = null;
+    private boolean                                    m_isWriting           = false;
+    private final ExecutorService                      m_writer;
 
     /**
      * Initializes a new instance of the LevelDbMetadataProvider class.
@@ -81,16 +174,82 @@ public class LevelDbMetadataProvider implements IMetadataProvider
      */
     public LevelDbMetadataProvider(Path path) throws StorageException
     {
-        Options options = new Options();
-        options.createIfMissing(true);
+        this(path, DEFAULT_CACHE_SIZE, FLUSH_INTERVAL, FLUSH_SIZE, false);
+    }
+
+    /**
+     * Initializes a new instance of the LevelDbMetadataProvider class.
+     *
+     * @param path      The path where the databases are located.
+     * @param cacheSize The total size in bytes of the metadata caches. A quarter of it goes to the block metadata,
+     *                  a quarter to the transaction metadata and the remaining half to the unspent outputs.
+     * @param flushInterval The maximum amount of blocks committed between two writes to the database.
+     * @param flushSize     The maximum size in bytes of the changes kept in memory between two writes to the database.
+     * @param addressIndex  Whether to maintain an index of the unspent outputs and the transactions of each address.
+     */
+    public LevelDbMetadataProvider(Path path, long cacheSize, int flushInterval, long flushSize, boolean addressIndex)
+            throws StorageException
+    {
+        this(path, cacheSize, flushInterval, flushSize, addressIndex, new LevelDbSettings());
+    }
+
+    /**
+     * Initializes a new instance of the LevelDbMetadataProvider class.
+     *
+     * @param path      The path where the databases are located.
+     * @param cacheSize The total size in bytes of the metadata caches. A quarter of it goes to the block metadata,
+     *                  a quarter to the transaction metadata and the remaining half to the unspent outputs.
+     * @param flushInterval The maximum amount of blocks committed between two writes to the database.
+     * @param flushSize     The maximum size in bytes of the changes kept in memory between two writes to the database.
+     * @param addressIndex  Whether to maintain an index of the unspent outputs and the transactions of each address.
+     * @param settings      The tuning parameters of the database.
+     */
+    public LevelDbMetadataProvider(
+            Path path, long cacheSize, int flushInterval, long flushSize, boolean addressIndex, LevelDbSettings settings)
+            throws StorageException
+    {
+        Options options = settings.toOptions();
         options.logger(s_logger::debug);
 
+        m_blocksCache      = new LruCache<>(cacheSize / 4);
+        m_transactionCache = new LruCache<>(cacheSize / 4);
+        m_utxoCache        = new LruCache<>(cacheSize / 2);
+        m_flushInterval    = flushInterval;
+        m_flushSize        = flushSize;
+        m_writer           = Executors.newSingleThreadExecutor(runnable ->
+        {
+            Thread thread = new Thread(runnable, "metadata-writer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        m_filterBuilder    = Executors.newSingleThreadExecutor(runnable ->
+        {
+            Thread thread = new Thread(runnable, "key-filter");
+            thread.setDaemon(true);
+            return thread;
+        });
+
         try
         {
             m_metadataDatabase = factory.open(Paths.get(path.toString(), METADATA_DB_NAME).toFile(), options);
-            m_stateDatabase = factory.open(Paths.get(path.toString(), STATE_DB_NAME).toFile(), options);
 
-            readAllMetadata();
+            migrateFormat();
+
+            File stateDatabase = Paths.get(path.toString(), STATE_DB_NAME).toFile();
+
+            if (stateDatabase.exists())
+                migrateState(stateDatabase, options);
+
+            readChainHead();
+            recoverSnapshotLoad();
+
+            m_committedHead   = m_headCache;
+            m_hasAddressIndex = initializeAddressIndex(addressIndex);
+
+            initializeHeightIndex();
+            loadHeightIndex();
+            initializeOutputSetInfo();
+            rebuildKeyFilter(m_committedOutputSet.getCount());
         }
         catch (Exception exception)
         {
@@ -98,6 +257,28 @@ public class LevelDbMetadataProvider implements IMetadataProvider
         }
     }
 
+    /**
+     * Gets the databases the provider owns in the given folder. Any other file in the folder does not belong to it.
+     *
+     * @param path The path where the databases are located.
+     *
+     * @return The databases that exist in the folder.
+     */
+    public static List<Path> getDatabaseFiles(Path path)
+    {
+        List<Path> files = new ArrayList<>();
+
+        for (String name : new String[] { METADATA_DB_NAME, STATE_DB_NAME })
+        {
+            Path database = path.resolve(name);
+
+            if (database.toFile().exists())
+                files.add(database);
+        }
+
+        return files;
+    }
+
     /**
      * Gets the block metadata entry from the provider.
      *
@@ -106,9 +287,39 @@ public class LevelDbMetadataProvider implements IMetadataProvider
      * @return The block metadata.
      */
     @Override
-    public BlockMetadata getBlockMetadata(Sha256Hash id)
+    public synchronized BlockMetadata getBlockMetadata(Sha256Hash id)
     {
-        return m_blocksCache.get(id.toString());
+        BlockMetadata head = m_headCache;
+
+        // The chain head is pinned in memory, it is never evicted.
+        if (head != null && head.getHash().equals(id))
+            return head;
+
+        BlockMetadata metadata = m_pendingBlocks.get(id);
+
+        if (metadata == null)
+            metadata = m_dirty.blocks.get(id);
+
+        if (metadata == null && m_flushing != null)
+            metadata = m_flushing.blocks.get(id);
+
+        if (metadata != null)
+            return metadata;
+
+        metadata = m_blocksCache.get(id);
+
+        if (metadata != null)
+            return metadata;
+
+        byte[] data = m_metadataDatabase.get(createKey(BLOCK_PREFIX, id));
+
+        if (data == null)
+            return null;
+
+        metadata = new BlockMetadata(data);
+        m_blocksCache.put(id, metadata, BLOCK_ENTRY_SIZE);
+
+        return metadata;
     }
 
     /**
@@ -121,7 +332,7 @@ public class LevelDbMetadataProvider implements IMetadataProvider
     @Override
     public boolean hasBlockMetadata(Sha256Hash sha256Hash)
     {
-        return m_blocksCache.containsKey(sha256Hash.toString());
+        return getBlockMetadata(sha256Hash) != null;
     }
 
     /**
@@ -130,22 +341,19 @@ public class LevelDbMetadataProvider implements IMetadataProvider
      * @param metadata The metadata to be added.
      */
     @Override
-    public boolean addBlockMetadata(BlockMetadata metadata) throws StorageException
+    public synchronized boolean addBlockMetadata(BlockMetadata metadata) throws StorageException
     {
-        try
-        {
-            byte[] hash = metadata.getHash().serialize();
-
-            ByteArrayOutputStream key = new ByteArrayOutputStream();
-            key.write(BLOCK_PREFIX);
-            key.write(hash);
+        if (metadata.getRecordId() == 0)
+            assignRecordId(metadata);
 
-            m_metadataDatabase.put(key.toByteArray(), metadata.serialize());
-            m_blocksCache.put(Convert.toHexString(hash), metadata);
+        if (m_inBatch)
+        {
+            m_pendingBlocks.put(metadata.getHash(), metadata);
         }
-        catch (Exception exception)
+        else
         {
-            throw new StorageException(String.format("Unable to add metadata for block '%s'", metadata.getHash()), exception);
+            m_dirty.blocks.put(metadata.getHash(), metadata);
+            flushIfNeeded();
         }
 
         return true;
@@ -157,10 +365,26 @@ public class LevelDbMetadataProvider implements IMetadataProvider
      * @param metadata The metadata of the block chain head.
      */
     @Override
-    public boolean setChainHead(BlockMetadata metadata)
+    public synchronized boolean setChainHead(BlockMetadata metadata) throws StorageException
     {
-        m_metadataDatabase.put(new byte[] {HEAD_PREFIX}, metadata.serialize());
         m_headCache = metadata;
+
+        if (!m_inBatch)
+        {
+            m_committedHead = metadata;
+            m_isHeadDirty   = true;
+
+            flushIfNeeded();
+        }
+
+        if (metadata.getHeight() % STATS_INTERVAL == 0)
+        {
+            s_logger.debug("Block metadata cache: {}", m_blocksCache);
+            s_logger.debug("Transaction metadata cache: {}", m_transactionCache);
+            s_logger.debug("Unspent outputs cache: {}", m_utxoCache);
+            s_logger.debug("Key filter: {}", m_keyFilter);
+        }
+
         return true;
     }
 
@@ -181,21 +405,30 @@ public class LevelDbMetadataProvider implements IMetadataProvider
      * @param metadata The metadata to be added.
      */
     @Override
-    public void addTransactionMetadata(TransactionMetadata metadata) throws StorageException
+    public synchronized void addTransactionMetadata(TransactionMetadata metadata) throws StorageException
     {
-        try
+        // The entry only refers to its block by record id, so the block must be known.
+        if (metadata.getBlockRecordId() == 0)
         {
-            byte[] hash = metadata.getHash().serialize();
-            ByteArrayOutputStream key = new ByteArrayOutputStream();
-            key.write(TRANSACTION_PREFIX);
-            key.write(hash);
+            BlockMetadata block = getBlockMetadata(metadata.getBlockHash());
+
+            if (block == null)
+                throw new StorageException(String.format("The block '%s' of the transaction '%s' is unknown.",
+                        metadata.getBlockHash(), metadata.getHash()));
 
-            m_metadataDatabase.put(key.toByteArray(), metadata.serialize());
-            m_transactionCache.put(Convert.toHexString(hash), metadata);
+            metadata.setBlockRecordId(block.getRecordId());
         }
-        catch (Exception exception)
+
+        addKey(createKey(TRANSACTION_PREFIX, metadata.getHash()));
+
+        if (m_inBatch)
+        {
+            m_pendingTransactions.put(metadata.getHash(), metadata);
+        }
+        else
         {
-            throw new StorageException(String.format("Unable to add metadata for transaction '%s'", metadata.getHash()), exception);
+            m_dirty.transactions.put(metadata.getHash(), metadata);
+            flushIfNeeded();
         }
     }
 
@@ -207,9 +440,62 @@ public class LevelDbMetadataProvider implements IMetadataProvider
      * @return The transaction metadata.
      */
     @Override
-    public TransactionMetadata getTransactionMetadata(Sha256Hash id)
+    public synchronized TransactionMetadata getTransactionMetadata(Sha256Hash id)
     {
-        return m_transactionCache.get(id.toString());
+        TransactionMetadata metadata = m_pendingTransactions.get(id);
+
+        if (metadata != null)
+            return metadata;
+
+        byte[] key = createKey(TRANSACTION_PREFIX, id);
+
+        // Most lookups of unknown transactions end here, without touching the database.
+        if (!mightContainKey(key))
+            return null;
+
+        metadata = m_dirty.transactions.get(id);
+
+        if (metadata == null && m_flushing != null)
+            metadata = m_flushing.transactions.get(id);
+
+        if (metadata != null)
+            return metadata;
+
+        metadata = m_transactionCache.get(id);
+
+        if (metadata != null)
+            return metadata;
+
+        byte[] data = m_metadataDatabase.get(key);
+
+        if (data == null)
+        {
+            reportFalsePositive();
+            return null;
+        }
+
+        // The hash is the key of the entry, so it is not part of the serialized metadata.
+        metadata = new TransactionMetadata(data);
+        metadata.setHash(id);
+
+        byte[]        blockHash = getIndexEntry(createRecordKey(metadata.getBlockRecordId()));
+        BlockMetadata block     = blockHash == null ? null : getBlockMetadata(new Sha256Hash(blockHash));
+
+        if (block == null)
+        {
+            s_logger.warn("The block record {} of the transaction {} is missing.", metadata.getBlockRecordId(), id);
+            return null;
+        }
+
+        metadata.setBlockHash(block.getHash());
+        metadata.setBlockHeight(block.getHeight());
+        metadata.setBlockFile(block.getBlockSegment());
+        metadata.setBlockPosition(block.getBlockOffset());
+        metadata.setTimestamp(block.getHeader().getTimeStamp());
+
+        m_transactionCache.put(id, metadata, TX_ENTRY_SIZE);
+
+        return metadata;
     }
 
     /**
@@ -222,7 +508,7 @@ public class LevelDbMetadataProvider implements IMetadataProvider
     @Override
     public boolean hasTransaction(Sha256Hash sha256Hash)
     {
-        return m_transactionCache.containsKey(sha256Hash.toString());
+        return getTransactionMetadata(sha256Hash) != null;
     }
 
     /**
@@ -232,24 +518,28 @@ public class LevelDbMetadataProvider implements IMetadataProvider
      * @param output The unspent outputs to be added.
      */
     @Override
-    public boolean addUnspentOutput(UnspentTransactionOutput output) throws StorageException
+    public synchronized boolean addUnspentOutput(UnspentTransactionOutput output) throws StorageException
     {
-        try
-        {
-            ByteArrayOutputStream key = new ByteArrayOutputStream();
-            key.write(output.getTransactionHash().serialize());
-            key.write(NumberSerializer.serialize(output.getIndex()));
+        OutpointKey key = new OutpointKey(output.getTransactionHash(), output.getIndex());
+
+        if (m_hasAddressIndex)
+            putIndexEntry(createAddressOutputKey(output.getOutput().getLockingParameters(), key), EMPTY_VALUE);
 
-            m_stateDatabase.put(key.toByteArray(), output.serialize());
-            m_utxoCache.put(Convert.toHexString(key.toByteArray()), output);
+        m_outputSetInfo.add(output);
+        addKey(createOutputKey(key));
 
-            s_logger.debug(String.format("Unspent output %s added for transaction '%s'", output.getIndex(), output.getTransactionHash()));
+        if (m_inBatch)
+        {
+            m_pendingCoins.add(key, output);
         }
-        catch (Exception exception)
+        else
         {
-            throw new StorageException(String.format("Unable to add unspent output %s for transaction '%s'", output.getIndex(), output.getTransactionHash()), exception);
+            m_dirty.coins.add(key, output);
+            flushIfNeeded();
         }
 
+        s_logger.debug(String.format("Unspent output %s added for transaction '%s'", output.getIndex(), output.getTransactionHash()));
+
         return true;
     }
 
@@ -260,37 +550,86 @@ public class LevelDbMetadataProvider implements IMetadataProvider
      * @param index The index of the output inside the transaction.
      */
     @Override
-    public UnspentTransactionOutput getUnspentOutput(Sha256Hash id, int index)
+    public synchronized UnspentTransactionOutput getUnspentOutput(Sha256Hash id, int index)
     {
-        UnspentTransactionOutput output;
+        return getUnspentOutput(new OutpointKey(id, index));
+    }
 
-        try
-        {
-            ByteArrayOutputStream key = new ByteArrayOutputStream();
-            key.writeBytes(id.serialize());
-            key.writeBytes(NumberSerializer.serialize(index));
+    /**
+     * Gets an unspent transaction from the provider.
+     *
+     * @param key The outpoint of the unspent output.
+     */
+    private UnspentTransactionOutput getUnspentOutput(OutpointKey key)
+    {
+        if (m_pendingCoins.contains(key))
+            return m_pendingCoins.get(key);
 
-            output = m_utxoCache.get(Convert.toHexString(key.toByteArray()));
-        }
-        catch (Exception exception)
+        byte[] databaseKey = createOutputKey(key);
+
+        // Outputs that never existed (like the inputs of orphan or made up transactions) end here.
+        if (!mightContainKey(databaseKey))
+            return null;
+
+        if (m_dirty.coins.contains(key))
+            return m_dirty.coins.get(key);
+
+        if (m_flushing != null && m_flushing.coins.contains(key))
+            return m_flushing.coins.get(key);
+
+        UnspentTransactionOutput output = m_utxoCache.get(key);
+
+        if (output != null)
+            return output;
+
+        byte[] data = m_metadataDatabase.get(databaseKey);
+
+        if (data == null)
         {
-            // Since ByteArrayOutputStream simply writes to memory, an IOException should never occur. However,
-            // because of the contract of the OutputStream interface, all stream operations define IOException in their
-            // throws clause.
-            throw new IllegalStateException(String.format("Unable to get unspent output %s for transaction '%s'", index, id), exception);
+            reportFalsePositive();
+            return null;
         }
 
+        output = new UnspentTransactionOutput(data);
+        m_utxoCache.put(key, output, getWeight(output));
+
         return output;
     }
 
     /**
-     * Gets all the unspent outputs.
+     * Gets all the unspent outputs. The whole set is loaded in memory; use openUnspentOutputs to iterate over it.
      *
      * @return An array with all the unspent outputs.
      */
-    public List<UnspentTransactionOutput> getUnspentOutputs()
+    public synchronized List<UnspentTransactionOutput> getUnspentOutputs()
     {
-        return new ArrayList<>(m_utxoCache.values());
+        Map<OutpointKey, UnspentTransactionOutput> outputs = new LinkedHashMap<>();
+
+        try (DBIterator iterator = m_metadataDatabase.iterator())
+        {
+            for (iterator.seek(new byte[] { OUTPUT_PREFIX }); iterator.hasNext(); iterator.next())
+            {
+                byte[] key = iterator.peekNext().getKey();
+
+                if (key[0] != OUTPUT_PREFIX)
+                    break;
+
+                outputs.put(new OutpointKey(Arrays.copyOfRange(key, PREFIX_SIZE, key.length)),
+                        new UnspentTransactionOutput(iterator.peekNext().getValue()));
+            }
+        }
+        catch (Exception exception)
+        {
+            s_logger.error("Unable to get UXTOs.", exception);
+        }
+
+        if (m_flushing != null)
+            applyChanges(outputs, m_flushing.coins.getChanges());
+
+        applyChanges(outputs, m_dirty.coins.getChanges());
+        applyChanges(outputs, m_pendingCoins.getChanges());
+
+        return new ArrayList<>(outputs.values());
     }
 
     /**
@@ -300,21 +639,90 @@ public class LevelDbMetadataProvider implements IMetadataProvider
      *
      * @return An array with all the unspent outputs related to a given public address.
      */
-    public List<UnspentTransactionOutput> getUnspentOutputsForAddress(Address address)
+    public synchronized List<UnspentTransactionOutput> getUnspentOutputsForAddress(Address address)
+            throws StorageException
     {
         ArrayList<UnspentTransactionOutput> result = new ArrayList<>();
 
-        Collection<UnspentTransactionOutput> outputs = m_utxoCache.values();
+        if (m_hasAddressIndex)
+        {
+            for (byte[] key : scanIndex(createAddressKey(ADDRESS_PREFIX, address.getPublicHash())))
+            {
+                UnspentTransactionOutput output = getUnspentOutput(
+                        new OutpointKey(Arrays.copyOfRange(key, key.length - OutpointKey.SIZE, key.length)));
+
+                if (output != null)
+                    result.add(output);
+            }
+
+            return result;
+        }
 
-        for (UnspentTransactionOutput output : outputs)
+        try (UnspentOutputsCursor cursor = openUnspentOutputs(null, null))
         {
-            if (Arrays.equals(output.getOutput().getLockingParameters(), address.getPublicHash()))
-                result.add(output);
+            while (cursor.hasNext())
+            {
+                UnspentTransactionOutput output = cursor.next();
+
+                if (Arrays.equals(output.getOutput().getLockingParameters(), address.getPublicHash()))
+                    result.add(output);
+            }
         }
 
         return result;
     }
 
+    /**
+     * Opens a cursor over the committed unspent outputs. The outputs are read in the order of their keys from a
+     * database snapshot; so the set is never loaded in memory, and blocks can still be committed while the cursor is
+     * open. The committed changes that were not flushed yet are copied when the cursor is opened, and merged over the
+     * snapshot; so opening a cursor never waits for a write to the database.
+     *
+     * @param transactionPrefix The first bytes of the ids of the transactions of the outputs; or null to read all
+     *                          the outputs.
+     * @param after             The outpoint the cursor starts after; or null to start from the first output.
+     *
+     * @return The cursor. It must be closed.
+     */
+    @Override
+    public UnspentOutputsCursor openUnspentOutputs(byte[] transactionPrefix, OutpointKey after) throws StorageException
+    {
+        if (transactionPrefix == null)
+            transactionPrefix = EMPTY_VALUE;
+
+        byte[] prefix = ByteBuffer.allocate(PREFIX_SIZE + transactionPrefix.length)
+                .put(OUTPUT_PREFIX)
+                .put(transactionPrefix)
+                .array();
+
+        byte[] start = prefix;
+
+        if (after != null)
+        {
+            // Appending a zero gives the smallest key greater than the outpoint.
+            byte[] next = Arrays.copyOf(createOutputKey(after), PREFIX_SIZE + OutpointKey.SIZE + 1);
+
+            if (Arrays.compareUnsigned(next, prefix) > 0)
+                start = next;
+        }
+
+        Snapshot                                  snapshot;
+        TreeMap<byte[], UnspentTransactionOutput> changes = new TreeMap<>(Arrays::compareUnsigned);
+
+        synchronized (this)
+        {
+            // The flushing changes may or may not be in the snapshot yet; merging them again is harmless.
+            snapshot = m_metadataDatabase.getSnapshot();
+
+            if (m_flushing != null)
+                copyChanges(changes, m_flushing.coins.getChanges(), prefix, start);
+
+            copyChanges(changes, m_dirty.coins.getChanges(), prefix, start);
+        }
+
+        return new UnspentOutputsCursor(m_metadataDatabase, snapshot, changes, prefix, start);
+    }
+
     /**
      * Removes the unspent output transaction from the metadata provider.
      *
@@ -322,92 +730,2011 @@ public class LevelDbMetadataProvider implements IMetadataProvider
      * @param index The index of the output inside the transaction.
      */
     @Override
-    public boolean removeUnspentOutput(Sha256Hash id, int index) throws StorageException
+    public synchronized boolean removeUnspentOutput(Sha256Hash id, int index) throws StorageException
     {
-        try
+        OutpointKey              key    = new OutpointKey(id, index);
+        UnspentTransactionOutput output = getUnspentOutput(key);
+
+        if (output != null)
         {
-            ByteArrayOutputStream key = new ByteArrayOutputStream();
-            key.write(id.serialize());
-            key.write(NumberSerializer.serialize(index));
+            if (m_hasAddressIndex)
+                putIndexEntry(createAddressOutputKey(output.getOutput().getLockingParameters(), key), null);
 
-            m_stateDatabase.delete(key.toByteArray());
-            m_utxoCache.remove(Convert.toHexString(key.toByteArray()));
+            m_outputSetInfo.remove(output);
 
-            s_logger.debug(String.format("Unspent output %s delete for transaction '%s'", index, id));
+            // The key stays in the filter until the next rebuild.
+            ++m_staleKeys;
         }
-        catch (Exception exception)
+
+        if (m_inBatch)
         {
-            throw new StorageException(String.format("Unable to delete unspent output %s for transaction '%s'", index, id), exception);
+            m_pendingCoins.remove(key);
+        }
+        else
+        {
+            m_dirty.coins.remove(key);
+            rebuildKeyFilterIfStale();
+            flushIfNeeded();
         }
 
+        s_logger.debug(String.format("Unspent output %s delete for transaction '%s'", index, id));
+
         return true;
     }
 
     /**
-     * Reads all the metadata on the disk and adds them to a set of maps.
+     * Gets whether this provider maintains the address index.
+     *
+     * @return true if the address index is available; otherwise; false.
      */
-    private void readAllMetadata()
+    @Override
+    public boolean hasAddressIndex()
     {
-        // Read metadata.
-        try (DBIterator iterator = m_metadataDatabase.iterator())
-        {
-            for (iterator.seekToFirst(); iterator.hasNext(); iterator.next())
-            {
-                byte type = iterator.peekNext().getKey()[0];
-                byte[] data = iterator.peekNext().getValue();
+        return m_hasAddressIndex;
+    }
 
-                switch (type)
-                {
-                    case 'b':
-                        BlockMetadata blockMetadata = new BlockMetadata(data);
+    /**
+     * Adds a transaction to the history of an address. Does nothing if the address index is not available.
+     *
+     * @param publicKeyHash The public key hash of the address.
+     * @param height        The height of the block that contains the transaction.
+     * @param id            The id of the transaction.
+     */
+    @Override
+    public synchronized void addAddressHistory(byte[] publicKeyHash, long height, Sha256Hash id) throws StorageException
+    {
+        if (!m_hasAddressIndex)
+            return;
 
-                        byte[] blockMetadataKey = new byte[HASH_SIZE];
-                        System.arraycopy(iterator.peekNext().getKey(), PREFIX_SIZE, blockMetadataKey, 0, HASH_SIZE);
+        putIndexEntry(createHistoryKey(publicKeyHash, height, id), EMPTY_VALUE);
 
-                        m_blocksCache.put(Convert.toHexString(blockMetadataKey), blockMetadata);
-                        break;
-                    case 't':
-                        TransactionMetadata xtMetadata = new TransactionMetadata(data);
+        if (!m_inBatch)
+            flushIfNeeded();
+    }
+
+    /**
+     * Removes a transaction from the history of an address. Does nothing if the address index is not available.
+     *
+     * @param publicKeyHash The public key hash of the address.
+     * @param height        The height of the block that contains the transaction.
+     * @param id            The id of the transaction.
+     */
+    @Override
+    public synchronized void removeAddressHistory(byte[] publicKeyHash, long height, Sha256Hash id) throws StorageException
+    {
+        if (!m_hasAddressIndex)
+            return;
 
-                        byte[] xtMetadataKey = new byte[HASH_SIZE];
-                        System.arraycopy(iterator.peekNext().getKey(), PREFIX_SIZE, xtMetadataKey, 0, HASH_SIZE);
+        putIndexEntry(createHistoryKey(publicKeyHash, height, id), null);
 
-                        m_transactionCache.put(Convert.toHexString(xtMetadataKey), xtMetadata);
-                        break;
-                    default:
-                }
-            }
-        }
-        catch (Exception exception)
+        if (!m_inBatch)
+            flushIfNeeded();
+    }
+
+    /**
+     * Gets the ids of all the transactions of an address, sorted by the height of their blocks.
+     *
+     * @param address The address.
+     *
+     * @return The transaction ids; or an empty list if the address index is not available.
+     */
+    @Override
+    public synchronized List<Sha256Hash> getAddressHistory(Address address)
+    {
+        ArrayList<Sha256Hash> result = new ArrayList<>();
+
+        if (!m_hasAddressIndex)
+            return result;
+
+        for (byte[] key : scanIndex(createAddressKey(HISTORY_PREFIX, address.getPublicHash())))
+            result.add(new Sha256Hash(Arrays.copyOfRange(key, key.length - HASH_SIZE, key.length)));
+
+        return result;
+    }
+
+    /**
+     * Gets the hash of the main chain block at the given height.
+     *
+     * @param height The height of the block.
+     *
+     * @return The hash of the block; or null if the main chain is not that high.
+     */
+    @Override
+    public synchronized Sha256Hash getMainChainHash(long height)
+    {
+        byte[] key = createHeightKey(height);
+
+        // Only the changes of the batch in progress are not yet reflected in the in-memory index.
+        if (m_pendingIndex.containsKey(key))
         {
-            s_logger.error("Unable to get metadata.", exception);
+            byte[] hash = m_pendingIndex.get(key);
+            return hash == null ? null : new Sha256Hash(hash);
         }
 
-        // Read state.
-        try (DBIterator iterator = m_stateDatabase.iterator())
+        return m_mainChain.get(height);
+    }
+
+    /**
+     * Gets the hashes of a range of main chain blocks.
+     *
+     * @param height The height of the first block.
+     * @param count  The maximum amount of hashes to return.
+     *
+     * @return The hashes of the blocks, in ascending order of height. The list is shorter than requested if the
+     * main chain ends before the end of the range.
+     */
+    @Override
+    public synchronized List<Sha256Hash> getMainChainHashes(long height, int count)
+    {
+        List<Sha256Hash> hashes = new ArrayList<>();
+
+        for (long current = Math.max(height, 0); hashes.size() < count; ++current)
         {
-            for (iterator.seekToFirst(); iterator.hasNext(); iterator.next())
-            {
-                byte[] key  = iterator.peekNext().getKey();
-                byte[] data = iterator.peekNext().getValue();
+            Sha256Hash hash = getMainChainHash(current);
 
-                UnspentTransactionOutput output = new UnspentTransactionOutput(data);
+            if (hash == null)
+                break;
 
-                m_utxoCache.put(Convert.toHexString(key), output);
-            }
+            hashes.add(hash);
         }
-        catch (Exception exception)
+
+        return hashes;
+    }
+
+    /**
+     * Sets the hash of the main chain block at the given height.
+     *
+     * @param height The height of the block.
+     * @param hash   The hash of the block.
+     */
+    @Override
+    public synchronized void setMainChainHash(long height, Sha256Hash hash) throws StorageException
+    {
+        putIndexEntry(createHeightKey(height), hash.serialize());
+
+        if (!m_inBatch)
         {
-            s_logger.error("Unable to get UXTOs.", exception);
+            m_mainChain.set(height, hash);
+            flushIfNeeded();
         }
+    }
 
-        // Get chain head.
-        byte[] head = m_metadataDatabase.get(new byte[] { HEAD_PREFIX });
+    /**
+     * Removes the main chain block at the given height. This happens when a block is disconnected from the main chain.
+     *
+     * @param height The height of the block.
+     */
+    @Override
+    public synchronized void removeMainChainHash(long height) throws StorageException
+    {
+        putIndexEntry(createHeightKey(height), null);
 
-        if (head != null)
-            m_headCache = new BlockMetadata(head);
+        if (!m_inBatch)
+        {
+            m_mainChain.remove(height);
+            flushIfNeeded();
+        }
+    }
+
+    /**
+     * Updates the highest block height stored in the block and revert segments of the given block.
+     *
+     * @param metadata The metadata of the block.
+     */
+    @Override
+    public synchronized void updateSegmentHeights(BlockMetadata metadata) throws StorageException
+    {
+        updateSegmentHeight(BLOCK_SEGMENT, metadata.getBlockSegment(), metadata.getHeight());
+        updateSegmentHeight(REVERT_SEGMENT, metadata.getRevertSegment(), metadata.getHeight());
+
+        if (!m_inBatch)
+            flushIfNeeded();
+    }
 
-        s_logger.debug("{} blocks loaded, {} transaction loaded, {} Unspent Outputs loaded.",
-                m_blocksCache.size(), m_transactionCache.size(), m_utxoCache.size());
+    /**
+     * Gets the highest height of the blocks stored in the given block segment.
+     *
+     * @param segment The block segment.
+     *
+     * @return The height; or -1 if it is not known.
+     */
+    @Override
+    public synchronized long getBlockSegmentHeight(int segment)
+    {
+        return getSegmentHeight(BLOCK_SEGMENT, segment);
+    }
+
+    /**
+     * Gets the highest height of the blocks which revert data is stored in the given revert segment.
+     *
+     * @param segment The revert segment.
+     *
+     * @return The height; or -1 if it is not known.
+     */
+    @Override
+    public synchronized long getRevertSegmentHeight(int segment)
+    {
+        return getSegmentHeight(REVERT_SEGMENT, segment);
+    }
+
+    /**
+     * Gets the metadata of all the blocks, on the main chain or not, which data is stored in the given block segments
+     * and that are not marked as pruned yet. The whole block index is scanned, and the pending changes are merged
+     * with the entries in the database.
+     *
+     * @param segments The block segments.
+     *
+     * @return The metadata of the blocks.
+     */
+    @Override
+    public synchronized List<BlockMetadata> getBlocksInSegments(Set<Integer> segments) throws StorageException
+    {
+        Map<Sha256Hash, BlockMetadata> blocks = new HashMap<>();
+
+        try (DBIterator iterator = m_metadataDatabase.iterator())
+        {
+            for (iterator.seek(new byte[] { BLOCK_PREFIX }); iterator.hasNext(); iterator.next())
+            {
+                byte[] key = iterator.peekNext().getKey();
+
+                if (key[0] != BLOCK_PREFIX)
+                    break;
+
+                blocks.put(new Sha256Hash(Arrays.copyOfRange(key, PREFIX_SIZE, key.length)),
+                        new BlockMetadata(iterator.peekNext().getValue()));
+            }
+        }
+        catch (Exception exception)
+        {
+            throw new StorageException("Unable to scan the block index.", exception);
+        }
+
+        if (m_flushing != null)
+            blocks.putAll(m_flushing.blocks);
+
+        blocks.putAll(m_dirty.blocks);
+        blocks.putAll(m_pendingBlocks);
+
+        List<BlockMetadata> result = new ArrayList<>();
+
+        for (BlockMetadata metadata : blocks.values())
+        {
+            if (!metadata.isPruned() && segments.contains(metadata.getBlockSegment()))
+                result.add(metadata);
+        }
+
+        return result;
+    }
+
+    /**
+     * Gets the summary of the unspent outputs set at the last committed chain head.
+     *
+     * @return The summary.
+     */
+    @Override
+    public synchronized UnspentOutputSetInfo getUnspentOutputSetInfo()
+    {
+        UnspentOutputSetInfo info = new UnspentOutputSetInfo(m_committedOutputSet);
+
+        if (m_committedHead != null)
+        {
+            info.setBlockHash(m_committedHead.getHash());
+            info.setHeight(m_committedHead.getHeight());
+        }
+
+        return info;
+    }
+
+    /**
+     * Gets the statistics of the filter that keeps lookups of missing keys from reaching the database.
+     *
+     * @return The key filter statistics; the filter is reported as not active until it is first built.
+     */
+    @Override
+    public synchronized KeyFilterInfo getKeyFilterInfo()
+    {
+        ScalableBloomFilter filter = m_keyFilter;
+
+        if (filter == null)
+            return new KeyFilterInfo();
+
+        return new KeyFilterInfo(filter.getCount(), filter.getSizeInBytes(), filter.getQueries(),
+                filter.getNegatives(), filter.getFalsePositives());
+    }
+
+    /**
+     * Writes a snapshot of the unspent outputs to the given stream. The snapshot is taken at the last committed chain
+     * head, and also contains the headers of the main chain up to that block; so a new node can start from it.
+     *
+     * The layout of the snapshot is: the magic and the format version; the height and hash of the chain head and the
+     * amount of unspent outputs; the main chain headers from the genesis block up; the unspent outputs sorted by key
+     * (the 36 bytes outpoint, the size of the output as a varint and the output) and the SHA-256 of all the preceding
+     * bytes.
+     *
+     * The database is only locked while the pending changes are flushed; the outputs are read from a database
+     * snapshot, so blocks can still be committed while the snapshot is written.
+     *
+     * @param stream The stream.
+     *
+     * @return The summary of the unspent outputs in the snapshot, taken at its chain head.
+     */
+    @Override
+    public UnspentOutputSetInfo dumpUnspentOutputs(OutputStream stream) throws StorageException
+    {
+        BlockMetadata        head;
+        UnspentOutputSetInfo info;
+        List<Sha256Hash>     hashes = new ArrayList<>();
+        Snapshot             snapshot;
+
+        synchronized (this)
+        {
+            if (m_committedHead == null)
+                throw new StorageException("There is no chain to take a snapshot of.");
+
+            flush();
+
+            head = m_committedHead;
+            info = getUnspentOutputSetInfo();
+
+            for (long height = 0; height <= head.getHeight(); ++height)
+                hashes.add(m_mainChain.get(height));
+
+            snapshot = m_metadataDatabase.getSnapshot();
+        }
+
+        ReadOptions options = new ReadOptions().snapshot(snapshot).fillCache(false);
+
+        try
+        {
+            MessageDigest    digest = MessageDigest.getInstance("SHA-256");
+            DataOutputStream output = new DataOutputStream(new DigestOutputStream(stream, digest));
+
+            output.writeInt(SNAPSHOT_MAGIC);
+            output.writeByte(SNAPSHOT_VERSION);
+            output.writeLong(head.getHeight());
+            output.write(head.getHash().serialize());
+            output.writeLong(countEntries(OUTPUT_PREFIX, options));
+
+            for (Sha256Hash hash : hashes)
+            {
+                BlockMetadata metadata = new BlockMetadata(m_metadataDatabase.get(createKey(BLOCK_PREFIX, hash), options));
+                output.write(metadata.getHeader().serialize());
+            }
+
+            try (DBIterator iterator = m_metadataDatabase.iterator(options))
+            {
+                for (iterator.seek(new byte[] { OUTPUT_PREFIX }); iterator.hasNext(); iterator.next())
+                {
+                    Map.Entry<byte[], byte[]> entry = iterator.peekNext();
+
+                    if (entry.getKey()[0] != OUTPUT_PREFIX)
+                        break;
+
+                    output.write(entry.getKey(), PREFIX_SIZE, OutpointKey.SIZE);
+                    output.write(NumberSerializer.serializeVarInt(entry.getValue().length));
+                    output.write(entry.getValue());
+                }
+            }
+
+            output.flush();
+
+            stream.write(digest.digest());
+            stream.flush();
+        }
+        catch (Exception exception)
+        {
+            throw new StorageException("Unable to write the unspent outputs snapshot.", exception);
+        }
+        finally
+        {
+            closeSnapshot(snapshot);
+        }
+
+        s_logger.info("Unspent outputs snapshot written at height {} (commitment {}).",
+                head.getHeight(), info.getCommitment());
+
+        return info;
+    }
+
+    /**
+     * Loads a snapshot of the unspent outputs written by dumpUnspentOutputs. The outputs are written straight to the
+     * database, in sorted batches; and the headers of the snapshot become the main chain. The blocks of the snapshot
+     * are marked as pruned, since their data is not available.
+     *
+     * The snapshot can only be loaded into an empty database. A marker is kept in the database until the chain head
+     * of the snapshot is written; the outputs of a load that did not finish are deleted when the database is opened.
+     *
+     * The checksum of the snapshot only protects it against corruption; the outputs are trusted because their
+     * commitment matches the expected one, which must come from outside the snapshot (the network parameters or the
+     * node operator). Nothing is kept if it does not match.
+     *
+     * @param stream     The stream.
+     * @param params     The parameters of the network the snapshot must belong to.
+     * @param commitment The expected commitment to the unspent outputs of the snapshot; or null to use the one the
+     *                   network parameters know for the height of the snapshot.
+     *
+     * @return The new chain head.
+     */
+    @Override
+    public synchronized BlockMetadata loadUnspentOutputs(InputStream stream, NetworkParameters params,
+                                                         Sha256Hash commitment) throws StorageException
+    {
+        if (m_headCache != null)
+            throw new StorageException("Unspent outputs snapshots can only be loaded into an empty database.");
+
+        List<BlockMetadata>  chain;
+        UnspentOutputSetInfo info;
+
+        try
+        {
+            MessageDigest   digest = MessageDigest.getInstance("SHA-256");
+            DataInputStream input  = new DataInputStream(new DigestInputStream(stream, digest));
+
+            if (input.readInt() != SNAPSHOT_MAGIC || input.readByte() != SNAPSHOT_VERSION)
+                throw new StorageException("Unknown unspent outputs snapshot format.");
+
+            long       height = input.readLong();
+            Sha256Hash tip    = readHash(input);
+            long       count  = input.readLong();
+
+            Sha256Hash expected = commitment != null ? commitment : params.getOutputSetCommitment(height);
+
+            if (expected == null)
+            {
+                throw new StorageException(String.format(
+                        "No commitment is known for a snapshot at height %s; it must be given explicitly.", height));
+            }
+
+            chain = readSnapshotHeaders(input, height, params);
+
+            if (!chain.get(0).getHash().equals(params.getGenesisBlock().getHeaderHash()))
+                throw new StorageException("The snapshot belongs to a different chain.");
+
+            if (!chain.get(chain.size() - 1).getHash().equals(tip))
+                throw new StorageException("The headers of the snapshot do not lead to its chain head.");
+
+            m_metadataDatabase.put(new byte[] { SNAPSHOT_LOAD_KEY }, EMPTY_VALUE, SYNC_WRITE);
+
+            try
+            {
+                info = readSnapshotOutputs(input, count);
+
+                // The trailer is read from the underlying stream, so it is not part of the digest.
+                if (!Arrays.equals(digest.digest(), stream.readNBytes(HASH_SIZE)))
+                    throw new StorageException("The unspent outputs snapshot is corrupted.");
+
+                if (!info.getCommitment().equals(expected))
+                {
+                    throw new StorageException(String.format(
+                            "The unspent outputs of the snapshot do not match the expected commitment %s (got %s).",
+                            expected, info.getCommitment()));
+                }
+            }
+            catch (Exception exception)
+            {
+                // The database was empty; so nothing but the snapshot outputs must be left.
+                deleteEntries(OUTPUT_PREFIX);
+                deleteEntries(ADDRESS_PREFIX);
+                m_metadataDatabase.delete(new byte[] { SNAPSHOT_LOAD_KEY }, SYNC_WRITE);
+
+                throw exception;
+            }
+        }
+        catch (StorageException exception)
+        {
+            throw exception;
+        }
+        catch (Exception exception)
+        {
+            throw new StorageException("Unable to read the unspent outputs snapshot.", exception);
+        }
+
+        for (BlockMetadata metadata : chain)
+        {
+            addBlockMetadata(metadata);
+            setMainChainHash(metadata.getHeight(), metadata.getHash());
+        }
+
+        BlockMetadata head = chain.get(chain.size() - 1);
+
+        m_outputSetInfo      = info;
+        m_committedOutputSet = info;
+
+        setChainHead(head);
+        flush();
+
+        m_metadataDatabase.delete(new byte[] { SNAPSHOT_LOAD_KEY }, SYNC_WRITE);
+
+        // The outputs were written straight to the database, so the current filter does not know them.
+        m_keyFilter = null;
+        rebuildKeyFilter(info.getCount());
+
+        s_logger.info("Unspent outputs snapshot loaded at height {} (commitment {}).",
+                head.getHeight(), info.getCommitment());
+
+        return head;
+    }
+
+    /**
+     * Starts a batch. All the changes made until the batch is committed are written to the database in a single
+     * atomic write.
+     */
+    @Override
+    public synchronized void beginBatch()
+    {
+        if (m_inBatch)
+            throw new IllegalStateException("A batch is already in progress.");
+
+        m_inBatch       = true;
+        m_outputSetInfo = new UnspentOutputSetInfo(m_committedOutputSet);
+    }
+
+    /**
+     * Commits all the changes of the current batch. The changes are written to the database with the next flush.
+     */
+    @Override
+    public synchronized void commitBatch() throws StorageException
+    {
+        if (!m_inBatch)
+            throw new IllegalStateException("There is no batch in progress.");
+
+        m_dirty.blocks.putAll(m_pendingBlocks);
+        m_dirty.transactions.putAll(m_pendingTransactions);
+        m_dirty.index.putAll(m_pendingIndex);
+        m_pendingCoins.writeTo(m_dirty.coins);
+
+        byte[] heightPrefix = new byte[] { HEIGHT_PREFIX };
+
+        for (Map.Entry<byte[], byte[]> entry : m_pendingIndex.tailMap(heightPrefix).entrySet())
+        {
+            if (!startsWith(entry.getKey(), heightPrefix))
+                break;
+
+            long height = ByteBuffer.wrap(entry.getKey(), PREFIX_SIZE, HEIGHT_SIZE).getLong();
+
+            if (entry.getValue() != null)
+                m_mainChain.set(height, new Sha256Hash(entry.getValue()));
+            else
+                m_mainChain.remove(height);
+        }
+
+        if (m_headCache != m_committedHead)
+        {
+            m_committedHead = m_headCache;
+            m_isHeadDirty   = true;
+        }
+
+        m_committedOutputSet = m_outputSetInfo;
+
+        ++m_unflushedBlocks;
+
+        clearBatch();
+        rebuildKeyFilterIfStale();
+        flushIfNeeded();
+    }
+
+    /**
+     * Discards all the changes of the current batch. If there is no batch in progress, this method does nothing.
+     */
+    @Override
+    public synchronized void discardBatch()
+    {
+        if (!m_inBatch)
+            return;
+
+        m_headCache     = m_committedHead;
+        m_outputSetInfo = m_committedOutputSet;
+
+        clearBatch();
+    }
+
+    /**
+     * Writes all the committed changes to the database in a single atomic write. The changes of a batch in
+     * progress are not written. If the writer thread is writing changes, this method waits for it to finish.
+     */
+    @Override
+    public synchronized void flush() throws StorageException
+    {
+        awaitWriter();
+
+        // A write of the writer thread that failed is retried first, so the changes reach the database in order.
+        if (m_flushing != null)
+        {
+            writeChanges(m_flushing);
+            completeWrite(m_flushing);
+        }
+
+        if (!m_isHeadDirty && m_dirty.isEmpty())
+            return;
+
+        ChangeSet changes = detachChanges();
+
+        writeChanges(changes);
+        completeWrite(changes);
+    }
+
+    /**
+     * Sets the storages the metadata points into. Their pending writes are forced to the storage device before each
+     * write of the metadata, so the database never references entries that could still be lost.
+     *
+     * The end of each storage is written together with the metadata. Entries stored after it were not known to the
+     * database when the node stopped (the blocks of the last unflushed changes after a crash); the blocks are
+     * downloaded and stored again, so these entries are discarded here instead of being kept as duplicates.
+     *
+     * @param storages The storages.
+     */
+    @Override
+    public synchronized void setReferencedStorages(IContiguousStorage... storages) throws StorageException
+    {
+        m_storages = storages;
+
+        byte[] data = m_metadataDatabase.get(new byte[] { STORAGE_END_KEY });
+
+        if (data == null)
+            return;
+
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+
+        if (buffer.getInt() != storages.length)
+        {
+            s_logger.warn("The storages do not match the ones the metadata was written with; they are not truncated.");
+            return;
+        }
+
+        for (IContiguousStorage storage : storages)
+        {
+            StoragePointer end = new StoragePointer();
+            end.segment = buffer.getInt();
+            end.offset  = buffer.getLong();
+
+            storage.truncate(end);
+        }
+    }
+
+    /**
+     * Hands the committed changes to the writer thread if enough blocks were committed since the last flush, or if
+     * the changes grew over the memory budget. Only one set of changes is written at a time; if the writer thread is
+     * still busy with the previous one, this method waits for it.
+     */
+    private void flushIfNeeded() throws StorageException
+    {
+        if (m_unflushedBlocks < m_flushInterval && m_dirty.getSizeInBytes() < m_flushSize)
+            return;
+
+        awaitWriter();
+
+        // The previous write failed; retry it on this thread so the error reaches the caller.
+        if (m_flushing != null)
+        {
+            flush();
+            return;
+        }
+
+        ChangeSet changes = detachChanges();
+
+        m_isWriting = true;
+        m_writer.execute(() -> writeInBackground(changes));
+    }
+
+    /**
+     * Moves the committed changes to the flushing layer, where they stay visible to the readers until they are
+     * written to the database.
+     *
+     * @return The changes to be written.
+     */
+    private ChangeSet detachChanges()
+    {
+        ChangeSet changes = m_dirty;
+
+        changes.head       = m_isHeadDirty ? m_committedHead : null;
+        changes.outputSet  = new UnspentOutputSetInfo(m_committedOutputSet);
+        changes.blockCount = m_unflushedBlocks;
+        changes.ends       = new StoragePointer[m_storages.length];
+
+        // Everything the changes point to was stored before they were detached.
+        for (int i = 0; i < m_storages.length; ++i)
+            changes.ends[i] = m_storages[i].getEnd();
+
+        m_flushing        = changes;
+        m_dirty           = new ChangeSet();
+        m_isHeadDirty     = false;
+        m_unflushedBlocks = 0;
+
+        return changes;
+    }
+
+    /**
+     * Writes a set of changes from the writer thread. If the write fails, the changes are kept in the flushing
+     * layer and the write is retried with the next flush.
+     *
+     * @param changes The changes to be written.
+     */
+    private void writeInBackground(ChangeSet changes)
+    {
+        boolean written = false;
+
+        try
+        {
+            writeChanges(changes);
+            written = true;
+        }
+        catch (StorageException exception)
+        {
+            s_logger.error("Unable to write the metadata changes. The write will be retried with the next flush.", exception);
+        }
+
+        synchronized (this)
+        {
+            if (written)
+                completeWrite(changes);
+
+            m_isWriting = false;
+            notifyAll();
+        }
+    }
+
+    /**
+     * Waits until the writer thread is idle.
+     */
+    private void awaitWriter() throws StorageException
+    {
+        try
+        {
+            while (m_isWriting)
+                wait();
+        }
+        catch (InterruptedException exception)
+        {
+            Thread.currentThread().interrupt();
+            throw new StorageException("Interrupted while waiting for the metadata writer.", exception);
+        }
+    }
+
+    /**
+     * Writes a set of changes to the database in a single atomic write. The changes are not modified once they are
+     * detached, so this method does not need to hold the lock of the provider.
+     *
+     * @param changes The changes to be written.
+     */
+    private void writeChanges(ChangeSet changes) throws StorageException
+    {
+        // The storages only grow at the end, so forcing them now covers every entry the changes point to.
+        for (IContiguousStorage storage : m_storages)
+            storage.flush();
+
+        try (WriteBatch batch = m_metadataDatabase.createWriteBatch())
+        {
+            for (BlockMetadata metadata : changes.blocks.values())
+                batch.put(createKey(BLOCK_PREFIX, metadata.getHash()), metadata.serialize());
+
+            for (TransactionMetadata metadata : changes.transactions.values())
+                batch.put(createKey(TRANSACTION_PREFIX, metadata.getHash()), metadata.serialize());
+
+            for (Map.Entry<OutpointKey, UnspentTransactionOutput> entry : changes.coins.getChanges().entrySet())
+            {
+                if (entry.getValue() == null)
+                    batch.delete(createOutputKey(entry.getKey()));
+                else
+                    batch.put(createOutputKey(entry.getKey()), entry.getValue().serialize());
+            }
+
+            for (Map.Entry<byte[], byte[]> entry : changes.index.entrySet())
+            {
+                if (entry.getValue() != null)
+                    batch.put(entry.getKey(), entry.getValue());
+                else
+                    batch.delete(entry.getKey());
+            }
+
+            if (changes.head != null)
+                batch.put(new byte[] { HEAD_PREFIX }, changes.head.serialize());
+
+            // The summary must always match the outputs on disk.
+            batch.put(new byte[] { OUTPUT_SET_KEY }, changes.outputSet.serialize());
+
+            if (changes.ends.length > 0)
+            {
+                ByteBuffer ends = ByteBuffer.allocate(Integer.BYTES + changes.ends.length * (Integer.BYTES + Long.BYTES));
+                ends.putInt(changes.ends.length);
+
+                for (StoragePointer end : changes.ends)
+                    ends.putInt(end.segment).putLong(end.offset);
+
+                batch.put(new byte[] { STORAGE_END_KEY }, ends.array());
+            }
+
+            m_metadataDatabase.write(batch, SYNC_WRITE);
+        }
+        catch (Exception exception)
+        {
+            throw new StorageException("Unable to write the metadata changes.", exception);
+        }
+
+        s_logger.debug("Metadata flushed: {} blocks, {} transactions and {} outputs in {} committed blocks.",
+                changes.blocks.size(), changes.transactions.size(), changes.coins.getCount(), changes.blockCount);
+    }
+
+    /**
+     * Moves the entries of a set of changes that was written to the database to the read caches, and removes the
+     * flushing layer.
+     *
+     * @param changes The written changes.
+     */
+    private void completeWrite(ChangeSet changes)
+    {
+        for (Map.Entry<Sha256Hash, BlockMetadata> entry : changes.blocks.entrySet())
+            m_blocksCache.put(entry.getKey(), entry.getValue(), BLOCK_ENTRY_SIZE);
+
+        for (Map.Entry<Sha256Hash, TransactionMetadata> entry : changes.transactions.entrySet())
+            m_transactionCache.put(entry.getKey(), entry.getValue(), TX_ENTRY_SIZE);
+
+        for (Map.Entry<OutpointKey, UnspentTransactionOutput> entry : changes.coins.getChanges().entrySet())
+        {
+            if (entry.getValue() == null)
+                m_utxoCache.remove(entry.getKey());
+            else
+                m_utxoCache.put(entry.getKey(), entry.getValue(), getWeight(entry.getValue()));
+        }
+
+        m_flushing = null;
+    }
+
+    /**
+     * Gets the weight of an unspent output in the read cache. Outputs read from the database and outputs moved to
+     * the cache after a write must weigh the same, or the cache would drift away from its capacity.
+     *
+     * @param output The unspent output.
+     *
+     * @return The approximate size of the output in bytes, locking parameters included.
+     */
+    private static int getWeight(UnspentTransactionOutput output)
+    {
+        return OUTPUT_ENTRY_SIZE + output.getOutput().getLockingParameters().length;
+    }
+
+    /**
+     * Clears the pending changes of the current batch.
+     */
+    private void clearBatch()
+    {
+        m_inBatch = false;
+
+        m_pendingBlocks.clear();
+        m_pendingTransactions.clear();
+        m_pendingCoins.clear();
+        m_pendingIndex.clear();
+    }
+
+    /**
+     * Applies a set of changes to a collection of unspent outputs.
+     *
+     * @param outputs The unspent outputs.
+     * @param changes The changes. A null value means the output must be removed.
+     */
+    private static void applyChanges(Map<OutpointKey, UnspentTransactionOutput> outputs,
+                                     Map<OutpointKey, UnspentTransactionOutput> changes)
+    {
+        for (Map.Entry<OutpointKey, UnspentTransactionOutput> entry : changes.entrySet())
+        {
+            if (entry.getValue() == null)
+                outputs.remove(entry.getKey());
+            else
+                outputs.put(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * Copies the changed outputs whose keys start with the given prefix, and are not lower than the given key.
+     *
+     * @param target  The map the changes are copied to, by database key.
+     * @param changes The changes. A null value means the output was deleted.
+     * @param prefix  The prefix of the keys.
+     * @param start   The lowest key.
+     */
+    private static void copyChanges(TreeMap<byte[], UnspentTransactionOutput> target,
+                                    Map<OutpointKey, UnspentTransactionOutput> changes, byte[] prefix, byte[] start)
+    {
+        for (Map.Entry<OutpointKey, UnspentTransactionOutput> entry : changes.entrySet())
+        {
+            byte[] key = createOutputKey(entry.getKey());
+
+            if (startsWith(key, prefix) && Arrays.compareUnsigned(key, start) >= 0)
+                target.put(key, entry.getValue());
+        }
+    }
+
+    /**
+     * Creates the database key of a metadata entry.
+     *
+     * @param prefix The prefix of the entry type.
+     * @param hash   The hash of the block or the transaction.
+     *
+     * @return The key.
+     */
+    private static byte[] createKey(byte prefix, Sha256Hash hash)
+    {
+        return ByteBuffer.allocate(PREFIX_SIZE + HASH_SIZE)
+                .put(prefix)
+                .put(hash.serialize())
+                .array();
+    }
+
+    /**
+     * Creates the key of a block record.
+     *
+     * @param recordId The record id of the block.
+     *
+     * @return The key.
+     */
+    private static byte[] createRecordKey(long recordId)
+    {
+        return ByteBuffer.allocate(PREFIX_SIZE + Long.BYTES)
+                .put(RECORD_PREFIX)
+                .putLong(recordId)
+                .array();
+    }
+
+    /**
+     * Assigns a new record id to a block. If the block was already stored, it keeps its current record id.
+     *
+     * @param metadata The metadata of the block.
+     */
+    private void assignRecordId(BlockMetadata metadata)
+    {
+        BlockMetadata existing = getBlockMetadata(metadata.getHash());
+
+        if (existing != null && existing.getRecordId() != 0)
+        {
+            metadata.setRecordId(existing.getRecordId());
+            return;
+        }
+
+        metadata.setRecordId(m_nextRecordId++);
+
+        putIndexEntry(createRecordKey(metadata.getRecordId()), metadata.getHash().serialize());
+        putIndexEntry(new byte[] { RECORD_COUNTER }, NumberSerializer.serialize(m_nextRecordId));
+    }
+
+    /**
+     * Creates the database key of an unspent output.
+     *
+     * @param key The outpoint of the unspent output.
+     *
+     * @return The key.
+     */
+    private static byte[] createOutputKey(OutpointKey key)
+    {
+        return ByteBuffer.allocate(PREFIX_SIZE + OutpointKey.SIZE)
+                .put(OUTPUT_PREFIX)
+                .put(key.getData())
+                .array();
+    }
+
+    /**
+     * Adds (or removes) an index entry in the current layer.
+     *
+     * @param key   The key of the entry.
+     * @param value The value of the entry; or null to remove it.
+     */
+    private void putIndexEntry(byte[] key, byte[] value)
+    {
+        if (m_inBatch)
+            m_pendingIndex.put(key, value);
+        else
+            m_dirty.index.put(key, value);
+    }
+
+    /**
+     * Gets the value of an index entry. The pending changes take precedence over the entries in the database.
+     *
+     * @param key The key of the entry.
+     *
+     * @return The value of the entry; or null if there is no such entry.
+     */
+    private byte[] getIndexEntry(byte[] key)
+    {
+        if (m_pendingIndex.containsKey(key))
+            return m_pendingIndex.get(key);
+
+        if (m_dirty.index.containsKey(key))
+            return m_dirty.index.get(key);
+
+        if (m_flushing != null && m_flushing.index.containsKey(key))
+            return m_flushing.index.get(key);
+
+        return m_metadataDatabase.get(key);
+    }
+
+    /**
+     * Gets the keys of all the index entries that start with the given prefix. The pending changes are
+     * merged with the entries in the database.
+     *
+     * @param prefix The prefix.
+     *
+     * @return The keys, in order.
+     */
+    private List<byte[]> scanIndex(byte[] prefix)
+    {
+        TreeMap<byte[], byte[]> keys = new TreeMap<>(Arrays::compareUnsigned);
+
+        try (DBIterator iterator = m_metadataDatabase.iterator())
+        {
+            for (iterator.seek(prefix); iterator.hasNext(); iterator.next())
+            {
+                byte[] key = iterator.peekNext().getKey();
+
+                if (!startsWith(key, prefix))
+                    break;
+
+                keys.put(key, EMPTY_VALUE);
+            }
+        }
+        catch (Exception exception)
+        {
+            s_logger.error("Unable to scan the address index.", exception);
+        }
+
+        List<TreeMap<byte[], byte[]>> layers = new ArrayList<>();
+
+        if (m_flushing != null)
+            layers.add(m_flushing.index);
+
+        layers.add(m_dirty.index);
+        layers.add(m_pendingIndex);
+
+        for (TreeMap<byte[], byte[]> layer : layers)
+        {
+            for (Map.Entry<byte[], byte[]> entry : layer.tailMap(prefix).entrySet())
+            {
+                if (!startsWith(entry.getKey(), prefix))
+                    break;
+
+                if (entry.getValue() != null)
+                    keys.put(entry.getKey(), EMPTY_VALUE);
+                else
+                    keys.remove(entry.getKey());
+            }
+        }
+
+        return new ArrayList<>(keys.keySet());
+    }
+
+    /**
+     * Checks whether the bytes of a key start with the given prefix.
+     *
+     * @param key    The key.
+     * @param prefix The prefix.
+     *
+     * @return true if the key starts with the prefix; otherwise; false.
+     */
+    private static boolean startsWith(byte[] key, byte[] prefix)
+    {
+        return key.length >= prefix.length && Arrays.equals(key, 0, prefix.length, prefix, 0, prefix.length);
+    }
+
+    /**
+     * Creates the common prefix of the address index keys of an address. The public key hash is preceded by its
+     * length, so the hash of an address is never a prefix of the hash of another.
+     *
+     * @param prefix        The prefix of the entry type.
+     * @param publicKeyHash The public key hash of the address.
+     *
+     * @return The key prefix.
+     */
+    private static byte[] createAddressKey(byte prefix, byte[] publicKeyHash)
+    {
+        return ByteBuffer.allocate(PREFIX_SIZE + 1 + publicKeyHash.length)
+                .put(prefix)
+                .put((byte)publicKeyHash.length)
+                .put(publicKeyHash)
+                .array();
+    }
+
+    /**
+     * Creates the address index key of an unspent output.
+     *
+     * @param publicKeyHash The public key hash of the address.
+     * @param outpoint      The outpoint of the unspent output.
+     *
+     * @return The key.
+     */
+    private static byte[] createAddressOutputKey(byte[] publicKeyHash, OutpointKey outpoint)
+    {
+        byte[] prefix = createAddressKey(ADDRESS_PREFIX, publicKeyHash);
+
+        return ByteBuffer.allocate(prefix.length + OutpointKey.SIZE)
+                .put(prefix)
+                .put(outpoint.getData())
+                .array();
+    }
+
+    /**
+     * Creates the address index key of a transaction in the history of an address. The height is stored in big
+     * endian, so the history of an address is sorted by height.
+     *
+     * @param publicKeyHash The public key hash of the address.
+     * @param height        The height of the block that contains the transaction.
+     * @param id            The id of the transaction.
+     *
+     * @return The key.
+     */
+    private static byte[] createHistoryKey(byte[] publicKeyHash, long height, Sha256Hash id)
+    {
+        byte[] prefix = createAddressKey(HISTORY_PREFIX, publicKeyHash);
+
+        return ByteBuffer.allocate(prefix.length + HEIGHT_SIZE + HASH_SIZE)
+                .put(prefix)
+                .putLong(height)
+                .put(id.getData())
+                .array();
+    }
+
+    /**
+     * Creates the key of a main chain block in the height index. The height is stored in big endian, so the entries
+     * are sorted by height.
+     *
+     * @param height The height of the block.
+     *
+     * @return The key.
+     */
+    private static byte[] createHeightKey(long height)
+    {
+        return ByteBuffer.allocate(PREFIX_SIZE + HEIGHT_SIZE)
+                .put(HEIGHT_PREFIX)
+                .putLong(height)
+                .array();
+    }
+
+    /**
+     * Reads the main chain headers of an unspent outputs snapshot, and creates the metadata of their blocks. The
+     * headers must link to each other and carry a valid proof of work; the difficulty can only change at the
+     * adjustment intervals.
+     *
+     * @param input  The snapshot stream.
+     * @param height The height of the chain head of the snapshot.
+     * @param params The parameters of the network the snapshot must belong to.
+     *
+     * @return The metadata of the blocks, starting from the genesis block.
+     */
+    private static List<BlockMetadata> readSnapshotHeaders(DataInputStream input, long height, NetworkParameters params)
+            throws IOException, StorageException
+    {
+        List<BlockMetadata> chain  = new ArrayList<>();
+        byte[]              header = new byte[BLOCK_HEADER_SIZE];
+
+        for (long current = 0; current <= height; ++current)
+        {
+            input.readFully(header);
+
+            BlockMetadata metadata = new BlockMetadata();
+            metadata.setHeader(new BlockHeader(ByteBuffer.wrap(header)));
+            metadata.setHeight(current);
+            metadata.setStatus(BlockMetadata.STATUS_PRUNED);
+
+            BigInteger target = Block.unpackDifficulty(metadata.getHeader().getBits());
+
+            if (target.signum() <= 0 || target.compareTo(params.getProofOfWorkLimit()) > 0 ||
+                    metadata.getHash().toBigInteger().compareTo(target) > 0)
+                throw new StorageException(String.format("The snapshot header at height %s has an invalid proof of work.", current));
+
+            BigInteger work = new Block(metadata.getHeader(), new ArrayList<>()).getWork();
+
+            if (current == 0)
+            {
+                metadata.setTotalWork(work);
+            }
+            else
+            {
+                BlockMetadata parent = chain.get((int)current - 1);
+
+                if (!metadata.getHeader().getParentBlockHash().equals(parent.getHash()))
+                    throw new StorageException(String.format("The snapshot header at height %s does not link to its parent.", current));
+
+                if (current % params.getDifficulAdjustmentInterval() != 0 &&
+                        metadata.getHeader().getBits() != parent.getHeader().getBits())
+                    throw new StorageException(String.format("The snapshot header at height %s changes the difficulty.", current));
+
+                metadata.setTotalWork(parent.getTotalWork().add(work));
+                metadata.setSkipHash(chain.get((int)BlockMetadata.getSkipHeight(current)).getHash());
+            }
+
+            chain.add(metadata);
+        }
+
+        return chain;
+    }
+
+    /**
+     * Reads the unspent outputs of a snapshot and writes them to the database. The outputs are sorted by key in the
+     * snapshot, so the writes are sequential.
+     *
+     * @param input The snapshot stream.
+     * @param count The amount of outputs in the snapshot.
+     *
+     * @return The summary of the loaded outputs.
+     */
+    private UnspentOutputSetInfo readSnapshotOutputs(DataInputStream input, long count) throws IOException
+    {
+        UnspentOutputSetInfo info    = new UnspentOutputSetInfo();
+        WriteBatch           batch   = m_metadataDatabase.createWriteBatch();
+        int                  batched = 0;
+        byte[]               key     = new byte[OutpointKey.SIZE];
+
+        try
+        {
+            for (long i = 0; i < count; ++i)
+            {
+                input.readFully(key);
+
+                byte[] value = new byte[(int)readVarInt(input)];
+                input.readFully(value);
+
+                OutpointKey              outpoint = new OutpointKey(key);
+                UnspentTransactionOutput output   = new UnspentTransactionOutput(value);
+
+                batch.put(createOutputKey(outpoint), value);
+                info.add(output);
+
+                if (m_hasAddressIndex)
+                    batch.put(createAddressOutputKey(output.getOutput().getLockingParameters(), outpoint), EMPTY_VALUE);
+
+                if (++batched >= SNAPSHOT_BATCH)
+                {
+                    m_metadataDatabase.write(batch);
+                    batch.close();
+
+                    batch   = m_metadataDatabase.createWriteBatch();
+                    batched = 0;
+                }
+            }
+
+            m_metadataDatabase.write(batch, SYNC_WRITE);
+        }
+        finally
+        {
+            batch.close();
+        }
+
+        return info;
+    }
+
+    /**
+     * Reads a varint from a stream.
+     *
+     * @param input The stream.
+     *
+     * @return The number.
+     */
+    private static long readVarInt(DataInputStream input) throws IOException
+    {
+        long result = 0;
+
+        for (int shift = 0; shift < Long.SIZE; shift += 7)
+        {
+            byte current = input.readByte();
+
+            result |= (long)(current & 0x7F) << shift;
+
+            if ((current & 0x80) == 0)
+                return result;
+        }
+
+        throw new IOException("Variable length integer is too long.");
+    }
+
+    /**
+     * Reads a hash from a stream.
+     *
+     * @param input The stream.
+     *
+     * @return The hash.
+     */
+    private static Sha256Hash readHash(DataInputStream input) throws IOException
+    {
+        byte[] hash = new byte[HASH_SIZE];
+        input.readFully(hash);
+
+        return new Sha256Hash(hash);
+    }
+
+    /**
+     * Adds a key to the key filter, and to the filter being built if there is one.
+     *
+     * @param key The database key.
+     */
+    private void addKey(byte[] key)
+    {
+        if (m_keyFilter != null)
+            m_keyFilter.add(key);
+
+        if (m_nextKeyFilter != null)
+            m_nextKeyFilter.add(key);
+    }
+
+    /**
+     * Gets whether the given key might be in the database. Without a key filter every key might be.
+     *
+     * @param key The database key.
+     *
+     * @return false if the key is surely not in the database; otherwise; true.
+     */
+    private boolean mightContainKey(byte[] key)
+    {
+        return m_keyFilter == null || m_keyFilter.mightContain(key);
+    }
+
+    /**
+     * Reports a key the filter let through that was not in the database.
+     */
+    private void reportFalsePositive()
+    {
+        if (m_keyFilter != null)
+            m_keyFilter.reportFalsePositive();
+    }
+
+    /**
+     * Rebuilds the key filter when more than half of its keys belong to spent outputs. The current filter keeps
+     * answering the lookups while the new one is built.
+     */
+    private void rebuildKeyFilterIfStale()
+    {
+        if (m_keyFilter == null || m_isFilterBuilding || m_staleKeys <= m_keyFilter.getCount() / 2)
+            return;
+
+        rebuildKeyFilter(m_keyFilter.getCount() - m_staleKeys);
+    }
+
+    /**
+     * Starts building a new key filter in the background. A build started before is discarded.
+     *
+     * @param expectedCount The amount of keys the filter is expected to hold.
+     */
+    private void rebuildKeyFilter(long expectedCount)
+    {
+        long generation = ++m_filterGeneration;
+
+        m_isFilterBuilding = true;
+        m_staleKeys        = 0;
+
+        m_filterBuilder.execute(() -> buildKeyFilter(generation, expectedCount));
+    }
+
+    /**
+     * Builds the filter over the keys of the unspent outputs and the transactions, from the builder thread. The
+     * filter is built from a database snapshot and every layer of changes in front of it, and it receives the keys
+     * added while it is built; so it has all the keys a reader can find, plus (at most) the keys of the outputs
+     * spent in the layers that are not in the database yet.
+     *
+     * @param generation    The build generation. The filter is dropped if another build started after this one.
+     * @param expectedCount The amount of keys the filter is expected to hold.
+     */
+    private void buildKeyFilter(long generation, long expectedCount)
+    {
+        ScalableBloomFilter filter = new ScalableBloomFilter(expectedCount * FILTER_HEADROOM, FILTER_FP_RATE);
+        Snapshot            snapshot;
+
+        synchronized (this)
+        {
+            if (generation != m_filterGeneration)
+                return;
+
+            m_nextKeyFilter = filter;
+            snapshot        = m_metadataDatabase.getSnapshot();
+
+            List<ChangeSet> layers = new ArrayList<>();
+
+            if (m_flushing != null)
+                layers.add(m_flushing);
+
+            layers.add(m_dirty);
+
+            for (ChangeSet layer : layers)
+                addKeys(filter, layer.coins, layer.transactions);
+
+            addKeys(filter, m_pendingCoins, m_pendingTransactions);
+        }
+
+        boolean built = false;
+
+        try (DBIterator iterator = m_metadataDatabase.iterator(new ReadOptions().snapshot(snapshot).fillCache(false)))
+        {
+            for (byte prefix : new byte[] { OUTPUT_PREFIX, TRANSACTION_PREFIX })
+            {
+                for (iterator.seek(new byte[] { prefix }); iterator.hasNext(); iterator.next())
+                {
+                    byte[] key = iterator.peekNext().getKey();
+
+                    if (key[0] != prefix)
+                        break;
+
+                    filter.add(key);
+                }
+            }
+
+            built = true;
+        }
+        catch (Exception exception)
+        {
+            s_logger.error("Unable to build the key filter. The lookups will go to the database.", exception);
+        }
+        finally
+        {
+            closeSnapshot(snapshot);
+        }
+
+        synchronized (this)
+        {
+            if (generation != m_filterGeneration)
+                return;
+
+            if (built)
+                m_keyFilter = filter;
+
+            m_nextKeyFilter    = null;
+            m_isFilterBuilding = false;
+        }
+
+        if (built)
+            s_logger.debug("Key filter rebuilt with {} keys ({} bytes).", filter.getCount(), filter.getSizeInBytes());
+    }
+
+    /**
+     * Adds the keys of the unspent outputs and the transactions of a layer of changes to the given filter.
+     *
+     * @param filter       The filter.
+     * @param coins        The unspent outputs of the layer.
+     * @param transactions The transactions of the layer.
+     */
+    private static void addKeys(
+            ScalableBloomFilter filter, CoinsViewCache coins, Map<Sha256Hash, TransactionMetadata> transactions)
+    {
+        for (Map.Entry<OutpointKey, UnspentTransactionOutput> entry : coins.getChanges().entrySet())
+        {
+            if (entry.getValue() != null)
+                filter.add(createOutputKey(entry.getKey()));
+        }
+
+        for (Sha256Hash id : transactions.keySet())
+            filter.add(createKey(TRANSACTION_PREFIX, id));
+    }
+
+    /**
+     * Counts the database entries with the given prefix.
+     *
+     * @param prefix  The prefix.
+     * @param options The read options.
+     *
+     * @return The amount of entries.
+     */
+    private long countEntries(byte prefix, ReadOptions options) throws IOException
+    {
+        long count = 0;
+
+        try (DBIterator iterator = m_metadataDatabase.iterator(options))
+        {
+            for (iterator.seek(new byte[] { prefix }); iterator.hasNext(); iterator.next())
+            {
+                if (iterator.peekNext().getKey()[0] != prefix)
+                    break;
+
+                ++count;
+            }
+        }
+
+        return count;
+    }
+
+    /**
+     * Deletes all the database entries with the given prefix.
+     *
+     * @param prefix The prefix.
+     */
+    private void deleteEntries(byte prefix) throws IOException
+    {
+        try (DBIterator iterator = m_metadataDatabase.iterator();
+             WriteBatch batch    = m_metadataDatabase.createWriteBatch())
+        {
+            for (iterator.seek(new byte[] { prefix }); iterator.hasNext(); iterator.next())
+            {
+                byte[] key = iterator.peekNext().getKey();
+
+                if (key[0] != prefix)
+                    break;
+
+                batch.delete(key);
+            }
+
+            m_metadataDatabase.write(batch);
+        }
+    }
+
+    /**
+     * Releases a database snapshot.
+     *
+     * @param snapshot The snapshot.
+     */
+    private static void closeSnapshot(Snapshot snapshot)
+    {
+        try
+        {
+            snapshot.close();
+        }
+        catch (IOException exception)
+        {
+            s_logger.warn("Unable to release the database snapshot.", exception);
+        }
+    }
+
+    /**
+     * Creates the key of the highest block height of a segment.
+     *
+     * @param prefix  The prefix of the storage the segment belongs to.
+     * @param segment The segment.
+     *
+     * @return The key.
+     */
+    private static byte[] createSegmentKey(byte prefix, int segment)
+    {
+        return ByteBuffer.allocate(PREFIX_SIZE + Integer.BYTES)
+                .put(prefix)
+                .putInt(segment)
+                .array();
+    }
+
+    /**
+     * Gets the highest block height of a segment.
+     *
+     * @param prefix  The prefix of the storage the segment belongs to.
+     * @param segment The segment.
+     *
+     * @return The height; or -1 if it is not known.
+     */
+    private long getSegmentHeight(byte prefix, int segment)
+    {
+        byte[] value = getIndexEntry(createSegmentKey(prefix, segment));
+
+        return value == null ? -1 : ByteBuffer.wrap(value).getLong();
+    }
+
+    /**
+     * Raises the highest block height of a segment to the given height.
+     *
+     * @param prefix  The prefix of the storage the segment belongs to.
+     * @param segment The segment.
+     * @param height  The height of the block stored in the segment.
+     */
+    private void updateSegmentHeight(byte prefix, int segment, long height)
+    {
+        if (getSegmentHeight(prefix, segment) >= height)
+            return;
+
+        putIndexEntry(createSegmentKey(prefix, segment), NumberSerializer.serialize(height));
+    }
+
+    /**
+     * Builds the height index of the main chain if it is missing (for instance, on databases created before the
+     * index was introduced). The chain is walked back from the head until a block already in the index is found.
+     */
+    private void initializeHeightIndex() throws StorageException
+    {
+        if (m_headCache == null || m_metadataDatabase.get(createHeightKey(m_headCache.getHeight())) != null)
+            return;
+
+        s_logger.info("Building the main chain height index.");
+
+        try (WriteBatch batch = m_metadataDatabase.createWriteBatch())
+        {
+            BlockMetadata cursor = m_headCache;
+
+            while (cursor != null)
+            {
+                byte[] key = createHeightKey(cursor.getHeight());
+                byte[] hash = m_metadataDatabase.get(key);
+
+                if (hash != null && Arrays.equals(hash, cursor.getHash().serialize()))
+                    break;
+
+                batch.put(key, cursor.getHash().serialize());
+
+                cursor = cursor.getHeight() == 0 ? null : getBlockMetadata(cursor.getHeader().getParentBlockHash());
+            }
+
+            m_metadataDatabase.write(batch, SYNC_WRITE);
+        }
+        catch (Exception exception)
+        {
+            throw new StorageException("Unable to build the main chain height index.", exception);
+        }
+    }
+
+    /**
+     * Reads the summary of the unspent outputs set. On databases created before the summary was introduced, it is
+     * computed once from all the unspent outputs.
+     */
+    private void initializeOutputSetInfo() throws StorageException
+    {
+        byte[] data = m_metadataDatabase.get(new byte[] { OUTPUT_SET_KEY });
+
+        if (data != null)
+        {
+            m_outputSetInfo      = new UnspentOutputSetInfo(data);
+            m_committedOutputSet = m_outputSetInfo;
+            return;
+        }
+
+        UnspentOutputSetInfo info = new UnspentOutputSetInfo();
+
+        if (m_headCache != null)
+        {
+            s_logger.info("Computing the unspent outputs set commitment.");
+
+            try (DBIterator iterator = m_metadataDatabase.iterator())
+            {
+                for (iterator.seek(new byte[] { OUTPUT_PREFIX }); iterator.hasNext(); iterator.next())
+                {
+                    Map.Entry<byte[], byte[]> entry = iterator.peekNext();
+
+                    if (entry.getKey()[0] != OUTPUT_PREFIX)
+                        break;
+
+                    info.add(new UnspentTransactionOutput(entry.getValue()));
+                }
+
+                m_metadataDatabase.put(new byte[] { OUTPUT_SET_KEY }, info.serialize(), SYNC_WRITE);
+            }
+            catch (Exception exception)
+            {
+                throw new StorageException("Unable to compute the unspent outputs set commitment.", exception);
+            }
+
+            s_logger.info("Unspent outputs set commitment computed: {} outputs.", info.getCount());
+        }
+
+        m_outputSetInfo      = info;
+        m_committedOutputSet = info;
+    }
+
+    /**
+     * Loads the height index of the main chain into memory.
+     */
+    private void loadHeightIndex() throws StorageException
+    {
+        byte[] prefix = new byte[] { HEIGHT_PREFIX };
+
+        try (DBIterator iterator = m_metadataDatabase.iterator())
+        {
+            for (iterator.seek(prefix); iterator.hasNext(); iterator.next())
+            {
+                Map.Entry<byte[], byte[]> entry = iterator.peekNext();
+
+                if (!startsWith(entry.getKey(), prefix))
+                    break;
+
+                long height = ByteBuffer.wrap(entry.getKey(), PREFIX_SIZE, HEIGHT_SIZE).getLong();
+
+                m_mainChain.set(height, new Sha256Hash(entry.getValue()));
+            }
+        }
+        catch (Exception exception)
+        {
+            throw new StorageException("Unable to load the main chain height index.", exception);
+        }
+
+        s_logger.debug("Main chain height index loaded: {} blocks.", m_mainChain.getCount());
+    }
+
+    /**
+     * Checks whether the address index can be used. The index is only complete if it was maintained since the
+     * genesis block; if it is enabled on an existing chain, it will not be used until the metadata is rebuilt.
+     *
+     * @param enabled Whether the address index is enabled in the configuration.
+     *
+     * @return true if the address index is available; otherwise; false.
+     */
+    private boolean initializeAddressIndex(boolean enabled)
+    {
+        byte[] flagKey = new byte[] { ADDRESS_INDEX_FLAG };
+        boolean isComplete = m_metadataDatabase.get(flagKey) != null;
+
+        if (!enabled)
+        {
+            // The index will not be maintained from now on, so it can not be trusted anymore.
+            if (isComplete)
+                m_metadataDatabase.delete(flagKey);
+
+            return false;
+        }
+
+        if (isComplete)
+            return true;
+
+        if (m_headCache == null)
+        {
+            m_metadataDatabase.put(flagKey, EMPTY_VALUE);
+            return true;
+        }
+
+        s_logger.warn("The address index is enabled but was not maintained for the current chain; it will not be used.");
+
+        return false;
+    }
+
+    /**
+     * Rewrites the block and transaction metadata entries written in the legacy format into the current one. The
+     * blocks are assigned their record ids in the process, and the transactions are rewritten to refer to them.
+     *
+     * The migration is done in several writes; each one records the last migrated key, so an interrupted migration
+     * resumes where it stopped.
+     */
+    private void migrateFormat() throws Exception
+    {
+        byte[] version  = m_metadataDatabase.get(new byte[] { FORMAT_KEY });
+        byte[] counter  = m_metadataDatabase.get(new byte[] { RECORD_COUNTER });
+        byte[] progress = m_metadataDatabase.get(new byte[] { MIGRATION_KEY });
+
+        if (counter != null)
+            m_nextRecordId = ByteBuffer.wrap(counter).getLong();
+
+        if (version != null)
+        {
+            if (version[0] != FORMAT_VERSION)
+                throw new StorageException(String.format("Unsupported metadata format version %d.", version[0]));
+
+            return;
+        }
+
+        // A new database.
+        if (progress == null && m_metadataDatabase.get(new byte[] { HEAD_PREFIX }) == null)
+        {
+            m_metadataDatabase.put(new byte[] { FORMAT_KEY }, new byte[] { FORMAT_VERSION });
+            return;
+        }
+
+        s_logger.info("Migrating the block and transaction metadata to the compact format.");
+
+        Map<Sha256Hash, Long> recordIds = new HashMap<>();
+        WriteBatch            batch     = m_metadataDatabase.createWriteBatch();
+        long                  count     = 0;
+
+        // Blocks ('b') come before the head ('h') and the transactions ('t'), so the record id of a block is always
+        // assigned before it is needed.
+        try (DBIterator iterator = m_metadataDatabase.iterator())
+        {
+            for (iterator.seek(progress != null ? progress : new byte[] { BLOCK_PREFIX }); iterator.hasNext(); iterator.next())
+            {
+                byte[] key   = iterator.peekNext().getKey();
+                byte[] value = iterator.peekNext().getValue();
+
+                if (key[0] > TRANSACTION_PREFIX)
+                    break;
+
+                if (progress != null && Arrays.equals(key, progress))
+                    continue;
+
+                if (key[0] == BLOCK_PREFIX)
+                {
+                    BlockMetadata metadata = BlockMetadata.fromLegacyFormat(value);
+                    metadata.setRecordId(m_nextRecordId++);
+
+                    recordIds.put(metadata.getHash(), metadata.getRecordId());
+
+                    batch.put(key, metadata.serialize());
+                    batch.put(createRecordKey(metadata.getRecordId()), metadata.getHash().serialize());
+                }
+                else if (key[0] == HEAD_PREFIX && key.length == PREFIX_SIZE)
+                {
+                    BlockMetadata metadata = BlockMetadata.fromLegacyFormat(value);
+                    metadata.setRecordId(getMigratedRecordId(metadata.getHash(), recordIds));
+
+                    batch.put(key, metadata.serialize());
+                }
+                else if (key[0] == TRANSACTION_PREFIX)
+                {
+                    TransactionMetadata metadata = TransactionMetadata.fromLegacyFormat(value);
+                    long                recordId = getMigratedRecordId(metadata.getBlockHash(), recordIds);
+
+                    if (recordId == 0)
+                    {
+                        s_logger.warn("Dropping the metadata of a transaction in the unknown block {}.", metadata.getBlockHash());
+                        batch.delete(key);
+                    }
+                    else
+                    {
+                        metadata.setBlockRecordId(recordId);
+                        batch.put(key, metadata.serialize());
+                    }
+                }
+                else
+                {
+                    continue;
+                }
+
+                if (++count % MIGRATION_BATCH == 0)
+                {
+                    batch.put(new byte[] { MIGRATION_KEY }, key);
+                    batch.put(new byte[] { RECORD_COUNTER }, NumberSerializer.serialize(m_nextRecordId));
+
+                    m_metadataDatabase.write(batch, SYNC_WRITE);
+                    batch.close();
+
+                    batch = m_metadataDatabase.createWriteBatch();
+
+                    s_logger.info("{} metadata entries migrated.", count);
+                }
+            }
+
+            batch.delete(new byte[] { MIGRATION_KEY });
+            batch.put(new byte[] { RECORD_COUNTER }, NumberSerializer.serialize(m_nextRecordId));
+            batch.put(new byte[] { FORMAT_KEY }, new byte[] { FORMAT_VERSION });
+
+            m_metadataDatabase.write(batch, SYNC_WRITE);
+        }
+        finally
+        {
+            batch.close();
+        }
+
+        s_logger.info("{} metadata entries migrated.", count);
+    }
+
+    /**
+     * Gets the record id assigned to a block during the migration to the current format.
+     *
+     * @param blockHash The hash of the block.
+     * @param recordIds The record ids assigned so far.
+     *
+     * @return The record id; or 0 if the block is unknown.
+     */
+    private long getMigratedRecordId(Sha256Hash blockHash, Map<Sha256Hash, Long> recordIds)
+    {
+        Long recordId = recordIds.get(blockHash);
+
+        if (recordId != null)
+            return recordId;
+
+        // The block was migrated before the migration was interrupted.
+        byte[] data = m_metadataDatabase.get(createKey(BLOCK_PREFIX, blockHash));
+
+        return data == null ? 0 : new BlockMetadata(data).getRecordId();
+    }
+
+    /**
+     * Moves the unspent outputs of the old state database into the metadata database, and then deletes the old
+     * database.
+     *
+     * The outputs are moved in batches; the key of the last output moved is written with each batch, so an
+     * interrupted migration resumes after it. The old database is only deleted once the last batch is on disk.
+     *
+     * @param path    The path of the old state database.
+     * @param options The database options.
+     */
+    private void migrateState(File path, Options options) throws Exception
+    {
+        byte[] progress = m_metadataDatabase.get(new byte[] { STATE_PROGRESS_KEY });
+        long   count    = 0;
+
+        s_logger.info("Migrating the unspent outputs to the metadata database.");
+
+        try (DB state = factory.open(path, options); DBIterator iterator = state.iterator())
+        {
+            WriteBatch batch = m_metadataDatabase.createWriteBatch();
+            byte[]     last  = progress;
+
+            if (progress != null)
+                iterator.seek(progress);
+            else
+                iterator.seekToFirst();
+
+            try
+            {
+                for (; iterator.hasNext(); iterator.next())
+                {
+                    Map.Entry<byte[], byte[]> entry = iterator.peekNext();
+
+                    if (progress != null && Arrays.equals(entry.getKey(), progress))
+                        continue;
+
+                    batch.put(createOutputKey(new OutpointKey(entry.getKey())), entry.getValue());
+                    last = entry.getKey();
+
+                    if (++count % MIGRATION_BATCH == 0)
+                    {
+                        batch.put(new byte[] { STATE_PROGRESS_KEY }, last);
+
+                        m_metadataDatabase.write(batch, SYNC_WRITE);
+                        batch.close();
+
+                        batch = m_metadataDatabase.createWriteBatch();
+
+                        s_logger.info("{} unspent outputs migrated.", count);
+                    }
+                }
+
+                if (last != null)
+                    batch.put(new byte[] { STATE_PROGRESS_KEY }, last);
+
+                m_metadataDatabase.write(batch, SYNC_WRITE);
+            }
+            finally
+            {
+                batch.close();
+            }
+        }
+
+        factory.destroy(path, options);
+        m_metadataDatabase.delete(new byte[] { STATE_PROGRESS_KEY }, SYNC_WRITE);
+
+        s_logger.info("{} unspent outputs migrated.", count);
+    }
+
+    /**
+     * Deletes the outputs written by a snapshot load that did not finish. If the chain head of the snapshot was
+     * already written, the load did finish and only the marker is left.
+     */
+    private void recoverSnapshotLoad() throws IOException
+    {
+        if (m_metadataDatabase.get(new byte[] { SNAPSHOT_LOAD_KEY }) == null)
+            return;
+
+        if (m_headCache == null)
+        {
+            s_logger.warn("The last unspent outputs snapshot load did not finish. Deleting the loaded outputs...");
+
+            deleteEntries(OUTPUT_PREFIX);
+            deleteEntries(ADDRESS_PREFIX);
+        }
+
+        m_metadataDatabase.delete(new byte[] { SNAPSHOT_LOAD_KEY }, SYNC_WRITE);
+    }
+
+    /**
+     * Reads the chain head from the disk. The rest of the metadata is loaded lazily as it is requested.
+     */
+    private void readChainHead()
+    {
+        byte[] head = m_metadataDatabase.get(new byte[] { HEAD_PREFIX });
+
+        if (head != null)
+            m_headCache = new BlockMetadata(head);
+
+        s_logger.debug("Chain head loaded: {}", m_headCache == null ? "none" : m_headCache.getHash());
+    }
+
+    /**
+     * Committed metadata changes that are written to the database together.
+     */
+    private static class ChangeSet
+    {
+        final Map<Sha256Hash, BlockMetadata>       blocks       = new HashMap<>();
+        final Map<Sha256Hash, TransactionMetadata> transactions = new HashMap<>();
+        final CoinsViewCache                       coins        = new CoinsViewCache();
+        final TreeMap<byte[], byte[]>              index        = new TreeMap<>(Arrays::compareUnsigned);
+        BlockMetadata                              head;       // Null if the head did not change.
+        UnspentOutputSetInfo                       outputSet;
+        int                                        blockCount;
+        StoragePointer[]                           ends;       // End of the referenced storages when detached.
+
+        /**
+         * Gets whether there are no changes in this set.
+         *
+         * @return true if the set is empty; otherwise; false.
+         */
+        boolean isEmpty()
+        {
+            return blocks.isEmpty() && transactions.isEmpty() && coins.getCount() == 0 && index.isEmpty();
+        }
+
+        /**
+         * Gets the approximate size in bytes of the changes in this set.
+         *
+         * @return The size in bytes.
+         */
+        long getSizeInBytes()
+        {
+            return coins.getSizeInBytes() +
+                    (long)index.size() * INDEX_ENTRY_SIZE +
+                    (long)blocks.size() * BLOCK_ENTRY_SIZE +
+                    (long)transactions.size() * TX_ENTRY_SIZE;
+        }
     }
 }
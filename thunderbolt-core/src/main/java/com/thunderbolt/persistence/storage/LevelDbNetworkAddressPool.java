@@ -74,8 +74,18 @@ public class LevelDbNetworkAddressPool implements INetworkAddressPool
      */
     public LevelDbNetworkAddressPool(Path path) throws StorageException
     {
-        Options options = new Options();
-        options.createIfMissing(true);
+        this(path, new LevelDbSettings());
+    }
+
+    /**
+     * Initializes a new instance of the LevelDbNetworkAddressPool class.
+     *
+     * @param path     The path where the databases are located.
+     * @param settings The tuning parameters of the database.
+     */
+    public LevelDbNetworkAddressPool(Path path, LevelDbSettings settings) throws StorageException
+    {
+        Options options = settings.toOptions();
         options.logger(s_logger::debug);
 
         try
@@ -0,0 +1,95 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2018 Angel Castillo.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.thunderbolt.persistence.storage;
+/* IMPORTS *******************************************************************/
+
+import org.iq80.leveldb.CompressionType;
+import org.iq80.leveldb.Options;
+import org.iq80.leveldb.table.BloomFilterPolicy;
+
+/* IMPLEMENTATION ************************************************************/
+
+/**
+ * Tuning parameters of the LevelDB databases. The defaults match the ones of LevelDB, plus a bloom filter of 10 bits
+ * per key; which spares most of the disk reads of the lookups of keys that are not in the database (like the
+ * outputs of a new transaction, which are never in the unspent outputs set).
+ */
+public class LevelDbSettings
+{
+    // Constants
+    private static final long BYTES_PER_MB = 1024 * 1024;
+
+    // Instance fields.
+    private final long    m_cacheSize;
+    private final long    m_writeBufferSize;
+    private final int     m_bloomBits;
+    private final boolean m_compression;
+
+    /**
+     * Initializes a new instance of the LevelDbSettings class with the default values.
+     */
+    public LevelDbSettings()
+    {
+        this(8, 4, 10, true);
+    }
+
+    /**
+     * Initializes a new instance of the LevelDbSettings class.
+     *
+     * @param cacheSize       The size in megabytes of the cache of uncompressed table blocks.
+     * @param writeBufferSize The size in megabytes of the memory table; bigger buffers mean fewer but larger tables.
+     * @param bloomBits       The amount of bits per key of the bloom filters of the tables; or 0 for no filters.
+     * @param compression     Whether the table blocks are compressed.
+     */
+    public LevelDbSettings(long cacheSize, long writeBufferSize, int bloomBits, boolean compression)
+    {
+        if (cacheSize <= 0 || writeBufferSize <= 0 || bloomBits < 0)
+            throw new IllegalArgumentException("The LevelDB cache and write buffer sizes must be positive, and the bloom bits can not be negative.");
+
+        m_cacheSize       = cacheSize * BYTES_PER_MB;
+        m_writeBufferSize = writeBufferSize * BYTES_PER_MB;
+        m_bloomBits       = bloomBits;
+        m_compression     = compression;
+    }
+
+    /**
+     * Creates the options to open a database with these settings.
+     *
+     * @return The database options.
+     */
+    Options toOptions()
+    {
+        Options options = new Options();
+        options.createIfMissing(true);
+        options.cacheSize(m_cacheSize);
+        options.writeBufferSize((int)m_writeBufferSize);
+        options.compressionType(m_compression ? CompressionType.SNAPPY : CompressionType.NONE);
+
+        if (m_bloomBits > 0)
+            options.filterPolicy(new BloomFilterPolicy(m_bloomBits));
+
+        return options;
+    }
+}
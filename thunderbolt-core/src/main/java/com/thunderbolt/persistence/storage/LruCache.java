@@ -0,0 +1,364 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2018 Angel Castillo.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.thunderbolt.persistence.storage;
+
+/* IMPLEMENTATION ************************************************************/
+
+/**
+ * A size bounded, least recently used cache. Each entry is weighted by an approximation of the memory it uses; when
+ * the total weight exceeds the capacity of the cache, the least recently used entries are evicted.
+ *
+ * The entries are stored in parallel arrays using open addressing with linear probing, so no node objects are
+ * allocated per entry. Recency is approximated with the CLOCK algorithm: every access sets a reference bit, and the
+ * eviction hand gives referenced entries a second chance before evicting them.
+ *
+ * @param <K> The type of the keys.
+ * @param <V> The type of the values.
+ */
+public class LruCache<K, V>
+{
+    // Constants
+    private static final int ENTRY_OVERHEAD   = 64; // Approximate size in bytes of the key and the slot.
+    private static final int INITIAL_CAPACITY = 1024;
+
+    // Instance fields
+    private final long m_capacity;
+    private Object[]   m_keys       = new Object[INITIAL_CAPACITY];
+    private Object[]   m_values     = new Object[INITIAL_CAPACITY];
+    private int[]      m_weights    = new int[INITIAL_CAPACITY];
+    private boolean[]  m_referenced = new boolean[INITIAL_CAPACITY];
+    private int        m_mask       = INITIAL_CAPACITY - 1;
+    private int        m_count;
+    private int        m_hand;
+    private long       m_size;
+    private long       m_hits;
+    private long       m_misses;
+    private long       m_evictions;
+
+    /**
+     * Initializes a new instance of the LruCache class.
+     *
+     * @param capacity The capacity of the cache in bytes.
+     */
+    public LruCache(long capacity)
+    {
+        m_capacity = capacity;
+    }
+
+    /**
+     * Gets the value associated with the given key.
+     *
+     * @param key The key.
+     *
+     * @return The value; or null if the key is not in the cache.
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized V get(K key)
+    {
+        int slot = find(key);
+
+        if (slot < 0)
+        {
+            ++m_misses;
+            return null;
+        }
+
+        ++m_hits;
+        m_referenced[slot] = true;
+
+        return (V)m_values[slot];
+    }
+
+    /**
+     * Adds (or replaces) an entry in the cache.
+     *
+     * @param key    The key.
+     * @param value  The value.
+     * @param weight The approximate size in bytes of the value.
+     */
+    public synchronized void put(K key, V value, int weight)
+    {
+        int slot = find(key);
+
+        if (slot < 0)
+        {
+            if ((m_count + 1) * 2 > m_keys.length)
+                resize(m_keys.length * 2);
+
+            slot = home(key);
+
+            while (m_keys[slot] != null)
+                slot = (slot + 1) & m_mask;
+
+            m_keys[slot] = key;
+            ++m_count;
+        }
+        else
+        {
+            m_size -= m_weights[slot];
+        }
+
+        m_values[slot]     = value;
+        m_weights[slot]    = weight + ENTRY_OVERHEAD;
+        m_referenced[slot] = true;
+        m_size += m_weights[slot];
+
+        evict();
+    }
+
+    /**
+     * Removes the entry with the given key from the cache.
+     *
+     * @param key The key.
+     */
+    public synchronized void remove(K key)
+    {
+        int slot = find(key);
+
+        if (slot >= 0)
+            removeAt(slot);
+    }
+
+    /**
+     * Gets the number of entries in the cache.
+     *
+     * @return The number of entries.
+     */
+    public synchronized int getCount()
+    {
+        return m_count;
+    }
+
+    /**
+     * Gets the approximate size in bytes of all the entries in the cache.
+     *
+     * @return The size in bytes.
+     */
+    public synchronized long getSizeInBytes()
+    {
+        return m_size;
+    }
+
+    /**
+     * Gets the capacity of the cache in bytes.
+     *
+     * @return The capacity.
+     */
+    public long getCapacity()
+    {
+        return m_capacity;
+    }
+
+    /**
+     * Gets the number of lookups that found the key in the cache.
+     *
+     * @return The number of hits.
+     */
+    public synchronized long getHits()
+    {
+        return m_hits;
+    }
+
+    /**
+     * Gets the number of lookups that did not find the key in the cache.
+     *
+     * @return The number of misses.
+     */
+    public synchronized long getMisses()
+    {
+        return m_misses;
+    }
+
+    /**
+     * Gets the number of entries evicted from the cache.
+     *
+     * @return The number of evictions.
+     */
+    public synchronized long getEvictions()
+    {
+        return m_evictions;
+    }
+
+    /**
+     * Creates a string representation of the hash value of this object
+     *
+     * @return The string representation.
+     */
+    @Override
+    public synchronized String toString()
+    {
+        return String.format(
+                "{                    %n" +
+                "  \"count\":      %d,%n" +
+                "  \"size\":       %d,%n" +
+                "  \"capacity\":   %d,%n" +
+                "  \"hits\":       %d,%n" +
+                "  \"misses\":     %d,%n" +
+                "  \"evictions\":  %d%n" +
+                "}",
+                m_count,
+                m_size,
+                m_capacity,
+                m_hits,
+                m_misses,
+                m_evictions);
+    }
+
+    /**
+     * Evicts entries until the cache is within its capacity. Referenced entries get a second chance; their reference
+     * bit is cleared and the hand moves on.
+     */
+    private void evict()
+    {
+        while (m_size > m_capacity && m_count > 0)
+        {
+            if (m_keys[m_hand] == null)
+            {
+                m_hand = (m_hand + 1) & m_mask;
+            }
+            else if (m_referenced[m_hand])
+            {
+                m_referenced[m_hand] = false;
+                m_hand = (m_hand + 1) & m_mask;
+            }
+            else
+            {
+                // The hand is not advanced; removing the entry may shift the next entry of the cluster into this slot.
+                removeAt(m_hand);
+                ++m_evictions;
+            }
+        }
+    }
+
+    /**
+     * Gets the slot where the given key is stored.
+     *
+     * @param key The key.
+     *
+     * @return The slot; or -1 if the key is not in the cache.
+     */
+    private int find(Object key)
+    {
+        int slot = home(key);
+
+        while (m_keys[slot] != null)
+        {
+            if (m_keys[slot].equals(key))
+                return slot;
+
+            slot = (slot + 1) & m_mask;
+        }
+
+        return -1;
+    }
+
+    /**
+     * Gets the preferred slot of the given key.
+     *
+     * @param key The key.
+     *
+     * @return The slot.
+     */
+    private int home(Object key)
+    {
+        int hash = key.hashCode() * 0x9E3779B9;
+        return (hash ^ (hash >>> 16)) & m_mask;
+    }
+
+    /**
+     * Removes the entry at the given slot. The entries that follow it in the same cluster are shifted back, so the
+     * table never contains tombstones.
+     *
+     * @param slot The slot of the entry.
+     */
+    private void removeAt(int slot)
+    {
+        m_size -= m_weights[slot];
+        --m_count;
+
+        int gap  = slot;
+        int next = slot;
+
+        while (true)
+        {
+            next = (next + 1) & m_mask;
+
+            if (m_keys[next] == null)
+                break;
+
+            int home = home(m_keys[next]);
+
+            // The entry can be moved to the gap only if its home slot is not between the gap and its current slot.
+            if (((next - home) & m_mask) >= ((next - gap) & m_mask))
+            {
+                m_keys[gap]       = m_keys[next];
+                m_values[gap]     = m_values[next];
+                m_weights[gap]    = m_weights[next];
+                m_referenced[gap] = m_referenced[next];
+                gap = next;
+            }
+        }
+
+        m_keys[gap]       = null;
+        m_values[gap]     = null;
+        m_weights[gap]    = 0;
+        m_referenced[gap] = false;
+    }
+
+    /**
+     * Grows the table and reinserts all the entries.
+     *
+     * @param length The new length of the table; must be a power of two.
+     */
+    private void resize(int length)
+    {
+        Object[]  keys       = m_keys;
+        Object[]  values     = m_values;
+        int[]     weights    = m_weights;
+        boolean[] referenced = m_referenced;
+
+        m_keys       = new Object[length];
+        m_values     = new Object[length];
+        m_weights    = new int[length];
+        m_referenced = new boolean[length];
+        m_mask       = length - 1;
+        m_hand       = 0;
+
+        for (int i = 0; i < keys.length; ++i)
+        {
+            if (keys[i] == null)
+                continue;
+
+            int slot = home(keys[i]);
+
+            while (m_keys[slot] != null)
+                slot = (slot + 1) & m_mask;
+
+            m_keys[slot]       = keys[i];
+            m_values[slot]     = values[i];
+            m_weights[slot]    = weights[i];
+            m_referenced[slot] = referenced[i];
+        }
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2018 Angel Castillo.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.thunderbolt.persistence.storage;
+
+/* IMPORTS *******************************************************************/
+
+import com.thunderbolt.security.Sha256Hash;
+
+import java.util.Arrays;
+
+/* IMPLEMENTATION ************************************************************/
+
+/**
+ * In-memory copy of the main chain height index. The hashes are stored back to back in a single byte array indexed
+ * by height, so looking up a block by height does not need to touch the database nor allocate more than the
+ * returned hash.
+ */
+public class MainChainIndex
+{
+    // Constants
+    private static final int HASH_SIZE        = 32;
+    private static final int INITIAL_CAPACITY = 1024; // Blocks.
+
+    // Instance fields
+    private byte[] m_hashes = new byte[INITIAL_CAPACITY * HASH_SIZE];
+    private int    m_count  = 0;
+
+    /**
+     * Gets the hash of the main chain block at the given height.
+     *
+     * @param height The height of the block.
+     *
+     * @return The hash of the block; or null if the main chain is not that high.
+     */
+    public Sha256Hash get(long height)
+    {
+        if (height < 0 || height >= m_count)
+            return null;
+
+        int offset = (int)height * HASH_SIZE;
+
+        if (isEmpty(offset))
+            return null;
+
+        return new Sha256Hash(Arrays.copyOfRange(m_hashes, offset, offset + HASH_SIZE));
+    }
+
+    /**
+     * Sets the hash of the main chain block at the given height.
+     *
+     * @param height The height of the block.
+     * @param hash   The hash of the block.
+     */
+    public void set(long height, Sha256Hash hash)
+    {
+        if (height < 0 || height >= Integer.MAX_VALUE / HASH_SIZE)
+            throw new IllegalArgumentException(String.format("Height %d is out of range.", height));
+
+        int index = (int)height;
+
+        if (index >= m_count)
+        {
+            ensureCapacity(index + 1);
+            m_count = index + 1;
+        }
+
+        System.arraycopy(hash.getData(), 0, m_hashes, index * HASH_SIZE, HASH_SIZE);
+    }
+
+    /**
+     * Removes the main chain block at the given height.
+     *
+     * @param height The height of the block.
+     */
+    public void remove(long height)
+    {
+        if (height < 0 || height >= m_count)
+            return;
+
+        int offset = (int)height * HASH_SIZE;
+
+        Arrays.fill(m_hashes, offset, offset + HASH_SIZE, (byte)0);
+
+        // Blocks are disconnected from the tip, so the removed entry is usually the last one.
+        while (m_count > 0 && isEmpty((m_count - 1) * HASH_SIZE))
+            --m_count;
+    }
+
+    /**
+     * Gets the amount of heights in the index; this is the height of the main chain tip plus one.
+     *
+     * @return The amount of heights in the index.
+     */
+    public long getCount()
+    {
+        return m_count;
+    }
+
+    /**
+     * Gets the size in bytes of the memory used by the index.
+     *
+     * @return The size in bytes.
+     */
+    public long getSizeInBytes()
+    {
+        return m_hashes.length;
+    }
+
+    /**
+     * Makes sure the index can hold the given amount of heights without growing.
+     *
+     * @param count The amount of heights.
+     */
+    private void ensureCapacity(int count)
+    {
+        if ((long)count * HASH_SIZE <= m_hashes.length)
+            return;
+
+        long capacity = Math.max((long)count, (long)m_hashes.length / HASH_SIZE * 2);
+
+        m_hashes = Arrays.copyOf(m_hashes, (int)Math.min(capacity * HASH_SIZE, Integer.MAX_VALUE / HASH_SIZE * HASH_SIZE));
+    }
+
+    /**
+     * Checks whether the slot at the given offset is empty.
+     *
+     * @param offset The offset of the slot.
+     *
+     * @return true if the slot is empty; otherwise; false.
+     */
+    private boolean isEmpty(int offset)
+    {
+        for (int i = offset; i < offset + HASH_SIZE; ++i)
+        {
+            if (m_hashes[i] != 0)
+                return false;
+        }
+
+        return true;
+    }
+}
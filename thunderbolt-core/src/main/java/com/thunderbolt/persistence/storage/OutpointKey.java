@@ -0,0 +1,117 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2018 Angel Castillo.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.thunderbolt.persistence.storage;
+
+/* IMPORTS *******************************************************************/
+
+import com.thunderbolt.security.Sha256Hash;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/* IMPLEMENTATION ************************************************************/
+
+/**
+ * Binary key of an unspent output; the 32 bytes of the transaction id followed by the 4 bytes of the output index.
+ * This is the same layout used for the keys of the state database.
+ */
+public final class OutpointKey
+{
+    // Constants
+    public static final int SIZE = 36;
+
+    // Instance fields
+    private final byte[] m_data;
+    private final int    m_hashCode;
+
+    /**
+     * Initializes a new instance of the OutpointKey class.
+     *
+     * @param id    The id of the transaction that contains the output.
+     * @param index The index of the output inside the transaction.
+     */
+    public OutpointKey(Sha256Hash id, int index)
+    {
+        m_data = ByteBuffer.allocate(SIZE)
+                .put(id.getData())
+                .putInt(index)
+                .array();
+
+        m_hashCode = id.hashCode() * 31 + index;
+    }
+
+    /**
+     * Initializes a new instance of the OutpointKey class.
+     *
+     * @param data The 36 bytes of the key, as stored in the database.
+     */
+    public OutpointKey(byte[] data)
+    {
+        if (data.length != SIZE)
+            throw new IllegalArgumentException("Outpoint key must be 36 bytes long.");
+
+        m_data     = Arrays.copyOf(data, SIZE);
+        m_hashCode = new Sha256Hash(Arrays.copyOf(data, SIZE - Integer.BYTES)).hashCode() * 31 +
+                ByteBuffer.wrap(data, SIZE - Integer.BYTES, Integer.BYTES).getInt();
+    }
+
+    /**
+     * Gets the raw bytes of the key.
+     *
+     * @return The key raw data.
+     */
+    public byte[] getData()
+    {
+        return m_data;
+    }
+
+    /**
+     * Compares this key instance to another one
+     *
+     * @param other The object to compare.
+     *
+     * @return True if the instances are equal; otherwise; false.
+     */
+    @Override
+    public boolean equals(Object other)
+    {
+        if (this == other)
+            return true;
+
+        return (other instanceof OutpointKey) &&
+                m_hashCode == ((OutpointKey)other).m_hashCode &&
+                Arrays.equals(m_data, ((OutpointKey)other).m_data);
+    }
+
+    /**
+     * Gets the hash code for this object. The hash code is computed once when the key is created.
+     *
+     * @return Hash code
+     */
+    @Override
+    public int hashCode()
+    {
+        return m_hashCode;
+    }
+}
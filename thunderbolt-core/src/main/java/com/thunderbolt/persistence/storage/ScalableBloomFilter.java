@@ -0,0 +1,312 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2018 Angel Castillo.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.thunderbolt.persistence.storage;
+
+/* IMPORTS *******************************************************************/
+
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+
+/* IMPLEMENTATION ************************************************************/
+
+/**
+ * A scalable bloom filter. The filter answers whether a key may be in a set; a negative answer is always right, so
+ * lookups of keys that are not in the set can skip the store, while a positive answer may be wrong with a small
+ * probability.
+ *
+ * The filter is made of stages. When the current stage holds as many keys as it was sized for, a new stage with twice
+ * the capacity and half the false positive rate is added; so the filter grows with the set while the total false
+ * positive rate stays below twice the rate of the first stage.
+ *
+ * Keys can not be removed. Removed keys only make the filter less precise; the owner rebuilds the filter when too many
+ * of its keys are stale.
+ */
+public class ScalableBloomFilter
+{
+    // Constants
+    private static final double LN2             = Math.log(2);
+    private static final int    MIN_CAPACITY    = 1 << 16;
+    private static final int    MAX_HASHES      = 30;
+    private static final double TIGHTENING      = 0.5; // False positive rate of a stage relative to the previous one.
+    private static final int    GROWTH          = 2;   // Capacity of a stage relative to the previous one.
+
+    // Instance fields
+    private final List<Stage> m_stages = new ArrayList<>();
+    private final double      m_falsePositiveRate;
+    private final long        m_seed;
+    private long              m_count;
+    private long              m_queries;
+    private long              m_negatives;
+    private long              m_falsePositives;
+
+    /**
+     * A stage of the filter.
+     */
+    private static class Stage
+    {
+        long[] bits;
+        long   size;
+        int    hashes;
+        long   capacity;
+        long   count;
+    }
+
+    /**
+     * Initializes a new instance of the ScalableBloomFilter class.
+     *
+     * @param expectedCount     The amount of keys the first stage is sized for.
+     * @param falsePositiveRate The false positive rate of the first stage.
+     */
+    public ScalableBloomFilter(long expectedCount, double falsePositiveRate)
+    {
+        if (falsePositiveRate <= 0 || falsePositiveRate >= 1)
+            throw new IllegalArgumentException("The false positive rate must be between 0 and 1.");
+
+        m_falsePositiveRate = falsePositiveRate;
+        m_seed              = new SecureRandom().nextLong();
+
+        addStage(Math.max(expectedCount, MIN_CAPACITY), falsePositiveRate);
+    }
+
+    /**
+     * Adds a key to the filter.
+     *
+     * @param key The key.
+     */
+    public synchronized void add(byte[] key)
+    {
+        Stage stage = m_stages.get(m_stages.size() - 1);
+
+        if (stage.count >= stage.capacity)
+        {
+            stage = addStage(stage.capacity * GROWTH,
+                    m_falsePositiveRate * Math.pow(TIGHTENING, m_stages.size()));
+        }
+
+        long hash1 = hash(key, m_seed);
+        long hash2 = hash(key, ~m_seed) | 1;
+
+        for (int i = 0; i < stage.hashes; ++i)
+        {
+            long bit = Long.remainderUnsigned(hash1 + i * hash2, stage.size);
+            stage.bits[(int)(bit >>> 6)] |= 1L << bit;
+        }
+
+        ++stage.count;
+        ++m_count;
+    }
+
+    /**
+     * Gets whether the key may be in the filter.
+     *
+     * @param key The key.
+     *
+     * @return false if the key was never added; true if the key may have been added.
+     */
+    public synchronized boolean mightContain(byte[] key)
+    {
+        ++m_queries;
+
+        long hash1 = hash(key, m_seed);
+        long hash2 = hash(key, ~m_seed) | 1;
+
+        for (Stage stage : m_stages)
+        {
+            if (contains(stage, hash1, hash2))
+                return true;
+        }
+
+        ++m_negatives;
+        return false;
+    }
+
+    /**
+     * Records that a key the filter reported as present was not in the store.
+     */
+    public synchronized void reportFalsePositive()
+    {
+        ++m_falsePositives;
+    }
+
+    /**
+     * Gets the amount of keys added to the filter.
+     *
+     * @return The amount of keys.
+     */
+    public synchronized long getCount()
+    {
+        return m_count;
+    }
+
+    /**
+     * Gets the amount of queries answered by the filter.
+     *
+     * @return The amount of queries.
+     */
+    public synchronized long getQueries()
+    {
+        return m_queries;
+    }
+
+    /**
+     * Gets the amount of queries the filter answered negatively; these never reached the store.
+     *
+     * @return The amount of negative answers.
+     */
+    public synchronized long getNegatives()
+    {
+        return m_negatives;
+    }
+
+    /**
+     * Gets the amount of positive answers for keys that were not in the store.
+     *
+     * @return The amount of false positives.
+     */
+    public synchronized long getFalsePositives()
+    {
+        return m_falsePositives;
+    }
+
+    /**
+     * Gets the approximate size in bytes of the filter.
+     *
+     * @return The size in bytes.
+     */
+    public synchronized long getSizeInBytes()
+    {
+        long size = 0;
+
+        for (Stage stage : m_stages)
+            size += (long)stage.bits.length * Long.BYTES;
+
+        return size;
+    }
+
+    /**
+     * Creates a string representation of the hash value of this object
+     *
+     * @return The string representation.
+     */
+    @Override
+    public synchronized String toString()
+    {
+        return String.format(
+                "{                       %n" +
+                "  \"count\":          %d,%n" +
+                "  \"stages\":         %d,%n" +
+                "  \"size\":           %d,%n" +
+                "  \"queries\":        %d,%n" +
+                "  \"negatives\":      %d,%n" +
+                "  \"falsePositives\": %d%n" +
+                "}",
+                m_count,
+                m_stages.size(),
+                getSizeInBytes(),
+                m_queries,
+                m_negatives,
+                m_falsePositives);
+    }
+
+    /**
+     * Adds a new stage to the filter.
+     *
+     * @param capacity          The amount of keys the stage is sized for.
+     * @param falsePositiveRate The false positive rate of the stage when it is full.
+     *
+     * @return The new stage.
+     */
+    private Stage addStage(long capacity, double falsePositiveRate)
+    {
+        // The optimal size is -n ln(p) / ln(2)^2 bits, with (size / n) ln(2) hash functions.
+        long words = Math.max(1, (long)Math.ceil(-capacity * Math.log(falsePositiveRate) / (LN2 * LN2) / Long.SIZE));
+
+        if (words > Integer.MAX_VALUE)
+            throw new IllegalStateException("The bloom filter can not grow any further.");
+
+        Stage stage = new Stage();
+
+        stage.bits     = new long[(int)words];
+        stage.size     = words * Long.SIZE;
+        stage.hashes   = (int)Math.max(1, Math.min(MAX_HASHES, Math.round((double)stage.size / capacity * LN2)));
+        stage.capacity = capacity;
+
+        m_stages.add(stage);
+
+        return stage;
+    }
+
+    /**
+     * Gets whether all the bits of a key are set in the given stage. The bit positions are derived from two hashes
+     * (Kirsch-Mitzenmacher); so the key is hashed only twice no matter how many hash functions the stage uses.
+     *
+     * @param stage The stage.
+     * @param hash1 The first hash of the key.
+     * @param hash2 The second hash of the key.
+     *
+     * @return true if all the bits are set; otherwise; false.
+     */
+    private static boolean contains(Stage stage, long hash1, long hash2)
+    {
+        for (int i = 0; i < stage.hashes; ++i)
+        {
+            long bit = Long.remainderUnsigned(hash1 + i * hash2, stage.size);
+
+            if ((stage.bits[(int)(bit >>> 6)] & (1L << bit)) == 0)
+                return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Hashes a key. The seed is random per filter, so the bit positions of the keys can not be predicted by peers
+     * crafting transactions to collide in the filter.
+     *
+     * @param key  The key.
+     * @param seed The seed.
+     *
+     * @return The 64 bits hash of the key.
+     */
+    private static long hash(byte[] key, long seed)
+    {
+        long hash = seed ^ (key.length * 0x9E3779B97F4A7C15L);
+
+        for (byte value : key)
+        {
+            hash ^= value & 0xFF;
+            hash *= 0x100000001B3L;
+        }
+
+        // Final mix (from MurmurHash3), so every bit of the key affects every bit of the hash.
+        hash ^= hash >>> 33;
+        hash *= 0xFF51AFD7ED558CCDL;
+        hash ^= hash >>> 33;
+        hash *= 0xC4CEB9FE1A85EC53L;
+        hash ^= hash >>> 33;
+
+        return hash;
+    }
+}
@@ -0,0 +1,202 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2018 Angel Castillo.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.thunderbolt.persistence.storage;
+
+/* IMPORTS *******************************************************************/
+
+import com.thunderbolt.persistence.structures.UnspentTransactionOutput;
+import org.iq80.leveldb.DB;
+import org.iq80.leveldb.DBIterator;
+import org.iq80.leveldb.ReadOptions;
+import org.iq80.leveldb.Snapshot;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NoSuchElementException;
+
+/* IMPLEMENTATION ************************************************************/
+
+/**
+ * Cursor over the unspent outputs in the metadata database. The outputs are read from a database snapshot in the
+ * order of their keys (transaction id and output index); so the cursor sees the set as it was when it was opened,
+ * and only the current output is kept in memory.
+ *
+ * The changes that were committed but not flushed to the database when the cursor was opened are merged over the
+ * snapshot in key order; a changed output replaces the one in the snapshot, and a deleted one hides it.
+ *
+ * The cursor must be closed to release the snapshot.
+ */
+public class UnspentOutputsCursor implements Iterator<UnspentTransactionOutput>, Closeable
+{
+    private static final Logger s_logger = LoggerFactory.getLogger(UnspentOutputsCursor.class);
+
+    // Instance fields.
+    private final Snapshot                                              m_snapshot;
+    private final DBIterator                                            m_iterator;
+    private final Iterator<Map.Entry<byte[], UnspentTransactionOutput>> m_changes;
+    private final byte[]                                                m_prefix;
+    private Map.Entry<byte[], UnspentTransactionOutput>                 m_change   = null;
+    private byte[]                                                      m_nextKey  = null;
+    private UnspentTransactionOutput                                    m_next     = null;
+    private OutpointKey                                                 m_position = null;
+
+    /**
+     * Initializes a new instance of the UnspentOutputsCursor class. The cursor takes ownership of the snapshot.
+     *
+     * @param database The metadata database.
+     * @param snapshot The snapshot to read from.
+     * @param changes  The changed outputs that are not in the snapshot, by database key. A null value means the
+     *                 output was deleted. Only the keys between the start key and the end of the prefix are read.
+     * @param prefix   The prefix of the keys of the outputs to read (the output prefix, and optionally the first
+     *                 bytes of the transaction id).
+     * @param start    The key of the first output to read.
+     */
+    UnspentOutputsCursor(DB database, Snapshot snapshot, NavigableMap<byte[], UnspentTransactionOutput> changes,
+                         byte[] prefix, byte[] start)
+    {
+        m_snapshot = snapshot;
+        m_iterator = database.iterator(new ReadOptions().snapshot(snapshot).fillCache(false));
+        m_changes  = changes.entrySet().iterator();
+        m_prefix   = prefix;
+
+        m_iterator.seek(start);
+
+        if (m_changes.hasNext())
+            m_change = m_changes.next();
+
+        advance();
+    }
+
+    /**
+     * Gets whether there are more outputs.
+     *
+     * @return true if there are more outputs; otherwise; false.
+     */
+    @Override
+    public boolean hasNext()
+    {
+        return m_next != null;
+    }
+
+    /**
+     * Gets the next output.
+     *
+     * @return The output.
+     */
+    @Override
+    public UnspentTransactionOutput next()
+    {
+        if (!hasNext())
+            throw new NoSuchElementException();
+
+        UnspentTransactionOutput output = m_next;
+
+        m_position = new OutpointKey(Arrays.copyOfRange(m_nextKey, m_nextKey.length - OutpointKey.SIZE, m_nextKey.length));
+
+        advance();
+
+        return output;
+    }
+
+    /**
+     * Gets the outpoint of the last output returned by the cursor. A new cursor can be opened after this position to
+     * continue the iteration.
+     *
+     * @return The outpoint; or null if no output was returned yet.
+     */
+    public OutpointKey getPosition()
+    {
+        return m_position;
+    }
+
+    /**
+     * Moves to the next output; the lowest key of the snapshot and the changes. When both have the same key, the
+     * change wins. Deleted outputs are skipped.
+     */
+    private void advance()
+    {
+        m_next    = null;
+        m_nextKey = null;
+
+        while (m_next == null)
+        {
+            byte[] stored = null;
+
+            if (m_iterator.hasNext())
+            {
+                byte[] key = m_iterator.peekNext().getKey();
+
+                if (key.length >= m_prefix.length && Arrays.equals(key, 0, m_prefix.length, m_prefix, 0, m_prefix.length))
+                    stored = key;
+            }
+
+            if (stored == null && m_change == null)
+                return;
+
+            int order = stored == null ? 1 : m_change == null ? -1 : Arrays.compareUnsigned(stored, m_change.getKey());
+
+            if (order < 0)
+            {
+                Map.Entry<byte[], byte[]> entry = m_iterator.next();
+
+                m_nextKey = entry.getKey();
+                m_next    = new UnspentTransactionOutput(entry.getValue());
+
+                continue;
+            }
+
+            // The change replaces (or deletes) the stored output with the same key.
+            if (order == 0)
+                m_iterator.next();
+
+            m_nextKey = m_change.getKey();
+            m_next    = m_change.getValue();
+            m_change  = m_changes.hasNext() ? m_changes.next() : null;
+        }
+    }
+
+    /**
+     * Releases the iterator and the snapshot of the cursor.
+     */
+    @Override
+    public void close()
+    {
+        try
+        {
+            m_iterator.close();
+            m_snapshot.close();
+        }
+        catch (IOException exception)
+        {
+            s_logger.warn("Unable to release the unspent outputs cursor.", exception);
+        }
+    }
+}
@@ -41,9 +41,18 @@ import java.nio.ByteBuffer;
 /**
  * Represents metadata about a block persisted in the disk. In which segment and offset is stored and several other
  * details.
+ *
+ * The serialized form starts with a format version. Integers are written as variable length integers, and the total
+ * work as a fixed 32 bytes unsigned value.
  */
 public class BlockMetadata implements ISerializable
 {
+    // Constants
+    public static final byte FORMAT_VERSION = 1;
+    public static final byte STATUS_PRUNED  = 0x01; // The block data was deleted from the disk.
+    private static final int HASH_SIZE      = 32;
+    private static final int WORK_SIZE      = 32;
+
     // Instance fields.
     private BlockHeader m_header = new BlockHeader();
     private long        m_height;
@@ -54,6 +63,8 @@ public class BlockMetadata implements ISerializable
     private long        m_blockOffset;
     private int         m_revertSegment;
     private long        m_revertOffset;
+    private long        m_recordId;
+    private Sha256Hash  m_skipHash;
     private Sha256Hash  m_hash;
 
     /**
@@ -70,15 +81,28 @@ public class BlockMetadata implements ISerializable
      */
     public BlockMetadata(ByteBuffer buffer)
     {
+        byte version = buffer.get();
+
+        if (version != FORMAT_VERSION)
+            throw new IllegalArgumentException(String.format("Unknown block metadata format version %d.", version));
+
+        byte[] work = new byte[WORK_SIZE];
+
         m_header           = new BlockHeader(buffer);
-        m_height           = buffer.getLong();
-        m_totalWork        = BigInteger.valueOf(buffer.getLong());
-        m_transactionCount = buffer.getInt();
+        m_height           = NumberSerializer.deserializeVarInt(buffer);
+        buffer.get(work);
+        m_totalWork        = new BigInteger(1, work);
+        m_transactionCount = (int)NumberSerializer.deserializeVarInt(buffer);
         m_status           = buffer.get();
-        m_blockSegment     = buffer.getInt();
-        m_blockOffset      = buffer.getLong();
-        m_revertSegment    = buffer.getInt();
-        m_revertOffset     = buffer.getLong();
+        m_blockSegment     = (int)NumberSerializer.deserializeVarInt(buffer);
+        m_blockOffset      = NumberSerializer.deserializeVarInt(buffer);
+        m_revertSegment    = (int)NumberSerializer.deserializeVarInt(buffer);
+        m_revertOffset     = NumberSerializer.deserializeVarInt(buffer);
+        m_recordId         = NumberSerializer.deserializeVarInt(buffer);
+
+        // The genesis block does not have a skip ancestor.
+        if (buffer.remaining() >= HASH_SIZE)
+            m_skipHash = new Sha256Hash(buffer);
 
         // We precalculate this once, so we don't calculate the hash everytime we read it.
         m_hash = m_header.getHash();
@@ -94,6 +118,38 @@ public class BlockMetadata implements ISerializable
         this(ByteBuffer.wrap(buffer));
     }
 
+    /**
+     * Reads a block metadata entry written in the format used before the entries were versioned. This is only needed
+     * to migrate existing databases.
+     *
+     * @param buffer A byte array containing a raw block metadata entry in the legacy format.
+     *
+     * @return The block metadata.
+     */
+    public static BlockMetadata fromLegacyFormat(byte[] buffer)
+    {
+        ByteBuffer    data     = ByteBuffer.wrap(buffer);
+        BlockMetadata metadata = new BlockMetadata();
+
+        metadata.m_header           = new BlockHeader(data);
+        metadata.m_height           = data.getLong();
+        metadata.m_totalWork        = BigInteger.valueOf(data.getLong());
+        metadata.m_transactionCount = data.getInt();
+        metadata.m_status           = data.get();
+        metadata.m_blockSegment     = data.getInt();
+        metadata.m_blockOffset      = data.getLong();
+        metadata.m_revertSegment    = data.getInt();
+        metadata.m_revertOffset     = data.getLong();
+
+        // Entries written before skip pointers were introduced do not have one.
+        if (data.remaining() >= HASH_SIZE)
+            metadata.m_skipHash = new Sha256Hash(data);
+
+        metadata.m_hash = metadata.m_header.getHash();
+
+        return metadata;
+    }
+
     /**
      * Gets the hash of the block (this is the key this metadata in the database).
      *
@@ -207,6 +263,16 @@ public class BlockMetadata implements ISerializable
         m_status = status;
     }
 
+    /**
+     * Gets whether the data of this block was pruned from the disk. The metadata of pruned blocks is kept.
+     *
+     * @return true if the block was pruned; otherwise; false.
+     */
+    public boolean isPruned()
+    {
+        return (m_status & STATUS_PRUNED) != 0;
+    }
+
     /**
      * Gets the block segment where this block is stored.
      *
@@ -287,6 +353,65 @@ public class BlockMetadata implements ISerializable
         m_revertOffset = offset;
     }
 
+    /**
+     * Gets the record id of this block. The record id is a small number that identifies the block in the metadata
+     * database; the transaction metadata entries refer to their block by this id instead of repeating its details.
+     *
+     * @return The record id; or 0 if the block has not been assigned one yet.
+     */
+    public long getRecordId()
+    {
+        return m_recordId;
+    }
+
+    /**
+     * Sets the record id of this block.
+     *
+     * @param recordId The record id.
+     */
+    public void setRecordId(long recordId)
+    {
+        m_recordId = recordId;
+    }
+
+    /**
+     * Gets the hash of the skip ancestor of this block; an ancestor further back than the parent, used to find the
+     * ancestor of a block at any height in a logarithmic number of steps.
+     *
+     * @return The hash of the skip ancestor; or null if this block has none.
+     */
+    public Sha256Hash getSkipHash()
+    {
+        return m_skipHash;
+    }
+
+    /**
+     * Sets the hash of the skip ancestor of this block.
+     *
+     * @param hash The hash of the skip ancestor.
+     */
+    public void setSkipHash(Sha256Hash hash)
+    {
+        m_skipHash = hash;
+    }
+
+    /**
+     * Gets the height of the skip ancestor of a block at the given height. Heights are chosen so that any ancestor
+     * can be reached by following O(log n) skip and parent pointers.
+     *
+     * @param height The height of the block.
+     *
+     * @return The height of the skip ancestor.
+     */
+    public static long getSkipHeight(long height)
+    {
+        if (height < 2)
+            return 0;
+
+        // Odd heights skip further back than even ones, so consecutive blocks do not share their skip ancestors.
+        return (height & 1) != 0 ? clearLowestBit(clearLowestBit(height - 1)) + 1 : clearLowestBit(height);
+    }
+
     /**
      * Serializes an object in ray byte format.
      *
@@ -297,15 +422,20 @@ public class BlockMetadata implements ISerializable
     {
         ByteArrayOutputStream data = new ByteArrayOutputStream();
 
+        data.write(FORMAT_VERSION);
         data.writeBytes(m_header.serialize());
-        data.writeBytes(NumberSerializer.serialize(m_height));
-        data.writeBytes(NumberSerializer.serialize(m_totalWork));
-        data.writeBytes(NumberSerializer.serialize(m_transactionCount));
+        data.writeBytes(NumberSerializer.serializeVarInt(m_height));
+        data.writeBytes(serializeWork(m_totalWork));
+        data.writeBytes(NumberSerializer.serializeVarInt(m_transactionCount));
         data.write(m_status);
-        data.writeBytes(NumberSerializer.serialize(m_blockSegment));
-        data.writeBytes(NumberSerializer.serialize(m_blockOffset));
-        data.writeBytes(NumberSerializer.serialize(m_revertSegment));
-        data.writeBytes(NumberSerializer.serialize(m_revertOffset));
+        data.writeBytes(NumberSerializer.serializeVarInt(m_blockSegment));
+        data.writeBytes(NumberSerializer.serializeVarInt(m_blockOffset));
+        data.writeBytes(NumberSerializer.serializeVarInt(m_revertSegment));
+        data.writeBytes(NumberSerializer.serializeVarInt(m_revertOffset));
+        data.writeBytes(NumberSerializer.serializeVarInt(m_recordId));
+
+        if (m_skipHash != null)
+            data.writeBytes(m_skipHash.serialize());
 
         return data.toByteArray();
     }
@@ -365,4 +495,39 @@ public class BlockMetadata implements ISerializable
 
         return stringBuilder.toString();
     }
+
+    /**
+     * Serializes the total work as a fixed size, unsigned big endian number.
+     *
+     * @param work The total work.
+     *
+     * @return The serialized work.
+     */
+    private static byte[] serializeWork(BigInteger work)
+    {
+        byte[] bytes  = work.toByteArray();
+        byte[] result = new byte[WORK_SIZE];
+
+        // The sign byte of the two's complement representation is dropped.
+        int length = Math.min(bytes.length, WORK_SIZE);
+
+        if (bytes.length > WORK_SIZE + 1 || (bytes.length == WORK_SIZE + 1 && bytes[0] != 0))
+            throw new IllegalStateException("Total work value is too big.");
+
+        System.arraycopy(bytes, bytes.length - length, result, WORK_SIZE - length, length);
+
+        return result;
+    }
+
+    /**
+     * Clears the lowest set bit of the given number.
+     *
+     * @param number The number.
+     *
+     * @return The number without its lowest set bit.
+     */
+    private static long clearLowestBit(long number)
+    {
+        return number & (number - 1);
+    }
 }
\ No newline at end of file
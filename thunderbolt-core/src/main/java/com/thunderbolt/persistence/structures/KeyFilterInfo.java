@@ -0,0 +1,128 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2018 Angel Castillo.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.thunderbolt.persistence.structures;
+
+/* IMPLEMENTATION ************************************************************/
+
+/**
+ * Statistics of the key filter of the metadata database: how many lookups it answered, how many of them it saved
+ * from reaching the database, and how many positive answers turned out to be wrong.
+ */
+public class KeyFilterInfo
+{
+    // Instance fields.
+    private boolean m_isActive       = false;
+    private long    m_count          = 0;
+    private long    m_sizeInBytes    = 0;
+    private long    m_queries        = 0;
+    private long    m_negatives      = 0;
+    private long    m_falsePositives = 0;
+
+    /**
+     * Creates a new instance of the KeyFilterInfo class for a filter that is not active.
+     */
+    public KeyFilterInfo()
+    {
+    }
+
+    /**
+     * Creates a new instance of the KeyFilterInfo class.
+     *
+     * @param count          The amount of keys added to the filter.
+     * @param sizeInBytes    The approximate size in bytes of the filter.
+     * @param queries        The amount of queries answered by the filter.
+     * @param negatives      The amount of queries the filter answered negatively.
+     * @param falsePositives The amount of positive answers for keys that were not in the database.
+     */
+    public KeyFilterInfo(long count, long sizeInBytes, long queries, long negatives, long falsePositives)
+    {
+        m_isActive       = true;
+        m_count          = count;
+        m_sizeInBytes    = sizeInBytes;
+        m_queries        = queries;
+        m_negatives      = negatives;
+        m_falsePositives = falsePositives;
+    }
+
+    /**
+     * Gets whether the filter is in use. The filter is not in use while it is first built.
+     *
+     * @return true if the filter is in use; otherwise; false.
+     */
+    public boolean isActive()
+    {
+        return m_isActive;
+    }
+
+    /**
+     * Gets the amount of keys added to the filter.
+     *
+     * @return The amount of keys.
+     */
+    public long getCount()
+    {
+        return m_count;
+    }
+
+    /**
+     * Gets the approximate size in bytes of the filter.
+     *
+     * @return The size in bytes.
+     */
+    public long getSizeInBytes()
+    {
+        return m_sizeInBytes;
+    }
+
+    /**
+     * Gets the amount of queries answered by the filter.
+     *
+     * @return The amount of queries.
+     */
+    public long getQueries()
+    {
+        return m_queries;
+    }
+
+    /**
+     * Gets the amount of queries the filter answered negatively; these never reached the database.
+     *
+     * @return The amount of negative answers.
+     */
+    public long getNegatives()
+    {
+        return m_negatives;
+    }
+
+    /**
+     * Gets the amount of positive answers for keys that were not in the database.
+     *
+     * @return The amount of false positives.
+     */
+    public long getFalsePositives()
+    {
+        return m_falsePositives;
+    }
+}
@@ -41,9 +41,16 @@ import java.time.ZoneId;
 /**
  * Represents metadata about a transaction in a block persisted in the disk. In which file is stored, at what position
  * and several other details.
+ *
+ * Only the record id of the container block and the position of the transaction inside it are serialized; the rest
+ * of the details are the same for all the transactions of a block, and are taken from the block metadata when the
+ * entry is read.
  */
 public class TransactionMetadata implements ISerializable
 {
+    // Constants
+    public static final byte FORMAT_VERSION = 1;
+
     // Instance fields.
     private Sha256Hash m_sha256Hash = new Sha256Hash();
     private int        m_blockFile;
@@ -52,6 +59,7 @@ public class TransactionMetadata implements ISerializable
     private long       m_blockHeight;
     private Sha256Hash m_blockHash = new Sha256Hash();
     private long       m_timestamp;
+    private long       m_blockRecordId;
 
     /**
      * Creates a new instance of the BlockMetadata class.
@@ -67,12 +75,13 @@ public class TransactionMetadata implements ISerializable
      */
     public TransactionMetadata(ByteBuffer buffer)
     {
-        m_blockFile           = buffer.getInt();
-        m_blockPosition       = buffer.getLong();
-        m_transactionPosition = buffer.getInt();
-        m_blockHeight         = buffer.getLong();
-        m_blockHash           = new Sha256Hash(buffer);
-        m_timestamp           = buffer.getLong();
+        byte version = buffer.get();
+
+        if (version != FORMAT_VERSION)
+            throw new IllegalArgumentException(String.format("Unknown transaction metadata format version %d.", version));
+
+        m_blockRecordId       = NumberSerializer.deserializeVarInt(buffer);
+        m_transactionPosition = (int)NumberSerializer.deserializeVarInt(buffer);
     }
 
     /**
@@ -85,6 +94,29 @@ public class TransactionMetadata implements ISerializable
         this(ByteBuffer.wrap(buffer));
     }
 
+    /**
+     * Reads a transaction metadata entry written in the format used before the entries were versioned. This is only
+     * needed to migrate existing databases.
+     *
+     * @param buffer A byte array containing a raw transaction metadata entry in the legacy format.
+     *
+     * @return The transaction metadata.
+     */
+    public static TransactionMetadata fromLegacyFormat(byte[] buffer)
+    {
+        ByteBuffer          data     = ByteBuffer.wrap(buffer);
+        TransactionMetadata metadata = new TransactionMetadata();
+
+        metadata.m_blockFile           = data.getInt();
+        metadata.m_blockPosition       = data.getLong();
+        metadata.m_transactionPosition = data.getInt();
+        metadata.m_blockHeight         = data.getLong();
+        metadata.m_blockHash           = new Sha256Hash(data);
+        metadata.m_timestamp           = data.getLong();
+
+        return metadata;
+    }
+
     /**
      * Serializes an object in ray byte format.
      *
@@ -95,12 +127,9 @@ public class TransactionMetadata implements ISerializable
     {
         ByteArrayOutputStream data = new ByteArrayOutputStream();
 
-        data.writeBytes(NumberSerializer.serialize(m_blockFile));
-        data.writeBytes(NumberSerializer.serialize(m_blockPosition));
-        data.writeBytes(NumberSerializer.serialize(m_transactionPosition));
-        data.writeBytes(NumberSerializer.serialize(m_blockHeight));
-        data.writeBytes(m_blockHash.getData());
-        data.writeBytes(NumberSerializer.serialize(m_timestamp));
+        data.write(FORMAT_VERSION);
+        data.writeBytes(NumberSerializer.serializeVarInt(m_blockRecordId));
+        data.writeBytes(NumberSerializer.serializeVarInt(m_transactionPosition));
 
         return data.toByteArray();
     }
@@ -269,4 +298,24 @@ public class TransactionMetadata implements ISerializable
     {
         m_timestamp = timestamp;
     }
+
+    /**
+     * Gets the record id of the container block.
+     *
+     * @return The record id of the block.
+     */
+    public long getBlockRecordId()
+    {
+        return m_blockRecordId;
+    }
+
+    /**
+     * Sets the record id of the container block.
+     *
+     * @param blockRecordId The record id of the block.
+     */
+    public void setBlockRecordId(long blockRecordId)
+    {
+        m_blockRecordId = blockRecordId;
+    }
 }
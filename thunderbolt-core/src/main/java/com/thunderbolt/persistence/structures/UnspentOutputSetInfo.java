@@ -0,0 +1,209 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2018 Angel Castillo.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.thunderbolt.persistence.structures;
+
+/* IMPORTS *******************************************************************/
+
+import com.thunderbolt.common.NumberSerializer;
+import com.thunderbolt.common.contracts.ISerializable;
+import com.thunderbolt.security.MultisetHash;
+import com.thunderbolt.security.Sha256Hash;
+
+import java.io.ByteArrayOutputStream;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+
+/* IMPLEMENTATION ************************************************************/
+
+/**
+ * Summary of the unspent outputs set: the amount of outputs, the total amount of coins in them and a commitment to
+ * the whole set. It is updated as outputs are added and removed; so it is always available without reading the set.
+ *
+ * The block the summary was taken at is not serialized; it is the chain head the summary was written with.
+ */
+public class UnspentOutputSetInfo implements ISerializable
+{
+    // Instance fields.
+    private long         m_count       = 0;
+    private BigInteger   m_totalAmount = BigInteger.ZERO;
+    private MultisetHash m_commitment  = new MultisetHash();
+    private Sha256Hash   m_blockHash   = new Sha256Hash();
+    private long         m_height      = 0;
+
+    /**
+     * Creates a new instance of the UnspentOutputSetInfo class. The set is empty.
+     */
+    public UnspentOutputSetInfo()
+    {
+    }
+
+    /**
+     * Creates a new instance of the UnspentOutputSetInfo class with the same values of the given summary.
+     *
+     * @param other The summary to copy.
+     */
+    public UnspentOutputSetInfo(UnspentOutputSetInfo other)
+    {
+        m_count       = other.m_count;
+        m_totalAmount = other.m_totalAmount;
+        m_commitment  = new MultisetHash(other.m_commitment);
+        m_blockHash   = other.m_blockHash;
+        m_height      = other.m_height;
+    }
+
+    /**
+     * Creates a new instance of the UnspentOutputSetInfo class.
+     *
+     * @param buffer A buffer containing the serialized summary.
+     */
+    public UnspentOutputSetInfo(ByteBuffer buffer)
+    {
+        m_count       = buffer.getLong();
+        m_totalAmount = BigInteger.valueOf(buffer.getLong());
+        m_commitment  = new MultisetHash(buffer);
+    }
+
+    /**
+     * Creates a new instance of the UnspentOutputSetInfo class.
+     *
+     * @param buffer A byte array containing the serialized summary.
+     */
+    public UnspentOutputSetInfo(byte[] buffer)
+    {
+        this(ByteBuffer.wrap(buffer));
+    }
+
+    /**
+     * Adds an unspent output to the set.
+     *
+     * @param output The unspent output.
+     */
+    public void add(UnspentTransactionOutput output)
+    {
+        ++m_count;
+        m_totalAmount = m_totalAmount.add(output.getOutput().getAmount());
+        m_commitment.add(output.serialize());
+    }
+
+    /**
+     * Removes an unspent output from the set. The output must be in the set.
+     *
+     * @param output The unspent output.
+     */
+    public void remove(UnspentTransactionOutput output)
+    {
+        --m_count;
+        m_totalAmount = m_totalAmount.subtract(output.getOutput().getAmount());
+        m_commitment.remove(output.serialize());
+    }
+
+    /**
+     * Gets the amount of unspent outputs.
+     *
+     * @return The amount of unspent outputs.
+     */
+    public long getCount()
+    {
+        return m_count;
+    }
+
+    /**
+     * Gets the total amount of coins in the unspent outputs.
+     *
+     * @return The total amount.
+     */
+    public BigInteger getTotalAmount()
+    {
+        return m_totalAmount;
+    }
+
+    /**
+     * Gets the commitment to the unspent outputs. Two sets with the same outputs have the same commitment, no matter
+     * the order the outputs were added in.
+     *
+     * @return The commitment.
+     */
+    public Sha256Hash getCommitment()
+    {
+        return m_commitment.getHash();
+    }
+
+    /**
+     * Gets the hash of the block this summary was taken at.
+     *
+     * @return The block hash.
+     */
+    public Sha256Hash getBlockHash()
+    {
+        return m_blockHash;
+    }
+
+    /**
+     * Sets the hash of the block this summary was taken at.
+     *
+     * @param hash The block hash.
+     */
+    public void setBlockHash(Sha256Hash hash)
+    {
+        m_blockHash = hash;
+    }
+
+    /**
+     * Gets the height of the block this summary was taken at.
+     *
+     * @return The block height.
+     */
+    public long getHeight()
+    {
+        return m_height;
+    }
+
+    /**
+     * Sets the height of the block this summary was taken at.
+     *
+     * @param height The block height.
+     */
+    public void setHeight(long height)
+    {
+        m_height = height;
+    }
+
+    /**
+     * Serializes an object in raw byte format.
+     *
+     * @return The serialized object.
+     */
+    @Override
+    public byte[] serialize()
+    {
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+
+        data.writeBytes(NumberSerializer.serialize(m_count));
+        data.writeBytes(NumberSerializer.serialize(m_totalAmount));
+        data.writeBytes(m_commitment.serialize());
+
+        return data.toByteArray();
+    }
+}
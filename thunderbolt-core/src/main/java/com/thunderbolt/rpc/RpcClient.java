@@ -598,6 +598,128 @@ public class RpcClient
                 .execute();
     }
 
+    /**
+     * Gets the hash of the block at the given height in the longest blockchain.
+     *
+     * @param height The height of the block.
+     *
+     * @return The block hash; or null if the blockchain is not that high.
+     */
+    public Sha256Hash getBlockHash(long height)
+    {
+        return m_client.createRequest()
+                .method("getBlockHash")
+                .id(m_currentNonce++)
+                .param("height", height)
+                .returnAs(Sha256Hash.class)
+                .execute();
+    }
+
+    /**
+     * Gets the hashes of a range of blocks in the longest blockchain.
+     *
+     * @param height The height of the first block.
+     * @param count  The amount of hashes to return. At most 2000 hashes are returned per request.
+     *
+     * @return The block hashes, in ascending order of height.
+     */
+    public List<Sha256Hash> getBlockHashes(long height, int count)
+    {
+        return m_client.createRequest()
+                .method("getBlockHashes")
+                .id(m_currentNonce++)
+                .param("height", height)
+                .param("count", count)
+                .returnAsList(Sha256Hash.class)
+                .execute();
+    }
+
+    /**
+     * Gets the block at the given height in the longest blockchain.
+     *
+     * @param height The height of the block.
+     *
+     * @return The block; or null if the blockchain is not that high.
+     */
+    public Block getBlockByHeight(long height)
+    {
+        return m_client.createRequest()
+                .method("getBlockByHeight")
+                .id(m_currentNonce++)
+                .param("height", height)
+                .returnAs(Block.class)
+                .execute();
+    }
+
+    /**
+     * Lists the unspent outputs, in the order of their outpoints.
+     *
+     * @param count             The amount of outputs to return. At most 1000 outputs are returned per request.
+     * @param continuationToken The token returned with the previous page; or null to get the first page.
+     * @param transactionPrefix The first HEX digits of the ids of the transactions of the outputs; or null to list
+     *                          all the outputs.
+     *
+     * @return The page of outputs.
+     */
+    public UnspentOutputsPage listUnspent(int count, String continuationToken, String transactionPrefix)
+    {
+        return m_client.createRequest()
+                .method("listUnspent")
+                .id(m_currentNonce++)
+                .param("count", count)
+                .param("continuationToken", continuationToken)
+                .param("transactionPrefix", transactionPrefix)
+                .returnAs(UnspentOutputsPage.class)
+                .execute();
+    }
+
+    /**
+     * Gets the summary of the unspent outputs set.
+     *
+     * @return The block the summary was taken at, the amount of unspent outputs, the total amount of coins in them
+     * and the commitment to the set.
+     */
+    public String getTxOutSetInfo()
+    {
+        return m_client.createRequest()
+                .method("getTxOutSetInfo")
+                .id(m_currentNonce++)
+                .returnAs(String.class)
+                .execute();
+    }
+
+    /**
+     * Gets the statistics of the filter that keeps lookups of missing keys from reaching the metadata database.
+     *
+     * @return Whether the filter is in use, the amount of keys in it, its size, the amount of queries it answered,
+     * how many of them it answered negatively and how many of its positive answers were wrong.
+     */
+    public String getKeyFilterInfo()
+    {
+        return m_client.createRequest()
+                .method("getKeyFilterInfo")
+                .id(m_currentNonce++)
+                .returnAs(String.class)
+                .execute();
+    }
+
+    /**
+     * Writes a snapshot of the unspent outputs at the current chain head to the given file.
+     *
+     * @param path The path of the snapshot file.
+     *
+     * @return The height and hash of the block the snapshot was taken at.
+     */
+    public String dumpTxOutSet(String path)
+    {
+        return m_client.createRequest()
+                .method("dumpTxOutSet")
+                .id(m_currentNonce++)
+                .param("path", path)
+                .returnAs(String.class)
+                .execute();
+    }
+
     /**
      * Gets the transaction with the given hash.
      *
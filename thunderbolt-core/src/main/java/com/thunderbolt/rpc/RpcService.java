@@ -42,10 +42,14 @@ import com.thunderbolt.network.Node;
 import com.thunderbolt.network.ProtocolException;
 import com.thunderbolt.network.messages.structures.NetworkAddress;
 import com.thunderbolt.network.peers.Peer;
+import com.thunderbolt.persistence.storage.OutpointKey;
 import com.thunderbolt.persistence.storage.StorageException;
+import com.thunderbolt.persistence.storage.UnspentOutputsCursor;
 import com.thunderbolt.persistence.structures.BlockMetadata;
+import com.thunderbolt.persistence.structures.KeyFilterInfo;
 import com.thunderbolt.persistence.structures.NetworkAddressMetadata;
 import com.thunderbolt.persistence.structures.TransactionMetadata;
+import com.thunderbolt.persistence.structures.UnspentOutputSetInfo;
 import com.thunderbolt.persistence.structures.UnspentTransactionOutput;
 import com.thunderbolt.security.Sha256Hash;
 import com.thunderbolt.transaction.OutputLockType;
@@ -60,6 +64,7 @@ import org.slf4j.LoggerFactory;
 import java.io.IOException;
 import java.math.BigInteger;
 import java.net.UnknownHostException;
+import java.nio.file.Paths;
 import java.security.GeneralSecurityException;
 import java.time.LocalDateTime;
 import java.time.OffsetDateTime;
@@ -79,6 +84,8 @@ public class RpcService
 {
     // Constants
     private static final double FRACTIONAL_COIN_FACTOR = 0.00000001;
+    private static final int    MAX_BLOCK_HASHES       = 2000; // Maximum amount of hashes returned by getBlockHashes.
+    private static final int    MAX_UNSPENT_OUTPUTS    = 1000; // Maximum amount of outputs returned by listUnspent.
 
     // Static variables
     private static final Logger s_logger = LoggerFactory.getLogger(RpcService.class);
@@ -316,15 +323,7 @@ public class RpcService
     @JsonRpcMethod("getTotalBalance")
     public double getTotalBalance()
     {
-        List<UnspentTransactionOutput> outputs = m_node.getPersistenceService().getUnspentOutputs();
-
-        BigInteger total = BigInteger.ZERO;
-
-        for (UnspentTransactionOutput item : outputs)
-        {
-            BigInteger value = item.getOutput().getAmount();
-            total = total.add(value);
-        }
+        BigInteger total = m_node.getPersistenceService().getUnspentOutputSetInfo().getTotalAmount();
 
         return total.longValue() * FRACTIONAL_COIN_FACTOR;
     }
@@ -600,6 +599,51 @@ public class RpcService
         return m_node.getPersistenceService().getBlock(metadata.getHash());
     }
 
+    /**
+     * Gets the hash of the block at the given height in the longest blockchain.
+     *
+     * @param height The height of the block.
+     *
+     * @return The block hash; or null if the blockchain is not that high.
+     */
+    @JsonRpcMethod("getBlockHash")
+    public Sha256Hash getBlockHash(@JsonRpcParam("height") long height)
+    {
+        return m_node.getPersistenceService().getMainChainHash(height);
+    }
+
+    /**
+     * Gets the hashes of a range of blocks in the longest blockchain.
+     *
+     * @param height The height of the first block.
+     * @param count  The amount of hashes to return. At most 2000 hashes are returned per request.
+     *
+     * @return The block hashes, in ascending order of height.
+     */
+    @JsonRpcMethod("getBlockHashes")
+    public List<Sha256Hash> getBlockHashes(@JsonRpcParam("height") long height, @JsonRpcParam("count") int count)
+    {
+        return m_node.getPersistenceService().getMainChainHashes(height, Math.min(count, MAX_BLOCK_HASHES));
+    }
+
+    /**
+     * Gets the block at the given height in the longest blockchain.
+     *
+     * @param height The height of the block.
+     *
+     * @return The block; or null if the blockchain is not that high.
+     */
+    @JsonRpcMethod("getBlockByHeight")
+    public Block getBlockByHeight(@JsonRpcParam("height") long height) throws StorageException
+    {
+        Sha256Hash hash = m_node.getPersistenceService().getMainChainHash(height);
+
+        if (hash == null)
+            return null;
+
+        return m_node.getPersistenceService().getBlock(hash);
+    }
+
     /**
      * Gets the unspent output that matches the given transaction id and index inside that transaction.
      *
@@ -616,6 +660,131 @@ public class RpcService
         return m_node.getPersistenceService().getUnspentOutput(new Sha256Hash(transactionId), index);
     }
 
+    /**
+     * Lists the unspent outputs, in the order of their outpoints. The set is returned in pages; each page has a token
+     * to request the next one.
+     *
+     * @param count             The amount of outputs to return. At most 1000 outputs are returned per request.
+     * @param continuationToken The token returned with the previous page; or null to get the first page.
+     * @param transactionPrefix The first HEX digits of the ids of the transactions of the outputs; or null to list
+     *                          all the outputs.
+     *
+     * @return The page of outputs.
+     */
+    @JsonRpcMethod("listUnspent")
+    public UnspentOutputsPage listUnspent(
+            @JsonRpcParam("count") int count,
+            @JsonRpcOptional @JsonRpcParam("continuationToken") @Nullable String continuationToken,
+            @JsonRpcOptional @JsonRpcParam("transactionPrefix") @Nullable String transactionPrefix)
+            throws StorageException
+    {
+        if (continuationToken != null && continuationToken.length() != OutpointKey.SIZE * 2)
+            throw new IllegalArgumentException("Invalid continuation token.");
+
+        if (transactionPrefix != null && transactionPrefix.length() % 2 != 0)
+            throw new IllegalArgumentException("The transaction prefix must have an even amount of HEX digits.");
+
+        OutpointKey after  = continuationToken == null ? null : new OutpointKey(Convert.hexStringToByteArray(continuationToken));
+        byte[]      prefix = transactionPrefix == null ? null : Convert.hexStringToByteArray(transactionPrefix);
+
+        UnspentOutputsPage page  = new UnspentOutputsPage();
+        int                limit = Math.min(count, MAX_UNSPENT_OUTPUTS);
+
+        try (UnspentOutputsCursor cursor = m_node.getPersistenceService().openUnspentOutputs(prefix, after))
+        {
+            while (page.getOutputs().size() < limit && cursor.hasNext())
+                page.getOutputs().add(cursor.next());
+
+            if (cursor.hasNext())
+                page.setContinuationToken(Convert.toHexString(cursor.getPosition().getData()));
+        }
+
+        return page;
+    }
+
+    /**
+     * Gets the summary of the unspent outputs set. The summary is maintained as blocks are connected and
+     * disconnected; so this does not read the set.
+     *
+     * @return The block the summary was taken at, the amount of unspent outputs, the total amount of coins in them
+     * and the commitment to the set.
+     */
+    @JsonRpcMethod("getTxOutSetInfo")
+    public String getTxOutSetInfo()
+    {
+        UnspentOutputSetInfo info = m_node.getPersistenceService().getUnspentOutputSetInfo();
+
+        return String.format(
+                "{\n" +
+                "  \"height\" : %s,\n" +
+                "  \"bestBlock\" : \"%s\",\n" +
+                "  \"outputs\" : %s,\n" +
+                "  \"totalAmount\" : %s,\n" +
+                "  \"commitment\" : \"%s\"\n" +
+                "}",
+                info.getHeight(),
+                info.getBlockHash(),
+                info.getCount(),
+                Convert.stripTrailingZeros(info.getTotalAmount().longValue() * FRACTIONAL_COIN_FACTOR),
+                info.getCommitment());
+    }
+
+    /**
+     * Gets the statistics of the filter that keeps lookups of missing keys (unknown transactions and spent or
+     * made up outputs) from reaching the metadata database.
+     *
+     * @return Whether the filter is in use, the amount of keys in it, its size, the amount of queries it answered,
+     * how many of them it answered negatively and how many of its positive answers were wrong.
+     */
+    @JsonRpcMethod("getKeyFilterInfo")
+    public String getKeyFilterInfo()
+    {
+        KeyFilterInfo info = m_node.getPersistenceService().getKeyFilterInfo();
+
+        return String.format(
+                "{\n" +
+                "  \"active\" : %s,\n" +
+                "  \"keys\" : %s,\n" +
+                "  \"sizeInBytes\" : %s,\n" +
+                "  \"queries\" : %s,\n" +
+                "  \"negatives\" : %s,\n" +
+                "  \"falsePositives\" : %s\n" +
+                "}",
+                info.isActive(),
+                info.getCount(),
+                info.getSizeInBytes(),
+                info.getQueries(),
+                info.getNegatives(),
+                info.getFalsePositives());
+    }
+
+    /**
+     * Writes a snapshot of the unspent outputs at the current chain head to the given file. A new node can be
+     * started from this snapshot with the -loadtxoutset argument.
+     *
+     * @param path The path of the snapshot file. Existing files are not overwritten.
+     *
+     * @return The height and hash of the block the snapshot was taken at, and the commitment to the unspent outputs;
+     * the commitment must be given with the -loadtxoutsetcommitment argument when loading the snapshot.
+     */
+    @JsonRpcMethod("dumpTxOutSet")
+    public String dumpTxOutSet(@JsonRpcParam("path") String path) throws StorageException
+    {
+        UnspentOutputSetInfo info = m_node.getPersistenceService().dumpUnspentOutputs(Paths.get(path));
+
+        return String.format(
+                "{\n" +
+                "  \"height\" : %s,\n" +
+                "  \"hash\" : \"%s\",\n" +
+                "  \"commitment\" : \"%s\",\n" +
+                "  \"path\" : \"%s\"\n" +
+                "}",
+                info.getHeight(),
+                info.getBlockHash(),
+                info.getCommitment(),
+                path);
+    }
+
     /**
      * Gets the transaction with the given hash.
      *
@@ -0,0 +1,83 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2018 Angel Castillo.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.thunderbolt.rpc;
+
+/* IMPORTS *******************************************************************/
+
+import com.thunderbolt.persistence.structures.UnspentTransactionOutput;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/* IMPLEMENTATION ************************************************************/
+
+/**
+ * A page of the unspent outputs set.
+ */
+public class UnspentOutputsPage
+{
+    private List<UnspentTransactionOutput> m_outputs           = new ArrayList<>();
+    private String                         m_continuationToken = null;
+
+    /**
+     * Gets the unspent outputs of this page.
+     *
+     * @return The unspent outputs.
+     */
+    public List<UnspentTransactionOutput> getOutputs()
+    {
+        return m_outputs;
+    }
+
+    /**
+     * Sets the unspent outputs of this page.
+     *
+     * @param outputs The unspent outputs.
+     */
+    public void setOutputs(List<UnspentTransactionOutput> outputs)
+    {
+        m_outputs = outputs;
+    }
+
+    /**
+     * Gets the token to request the next page.
+     *
+     * @return The token; or null if this is the last page.
+     */
+    public String getContinuationToken()
+    {
+        return m_continuationToken;
+    }
+
+    /**
+     * Sets the token to request the next page.
+     *
+     * @param continuationToken The token; or null if this is the last page.
+     */
+    public void setContinuationToken(String continuationToken)
+    {
+        m_continuationToken = continuationToken;
+    }
+}
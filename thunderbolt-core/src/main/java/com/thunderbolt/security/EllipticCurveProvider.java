@@ -25,6 +25,7 @@ package com.thunderbolt.security;
 
 /* IMPORTS *******************************************************************/
 
+import com.thunderbolt.persistence.storage.LruCache;
 import org.bouncycastle.asn1.ASN1InputStream;
 import org.bouncycastle.asn1.ASN1Integer;
 import org.bouncycastle.asn1.DERSequenceGenerator;
@@ -39,6 +40,14 @@ import org.bouncycastle.crypto.signers.ECDSASigner;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /* IMPLEMENTATION ************************************************************/
 
@@ -49,6 +58,14 @@ import java.math.BigInteger;
  */
 public class EllipticCurveProvider
 {
+    // Constants
+    private static final long KEY_CACHE_SIZE = 16 * 1024 * 1024; // 16 MB
+    private static final int  KEY_ENTRY_SIZE = 4096; // Approximate size in bytes of a point and its precomputation.
+    private static final byte SEQUENCE_TAG   = 0x30;
+    private static final byte INTEGER_TAG    = 0x02;
+    private static final int  TASKS_PER_CORE = 4; // Batch verification tasks per processor.
+    private static final int  MIN_TASK_SIZE  = 16; // Minimum signatures per batch verification task.
+
     // Static Fields
     private static final X9ECParameters     s_curve  = SECNamedCurves.getByName ("secp256k1");
     private static final ECDomainParameters s_domain = new ECDomainParameters(s_curve.getCurve(),
@@ -56,6 +73,14 @@ public class EllipticCurveProvider
                                                                               s_curve.getN(),
                                                                               s_curve.getH());
 
+    // Decoded public keys. BouncyCastle keeps the precomputed multiples (WNAF table) of a point in the point itself;
+    // so verifying with the same instance skips the point decompression, the validation and the precomputation.
+    private static final LruCache<ByteBuffer, ECPublicKeyParameters> s_publicKeys = new LruCache<>(KEY_CACHE_SIZE);
+
+    // The signer and the digester keep working state, so every thread gets its own instances.
+    private static final ThreadLocal<ECDSASigner>    s_signers   = ThreadLocal.withInitial(ECDSASigner::new);
+    private static final ThreadLocal<Sha256Digester> s_digesters = ThreadLocal.withInitial(Sha256Digester::new);
+
     /**
      * Generates a signature for the given input data.
      *
@@ -85,13 +110,12 @@ public class EllipticCurveProvider
      */
     public static boolean verify(byte[] data, byte[] signature, byte[] publicKey)
     {
-        Sha256Hash sha256Hash = Sha256Digester.digest(data);
+        Sha256Hash sha256Hash = s_digesters.get().hash(data);
 
         BigInteger[] decodedSignature = decodeFromDer(signature);
 
-        ECDSASigner           signer = new ECDSASigner();
-        ECPublicKeyParameters params = new ECPublicKeyParameters(s_domain.getCurve().decodePoint(publicKey), s_domain);
-        signer.init(false, params);
+        ECDSASigner signer = s_signers.get();
+        signer.init(false, getPublicKeyParameters(publicKey));
 
         BigInteger r = decodedSignature[0];
         BigInteger s = decodedSignature[1];
@@ -99,6 +123,108 @@ public class EllipticCurveProvider
         return signer.verifySignature(sha256Hash.serialize(), r, s);
     }
 
+    /**
+     * Verifies a batch of signatures using all the processors.
+     *
+     * @param checks The signatures to verify.
+     *
+     * @return The index of the first invalid signature; or -1 if all the signatures are valid.
+     */
+    public static int verifyAll(List<SignatureCheck> checks)
+    {
+        return verifyAll(checks, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Verifies a batch of signatures. The batch is split in ranges that are verified by the given executor; once an
+     * invalid signature is found, the signatures after it are not verified.
+     *
+     * @param checks   The signatures to verify.
+     * @param executor The executor that verifies the ranges; or null to verify the signatures on the calling thread.
+     *
+     * @return The index of the first invalid signature; or -1 if all the signatures are valid. A signature that can
+     * not be decoded is invalid.
+     */
+    public static int verifyAll(List<SignatureCheck> checks, ExecutorService executor)
+    {
+        AtomicInteger failure = new AtomicInteger(Integer.MAX_VALUE);
+
+        int taskCount = Runtime.getRuntime().availableProcessors() * TASKS_PER_CORE;
+        int taskSize  = Math.max(MIN_TASK_SIZE, (checks.size() + taskCount - 1) / taskCount);
+
+        if (executor == null || checks.size() <= taskSize)
+        {
+            verifyRange(checks, 0, checks.size(), failure);
+        }
+        else
+        {
+            List<Future<?>> futures = new ArrayList<>();
+
+            for (int start = 0; start < checks.size(); start += taskSize)
+            {
+                int first = start;
+                int last  = Math.min(start + taskSize, checks.size());
+
+                futures.add(executor.submit(() -> verifyRange(checks, first, last, failure)));
+            }
+
+            try
+            {
+                for (Future<?> future : futures)
+                    future.get();
+            }
+            catch (InterruptedException exception)
+            {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("The signature verification was interrupted.", exception);
+            }
+            catch (ExecutionException exception)
+            {
+                throw new IllegalStateException("Unable to verify the signatures.", exception.getCause());
+            }
+            finally
+            {
+                for (Future<?> future : futures)
+                    future.cancel(false);
+            }
+        }
+
+        return failure.get() == Integer.MAX_VALUE ? -1 : failure.get();
+    }
+
+    /**
+     * Verifies a range of signatures of a batch. Stops at the first invalid signature, or when an invalid signature
+     * was found before the range.
+     *
+     * @param checks  The signatures of the batch.
+     * @param start   The index of the first signature of the range.
+     * @param end     The index after the last signature of the range.
+     * @param failure The index of the first invalid signature found so far in the batch.
+     */
+    private static void verifyRange(List<SignatureCheck> checks, int start, int end, AtomicInteger failure)
+    {
+        for (int i = start; i < end && i < failure.get(); ++i)
+        {
+            SignatureCheck check = checks.get(i);
+            boolean        isValid;
+
+            try
+            {
+                isValid = verify(check.getData(), check.getSignature(), check.getPublicKey());
+            }
+            catch (RuntimeException exception)
+            {
+                isValid = false;
+            }
+
+            if (!isValid)
+            {
+                failure.accumulateAndGet(i, Math::min);
+                return;
+            }
+        }
+    }
+
     /**
      * Gets the secp256k1 elliptic curve domain parameters.
      *
@@ -110,11 +236,105 @@ public class EllipticCurveProvider
     }
 
     /**
-     * Creates a digital signature from the DER-encoded values
+     * Gets the public key parameters of the given encoded public key. The decoded keys are cached.
+     *
+     * @param publicKey The encoded public key.
+     *
+     * @return The public key parameters.
+     */
+    private static ECPublicKeyParameters getPublicKeyParameters(byte[] publicKey)
+    {
+        ECPublicKeyParameters parameters = s_publicKeys.get(ByteBuffer.wrap(publicKey));
+
+        if (parameters != null)
+            return parameters;
+
+        parameters = new ECPublicKeyParameters(s_domain.getCurve().decodePoint(publicKey).normalize(), s_domain);
+
+        // The key is copied; the caller may reuse its array.
+        s_publicKeys.put(ByteBuffer.wrap(publicKey.clone()), parameters, KEY_ENTRY_SIZE);
+
+        return parameters;
+    }
+
+    /**
+     * Creates a digital signature from the DER-encoded values. The signature is a sequence of two integers (R and
+     * S).
+     *
+     * Which encodings are accepted is part of the consensus rules, so this method accepts exactly the same encodings
+     * as the ASN.1 decoder did. The canonical encoding, the one every signer produces, is parsed in place; any other
+     * encoding goes through the ASN.1 decoder.
+     *
+     * @param encodedSignature DER-encoded value.
+     *
+     * @return The R and S values of the signature.
+     */
+    static BigInteger[] decodeFromDer(byte[] encodedSignature)
+    {
+        BigInteger[] signature = decodeCanonicalDer(encodedSignature);
+
+        if (signature != null)
+            return signature;
+
+        return decodeFromAsn1(encodedSignature);
+    }
+
+    /**
+     * Parses a signature in the canonical DER encoding without building the ASN.1 objects. The canonical encoding
+     * uses short form lengths, minimally encoded integers and has no data after the second integer.
      *
      * @param encodedSignature DER-encoded value.
+     *
+     * @return The R and S values of the signature; or null if the signature is not in the canonical encoding.
+     */
+    static BigInteger[] decodeCanonicalDer(byte[] encodedSignature)
+    {
+        BigInteger[] signature = new BigInteger[2];
+
+        // Lengths below 128 bytes are encoded in a single byte.
+        if (encodedSignature.length < 2 ||
+            encodedSignature[0] != SEQUENCE_TAG ||
+            encodedSignature[1] != encodedSignature.length - 2)
+        {
+            return null;
+        }
+
+        int offset = 2;
+
+        for (int i = 0; i < signature.length; ++i)
+        {
+            if (offset + 2 > encodedSignature.length || encodedSignature[offset] != INTEGER_TAG)
+                return null;
+
+            int length = encodedSignature[offset + 1];
+
+            offset += 2;
+
+            if (length <= 0 || offset + length > encodedSignature.length)
+                return null;
+
+            // The ASN.1 decoder rejects integers with a redundant leading 0x00 or 0xFF byte.
+            if (length > 1 && encodedSignature[offset] == (encodedSignature[offset + 1] >> 7))
+                return null;
+
+            signature[i] = new BigInteger(1, encodedSignature, offset, length);
+            offset += length;
+        }
+
+        if (offset != encodedSignature.length)
+            return null;
+
+        return signature;
+    }
+
+    /**
+     * Creates a digital signature from the DER-encoded values using the ASN.1 decoder.
+     *
+     * @param encodedSignature DER-encoded value.
+     *
+     * @return The R and S values of the signature.
      */
-    private static BigInteger[] decodeFromDer(byte[] encodedSignature)
+    static BigInteger[] decodeFromAsn1(byte[] encodedSignature)
     {
         BigInteger[] signature = new BigInteger[2];
 
@@ -0,0 +1,215 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2018 Angel Castillo.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.thunderbolt.security;
+
+/* IMPORTS *******************************************************************/
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/* IMPLEMENTATION ************************************************************/
+
+/**
+ * Hash of a multiset of elements that can be updated incrementally (MuHash). Each element is mapped to a number
+ * modulo a 3072 bits prime, and the set is the product of all its elements; so elements can be added and removed in
+ * any order, and two sets with the same elements always have the same hash.
+ *
+ * To avoid a modular inversion on each removal, the removed elements are multiplied into a separate denominator,
+ * which is only inverted when the hash is computed.
+ */
+public class MultisetHash
+{
+    public static final int SIZE = 2 * 3072 / 8;
+
+    private static final int        ELEMENT_BITS = 3072;
+    private static final int        ELEMENT_SIZE = ELEMENT_BITS / 8;
+    private static final BigInteger OFFSET       = BigInteger.valueOf(1103717);
+    private static final BigInteger MASK         = BigInteger.ONE.shiftLeft(ELEMENT_BITS).subtract(BigInteger.ONE);
+    private static final BigInteger PRIME        = BigInteger.ONE.shiftLeft(ELEMENT_BITS).subtract(OFFSET); // 2^3072 - 1103717
+
+    private BigInteger m_numerator   = BigInteger.ONE;
+    private BigInteger m_denominator = BigInteger.ONE;
+
+    /**
+     * Initializes a new instance of the MultisetHash class. The set is empty.
+     */
+    public MultisetHash()
+    {
+    }
+
+    /**
+     * Initializes a new instance of the MultisetHash class with the same elements of the given set.
+     *
+     * @param other The set to copy.
+     */
+    public MultisetHash(MultisetHash other)
+    {
+        m_numerator   = other.m_numerator;
+        m_denominator = other.m_denominator;
+    }
+
+    /**
+     * Initializes a new instance of the MultisetHash class.
+     *
+     * @param buffer A buffer containing a serialized set.
+     */
+    public MultisetHash(ByteBuffer buffer)
+    {
+        byte[] numerator   = new byte[ELEMENT_SIZE];
+        byte[] denominator = new byte[ELEMENT_SIZE];
+
+        buffer.get(numerator);
+        buffer.get(denominator);
+
+        m_numerator   = new BigInteger(1, numerator);
+        m_denominator = new BigInteger(1, denominator);
+    }
+
+    /**
+     * Adds an element to the set.
+     *
+     * @param data The serialized element.
+     */
+    public void add(byte[] data)
+    {
+        m_numerator = reduce(m_numerator.multiply(toElement(data)));
+    }
+
+    /**
+     * Removes an element from the set. The element must be in the set.
+     *
+     * @param data The serialized element.
+     */
+    public void remove(byte[] data)
+    {
+        m_denominator = reduce(m_denominator.multiply(toElement(data)));
+    }
+
+    /**
+     * Gets the hash of the set.
+     *
+     * @return The hash.
+     */
+    public Sha256Hash getHash()
+    {
+        BigInteger value = reduce(m_numerator.multiply(m_denominator.modInverse(PRIME)));
+
+        return new Sha256Hash(createDigest().digest(toBytes(value)));
+    }
+
+    /**
+     * Serializes the set in raw byte format.
+     *
+     * @return The serialized set.
+     */
+    public byte[] serialize()
+    {
+        ByteBuffer buffer = ByteBuffer.allocate(SIZE);
+
+        buffer.put(toBytes(m_numerator));
+        buffer.put(toBytes(m_denominator));
+
+        return buffer.array();
+    }
+
+    /**
+     * Maps an element to a number modulo the prime. The SHA-256 of the element is expanded to 3072 bits by hashing
+     * it again with a counter.
+     *
+     * @param data The serialized element.
+     *
+     * @return The number.
+     */
+    private static BigInteger toElement(byte[] data)
+    {
+        MessageDigest digest   = createDigest();
+        byte[]        seed     = digest.digest(data);
+        byte[]        expanded = new byte[ELEMENT_SIZE];
+
+        for (int i = 0; i < ELEMENT_SIZE / seed.length; ++i)
+        {
+            digest.update(seed);
+            digest.update((byte)i);
+
+            System.arraycopy(digest.digest(), 0, expanded, i * seed.length, seed.length);
+        }
+
+        return reduce(new BigInteger(1, expanded));
+    }
+
+    /**
+     * Reduces a number modulo the prime. Since the prime is 2^3072 - 1103717, the bits over 3072 can be folded back
+     * into the lower bits multiplied by 1103717; which is much faster than a division.
+     *
+     * @param value The number.
+     *
+     * @return The number modulo the prime.
+     */
+    private static BigInteger reduce(BigInteger value)
+    {
+        while (value.bitLength() > ELEMENT_BITS)
+            value = value.shiftRight(ELEMENT_BITS).multiply(OFFSET).add(value.and(MASK));
+
+        return value.compareTo(PRIME) >= 0 ? value.subtract(PRIME) : value;
+    }
+
+    /**
+     * Serializes a number modulo the prime as a fixed size big endian array.
+     *
+     * @param value The number.
+     *
+     * @return The serialized number.
+     */
+    private static byte[] toBytes(BigInteger value)
+    {
+        byte[] data   = value.toByteArray();
+        byte[] result = new byte[ELEMENT_SIZE];
+
+        // The sign byte (if any) is dropped.
+        int length = Math.min(data.length, ELEMENT_SIZE);
+        System.arraycopy(data, data.length - length, result, ELEMENT_SIZE - length, length);
+
+        return result;
+    }
+
+    /**
+     * Creates a SHA-256 message digest.
+     *
+     * @return The message digest.
+     */
+    private static MessageDigest createDigest()
+    {
+        try
+        {
+            return MessageDigest.getInstance("SHA-256");
+        }
+        catch (NoSuchAlgorithmException exception)
+        {
+            throw new IllegalStateException("SHA-256 is not available.", exception);
+        }
+    }
+}
@@ -144,7 +144,10 @@ public class Sha256Hash
     @Override
     public int hashCode()
     {
-        return Arrays.hashCode(m_data);
+        return ((m_data[HASH_SIZE - 4] & 0xFF) << 24) |
+               ((m_data[HASH_SIZE - 3] & 0xFF) << 16) |
+               ((m_data[HASH_SIZE - 2] & 0xFF) << 8)  |
+                (m_data[HASH_SIZE - 1] & 0xFF);
     }
 
     /**
@@ -0,0 +1,80 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2018 Angel Castillo.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.thunderbolt.security;
+
+/* IMPLEMENTATION ************************************************************/
+
+/**
+ * A signature to be verified, together with the data it signs and the public key of the signer.
+ */
+public class SignatureCheck
+{
+    private final byte[] m_data;
+    private final byte[] m_signature;
+    private final byte[] m_publicKey;
+
+    /**
+     * Initializes a new instance of the SignatureCheck class.
+     *
+     * @param data      The signed data.
+     * @param signature The DER-encoded signature.
+     * @param publicKey The public key of the signer.
+     */
+    public SignatureCheck(byte[] data, byte[] signature, byte[] publicKey)
+    {
+        m_data      = data;
+        m_signature = signature;
+        m_publicKey = publicKey;
+    }
+
+    /**
+     * Gets the signed data.
+     *
+     * @return The signed data.
+     */
+    public byte[] getData()
+    {
+        return m_data;
+    }
+
+    /**
+     * Gets the DER-encoded signature.
+     *
+     * @return The signature.
+     */
+    public byte[] getSignature()
+    {
+        return m_signature;
+    }
+
+    /**
+     * Gets the public key of the signer.
+     *
+     * @return The public key.
+     */
+    public byte[] getPublicKey()
+    {
+        return m_publicKey;
+    }
+}
@@ -33,6 +33,7 @@ import com.thunderbolt.persistence.storage.StorageException;
 import com.thunderbolt.persistence.structures.BlockMetadata;
 import com.thunderbolt.persistence.structures.UnspentTransactionOutput;
 import com.thunderbolt.security.Sha256Hash;
+import com.thunderbolt.transaction.contracts.ITransactionValidator;
 import com.thunderbolt.transaction.contracts.ITransactionsChangeListener;
 import com.thunderbolt.transaction.contracts.ITransactionsPool;
 import com.thunderbolt.transaction.parameters.SingleSignatureParameters;
@@ -61,6 +62,7 @@ public class MemoryTransactionsPool implements ITransactionsPool, IOutputsUpdate
     private static final int EVICTION_TIME                = 24; //hours
 
     private final IPersistenceService                       m_persistenceService;
+    private final ITransactionValidator                     m_validator;
     private final HashMap<Sha256Hash, TransactionPoolEntry> m_memPool            = new HashMap<>();
     private final HashMap<Sha256Hash, TransactionPoolEntry> m_orphanTransactions = new HashMap<>();
     private BigInteger                                      m_size               = BigInteger.ZERO;
@@ -73,8 +75,22 @@ public class MemoryTransactionsPool implements ITransactionsPool, IOutputsUpdate
      * @param service The persistence service.
      */
     public MemoryTransactionsPool(IPersistenceService service)
+    {
+        this(service, null);
+    }
+
+    /**
+     * Initializes a new instance of the MemoryTransactionsPoolService class.
+     *
+     * @param service   The persistence service.
+     * @param validator The validator that checks the transactions before they are added to the pool; or null to
+     *                  add them without validation. Sharing the validator with the blockchain lets the block
+     *                  validation reuse the signatures verified here.
+     */
+    public MemoryTransactionsPool(IPersistenceService service, ITransactionValidator validator)
     {
         m_persistenceService = service;
+        m_validator          = validator;
     }
 
     /**
@@ -219,6 +235,12 @@ public class MemoryTransactionsPool implements ITransactionsPool, IOutputsUpdate
             return false;
         }
 
+        if (!isTransactionValid(transaction))
+        {
+            s_logger.info("Transaction {} is not valid. Rejected.", transaction);
+            return false;
+        }
+
         TransactionPoolEntry entry;
 
         try
@@ -466,6 +488,31 @@ public class MemoryTransactionsPool implements ITransactionsPool, IOutputsUpdate
         return false;
     }
 
+    /**
+     * Gets whether the transaction passes the validation rules as if it was in the next block.
+     *
+     * @param transaction The transaction to be check.
+     *
+     * @return true if the transaction is valid or there is no validator; otherwise; false.
+     */
+    private boolean isTransactionValid(Transaction transaction)
+    {
+        if (m_validator == null)
+            return true;
+
+        BlockMetadata head = m_persistenceService.getChainHead();
+
+        try
+        {
+            return m_validator.validate(transaction, head == null ? 0 : head.getHeight() + 1, BigInteger.ZERO);
+        }
+        catch (StorageException exception)
+        {
+            s_logger.error("Unable to validate the transaction {}.", transaction, exception);
+            return false;
+        }
+    }
+
     /**
      * Called when a change on the available unspent outputs occur.
      *
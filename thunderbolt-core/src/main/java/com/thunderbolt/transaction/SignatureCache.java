@@ -0,0 +1,121 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2018 Angel Castillo.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.thunderbolt.transaction;
+
+/* IMPORTS *******************************************************************/
+
+import com.thunderbolt.persistence.storage.LruCache;
+import com.thunderbolt.security.Sha256Digester;
+import com.thunderbolt.security.Sha256Hash;
+
+import java.nio.ByteBuffer;
+
+/* IMPLEMENTATION ************************************************************/
+
+/**
+ * A size bounded cache of the signatures that were already verified. A transaction is verified when it enters the
+ * memory pool, and again when it shows up in a block; with this cache the second verification is a lookup.
+ *
+ * Each entry is the hash of the signed data, the public key and the signature; only valid signatures are added, so a
+ * hit always means the signature is valid.
+ */
+public class SignatureCache
+{
+    // Constants
+    private static final int ENTRY_SIZE = 128; // Approximate size in bytes of the key, its array and the map entry.
+
+    // Instance fields
+    private final LruCache<Sha256Hash, Boolean> m_entries;
+
+    /**
+     * Initializes a new instance of the SignatureCache class.
+     *
+     * @param capacity The capacity of the cache in bytes.
+     */
+    public SignatureCache(long capacity)
+    {
+        m_entries = new LruCache<>(capacity);
+    }
+
+    /**
+     * Gets whether the given signature was already verified.
+     *
+     * @param data      The signed data.
+     * @param signature The signature.
+     * @param publicKey The public key of the signer.
+     *
+     * @return true if the signature is known to be valid; otherwise; false.
+     */
+    public boolean contains(byte[] data, byte[] signature, byte[] publicKey)
+    {
+        return m_entries.get(createKey(data, signature, publicKey)) != null;
+    }
+
+    /**
+     * Adds a valid signature to the cache.
+     *
+     * @param data      The signed data.
+     * @param signature The signature.
+     * @param publicKey The public key of the signer.
+     */
+    public void add(byte[] data, byte[] signature, byte[] publicKey)
+    {
+        m_entries.put(createKey(data, signature, publicKey), Boolean.TRUE, ENTRY_SIZE);
+    }
+
+    /**
+     * Creates a string representation of the hash value of this object
+     *
+     * @return The string representation.
+     */
+    @Override
+    public String toString()
+    {
+        return m_entries.toString();
+    }
+
+    /**
+     * Creates the key of a cache entry. The parts are length prefixed, so two different triples can not be encoded
+     * to the same bytes.
+     *
+     * @param data      The signed data.
+     * @param signature The signature.
+     * @param publicKey The public key of the signer.
+     *
+     * @return The key.
+     */
+    private static Sha256Hash createKey(byte[] data, byte[] signature, byte[] publicKey)
+    {
+        ByteBuffer buffer = ByteBuffer.allocate(Integer.BYTES * 3 + data.length + signature.length + publicKey.length);
+
+        buffer.putInt(data.length);
+        buffer.put(data);
+        buffer.putInt(signature.length);
+        buffer.put(signature);
+        buffer.putInt(publicKey.length);
+        buffer.put(publicKey);
+
+        return Sha256Digester.digest(buffer.array());
+    }
+}
@@ -32,6 +32,7 @@ import com.thunderbolt.persistence.storage.StorageException;
 import com.thunderbolt.persistence.structures.UnspentTransactionOutput;
 import com.thunderbolt.security.EllipticCurveProvider;
 import com.thunderbolt.security.Sha256Hash;
+import com.thunderbolt.security.SignatureCheck;
 import com.thunderbolt.transaction.contracts.ITransactionValidator;
 import com.thunderbolt.transaction.parameters.MultiSignatureParameters;
 import com.thunderbolt.transaction.parameters.SingleSignatureParameters;
@@ -42,8 +43,12 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.math.BigInteger;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /* IMPLEMENTATION ************************************************************/
 
@@ -59,26 +64,75 @@ import java.util.Map;
  *  3. Verify unlocking parameters for each input; reject if any are bad.
  *  4. Using the referenced output transactions to get input values, reject if the sum of input values < sum
  *     of output values.
+ *
+ * The rules 1, 2 and 4 (and the parts of rule 3 that are not signatures) are checked in order on the calling thread.
+ * The signatures of rule 3 are collected and verified in a single batch by a pool of worker threads once all the
+ * other rules passed; the first invalid signature stops the verification of the rest.
  */
 public class StandardTransactionValidator implements ITransactionValidator
 {
     // Static Fields
     private static final Logger s_logger = LoggerFactory.getLogger(StandardTransactionValidator.class);
 
+    // Constants
+    private static final long DEFAULT_CACHE_SIZE = 32 * 1024 * 1024; // 32 MB
+
     // Instance fields
     private IPersistenceService m_persistence;
     private NetworkParameters   m_params;
+    private ExecutorService     m_verifier;
+    private SignatureCache      m_signatureCache;
 
     /**
-     * Initializes a new instance of the StandardTransactionValidator class.
+     * Initializes a new instance of the StandardTransactionValidator class. The signatures are verified using all
+     * the available processors.
      *
      * @param service    The persistence service.
      * @param parameters The network parameters.
      */
     public StandardTransactionValidator(IPersistenceService service, NetworkParameters parameters)
     {
-        m_persistence = service;
-        m_params      = parameters;
+        this(service, parameters, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Initializes a new instance of the StandardTransactionValidator class.
+     *
+     * @param service    The persistence service.
+     * @param parameters The network parameters.
+     * @param threads    The amount of threads that verify the signatures. With one thread the signatures are
+     *                   verified on the calling thread.
+     */
+    public StandardTransactionValidator(IPersistenceService service, NetworkParameters parameters, int threads)
+    {
+        this(service, parameters, threads, DEFAULT_CACHE_SIZE);
+    }
+
+    /**
+     * Initializes a new instance of the StandardTransactionValidator class.
+     *
+     * @param service    The persistence service.
+     * @param parameters The network parameters.
+     * @param threads    The amount of threads that verify the signatures. With one thread the signatures are
+     *                   verified on the calling thread.
+     * @param cacheSize  The size in bytes of the cache of verified signatures.
+     */
+    public StandardTransactionValidator(
+            IPersistenceService service, NetworkParameters parameters, int threads, long cacheSize)
+    {
+        m_persistence    = service;
+        m_params         = parameters;
+        m_signatureCache = new SignatureCache(cacheSize);
+
+        if (threads > 1)
+        {
+            m_verifier = Executors.newFixedThreadPool(threads, runnable ->
+            {
+                Thread thread = new Thread(runnable, "signature-verifier");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
     }
 
     /**
@@ -97,6 +151,54 @@ public class StandardTransactionValidator implements ITransactionValidator
         if (transaction.isCoinbase())
             return validateCoinbase(transaction, height, fee);
 
+        List<SignatureCheck> signatureChecks = new ArrayList<>();
+
+        return checkContext(transaction, height, signatureChecks) && runChecks(signatureChecks);
+    }
+
+    /**
+     * Validates all the transactions of a block. The signatures of all the inputs of the block are verified
+     * together, so they can be spread over the worker threads.
+     *
+     * @param transactions The transactions to be validated.
+     * @param height       The height of the block that contains the transactions.
+     * @param fee          The added fees of all the transactions in the block.
+     *
+     * @return True if all the transactions are valid, otherwise, false.
+     */
+    @Override
+    public boolean validateAll(List<Transaction> transactions, long height, BigInteger fee)
+    {
+        List<SignatureCheck> signatureChecks = new ArrayList<>();
+
+        for (Transaction transaction : transactions)
+        {
+            if (transaction.isCoinbase())
+            {
+                if (!validateCoinbase(transaction, height, fee))
+                    return false;
+            }
+            else if (!checkContext(transaction, height, signatureChecks))
+            {
+                return false;
+            }
+        }
+
+        return runChecks(signatureChecks);
+    }
+
+    /**
+     * Applies all the rules but the signature verification to a transaction. The signatures to verify are added to
+     * the given list instead.
+     *
+     * @param transaction     The transaction to be validated.
+     * @param height          The height of the block that contains this transaction.
+     * @param signatureChecks The list where the signatures of the inputs are added.
+     *
+     * @return True if the transaction passed the checks; otherwise, false.
+     */
+    private boolean checkContext(Transaction transaction, long height, List<SignatureCheck> signatureChecks)
+    {
         if (!transaction.isValid())
             return false;
 
@@ -130,10 +232,21 @@ public class StandardTransactionValidator implements ITransactionValidator
                 return false;
             }
 
-            // Check that the provided parameters can spend the referenced output.
+            // Check that the provided parameters can spend the referenced output. The signatures are verified later.
             byte[] unlockingParameters = transaction.getInputs().get(inputIndex).getUnlockingParameters();
 
-            boolean canUnlock = checkUnlockingParameters(unspentOutput.getOutput(), input, unlockingParameters);
+            boolean canUnlock;
+
+            try
+            {
+                canUnlock = checkUnlockingParameters(
+                        unspentOutput.getOutput(), input, unlockingParameters, signatureChecks);
+            }
+            catch (RuntimeException exception)
+            {
+                s_logger.debug("Unable to decode the unlocking parameters.", exception);
+                canUnlock = false;
+            }
 
             if (!canUnlock)
             {
@@ -142,7 +255,6 @@ public class StandardTransactionValidator implements ITransactionValidator
                         inputIndex, transaction, input.getReferenceHash());
 
                 return false;
-
             }
 
             totalInputValue = totalInputValue.add(unspentOutput.getOutput().getAmount());
@@ -235,15 +347,41 @@ public class StandardTransactionValidator implements ITransactionValidator
     }
 
     /**
-     * Verifies that the unlocking parameters from this input can unlock the referenced output.
+     * Verifies the given signatures in a single batch. The valid signatures are added to the signature cache.
+     *
+     * @param checks The signatures to verify.
+     *
+     * @return True if all the signatures are valid; otherwise, false.
+     */
+    private boolean runChecks(List<SignatureCheck> checks)
+    {
+        int failure = EllipticCurveProvider.verifyAll(checks, m_verifier);
+
+        if (failure >= 0)
+        {
+            s_logger.debug("The signature {} of the batch is invalid.", failure);
+            return false;
+        }
+
+        for (SignatureCheck check : checks)
+            m_signatureCache.add(check.getData(), check.getSignature(), check.getPublicKey());
+
+        return true;
+    }
+
+    /**
+     * Verifies that the unlocking parameters from this input can unlock the referenced output. The signatures are
+     * not verified here; they are added to the given list.
      *
      * @param output              The output being spent.
      * @param input               The input trying to spend the output.
      * @param unlockingParameters The unlocking parameters.
+     * @param signatureChecks     The list where the signatures to verify are added.
      *
-     * @return True if the input can unlock the referenced output; otherwise; false.
+     * @return True if the input can unlock the referenced output, given its signatures are valid; otherwise; false.
      */
-    private boolean checkUnlockingParameters(TransactionOutput output, TransactionInput input, byte[] unlockingParameters)
+    private boolean checkUnlockingParameters(
+            TransactionOutput output, TransactionInput input, byte[] unlockingParameters, List<SignatureCheck> signatureChecks)
     {
         boolean result = true;
 
@@ -282,7 +420,7 @@ public class StandardTransactionValidator implements ITransactionValidator
                 }
                 else
                 {
-                    result = EllipticCurveProvider.verify(data.toByteArray(), parameters.getSignature(), parameters.getPublicKey());
+                    addSignatureCheck(signatureChecks, data.toByteArray(), parameters.getSignature(), parameters.getPublicKey());
                 }
 
                 break;
@@ -319,15 +457,11 @@ public class StandardTransactionValidator implements ITransactionValidator
 
                 for (Map.Entry<Byte, byte[]> entry : parameters.getSignatures().entrySet())
                 {
-                    if (!EllipticCurveProvider
-                            .verify(
-                                    data.toByteArray(),
-                                    entry.getValue(),
-                                    parameters.getPublicKeys().get(entry.getKey())))
-                    {
-                        s_logger.debug("One of the signatures is invalid.");
-                        result = false;
-                    }
+                    addSignatureCheck(
+                            signatureChecks,
+                            data.toByteArray(),
+                            entry.getValue(),
+                            parameters.getPublicKeys().get(entry.getKey()));
                 }
                 break;
             }
@@ -346,4 +480,21 @@ public class StandardTransactionValidator implements ITransactionValidator
 
         return result;
     }
+
+    /**
+     * Adds a signature to the list of signatures to verify. Signatures that were already verified (for instance when
+     * the transaction entered the memory pool) are found in the cache and not added.
+     *
+     * @param signatureChecks The list of signatures to verify.
+     * @param data            The signed data.
+     * @param signature       The signature.
+     * @param publicKey       The public key of the signer.
+     */
+    private void addSignatureCheck(List<SignatureCheck> signatureChecks, byte[] data, byte[] signature, byte[] publicKey)
+    {
+        if (m_signatureCache.contains(data, signature, publicKey))
+            return;
+
+        signatureChecks.add(new SignatureCheck(data, signature, publicKey));
+    }
 }
@@ -29,6 +29,7 @@ import com.thunderbolt.persistence.storage.StorageException;
 import com.thunderbolt.transaction.Transaction;
 
 import java.math.BigInteger;
+import java.util.List;
 
 /* IMPLEMENTATION ************************************************************/
 
@@ -48,4 +49,15 @@ public interface ITransactionValidator
      * @return True if the transaction is valid, otherwise, false.
      */
     boolean validate(Transaction transaction, long height, BigInteger fee) throws StorageException;
+
+    /**
+     * Validates all the transactions of a block.
+     *
+     * @param transactions The transactions to be validated.
+     * @param height       The height of the block that contains the transactions.
+     * @param fee          The added fees of all the transactions in the block.
+     *
+     * @return True if all the transactions are valid, otherwise, false.
+     */
+    boolean validateAll(List<Transaction> transactions, long height, BigInteger fee) throws StorageException;
 }
@@ -0,0 +1,227 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2018 Angel Castillo.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package com.thunderbolt.persistence.storage;
+
+/* IMPORTS *******************************************************************/
+
+import com.thunderbolt.blockchain.BlockHeader;
+import com.thunderbolt.persistence.structures.BlockMetadata;
+import com.thunderbolt.persistence.structures.TransactionMetadata;
+import com.thunderbolt.security.Sha256Hash;
+import org.iq80.leveldb.DB;
+import org.iq80.leveldb.Options;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import static org.iq80.leveldb.impl.Iq80DBFactory.factory;
+import static org.junit.Assert.*;
+
+/* IMPLEMENTATION ************************************************************/
+
+/**
+ * Checks that a metadata database written in the legacy format is migrated to the current one when it is opened.
+ */
+public class LevelDbMetadataProviderTest
+{
+    private static final String METADATA_DB_NAME = "blockchain";
+
+    private Path        m_path;
+    private BlockHeader m_genesis;
+    private BlockHeader m_block;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        m_path    = Files.createTempDirectory("metadata");
+        m_genesis = new BlockHeader(1, new Sha256Hash(), hashOf(1), 1600000000L, 0x1d00ffff, 11);
+        m_block   = new BlockHeader(1, m_genesis.getHash(), hashOf(2), 1600000600L, 0x1d00ffff, 22);
+
+        try (DB database = factory.open(m_path.resolve(METADATA_DB_NAME).toFile(), new Options().createIfMissing(true)))
+        {
+            database.put(createKey('b', m_genesis.getHash()), serializeLegacyBlock(m_genesis, 0, 1, 0));
+            database.put(createKey('b', m_block.getHash()), serializeLegacyBlock(m_block, 1, 2, 1000));
+            database.put(new byte[] { 'h' }, serializeLegacyBlock(m_block, 1, 2, 1000));
+            database.put(createKey('t', hashOf(3)), serializeLegacyTransaction(m_block.getHash(), 1, 4));
+            database.put(createKey('t', hashOf(4)), serializeLegacyTransaction(hashOf(5), 7, 0));
+        }
+    }
+
+    @After
+    public void tearDown()
+    {
+        delete(m_path.toFile());
+    }
+
+    @Test
+    public void constructor_legacyBlocks_areMigrated() throws Exception
+    {
+        LevelDbMetadataProvider provider = new LevelDbMetadataProvider(m_path);
+        BlockMetadata           genesis  = provider.getBlockMetadata(m_genesis.getHash());
+        BlockMetadata           block    = provider.getBlockMetadata(m_block.getHash());
+
+        assertNotNull(genesis);
+        assertNotNull(block);
+        assertEquals(m_block, block.getHeader());
+        assertEquals(1, block.getHeight());
+        assertEquals(1000, block.getBlockOffset());
+        assertNotEquals(0, block.getRecordId());
+        assertNotEquals(genesis.getRecordId(), block.getRecordId());
+    }
+
+    @Test
+    public void constructor_legacyHead_isMigrated() throws Exception
+    {
+        LevelDbMetadataProvider provider = new LevelDbMetadataProvider(m_path);
+        BlockMetadata           head     = provider.getChainHead();
+
+        assertEquals(m_block.getHash(), head.getHash());
+        assertEquals(provider.getBlockMetadata(m_block.getHash()).getRecordId(), head.getRecordId());
+    }
+
+    @Test
+    public void constructor_legacyTransaction_refersToItsBlock() throws Exception
+    {
+        LevelDbMetadataProvider provider    = new LevelDbMetadataProvider(m_path);
+        TransactionMetadata     transaction = provider.getTransactionMetadata(hashOf(3));
+
+        assertNotNull(transaction);
+        assertEquals(m_block.getHash(), transaction.getBlockHash());
+        assertEquals(1, transaction.getBlockHeight());
+        assertEquals(1000, transaction.getBlockPosition());
+        assertEquals(4, transaction.getTransactionPosition());
+        assertEquals(m_block.getTimeStamp(), transaction.getTimestamp());
+    }
+
+    @Test
+    public void constructor_transactionInUnknownBlock_isDropped() throws Exception
+    {
+        LevelDbMetadataProvider provider = new LevelDbMetadataProvider(m_path);
+
+        assertNull(provider.getTransactionMetadata(hashOf(4)));
+    }
+
+    /**
+     * Serializes a block metadata entry in the format used before the entries were versioned.
+     *
+     * @param header The header of the block.
+     * @param height The height of the block.
+     * @param work   The total work of the chain up to the block.
+     * @param offset The offset of the block in its segment.
+     *
+     * @return The serialized entry.
+     */
+    private static byte[] serializeLegacyBlock(BlockHeader header, long height, long work, long offset)
+    {
+        return ByteBuffer.allocate(80 + Long.BYTES * 4 + Integer.BYTES * 3 + 1)
+                .put(header.serialize())
+                .putLong(height)
+                .putLong(work)
+                .putInt(1)
+                .put((byte)0)
+                .putInt(0)
+                .putLong(offset)
+                .putInt(0)
+                .putLong(offset)
+                .array();
+    }
+
+    /**
+     * Serializes a transaction metadata entry in the format used before the entries were versioned.
+     *
+     * @param blockHash The hash of the container block.
+     * @param height    The height of the container block.
+     * @param position  The position of the transaction in the block.
+     *
+     * @return The serialized entry.
+     */
+    private static byte[] serializeLegacyTransaction(Sha256Hash blockHash, long height, int position)
+    {
+        return ByteBuffer.allocate(Integer.BYTES * 2 + Long.BYTES * 3 + 32)
+                .putInt(0)
+                .putLong(0)
+                .putInt(position)
+                .putLong(height)
+                .put(blockHash.serialize())
+                .putLong(0)
+                .array();
+    }
+
+    /**
+     * Creates the key of a block or transaction entry.
+     *
+     * @param prefix The prefix of the entry.
+     * @param hash   The hash of the block or transaction.
+     *
+     * @return The key.
+     */
+    private static byte[] createKey(char prefix, Sha256Hash hash)
+    {
+        return ByteBuffer.allocate(1 + 32)
+                .put((byte)prefix)
+                .put(hash.serialize())
+                .array();
+    }
+
+    /**
+     * Creates a hash with every byte set to the given value.
+     *
+     * @param value The value of the bytes.
+     *
+     * @return The hash.
+     */
+    private static Sha256Hash hashOf(int value)
+    {
+        byte[] data = new byte[32];
+        Arrays.fill(data, (byte)value);
+
+        return new Sha256Hash(data);
+    }
+
+    /**
+     * Deletes a file or a folder with all its contents.
+     *
+     * @param file The file or folder.
+     */
+    private static void delete(File file)
+    {
+        File[] children = file.listFiles();
+
+        if (children != null)
+        {
+            for (File child : children)
+                delete(child);
+        }
+
+        file.delete();
+    }
+}
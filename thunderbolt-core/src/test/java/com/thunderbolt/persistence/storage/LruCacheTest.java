@@ -0,0 +1,271 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2018 Angel Castillo.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.thunderbolt.persistence.storage;
+
+/* IMPORTS *******************************************************************/
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/* IMPLEMENTATION ************************************************************/
+
+/**
+ * Checks the insertion, deletion and eviction of the LRU cache; including clusters of colliding keys that wrap
+ * around the end of the table.
+ */
+public class LruCacheTest
+{
+    private static final int ENTRY_OVERHEAD   = 64;
+    private static final int INITIAL_CAPACITY = 1024;
+    private static final int LAST_SLOT        = INITIAL_CAPACITY - 1;
+
+    @Test
+    public void get_afterPut_returnsValue()
+    {
+        LruCache<String, String> cache = new LruCache<>(Long.MAX_VALUE);
+
+        cache.put("a", "1", 10);
+
+        assertEquals("1", cache.get("a"));
+        assertEquals(1, cache.getCount());
+        assertEquals(10 + ENTRY_OVERHEAD, cache.getSizeInBytes());
+        assertEquals(1, cache.getHits());
+    }
+
+    @Test
+    public void get_missingKey_returnsNull()
+    {
+        LruCache<String, String> cache = new LruCache<>(Long.MAX_VALUE);
+
+        cache.put("a", "1", 10);
+
+        assertNull(cache.get("b"));
+        assertEquals(1, cache.getMisses());
+    }
+
+    @Test
+    public void put_existingKey_replacesValueAndWeight()
+    {
+        LruCache<String, String> cache = new LruCache<>(Long.MAX_VALUE);
+
+        cache.put("a", "1", 10);
+        cache.put("a", "2", 30);
+
+        assertEquals("2", cache.get("a"));
+        assertEquals(1, cache.getCount());
+        assertEquals(30 + ENTRY_OVERHEAD, cache.getSizeInBytes());
+    }
+
+    @Test
+    public void remove_existingKey_removesEntryAndWeight()
+    {
+        LruCache<String, String> cache = new LruCache<>(Long.MAX_VALUE);
+
+        cache.put("a", "1", 10);
+        cache.put("b", "2", 20);
+        cache.remove("a");
+
+        assertNull(cache.get("a"));
+        assertEquals("2", cache.get("b"));
+        assertEquals(1, cache.getCount());
+        assertEquals(20 + ENTRY_OVERHEAD, cache.getSizeInBytes());
+    }
+
+    @Test
+    public void remove_missingKey_doesNothing()
+    {
+        LruCache<String, String> cache = new LruCache<>(Long.MAX_VALUE);
+
+        cache.put("a", "1", 10);
+        cache.remove("b");
+
+        assertEquals(1, cache.getCount());
+        assertEquals(10 + ENTRY_OVERHEAD, cache.getSizeInBytes());
+    }
+
+    @Test
+    public void remove_middleOfCluster_keepsOtherKeysReachable()
+    {
+        LruCache<Key, Integer> cache = new LruCache<>(Long.MAX_VALUE);
+        int                    hash  = hashCodeForSlot(100);
+
+        for (int i = 0; i < 6; ++i)
+            cache.put(new Key(i, hash), i, 1);
+
+        cache.remove(new Key(2, hash));
+
+        assertNull(cache.get(new Key(2, hash)));
+
+        for (int i = 0; i < 6; ++i)
+        {
+            if (i != 2)
+                assertEquals(Integer.valueOf(i), cache.get(new Key(i, hash)));
+        }
+
+        assertEquals(5, cache.getCount());
+    }
+
+    @Test
+    public void put_clusterAtEndOfTable_wrapsAround()
+    {
+        LruCache<Key, Integer> cache = new LruCache<>(Long.MAX_VALUE);
+        int                    hash  = hashCodeForSlot(LAST_SLOT);
+
+        for (int i = 0; i < 4; ++i)
+            cache.put(new Key(i, hash), i, 1);
+
+        for (int i = 0; i < 4; ++i)
+            assertEquals(Integer.valueOf(i), cache.get(new Key(i, hash)));
+    }
+
+    @Test
+    public void remove_clusterAtEndOfTable_shiftsEntriesBackAcrossTheEnd()
+    {
+        LruCache<Key, Integer> cache = new LruCache<>(Long.MAX_VALUE);
+        int                    hash  = hashCodeForSlot(LAST_SLOT);
+        int                    other = hashCodeForSlot(0);
+
+        // The key that lives at slot 0 is pushed further by the wrapped cluster; it must stay reachable.
+        cache.put(new Key(0, hash), 0, 1);
+        cache.put(new Key(1, hash), 1, 1);
+        cache.put(new Key(2, other), 2, 1);
+        cache.put(new Key(3, hash), 3, 1);
+
+        cache.remove(new Key(0, hash));
+
+        assertEquals(Integer.valueOf(1), cache.get(new Key(1, hash)));
+        assertEquals(Integer.valueOf(2), cache.get(new Key(2, other)));
+        assertEquals(Integer.valueOf(3), cache.get(new Key(3, hash)));
+
+        cache.remove(new Key(1, hash));
+        cache.remove(new Key(3, hash));
+
+        assertEquals(Integer.valueOf(2), cache.get(new Key(2, other)));
+
+        cache.remove(new Key(2, other));
+
+        assertEquals(0, cache.getCount());
+        assertEquals(0, cache.getSizeInBytes());
+    }
+
+    @Test
+    public void put_manyKeys_growsTheTable()
+    {
+        LruCache<Integer, Integer> cache = new LruCache<>(Long.MAX_VALUE);
+
+        for (int i = 0; i < INITIAL_CAPACITY * 4; ++i)
+            cache.put(i, i, 1);
+
+        for (int i = 0; i < INITIAL_CAPACITY * 4; ++i)
+            assertEquals(Integer.valueOf(i), cache.get(i));
+
+        assertEquals(INITIAL_CAPACITY * 4, cache.getCount());
+    }
+
+    @Test
+    public void put_overCapacity_evictsUntilWithinCapacity()
+    {
+        long                       capacity = 10 * (10 + ENTRY_OVERHEAD);
+        LruCache<Integer, Integer> cache    = new LruCache<>(capacity);
+
+        for (int i = 0; i < 25; ++i)
+            cache.put(i, i, 10);
+
+        assertEquals(10, cache.getCount());
+        assertEquals(capacity, cache.getSizeInBytes());
+        assertEquals(15, cache.getEvictions());
+    }
+
+    @Test
+    public void put_overCapacity_sparesRecentlyUsedEntry()
+    {
+        long                       capacity = 4 * (10 + ENTRY_OVERHEAD);
+        LruCache<Integer, Integer> cache    = new LruCache<>(capacity);
+
+        for (int i = 0; i < 5; ++i)
+            cache.put(i, i, 10);
+
+        // The first eviction swept every reference bit; only the entry used afterwards gets a second chance.
+        for (int i = 0; i < 5; ++i)
+        {
+            if (cache.get(i) == null)
+                continue;
+
+            cache.put(5, 5, 10);
+
+            assertEquals(Integer.valueOf(i), cache.get(i));
+            assertEquals(2, cache.getEvictions());
+            return;
+        }
+
+        fail();
+    }
+
+    /**
+     * Finds a hash code whose home slot in a table of the initial size is the given slot.
+     *
+     * @param slot The slot.
+     *
+     * @return The hash code.
+     */
+    private static int hashCodeForSlot(int slot)
+    {
+        for (int hashCode = 0; ; ++hashCode)
+        {
+            int hash = hashCode * 0x9E3779B9;
+
+            if (((hash ^ (hash >>> 16)) & LAST_SLOT) == slot)
+                return hashCode;
+        }
+    }
+
+    /**
+     * A key with a chosen hash code, so keys can be made to collide.
+     */
+    private static class Key
+    {
+        private final int m_id;
+        private final int m_hashCode;
+
+        Key(int id, int hashCode)
+        {
+            m_id       = id;
+            m_hashCode = hashCode;
+        }
+
+        @Override
+        public boolean equals(Object other)
+        {
+            return other instanceof Key && ((Key)other).m_id == m_id;
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return m_hashCode;
+        }
+    }
+}
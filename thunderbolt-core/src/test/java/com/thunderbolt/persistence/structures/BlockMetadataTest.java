@@ -0,0 +1,220 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2018 Angel Castillo.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package com.thunderbolt.persistence.structures;
+
+/* IMPORTS *******************************************************************/
+
+import com.thunderbolt.blockchain.BlockHeader;
+import com.thunderbolt.security.Sha256Hash;
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/* IMPLEMENTATION ************************************************************/
+
+/**
+ * Checks that block metadata entries survive a round trip through the versioned format, and that entries written in
+ * the legacy format are still read correctly.
+ */
+public class BlockMetadataTest
+{
+    private static final int LEGACY_SIZE = 80 + Long.BYTES * 4 + Integer.BYTES * 3 + 1;
+
+    @Test
+    public void serialize_allFields_roundTrips()
+    {
+        BlockMetadata metadata = createMetadata();
+        metadata.setSkipHash(hashOf(7));
+
+        BlockMetadata result = new BlockMetadata(metadata.serialize());
+
+        assertFieldsEqual(metadata, result);
+        assertEquals(hashOf(7), result.getSkipHash());
+    }
+
+    @Test
+    public void serialize_withoutSkipHash_roundTrips()
+    {
+        BlockMetadata metadata = createMetadata();
+
+        BlockMetadata result = new BlockMetadata(metadata.serialize());
+
+        assertFieldsEqual(metadata, result);
+        assertNull(result.getSkipHash());
+    }
+
+    @Test
+    public void serialize_workLargerThanLong_roundTrips()
+    {
+        BlockMetadata metadata = createMetadata();
+        metadata.setTotalWork(BigInteger.ONE.shiftLeft(200).add(BigInteger.valueOf(12345)));
+
+        BlockMetadata result = new BlockMetadata(metadata.serialize());
+
+        assertEquals(metadata.getTotalWork(), result.getTotalWork());
+    }
+
+    @Test
+    public void serialize_firstByte_isFormatVersion()
+    {
+        assertEquals(BlockMetadata.FORMAT_VERSION, createMetadata().serialize()[0]);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void constructor_unknownVersion_throws()
+    {
+        byte[] data = createMetadata().serialize();
+        data[0] = (byte)(BlockMetadata.FORMAT_VERSION + 1);
+
+        new BlockMetadata(data);
+    }
+
+    @Test
+    public void fromLegacyFormat_withSkipHash_readsAllFields()
+    {
+        BlockMetadata expected = createMetadata();
+        expected.setSkipHash(hashOf(9));
+
+        BlockMetadata result = BlockMetadata.fromLegacyFormat(serializeLegacy(expected));
+
+        assertFieldsEqual(expected, result);
+        assertEquals(hashOf(9), result.getSkipHash());
+        assertEquals(0, result.getRecordId());
+    }
+
+    @Test
+    public void fromLegacyFormat_withoutSkipHash_readsAllFields()
+    {
+        BlockMetadata expected = createMetadata();
+
+        BlockMetadata result = BlockMetadata.fromLegacyFormat(serializeLegacy(expected));
+
+        assertFieldsEqual(expected, result);
+        assertNull(result.getSkipHash());
+    }
+
+    @Test
+    public void fromLegacyFormat_migratedEntry_roundTripsInNewFormat()
+    {
+        BlockMetadata legacy = BlockMetadata.fromLegacyFormat(serializeLegacy(createMetadata()));
+        legacy.setRecordId(42);
+
+        BlockMetadata result = new BlockMetadata(legacy.serialize());
+
+        assertFieldsEqual(legacy, result);
+        assertEquals(42, result.getRecordId());
+    }
+
+    /**
+     * Creates a block metadata entry with a distinct value in every field.
+     *
+     * @return The block metadata.
+     */
+    private static BlockMetadata createMetadata()
+    {
+        BlockMetadata metadata = new BlockMetadata();
+
+        metadata.setHeader(new BlockHeader(3, hashOf(1), hashOf(2), 1600000000L, 0x1d00ffff, 987654321L));
+        metadata.setHeight(300000);
+        metadata.setTotalWork(BigInteger.valueOf(Long.MAX_VALUE / 3));
+        metadata.setTransactionCount(1500);
+        metadata.setStatus((byte)5);
+        metadata.setBlockSegment(17);
+        metadata.setBlockOffset(123456789L);
+        metadata.setRevertSegment(18);
+        metadata.setRevertOffset(987654L);
+        metadata.setRecordId(1L << 40);
+
+        return metadata;
+    }
+
+    /**
+     * Serializes the given block metadata in the format used before the entries were versioned.
+     *
+     * @param metadata The block metadata.
+     *
+     * @return The serialized entry.
+     */
+    private static byte[] serializeLegacy(BlockMetadata metadata)
+    {
+        Sha256Hash skipHash = metadata.getSkipHash();
+        ByteBuffer buffer   = ByteBuffer.allocate(LEGACY_SIZE + (skipHash == null ? 0 : 32));
+
+        buffer.put(metadata.getHeader().serialize());
+        buffer.putLong(metadata.getHeight());
+        buffer.putLong(metadata.getTotalWork().longValue());
+        buffer.putInt(metadata.getTransactionCount());
+        buffer.put(metadata.getStatus());
+        buffer.putInt(metadata.getBlockSegment());
+        buffer.putLong(metadata.getBlockOffset());
+        buffer.putInt(metadata.getRevertSegment());
+        buffer.putLong(metadata.getRevertOffset());
+
+        if (skipHash != null)
+            buffer.put(skipHash.serialize());
+
+        return buffer.array();
+    }
+
+    /**
+     * Asserts that every field stored in both formats is the same in the two entries.
+     *
+     * @param expected The expected block metadata.
+     * @param actual   The actual block metadata.
+     */
+    private static void assertFieldsEqual(BlockMetadata expected, BlockMetadata actual)
+    {
+        assertEquals(expected.getHash(), actual.getHash());
+        assertEquals(expected.getHeader(), actual.getHeader());
+        assertEquals(expected.getHeight(), actual.getHeight());
+        assertEquals(expected.getTotalWork(), actual.getTotalWork());
+        assertEquals(expected.getTransactionCount(), actual.getTransactionCount());
+        assertEquals(expected.getStatus(), actual.getStatus());
+        assertEquals(expected.getBlockSegment(), actual.getBlockSegment());
+        assertEquals(expected.getBlockOffset(), actual.getBlockOffset());
+        assertEquals(expected.getRevertSegment(), actual.getRevertSegment());
+        assertEquals(expected.getRevertOffset(), actual.getRevertOffset());
+    }
+
+    /**
+     * Creates a hash with every byte set to the given value.
+     *
+     * @param value The value of the bytes.
+     *
+     * @return The hash.
+     */
+    private static Sha256Hash hashOf(int value)
+    {
+        byte[] data = new byte[32];
+        Arrays.fill(data, (byte)value);
+
+        return new Sha256Hash(data);
+    }
+}
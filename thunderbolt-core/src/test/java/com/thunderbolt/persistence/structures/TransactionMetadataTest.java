@@ -0,0 +1,138 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2018 Angel Castillo.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package com.thunderbolt.persistence.structures;
+
+/* IMPORTS *******************************************************************/
+
+import com.thunderbolt.security.Sha256Hash;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/* IMPLEMENTATION ************************************************************/
+
+/**
+ * Checks that transaction metadata entries survive a round trip through the versioned format, and that entries
+ * written in the legacy format are still read correctly.
+ */
+public class TransactionMetadataTest
+{
+    @Test
+    public void serialize_smallValues_roundTrips()
+    {
+        TransactionMetadata result = roundTrip(3, 1);
+
+        assertEquals(3, result.getBlockRecordId());
+        assertEquals(1, result.getTransactionPosition());
+    }
+
+    @Test
+    public void serialize_largeValues_roundTrips()
+    {
+        TransactionMetadata result = roundTrip(Long.MAX_VALUE >> 8, Integer.MAX_VALUE);
+
+        assertEquals(Long.MAX_VALUE >> 8, result.getBlockRecordId());
+        assertEquals(Integer.MAX_VALUE, result.getTransactionPosition());
+    }
+
+    @Test
+    public void serialize_onlyStoresRecordIdAndPosition()
+    {
+        TransactionMetadata metadata = new TransactionMetadata();
+
+        metadata.setBlockRecordId(5);
+        metadata.setTransactionPosition(2);
+        metadata.setBlockHeight(1000);
+        metadata.setBlockHash(hashOf(4));
+        metadata.setTimestamp(1600000000L);
+
+        assertArrayEquals(new byte[] { TransactionMetadata.FORMAT_VERSION, 5, 2 }, metadata.serialize());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void constructor_unknownVersion_throws()
+    {
+        new TransactionMetadata(new byte[] { TransactionMetadata.FORMAT_VERSION + 1, 5, 2 });
+    }
+
+    @Test
+    public void fromLegacyFormat_readsAllFields()
+    {
+        ByteBuffer buffer = ByteBuffer.allocate(Integer.BYTES * 2 + Long.BYTES * 3 + 32);
+
+        buffer.putInt(12);
+        buffer.putLong(34567L);
+        buffer.putInt(89);
+        buffer.putLong(250000L);
+        buffer.put(hashOf(6).serialize());
+        buffer.putLong(1600000000L);
+
+        TransactionMetadata result = TransactionMetadata.fromLegacyFormat(buffer.array());
+
+        assertEquals(12, result.getBlockFile());
+        assertEquals(34567L, result.getBlockPosition());
+        assertEquals(89, result.getTransactionPosition());
+        assertEquals(250000L, result.getBlockHeight());
+        assertEquals(hashOf(6), result.getBlockHash());
+        assertEquals(1600000000L, result.getTimestamp());
+    }
+
+    /**
+     * Serializes a transaction metadata entry and parses it back.
+     *
+     * @param blockRecordId The record id of the container block.
+     * @param position      The position of the transaction in the block.
+     *
+     * @return The parsed transaction metadata.
+     */
+    private static TransactionMetadata roundTrip(long blockRecordId, int position)
+    {
+        TransactionMetadata metadata = new TransactionMetadata();
+
+        metadata.setBlockRecordId(blockRecordId);
+        metadata.setTransactionPosition(position);
+
+        return new TransactionMetadata(metadata.serialize());
+    }
+
+    /**
+     * Creates a hash with every byte set to the given value.
+     *
+     * @param value The value of the bytes.
+     *
+     * @return The hash.
+     */
+    private static Sha256Hash hashOf(int value)
+    {
+        byte[] data = new byte[32];
+        Arrays.fill(data, (byte)value);
+
+        return new Sha256Hash(data);
+    }
+}
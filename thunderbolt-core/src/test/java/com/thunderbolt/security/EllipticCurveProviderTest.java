@@ -0,0 +1,241 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2018 Angel Castillo.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package com.thunderbolt.security;
+
+/* IMPORTS *******************************************************************/
+
+import org.bouncycastle.util.encoders.Hex;
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/* IMPLEMENTATION ************************************************************/
+
+/**
+ * Checks that the in place DER signature decoder accepts exactly the same signatures as the ASN.1 decoder.
+ */
+public class EllipticCurveProviderTest
+{
+    @Test
+    public void decodeFromDer_canonical_accepted()
+    {
+        assertAccepted("3006020101020102", 1, 2);
+        assertCanonical("3006020101020102");
+    }
+
+    @Test
+    public void decodeFromDer_paddedPositiveInteger_accepted()
+    {
+        assertAccepted("300702020080020101", 128, 1);
+        assertCanonical("300702020080020101");
+    }
+
+    @Test
+    public void decodeFromDer_negativeInteger_acceptedAsPositive()
+    {
+        assertAccepted("3006020180020101", 128, 1);
+    }
+
+    @Test
+    public void decodeFromDer_redundantLeadingZero_rejected()
+    {
+        assertRejected("300702020001020101");
+        assertRejected("300702010102020002");
+    }
+
+    @Test
+    public void decodeFromDer_redundantLeadingOnes_rejected()
+    {
+        assertRejected("30070202FF80020101");
+        assertRejected("30070201010202FF80");
+    }
+
+    @Test
+    public void decodeFromDer_emptyInteger_rejected()
+    {
+        assertRejected("30050200020101");
+    }
+
+    @Test
+    public void decodeFromDer_trailingData_accepted()
+    {
+        assertAccepted("300602010102010200", 1, 2);
+        assertAccepted("3006020101020102FFFFFF", 1, 2);
+    }
+
+    @Test
+    public void decodeFromDer_longFormLengths_accepted()
+    {
+        assertAccepted("308106020101020102", 1, 2);
+        assertAccepted("300702810101020102", 1, 2);
+    }
+
+    @Test
+    public void decodeFromDer_extraElements_accepted()
+    {
+        assertAccepted("3009020101020102020103", 1, 2);
+    }
+
+    @Test
+    public void decodeFromDer_malformed_rejected()
+    {
+        assertRejected("");
+        assertRejected("30");
+        assertRejected("3000");
+        assertRejected("3003020101");
+        assertRejected("30060201010201");
+        assertRejected("3007020101020102");
+        assertRejected("3106020101020102");
+        assertRejected("3006040101020102");
+        assertRejected("3006020101040102");
+        assertRejected("0206020101020102");
+        assertRejected("308006020101020102");
+    }
+
+    @Test
+    public void decodeFromDer_indefiniteLength_sameAsAsn1()
+    {
+        assertSameResult("3080020101020102");
+        assertSameResult("30800201010201020000");
+    }
+
+    @Test
+    public void decodeFromDer_generatedSignatures_canonical()
+    {
+        Random random = new Random(1);
+
+        for (int i = 0; i < 64; ++i)
+        {
+            EllipticCurveKeyPair keyPair = new EllipticCurveKeyPair();
+
+            byte[] data = new byte[32];
+            random.nextBytes(data);
+
+            byte[] signature = EllipticCurveProvider.sign(data, keyPair.getPrivateKey());
+
+            assertCanonical(Hex.toHexString(signature));
+            assertArrayEquals(EllipticCurveProvider.decodeFromAsn1(signature), EllipticCurveProvider.decodeFromDer(signature));
+            assertTrue(EllipticCurveProvider.verify(data, signature, keyPair.getPublicKey()));
+        }
+    }
+
+    @Test
+    public void decodeFromDer_randomMutations_sameAsAsn1()
+    {
+        Random random = new Random(2);
+
+        EllipticCurveKeyPair keyPair   = new EllipticCurveKeyPair();
+        byte[]               signature = EllipticCurveProvider.sign(new byte[32], keyPair.getPrivateKey());
+
+        for (int i = 0; i < 10000; ++i)
+        {
+            byte[] mutated = signature.clone();
+            int    changes = 1 + random.nextInt(3);
+
+            for (int j = 0; j < changes; ++j)
+            {
+                // Mutate the headers more often than the values, that is where the encodings differ.
+                int position = random.nextBoolean() ? random.nextInt(6) : random.nextInt(mutated.length);
+                mutated[position] = (byte)random.nextInt(256);
+            }
+
+            assertSameResult(Hex.toHexString(mutated));
+        }
+    }
+
+    /**
+     * Asserts that both decoders accept the signature and decode the same values.
+     *
+     * @param encoded The hex encoded signature.
+     * @param r       The expected R value.
+     * @param s       The expected S value.
+     */
+    private static void assertAccepted(String encoded, long r, long s)
+    {
+        BigInteger[] expected = new BigInteger[] { BigInteger.valueOf(r), BigInteger.valueOf(s) };
+
+        assertArrayEquals(encoded, expected, EllipticCurveProvider.decodeFromAsn1(Hex.decode(encoded)));
+        assertArrayEquals(encoded, expected, EllipticCurveProvider.decodeFromDer(Hex.decode(encoded)));
+    }
+
+    /**
+     * Asserts that both decoders reject the signature.
+     *
+     * @param encoded The hex encoded signature.
+     */
+    private static void assertRejected(String encoded)
+    {
+        assertNull(encoded, decodeOrNull(encoded, false));
+        assertNull(encoded, decodeOrNull(encoded, true));
+    }
+
+    /**
+     * Asserts that the signature takes the in place path of the decoder.
+     *
+     * @param encoded The hex encoded signature.
+     */
+    private static void assertCanonical(String encoded)
+    {
+        assertNotNull(encoded, EllipticCurveProvider.decodeCanonicalDer(Hex.decode(encoded)));
+    }
+
+    /**
+     * Asserts that both decoders either reject the signature or decode the same values.
+     *
+     * @param encoded The hex encoded signature.
+     */
+    private static void assertSameResult(String encoded)
+    {
+        assertArrayEquals(encoded, decodeOrNull(encoded, false), decodeOrNull(encoded, true));
+    }
+
+    /**
+     * Decodes the signature.
+     *
+     * @param encoded The hex encoded signature.
+     * @param inPlace Whether to use the in place decoder or the ASN.1 decoder.
+     *
+     * @return The decoded values; or null if the decoder rejected the signature.
+     */
+    private static BigInteger[] decodeOrNull(String encoded, boolean inPlace)
+    {
+        byte[] signature = Hex.decode(encoded);
+
+        try
+        {
+            return inPlace
+                    ? EllipticCurveProvider.decodeFromDer(signature)
+                    : EllipticCurveProvider.decodeFromAsn1(signature);
+        }
+        catch (RuntimeException exception)
+        {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2018 Angel Castillo.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.thunderbolt.security;
+
+/* IMPORTS *******************************************************************/
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+
+/* IMPLEMENTATION ************************************************************/
+
+/**
+ * Checks that the multiset hash does not depend on the order of the elements, and that removing an element undoes
+ * adding it.
+ */
+public class MultisetHashTest
+{
+    private static final byte[] A = "a".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] B = "b".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] C = "c".getBytes(StandardCharsets.UTF_8);
+
+    @Test
+    public void getHash_sameElementsInAnyOrder_sameHash()
+    {
+        assertEquals(hashOf(A, B, C), hashOf(C, A, B));
+        assertEquals(hashOf(A, B, C), hashOf(B, C, A));
+    }
+
+    @Test
+    public void getHash_differentElements_differentHash()
+    {
+        assertNotEquals(hashOf(A, B), hashOf(A, C));
+    }
+
+    @Test
+    public void getHash_repeatedElement_differsFromSingleElement()
+    {
+        assertNotEquals(hashOf(A), hashOf(A, A));
+    }
+
+    @Test
+    public void remove_afterAdd_restoresEmptySet()
+    {
+        MultisetHash set = new MultisetHash();
+
+        set.add(A);
+        set.remove(A);
+
+        assertEquals(new MultisetHash().getHash(), set.getHash());
+    }
+
+    @Test
+    public void remove_oneElement_equalsSetWithoutIt()
+    {
+        MultisetHash set = new MultisetHash();
+
+        set.add(A);
+        set.add(B);
+        set.add(C);
+        set.remove(B);
+
+        assertEquals(hashOf(A, C), set.getHash());
+    }
+
+    @Test
+    public void remove_beforeAdd_cancelsOut()
+    {
+        MultisetHash set = new MultisetHash();
+
+        set.remove(B);
+        set.add(A);
+        set.add(B);
+
+        assertEquals(hashOf(A), set.getHash());
+    }
+
+    @Test
+    public void copy_isIndependentOfTheOriginal()
+    {
+        MultisetHash set = new MultisetHash();
+
+        set.add(A);
+
+        MultisetHash copy = new MultisetHash(set);
+
+        set.add(B);
+
+        assertEquals(hashOf(A), copy.getHash());
+        assertEquals(hashOf(A, B), set.getHash());
+    }
+
+    @Test
+    public void serialize_roundTrip_keepsHashAndUpdates()
+    {
+        MultisetHash set = new MultisetHash();
+
+        set.add(A);
+        set.add(B);
+        set.remove(A);
+
+        byte[]       data     = set.serialize();
+        MultisetHash restored = new MultisetHash(ByteBuffer.wrap(data));
+
+        assertEquals(MultisetHash.SIZE, data.length);
+        assertEquals(set.getHash(), restored.getHash());
+
+        restored.add(C);
+
+        assertEquals(hashOf(B, C), restored.getHash());
+    }
+
+    /**
+     * Gets the hash of the set with the given elements.
+     *
+     * @param elements The elements.
+     *
+     * @return The hash.
+     */
+    private static Sha256Hash hashOf(byte[]... elements)
+    {
+        MultisetHash set = new MultisetHash();
+
+        for (byte[] element : elements)
+            set.add(element);
+
+        return set.getHash();
+    }
+}
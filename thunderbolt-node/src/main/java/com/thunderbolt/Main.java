@@ -41,6 +41,7 @@ import com.thunderbolt.network.discovery.StandardPeerDiscoverer;
 import com.thunderbolt.network.messages.ProtocolMessageFactory;
 import com.thunderbolt.network.messages.structures.NetworkAddress;
 import com.thunderbolt.network.peers.PeerManager;
+import com.thunderbolt.persistence.BlockStorageReindexer;
 import com.thunderbolt.persistence.StandardPersistenceService;
 import com.thunderbolt.persistence.contracts.IContiguousStorage;
 import com.thunderbolt.persistence.contracts.IMetadataProvider;
@@ -49,6 +50,7 @@ import com.thunderbolt.persistence.contracts.IPersistenceService;
 import com.thunderbolt.persistence.storage.*;
 import com.thunderbolt.persistence.structures.NetworkAddressMetadata;
 import com.thunderbolt.rpc.NodeHttpHandler;
+import com.thunderbolt.security.Sha256Hash;
 import com.thunderbolt.transaction.*;
 import com.thunderbolt.transaction.contracts.ITransactionValidator;
 import com.thunderbolt.wallet.Wallet;
@@ -61,13 +63,18 @@ import java.awt.event.ActionListener;
 import java.io.*;
 import java.net.InetSocketAddress;
 import java.net.URL;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.time.LocalDateTime;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.List;
 import java.util.Objects;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ThreadPoolExecutor;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 /* IMPLEMENTATION ************************************************************/
 
@@ -88,14 +95,24 @@ public class Main
     static private final Path   WALLET_PATH       = Paths.get(USER_HOME_PATH, "wallet.bin");
     static private final String BLOCK_PATTERN     = "block%05d.bin";
     static private final String REVERT_PATTERN    = "revert%05d.bin";
+    static private final String REINDEX_ARGUMENT  = "-reindex";
+    static private final String REINDEX_BACKUP    = "reindex-backup";
+    static private final String SNAPSHOT_ARGUMENT = "-loadtxoutset=";
+    static private final String COMMIT_ARGUMENT   = "-loadtxoutsetcommitment=";
     private static final int    RPC_THREAD_COUNT  = 2;
     private static final int    HTTP_CLOSE_DELAY  = 1000; //ms
+    private static final long   NODE_STOP_TIMEOUT = 60000; //ms
     private static final int    EXIT_CODE_SUCCESS = 0;
+    private static final long   BYTES_PER_MB      = 1024 * 1024;
 
     // Static variables
-    private static final Logger s_logger     = LoggerFactory.getLogger(Main.class);
-    private static HttpServer   s_httpServer = null;
-    private static Node         s_node       = null;
+    private static final Logger  s_logger     = LoggerFactory.getLogger(Main.class);
+    private static HttpServer    s_httpServer = null;
+    private static volatile Node s_node       = null; // Read by the shutdown hook.
+
+    private static IContiguousStorage s_blockStorage     = null;
+    private static IContiguousStorage s_revertsStorage   = null;
+    private static IMetadataProvider  s_metadataProvider = null;
 
     /**
      * Application entry point.
@@ -109,13 +126,81 @@ public class Main
 
         Configuration.initialize(CONFIG_FILE_PATH.toString());
 
-        IPersistenceService           persistenceService   = createPersistenceService();
-        MemoryTransactionsPool        memPool              = new MemoryTransactionsPool(persistenceService);
-        ITransactionValidator         transactionValidator = new StandardTransactionValidator(persistenceService, NetworkParameters.mainNet());
+        // Each store can live on its own device; e.g. the metadata on a fast disk and the blocks on a larger one.
+        Path blocksPath   = resolvePath(Configuration.getBlocksPath(), BLOCKS_PATH);
+        Path revertsPath  = resolvePath(Configuration.getRevertsPath(), REVERT_PATH);
+        Path metadataPath = resolvePath(Configuration.getMetadataPath(), METADATA_PATH);
+        Path peersPath    = resolvePath(Configuration.getPeersPath(), ADDRESS_PATH);
+
+        LevelDbSettings databaseSettings = new LevelDbSettings(
+                Configuration.getLevelDbCacheSize(),
+                Configuration.getLevelDbWriteBufferSize(),
+                Configuration.getLevelDbBloomBits(),
+                Configuration.isLevelDbCompressionEnabled());
+
+        // A reindex that did not finish leaves the previous metadata and revert data aside; they are put back.
+        restoreBackup(metadataPath, LevelDbMetadataProvider.getDatabaseFiles(metadataPath));
+        restoreBackup(revertsPath, DiskContiguousStorage.getStorageFiles(revertsPath, REVERT_PATTERN));
+
+        // The metadata and the revert data are rebuilt from the block segments.
+        boolean reindex = Arrays.asList(args).contains(REINDEX_ARGUMENT);
+
+        if (reindex)
+        {
+            // Nothing is touched unless the blocks can be reindexed; a pruned node can not rebuild its metadata.
+            if (!Files.exists(blocksPath.resolve(String.format(BLOCK_PATTERN, 0))))
+            {
+                throw new StorageException(String.format(
+                        "The first block segment is missing in '%s'; the blocks were pruned or the path is wrong.",
+                        blocksPath));
+            }
+
+            // Only the files of the stores are moved, the folders may be shared with other data.
+            s_logger.info("Moving the metadata and revert data aside for reindexing...");
+            moveToBackup(metadataPath, LevelDbMetadataProvider.getDatabaseFiles(metadataPath));
+            moveToBackup(revertsPath, DiskContiguousStorage.getStorageFiles(revertsPath, REVERT_PATTERN));
+        }
+
+        IPersistenceService persistenceService =
+                createPersistenceService(blocksPath, revertsPath, metadataPath, databaseSettings);
+
+        if (reindex)
+        {
+            new BlockStorageReindexer(NetworkParameters.mainNet(), s_blockStorage, persistenceService,
+                    Runtime.getRuntime().availableProcessors()).reindex();
+
+            // The previous data is only dropped once the rebuilt data is on disk.
+            s_revertsStorage.flush();
+            s_metadataProvider.flush();
+
+            deleteDirectory(metadataPath.resolve(REINDEX_BACKUP));
+            deleteDirectory(revertsPath.resolve(REINDEX_BACKUP));
+        }
+
+        // The node starts from an unspent outputs snapshot and only syncs the blocks after it. The snapshot is only
+        // trusted if it matches a known commitment; either given explicitly or the one of the network parameters.
+        Path       snapshotPath       = null;
+        Sha256Hash snapshotCommitment = null;
+
+        for (String arg : args)
+        {
+            if (arg.startsWith(SNAPSHOT_ARGUMENT))
+                snapshotPath = Paths.get(arg.substring(SNAPSHOT_ARGUMENT.length()));
+
+            if (arg.startsWith(COMMIT_ARGUMENT))
+                snapshotCommitment = new Sha256Hash(arg.substring(COMMIT_ARGUMENT.length()));
+        }
+
+        if (snapshotPath != null)
+            persistenceService.loadUnspentOutputs(snapshotPath, NetworkParameters.mainNet(), snapshotCommitment);
+
+        ITransactionValidator         transactionValidator = new StandardTransactionValidator(persistenceService, NetworkParameters.mainNet(),
+                Runtime.getRuntime().availableProcessors(), Configuration.getSignatureCacheSize() * BYTES_PER_MB);
+        MemoryTransactionsPool        memPool              = new MemoryTransactionsPool(persistenceService, transactionValidator);
         IBlockchainCommitter          committer            = new StandardBlockchainCommitter(persistenceService, memPool);
         Blockchain                    blockchain           = new Blockchain(NetworkParameters.mainNet(), transactionValidator, committer, persistenceService);
         IPeerDiscoverer               discoverer           = new StandardPeerDiscoverer();
-        INetworkAddressPool           addressPool          = new LevelDbNetworkAddressPool(ADDRESS_PATH);
+        INetworkAddressPool           addressPool          = new LevelDbNetworkAddressPool(peersPath, databaseSettings);
 
         initializePeerPool(addressPool, discoverer);
 
@@ -162,18 +247,158 @@ public class Main
         System.exit(EXIT_CODE_SUCCESS);
     }
 
+    /**
+     * Gets the path of a store.
+     *
+     * @param configuredPath The path set in the configuration file; or an empty string if none was set.
+     * @param defaultPath    The default path of the store in the data folder.
+     *
+     * @return The configured path if any; otherwise; the default path.
+     */
+    private static Path resolvePath(String configuredPath, Path defaultPath)
+    {
+        return configuredPath.isEmpty() ? defaultPath : Paths.get(configuredPath);
+    }
+
     /**
      * Creates the persistence service.
      *
+     * @param blocksPath       The path of the block segments.
+     * @param revertsPath      The path of the revert data segments.
+     * @param metadataPath     The path of the metadata database.
+     * @param databaseSettings The tuning parameters of the metadata database.
+     *
      * @return The newly created persistence service.
      */
-    private static IPersistenceService createPersistenceService() throws StorageException
+    private static IPersistenceService createPersistenceService(
+            Path blocksPath, Path revertsPath, Path metadataPath, LevelDbSettings databaseSettings)
+            throws StorageException
     {
-        IContiguousStorage blockStorage    = new DiskContiguousStorage(BLOCKS_PATH, BLOCK_PATTERN);
-        IContiguousStorage revertsStorage  = new DiskContiguousStorage(REVERT_PATH, REVERT_PATTERN);
-        IMetadataProvider metadataProvider = new LevelDbMetadataProvider(METADATA_PATH);
+        s_blockStorage = new DiskContiguousStorage(blocksPath, BLOCK_PATTERN,
+                Configuration.getStorageSyncPolicy(), Configuration.getStorageSyncInterval(),
+                Configuration.isBlockCompressionEnabled());
+        s_revertsStorage = new DiskContiguousStorage(revertsPath, REVERT_PATTERN,
+                Configuration.getStorageSyncPolicy(), Configuration.getStorageSyncInterval(),
+                Configuration.isRevertDataCompressionEnabled());
+
+        s_metadataProvider = new LevelDbMetadataProvider(metadataPath,
+                Configuration.getMetadataCacheSize() * BYTES_PER_MB,
+                Configuration.getMetadataFlushInterval(),
+                Configuration.getMetadataFlushSize() * BYTES_PER_MB,
+                Configuration.isAddressIndexEnabled(),
+                databaseSettings);
+
+        // Make sure all pending segment writes reach the disk before the process exits.
+        Runtime.getRuntime().addShutdownHook(new Thread(Main::closeStorage));
+
+        return new StandardPersistenceService(
+                s_blockStorage, s_revertsStorage, s_metadataProvider, Configuration.getPruneDepth());
+    }
+
+    /**
+     * Moves the given files to the backup folder inside the directory.
+     *
+     * @param path  The path to the directory.
+     * @param files The files to move.
+     */
+    private static void moveToBackup(Path path, List<Path> files) throws IOException
+    {
+        if (files.isEmpty())
+            return;
+
+        Path backup = path.resolve(REINDEX_BACKUP);
+
+        Files.createDirectories(backup);
+
+        for (Path file : files)
+            Files.move(file, backup.resolve(file.getFileName()));
+    }
 
-        return new StandardPersistenceService(blockStorage, revertsStorage, metadataProvider);
+    /**
+     * Puts back the files left in the backup folder by a reindex that did not finish. The files rebuilt by the
+     * reindex are deleted first. Does nothing if there is no backup folder.
+     *
+     * @param path  The path to the directory.
+     * @param files The files rebuilt by the reindex.
+     */
+    private static void restoreBackup(Path path, List<Path> files) throws IOException
+    {
+        Path backup = path.resolve(REINDEX_BACKUP);
+
+        if (!Files.isDirectory(backup))
+            return;
+
+        s_logger.warn("The last reindex did not finish. Restoring the previous data in '{}'...", path);
+
+        for (Path file : files)
+            deleteDirectory(file);
+
+        List<Path> backupFiles;
+
+        try (Stream<Path> paths = Files.list(backup))
+        {
+            backupFiles = paths.collect(Collectors.toList());
+        }
+
+        for (Path file : backupFiles)
+            Files.move(file, path.resolve(file.getFileName()));
+
+        Files.delete(backup);
+    }
+
+    /**
+     * Deletes a directory and all its contents. Does nothing if the directory does not exist.
+     *
+     * @param path The path to the directory.
+     */
+    private static void deleteDirectory(Path path) throws IOException
+    {
+        if (!Files.exists(path))
+            return;
+
+        List<Path> files;
+
+        // The contents go first, so every directory is empty when it is deleted.
+        try (Stream<Path> paths = Files.walk(path))
+        {
+            files = paths.sorted(Comparator.reverseOrder()).collect(Collectors.toList());
+        }
+
+        for (Path file : files)
+            Files.delete(file);
+    }
+
+    /**
+     * Stops the node, flushes the pending metadata changes and closes the block and revert storages. The metadata
+     * provider forces the storages before writing the metadata, so it never references block data that did not reach
+     * the disk.
+     *
+     * If the node does not stop in time, the storage is left alone; a block may still be being added. Whatever was
+     * not flushed is recovered at the next start, as after a crash.
+     */
+    private static void closeStorage()
+    {
+        try
+        {
+            if (s_node != null && !s_node.shutdownAndWait(NODE_STOP_TIMEOUT))
+            {
+                s_logger.error("The node did not stop in time. The pending metadata changes were not written.");
+                return;
+            }
+
+            s_metadataProvider.flush();
+            s_blockStorage.close();
+            s_revertsStorage.close();
+        }
+        catch (InterruptedException exception)
+        {
+            Thread.currentThread().interrupt();
+            s_logger.error("Interrupted while waiting for the node to stop. The pending metadata changes were not written.");
+        }
+        catch (StorageException exception)
+        {
+            s_logger.error("Unable to close the storage.", exception);
+        }
     }
 
     /**